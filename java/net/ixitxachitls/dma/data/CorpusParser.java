@@ -0,0 +1,955 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.data;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import net.ixitxachitls.dma.entries.AbstractEntry;
+import net.ixitxachitls.dma.entries.AbstractType;
+import net.ixitxachitls.dma.values.Values;
+import net.ixitxachitls.input.ParseReader;
+import net.ixitxachitls.util.Strings;
+import net.ixitxachitls.util.configuration.Config;
+import net.ixitxachitls.util.logging.Log;
+
+/**
+ * A parser for the dma text corpus, the .dma files of entries like
+ * 'base monster Human = size Medium-size; ... .'.
+ *
+ * Files are parsed in parallel on a fork join pool. Each file is split into
+ * its entries at the top level (nested entries, like the possessions of a
+ * character, are split off as entries of their own) and the entries of a file
+ * are parsed in parallel again. The entries of a file are handed to a
+ * receiver as soon as the file is parsed, but only if there were no errors,
+ * so that files parsed only partially are never stored. Only a limited number
+ * of files is read at the same time, so the memory needed does not grow with
+ * the size of the corpus.
+ *
+ * @file          CorpusParser.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public class CorpusParser
+{
+  /**
+   * The receiver of parsed entries.
+   */
+  public interface Receiver
+  {
+    /**
+     * Receive a parsed entry. This is called concurrently from the threads
+     * parsing.
+     *
+     * @param inEntry the entry parsed
+     */
+    public void receive(AbstractEntry inEntry);
+  }
+
+  /**
+   * Create the parser.
+   *
+   * @param inThreads  the number of threads to parse with
+   * @param inMaxFiles the maximal number of files to read at the same time
+   */
+  public CorpusParser(int inThreads, int inMaxFiles)
+  {
+    m_threads = inThreads;
+    m_files = new Semaphore(inMaxFiles);
+  }
+
+  /** The extension of the files of the text corpus. */
+  public static final String EXTENSION = ".dma";
+
+  /** The maximal number of entries of a file to parse in a single task. */
+  private static final int CHUNKS = Config.get("dma.corpus.chunks", 16);
+
+  /** The pattern for the bases of an entry in its header. */
+  private static final Pattern BASES =
+    Pattern.compile("^(.*?)\\s*\\[(.*)\\]$", Pattern.DOTALL);
+
+  /** The splitter for lists of values. */
+  private static final Splitter COMMA_SPLITTER =
+    Splitter.on(',').trimResults().omitEmptyStrings();
+
+  /** The number of threads to parse with. */
+  private final int m_threads;
+
+  /** The permits for files being read. */
+  private final Semaphore m_files;
+
+  /** The number of errors encountered. */
+  private final AtomicInteger m_errors = new AtomicInteger();
+
+  /**
+   * A single entry in a file, as split off for parsing.
+   */
+  @Immutable
+  static class Chunk
+  {
+    /**
+     * Create the chunk.
+     *
+     * @param inFile   the name of the file with the entry
+     * @param inLine   the line the entry starts on
+     * @param inHeader the header of the entry, i.e. type, name and bases
+     * @param inBody   the values of the entry
+     */
+    Chunk(String inFile, int inLine, String inHeader, String inBody)
+    {
+      m_file = inFile;
+      m_line = inLine;
+      m_header = inHeader;
+      m_body = inBody;
+    }
+
+    /** The name of the file with the entry. */
+    private final String m_file;
+
+    /** The line the entry starts on. */
+    private final int m_line;
+
+    /** The header of the entry, with type, name and bases. */
+    private final String m_header;
+
+    /** The body of the entry with all its values, starting on the line of
+     * the header. */
+    private final String m_body;
+
+    /**
+     * Get the header of the entry.
+     *
+     * @return the header, with type, name and bases
+     */
+    public String getHeader()
+    {
+      return m_header;
+    }
+
+    /**
+     * Get the location of the given line of the chunk.
+     *
+     * @param inLine the line in the body, starting with 1
+     * @return the location for messages
+     */
+    private String location(long inLine)
+    {
+      return m_file + ":" + (m_line + inLine - 1);
+    }
+
+    /**
+     * Get the location of the entry.
+     *
+     * @return the location for messages
+     */
+    public String location()
+    {
+      return m_file + ":" + m_line;
+    }
+
+    /**
+     * Parse the values of the entry.
+     *
+     * @param outErrors the errors encountered
+     * @return the values, with the keys as used when setting entry values
+     */
+    public ListMultimap<String, String> values(List<String> outErrors)
+    {
+      ListMultimap<String, String> values = ArrayListMultimap.create();
+      try (ParseReader reader =
+        new ParseReader(new StringReader(m_body), m_file))
+      {
+        for(skipWhites(reader); !reader.isAtEnd(); skipWhites(reader))
+        {
+          ParseReader.Position position = reader.getPosition();
+          String key = readKey(reader);
+          if(key.isEmpty())
+          {
+            outErrors.add(location(position.getLine()) + ": missing key");
+            readValue(reader);
+            continue;
+          }
+
+          Optional<String> value = readValue(reader);
+          if(!value.isPresent())
+          {
+            outErrors.add(location(position.getLine())
+                          + ": unterminated text for " + key);
+            break;
+          }
+
+          key = key.toLowerCase(Locale.US).replace(' ', '_');
+          String text = value.get();
+          if(isText(text))
+            values.put(key, Strings.trim(text.substring(1, text.length() - 1)
+                                         .replace("\\\"", "\"")));
+          else
+            for(String single : COMMA_SPLITTER.split(text))
+              values.put(key, Strings.trim(single));
+        }
+      }
+
+      return values;
+    }
+  }
+
+  /**
+   * Parse all the given files. The entries of each file without errors are
+   * handed to the receiver as soon as the file is parsed, thus the receiver
+   * has to be thread safe.
+   *
+   * @param inFiles    the names of the files to parse
+   * @param inReceiver the receiver for all parsed entries
+   * @return the number of errors encountered
+   *
+   * @throws IOException if a file could not be read
+   * @throws InterruptedException if interrupted while waiting for parsing
+   */
+  public int parse(List<String> inFiles, Receiver inReceiver)
+    throws IOException, InterruptedException
+  {
+    ForkJoinPool pool = new ForkJoinPool(m_threads);
+    List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    try
+    {
+      for(String file : inFiles)
+      {
+        // limit the number of files in memory
+        m_files.acquire();
+        tasks.add(pool.submit(new FileTask(file, inReceiver)));
+      }
+
+      for(ForkJoinTask<?> task : tasks)
+        try
+        {
+          task.get();
+        }
+        catch(ExecutionException e)
+        {
+          throw new IOException("could not parse file", e.getCause());
+        }
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+
+    return m_errors.get();
+  }
+
+  /**
+   * The task to parse a single file.
+   */
+  private class FileTask extends RecursiveAction
+  {
+    /**
+     * Create the task.
+     *
+     * @param inFile     the name of the file to parse
+     * @param inReceiver the receiver for the entries parsed
+     */
+    public FileTask(String inFile, Receiver inReceiver)
+    {
+      m_file = inFile;
+      m_receiver = inReceiver;
+    }
+
+    /** The id for serialization. */
+    private static final long serialVersionUID = 1L;
+
+    /** The name of the file to parse. */
+    private final String m_file;
+
+    /** The receiver for all parsed entries. */
+    private final Receiver m_receiver;
+
+    @Override
+    protected void compute()
+    {
+      try
+      {
+        long start = System.currentTimeMillis();
+        List<String> errors = new ArrayList<>();
+        List<Chunk> chunks =
+          split(m_file, new String(Files.readAllBytes(Paths.get(m_file)),
+                                   StandardCharsets.UTF_8), errors);
+
+        ChunkTask task = new ChunkTask(chunks, 0, chunks.size());
+        task.invoke();
+        errors.addAll(task.m_errors);
+
+        for(String error : errors)
+          Log.warning(error);
+
+        m_errors.addAndGet(errors.size());
+        if(!errors.isEmpty())
+        {
+          Log.error("skipping " + task.m_entries.size() + " entries of "
+                    + m_file + " because of " + errors.size() + " errors");
+          return;
+        }
+
+        for(AbstractEntry entry : task.m_entries)
+          m_receiver.receive(entry);
+
+        Log.important("parsed " + task.m_entries.size() + " entries from "
+                      + m_file + " in "
+                      + (System.currentTimeMillis() - start) + "ms");
+      }
+      catch(IOException e)
+      {
+        Log.error("could not read " + m_file + ": " + e);
+        m_errors.incrementAndGet();
+      }
+      finally
+      {
+        m_files.release();
+      }
+    }
+  }
+
+  /**
+   * The task to parse a range of entries of a file.
+   */
+  private static class ChunkTask extends RecursiveAction
+  {
+    /**
+     * Create the task.
+     *
+     * @param inChunks   all the entries of the file
+     * @param inStart    the index of the first entry to parse
+     * @param inEnd      the index after the last entry to parse
+     */
+    public ChunkTask(List<Chunk> inChunks, int inStart, int inEnd)
+    {
+      m_chunks = inChunks;
+      m_start = inStart;
+      m_end = inEnd;
+    }
+
+    /** The id for serialization. */
+    private static final long serialVersionUID = 1L;
+
+    /** All the entries of the file. */
+    private final List<Chunk> m_chunks;
+
+    /** The index of the first entry to parse. */
+    private final int m_start;
+
+    /** The index after the last entry to parse. */
+    private final int m_end;
+
+    /** The errors encountered. */
+    private final List<String> m_errors = new ArrayList<>();
+
+    /** The entries parsed, in the order of the file. */
+    private final List<AbstractEntry> m_entries = new ArrayList<>();
+
+    @Override
+    protected void compute()
+    {
+      if(m_end - m_start > CHUNKS)
+      {
+        int middle = (m_start + m_end) / 2;
+        ChunkTask first = new ChunkTask(m_chunks, m_start, middle);
+        ChunkTask second = new ChunkTask(m_chunks, middle, m_end);
+        invokeAll(first, second);
+
+        m_errors.addAll(first.m_errors);
+        m_errors.addAll(second.m_errors);
+        m_entries.addAll(first.m_entries);
+        m_entries.addAll(second.m_entries);
+        return;
+      }
+
+      for(int i = m_start; i < m_end; i++)
+      {
+        Optional<AbstractEntry> entry = entry(m_chunks.get(i), m_errors);
+        if(entry.isPresent())
+          m_entries.add(entry.get());
+      }
+    }
+  }
+
+  /**
+   * Split the text of a file into its entries. Each entry ends with a '.'
+   * followed by white space. Nested entries are split off as entries of their
+   * own and removed from the surrounding entry. Lines starting with '#' are
+   * comments.
+   *
+   * @param inFile    the name of the file
+   * @param inText    the text of the file
+   * @param outErrors the errors encountered
+   * @return all the entries of the file
+   */
+  static List<Chunk> split(String inFile, String inText,
+                           List<String> outErrors)
+  {
+    List<Chunk> chunks = new ArrayList<>();
+    List<StringBuilder> texts = new ArrayList<>();
+    List<String> headers = new ArrayList<>();
+    List<Integer> lines = new ArrayList<>();
+    texts.add(new StringBuilder());
+
+    int line = 1;
+    int quoteLine = 0;
+    int brackets = 0;
+    boolean quoted = false;
+    int length = inText.length();
+    for(int i = 0; i < length; i++)
+    {
+      char c = inText.charAt(i);
+      StringBuilder text = texts.get(texts.size() - 1);
+
+      // skip comments, but keep the newline
+      if(c == '#' && !quoted
+         && (i == 0 || Character.isWhitespace(inText.charAt(i - 1))))
+      {
+        while(i + 1 < length && inText.charAt(i + 1) != '\n')
+          i++;
+
+        continue;
+      }
+
+      if(c == '\n')
+        line++;
+
+      if(quoted)
+      {
+        if(c == '\\' && i + 1 < length)
+        {
+          text.append(c);
+          c = inText.charAt(++i);
+          if(c == '\n')
+            line++;
+        }
+        else if(c == '"')
+          quoted = false;
+
+        text.append(c);
+        continue;
+      }
+
+      switch(c)
+      {
+        case '"':
+          quoted = true;
+          quoteLine = line;
+          break;
+
+        case '(':
+        case '[':
+        case '{':
+          brackets++;
+          break;
+
+        case ')':
+        case ']':
+        case '}':
+          brackets--;
+          break;
+
+        case '=':
+          if(brackets == 0 && endOfLine(inText, i + 1))
+          {
+            // the header is the current line
+            String header = text.substring(text.lastIndexOf("\n") + 1);
+            text.setLength(text.length() - header.length());
+            if(texts.size() == 1)
+              outside(inFile, line, text, outErrors);
+
+            headers.add(Strings.trim(header));
+            lines.add(line);
+            texts.add(new StringBuilder());
+            continue;
+          }
+          break;
+
+        case '.':
+          if(brackets == 0 && texts.size() > 1
+             && (i + 1 >= length
+                 || Character.isWhitespace(inText.charAt(i + 1))))
+          {
+            String body = texts.remove(texts.size() - 1).toString();
+            String header = headers.remove(headers.size() - 1);
+            chunks.add(new Chunk(inFile, lines.remove(lines.size() - 1),
+                                 header, body));
+
+            // keep the lines of a nested entry for the surrounding one
+            if(texts.size() > 1)
+              for(int j = newlines(body); j > 0; j--)
+                texts.get(texts.size() - 1).append('\n');
+
+            continue;
+          }
+          break;
+
+        default:
+          break;
+      }
+
+      text.append(c);
+    }
+
+    if(quoted)
+      outErrors.add(inFile + ":" + quoteLine + ": unterminated text");
+    else if(texts.size() > 1)
+      outErrors.add(inFile + ":" + lines.get(lines.size() - 1)
+                    + ": entry not terminated with '.'");
+
+    outside(inFile, line, texts.get(0), outErrors);
+    return chunks;
+  }
+
+  /**
+   * Check for text outside of entries and clear it.
+   *
+   * @param inFile    the name of the file
+   * @param inLine    the current line
+   * @param ioText    the text outside of entries so far
+   * @param outErrors the errors encountered
+   */
+  private static void outside(String inFile, int inLine, StringBuilder ioText,
+                              List<String> outErrors)
+  {
+    String text = ioText.toString();
+    String trimmed = Strings.trim(text);
+    if(!trimmed.isEmpty())
+    {
+      // the line where the text starts
+      int start = 0;
+      while(Character.isWhitespace(text.charAt(start)))
+        start++;
+
+      outErrors.add(inFile + ":"
+                    + (inLine - newlines(text.substring(start)))
+                    + ": text outside of entries: '"
+                    + trimmed.substring(0, Math.min(trimmed.length(), 60))
+                    + "'");
+    }
+
+    ioText.setLength(0);
+  }
+
+  /**
+   * Create the entry for the given chunk of text.
+   *
+   * @param inChunk   the chunk with the entry text
+   * @param outErrors the errors encountered
+   * @return the entry parsed, if the chunk defines a valid entry
+   */
+  static Optional<AbstractEntry> entry(Chunk inChunk, List<String> outErrors)
+  {
+    String header = inChunk.getHeader();
+    ListMultimap<String, String> values = inChunk.values(outErrors);
+
+    Matcher matcher = BASES.matcher(header);
+    if(matcher.matches())
+    {
+      header = matcher.group(1);
+      values.putAll("base", COMMA_SPLITTER.split(matcher.group(2)));
+    }
+
+    String []words = header.split(" ", 3);
+    Optional<? extends AbstractType<? extends AbstractEntry>> type =
+      Optional.absent();
+    String name = "";
+    if(words.length > 2)
+    {
+      type = AbstractType.getTyped(words[0] + " " + words[1]);
+      name = words[2];
+    }
+    if(!type.isPresent() && words.length > 1)
+    {
+      type = AbstractType.getTyped(words[0]);
+      name = header.substring(words[0].length() + 1);
+    }
+
+    if(!type.isPresent())
+    {
+      outErrors.add(inChunk.location() + ": unknown entry type in '" + header
+                    + "'");
+      return Optional.absent();
+    }
+
+    // extensions are not supported anymore, the name follows the last one
+    if(name.startsWith("with "))
+    {
+      String extensions = name.substring("with ".length());
+      String last =
+        extensions.substring(extensions.lastIndexOf(", ") + 1).trim();
+      name = last.substring(last.indexOf(' ') + 1);
+      if(name.equals(last))
+        name = "";
+    }
+
+    if(name.isEmpty())
+    {
+      outErrors.add(inChunk.location() + ": missing name in '" + header + "'");
+      return Optional.absent();
+    }
+
+    List<String> ids = values.removeAll("id");
+    Optional<? extends AbstractEntry> entry =
+      type.get().create(ids.isEmpty() ? name : ids.get(0));
+    if(!entry.isPresent())
+    {
+      outErrors.add(inChunk.location() + ": cannot create " + type.get());
+      return Optional.absent();
+    }
+
+    values.put("name", name);
+    Values entryValues = new Values(values);
+    try
+    {
+      entry.get().set(entryValues);
+    }
+    catch(IllegalArgumentException e)
+    {
+      outErrors.add(inChunk.location() + ": " + e.getMessage());
+    }
+
+    for(String message : entryValues.obtainMessages())
+      outErrors.add(inChunk.location() + ": " + message);
+
+    return Optional.<AbstractEntry>of(entry.get());
+  }
+
+  /**
+   * Check whether only white space follows up to the end of the line.
+   *
+   * @param inText  the text to check in
+   * @param inStart the position to start checking
+   * @return true if only white space follows, false if not
+   */
+  private static boolean endOfLine(String inText, int inStart)
+  {
+    for(int i = inStart; i < inText.length(); i++)
+    {
+      char c = inText.charAt(i);
+      if(c == '\n')
+        return true;
+
+      if(c != ' ' && c != '\t' && c != '\r')
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Count the newlines in the given text.
+   *
+   * @param inText the text to count in
+   * @return the number of newlines
+   */
+  private static int newlines(String inText)
+  {
+    int count = 0;
+    for(int i = inText.indexOf('\n'); i >= 0; i = inText.indexOf('\n', i + 1))
+      count++;
+
+    return count;
+  }
+
+  /**
+   * Check whether the given value is a single quoted text.
+   *
+   * @param inValue the value to check
+   * @return true if the value is a single text, false if not
+   */
+  private static boolean isText(String inValue)
+  {
+    if(inValue.length() < 2 || inValue.charAt(0) != '"')
+      return false;
+
+    for(int i = 1; i < inValue.length(); i++)
+      if(inValue.charAt(i) == '\\')
+        i++;
+      else if(inValue.charAt(i) == '"')
+        return i == inValue.length() - 1;
+
+    return false;
+  }
+
+  /**
+   * Skip white spaces in the reader.
+   *
+   * @param inReader the reader to skip in
+   */
+  private static void skipWhites(ParseReader inReader)
+  {
+    while(Character.isWhitespace((char)inReader.peek())
+          && !inReader.isAtEnd())
+      inReader.read();
+  }
+
+  /**
+   * Read the key of a value. The key ends with two white spaces, a newline, a
+   * quote or a ';'.
+   *
+   * @param inReader the reader to read from
+   * @return the key read
+   */
+  private static String readKey(ParseReader inReader)
+  {
+    StringBuilder key = new StringBuilder();
+    for(int c = inReader.peek(); c != -1; c = inReader.peek())
+    {
+      if(c == '"' || c == ';' || c == '\n' || c == '\r')
+        break;
+
+      inReader.read();
+      if(c == ' ' || c == '\t')
+      {
+        int next = inReader.peek();
+        if(next == ' ' || next == '\t' || next == '\n' || next == '\r')
+          break;
+      }
+
+      key.append((char)c);
+    }
+
+    return key.toString().trim();
+  }
+
+  /**
+   * Read a value up to the terminating ';' (or the end of the entry). The ';'
+   * is read but not returned.
+   *
+   * @param inReader the reader to read from
+   * @return the value read, without surrounding white space or absent if a
+   *         text is not terminated
+   */
+  private static Optional<String> readValue(ParseReader inReader)
+  {
+    StringBuilder value = new StringBuilder();
+    boolean quoted = false;
+    int brackets = 0;
+    for(int c = inReader.read(); c != -1; c = inReader.read())
+    {
+      if(quoted)
+      {
+        if(c == '\\')
+        {
+          value.append((char)c);
+          c = inReader.read();
+          if(c == -1)
+            break;
+        }
+        else if(c == '"')
+          quoted = false;
+      }
+      else if(c == '"')
+        quoted = true;
+      else if(c == '(' || c == '[' || c == '{')
+        brackets++;
+      else if(c == ')' || c == ']' || c == '}')
+        brackets--;
+      else if(c == ';' && brackets <= 0)
+        break;
+
+      value.append((char)c);
+    }
+
+    if(quoted)
+      return Optional.absent();
+
+    return Optional.of(value.toString().trim());
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The tests. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /** The split Test. */
+    @org.junit.Test
+    public void split()
+    {
+      String text =
+        "# a comment\n"
+        + "\n"
+        + "base item Guru [Base] =\n"
+        + "\n"
+        + "  weight      1.5 lbs;\n"
+        + "  description \"A guru. Really.\".\n"
+        + "\n"
+        + "#-----\n"
+        + "character Merlin =\n"
+        + "  possessions #--- Sword\n"
+        + "              item Sword [Sword] =\n"
+        + "                hp  12;\n"
+        + "                id  test-1.\n"
+        + "              ;\n"
+        + "  state       adventuring.\n";
+
+      List<String> errors = new ArrayList<>();
+      List<Chunk> chunks = CorpusParser.split("test", text, errors);
+
+      assertEquals("errors", 0, errors.size());
+      assertEquals("chunks", 3, chunks.size());
+      assertEquals("header", "base item Guru [Base]",
+                   chunks.get(0).getHeader());
+      assertEquals("location", "test:3", chunks.get(0).location());
+      assertEquals("header", "item Sword [Sword]", chunks.get(1).getHeader());
+      assertEquals("location", "test:11", chunks.get(1).location());
+      assertEquals("header", "character Merlin", chunks.get(2).getHeader());
+      assertEquals("location", "test:9", chunks.get(2).location());
+
+      assertEquals("values",
+                   "{weight=[1.5 lbs], description=[A guru. Really.]}",
+                   chunks.get(0).values(errors).toString());
+      assertEquals("values", "{hp=[12], id=[test-1]}",
+                   chunks.get(1).values(errors).toString());
+      assertEquals("values", "{state=[adventuring]}",
+                   chunks.get(2).values(errors).toString());
+      assertEquals("errors", 0, errors.size());
+    }
+
+    /** The values Test. */
+    @org.junit.Test
+    public void values()
+    {
+      String text =
+        "base monster Guru =\n"
+        + "  short description \"A \\\"guru\\\", with quotes\";\n"
+        + "  class skills      Climb: +0, Craft (any): +0;\n"
+        + "  level adjustment  -;\n"
+        + "  benefit\n"
+        + "  \"multiple\n"
+        + "   lines\";\n"
+        + "  \"no key\";\n"
+        + "  combat            \"open.\n";
+
+      List<String> errors = new ArrayList<>();
+      List<Chunk> chunks = CorpusParser.split("test", text, errors);
+      assertEquals("chunks", 0, chunks.size());
+      assertEquals("errors", "[test:9: unterminated text]", errors.toString());
+
+      errors.clear();
+      chunks = CorpusParser.split("test", text.replace("open.", "open\"."),
+                                  errors);
+      assertEquals("chunks", 1, chunks.size());
+      ListMultimap<String, String> values = chunks.get(0).values(errors);
+      assertEquals("values", 6, values.size());
+      assertEquals("short", "[A \"guru\", with quotes]",
+                   values.get("short_description").toString());
+      assertEquals("skills", "[Climb: +0, Craft (any): +0]",
+                   values.get("class_skills").toString());
+      assertEquals("adjustment", "[-]",
+                   values.get("level_adjustment").toString());
+      assertEquals("benefit", "[multiple lines]",
+                   values.get("benefit").toString());
+      assertEquals("combat", "[open]", values.get("combat").toString());
+      assertEquals("errors", "[test:8: missing key]", errors.toString());
+    }
+
+    /** The outside Test. */
+    @org.junit.Test
+    public void outside()
+    {
+      List<String> errors = new ArrayList<>();
+      List<Chunk> chunks =
+        CorpusParser.split("test", "base feat Guru =\n  benefit \"a\".\n"
+                           + "  description \"b\";\n\n"
+                           + "base feat Other =\n  benefit \"c\"\n",
+                           errors);
+
+      assertEquals("chunks", 1, chunks.size());
+      assertEquals("errors", "[test:3: text outside of entries: "
+                   + "'description \"b\";', "
+                   + "test:5: entry not terminated with '.']",
+                   errors.toString());
+    }
+
+    /**
+     * The parse Test.
+     *
+     * @throws Exception should not happen
+     */
+    @org.junit.Test
+    public void parse() throws Exception
+    {
+      java.nio.file.Path good = Files.createTempFile("good", EXTENSION);
+      java.nio.file.Path bad = Files.createTempFile("bad", EXTENSION);
+      try
+      {
+        Files.write(good, "base feat Good =\n  benefit \"a\".\n"
+                    .getBytes(StandardCharsets.UTF_8));
+        Files.write(bad, ("base feat Guru =\n  benefit \"a\".\n"
+                          + "  description \"b\";\n")
+                    .getBytes(StandardCharsets.UTF_8));
+
+        final List<String> received =
+          java.util.Collections.synchronizedList(new ArrayList<String>());
+        int errors = new CorpusParser(2, 2)
+          .parse(java.util.Arrays.asList(good.toString(), bad.toString()),
+                 new Receiver()
+                 {
+                   @Override
+                   public void receive(AbstractEntry inEntry)
+                   {
+                     received.add(inEntry.getName());
+                   }
+                 });
+
+        // Nothing of a file with errors is received.
+        assertEquals("errors", 1, errors);
+        assertEquals("received", "[Good]", received.toString());
+        m_logger.addExpectedPattern("WARNING: .*bad.*:3: text outside of "
+                                    + "entries: 'description \"b\";'");
+        m_logger.addExpectedPattern("ERROR: skipping 1 entries of .*bad.* "
+                                    + "because of 1 errors");
+      }
+      finally
+      {
+        Files.delete(good);
+        Files.delete(bad);
+      }
+    }
+  }
+}
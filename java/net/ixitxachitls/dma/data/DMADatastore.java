@@ -21,33 +21,54 @@
 
 package net.ixitxachitls.dma.data;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.protobuf.Message;
 
 import net.ixitxachitls.dma.entries.AbstractEntry;
 import net.ixitxachitls.dma.entries.AbstractType;
 import net.ixitxachitls.dma.entries.BaseCharacter;
+import net.ixitxachitls.dma.entries.BaseItem;
 import net.ixitxachitls.dma.entries.Entry;
 import net.ixitxachitls.dma.entries.EntryKey;
+import net.ixitxachitls.dma.entries.Item;
 import net.ixitxachitls.dma.entries.Product;
 import net.ixitxachitls.dma.entries.indexes.Index;
-import net.ixitxachitls.dma.server.servlets.DMARequest;
 import net.ixitxachitls.util.Tracer;
+import net.ixitxachitls.util.configuration.Config;
 import net.ixitxachitls.util.logging.Log;
 
 /**
@@ -68,48 +89,173 @@ public class DMADatastore
   /** The access to the datastore. Don't use this except in the AdminServlet! */
   private DataStore m_data = new DataStore();
 
-  /** The cache of entries. */
-  private static ThreadLocal<Map<EntryKey, AbstractEntry>> s_cache =
-      new ThreadLocal<Map<EntryKey, AbstractEntry>>()
-      {
-        @Override
-        protected Map<EntryKey, AbstractEntry> initialValue()
+  /** The in memory indexes of all the entries. */
+  private IndexStore m_indexes = new IndexStore(m_data);
+
+  /** An entry cached, as proto with the snapshot of its bases. */
+  private static class Cached
+  {
+    /**
+     * Create the cached entry.
+     *
+     * @param inProto      the proto of the entry
+     * @param inSnapshot   the snapshot of the base entries, if any
+     * @param inGeneration the generation of the entities of the kind the
+     *                     entry was read with
+     */
+    public Cached(Message inProto, @Nullable byte []inSnapshot,
+                  long inGeneration)
+    {
+      m_proto = inProto;
+      m_snapshot = inSnapshot;
+      m_generation = inGeneration;
+    }
+
+    /** The proto of the entry. */
+    private final Message m_proto;
+
+    /** The snapshot of the base entries, if any. */
+    private final @Nullable byte []m_snapshot;
+
+    /** The generation of the kind the entry was read with. */
+    private final long m_generation;
+  }
+
+  /**
+   * The cache of decoded entries, shared by all requests of this instance.
+   * Only the immutable protos are stored, every read creates a fresh entry
+   * from them, so changes to an entry never leak into other requests. The
+   * cache is bounded by the serialized size of the protos and snapshots.
+   * Entries are only served while the generation of their kind in the
+   * entity cache is unchanged, thus changes on other instances are seen
+   * as quickly as for the entities themselves.
+   */
+  private static final Cache<EntryKey, Cached> s_cache =
+    CacheBuilder.newBuilder()
+    .maximumWeight(Config.get("web.data.cache.bytes", 32 * 1024 * 1024))
+    .weigher(new Weigher<EntryKey, Cached>()
         {
-          return new HashMap<>();
-        }
-      };
+          @Override
+          public int weigh(EntryKey inKey, Cached inCached)
+          {
+            return inCached.m_proto.getSerializedSize()
+              + (inCached.m_snapshot == null
+                 ? 0 : inCached.m_snapshot.length);
+          }
+        })
+    // Don't keep entries that are not read anymore forever.
+    .expireAfterWrite(Config.get("web.data.cache.seconds", 5 * 60),
+                      TimeUnit.SECONDS)
+    .recordStats()
+    .build();
 
   /** The id for serialization. */
   @SuppressWarnings("unused")
   private static final long serialVersionUID = 1L;
 
+  /** The name of the property storing the snapshot of base entries. */
+  private static final String SNAPSHOT = "snapshot";
+
+  /** The version of the snapshot format. */
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /** The maximal size of a snapshot, larger ones are not stored. */
+  private static final int MAX_SNAPSHOT =
+    Config.get("web.data.snapshot.bytes", 256 * 1024);
+
+  /** The number of dependent entries to refresh per batch. */
+  private static final int DEPENDENTS_BATCH =
+    Config.get("web.data.snapshot.dependents", 500);
+
+  /**
+   * Cache the entry for later use. The cache is shared by all requests, thus
+   * only the proto of the entry is stored, together with the snapshot of its
+   * bases stored with the entity.
+   *
+   * @param inKey        the key of the entry
+   * @param inEntry      the entry to cache
+   * @param inEntity     the entity the entry was read from
+   * @param inGeneration the generation of the kind before reading the entity
+   */
+  private static void cache(EntryKey inKey, AbstractEntry inEntry,
+                            Entity inEntity, long inGeneration)
+  {
+    Blob snapshot = (Blob)inEntity.getProperty(SNAPSHOT);
+    s_cache.put(inKey, new Cached(inEntry.toProto(),
+                                  snapshot == null ? null : snapshot.getBytes(),
+                                  inGeneration));
+  }
+
   /**
-   * Cache the entry for later use. The cache is only per thread and is used
-   * for a single request only.
+   * Get the current generation of the entities of the kind of the given key.
    *
    * @param inKey the key of the entry
-   * @param inEntry the entry to cache
+   * @return the generation
    */
-  private static void cache(EntryKey inKey, AbstractEntry inEntry)
+  private long generation(EntryKey inKey)
   {
-    s_cache.get().put(inKey, inEntry);
+    return DataStore.generation(convert(inKey).getKind());
   }
 
   /**
-   * Get the cached entry with the given key.
+   * Get the cached entry with the given key. The entry returned is a new copy
+   * and can be changed freely.
    *
-   * @param inKey the key of the entry to get
+   * @param inKey        the key of the entry to get
+   * @param inGeneration the current generation of the kind of the entry
+   * @param <T>          the type of the entry to get
    * @return the cached entry, optional if it is not cached
    */
-  private static Optional<AbstractEntry> cached(EntryKey inKey)
+  @SuppressWarnings("unchecked")
+  private <T extends AbstractEntry> Optional<T> cached(EntryKey inKey,
+                                                       long inGeneration)
+  {
+    Cached cached = s_cache.getIfPresent(inKey);
+    if(cached == null)
+      return Optional.absent();
+
+    if(cached.m_generation != inGeneration)
+    {
+      s_cache.invalidate(inKey);
+      return Optional.absent();
+    }
+
+    Optional<T> entry = (Optional<T>) inKey.getType().create(inKey.getID());
+    if(!entry.isPresent())
+      return entry;
+
+    entry.get().fromProto(cached.m_proto);
+    entry.get().updateKey(inKey);
+    if(cached.m_snapshot != null)
+      restore(entry.get(), cached.m_snapshot);
+
+    return entry;
+  }
+
+  /**
+   * Remove the entry with the given key from the cache.
+   *
+   * @param inKey the key of the entry to remove
+   */
+  private static void uncache(EntryKey inKey)
   {
-    return Optional.fromNullable(s_cache.get().get(inKey));
+    s_cache.invalidate(inKey);
   }
 
   /** Clear the cache to prevent inconsistent states. */
   public static void clearCache()
   {
-    s_cache.get().clear();
+    s_cache.invalidateAll();
+  }
+
+  /**
+   * Get the statistics (hits, misses, evictions) of the entry cache.
+   *
+   * @return the current statistics
+   */
+  public static CacheStats cacheStats()
+  {
+    return s_cache.stats();
   }
 
   /**
@@ -122,7 +268,8 @@ public class DMADatastore
    */
   public <T extends AbstractEntry> Optional<T> getEntry(EntryKey inKey)
   {
-    Optional<T> entry = (Optional<T>) cached(inKey);
+    long generation = generation(inKey);
+    Optional<T> entry = cached(inKey, generation);
     if(!entry.isPresent())
     {
       Log.debug("getting entry for " + inKey);
@@ -133,12 +280,58 @@ public class DMADatastore
                                       entity.get());
 
       if(entry.isPresent())
-        cache(inKey, entry.get());
+        cache(inKey, entry.get(), entity.get(), generation);
     }
 
     return entry;
   }
 
+  /**
+   * Get all the entries denoted by the given keys. Entries not already cached
+   * are read in a single batch from the datastore.
+   *
+   * @param      inKeys the keys of the entries to get
+   *
+   * @return     a map with all the entries found by key; entries not found are
+   *             not in the map
+   */
+  public Map<EntryKey, AbstractEntry> getEntries(Collection<EntryKey> inKeys)
+  {
+    Map<EntryKey, AbstractEntry> entries = new HashMap<>();
+    // Keys differing only in case map to the same datastore key, but each
+    // requested key must be returned.
+    ListMultimap<Key, EntryKey> missing = ArrayListMultimap.create();
+    Map<EntryKey, Long> generations = new HashMap<>();
+    for(EntryKey key : inKeys)
+    {
+      generations.put(key, generation(key));
+      Optional<AbstractEntry> entry = cached(key, generations.get(key));
+      if(entry.isPresent())
+        entries.put(key, entry.get());
+      else
+        missing.put(convert(key), key);
+    }
+
+    if(missing.isEmpty())
+      return entries;
+
+    Log.debug("getting entries for " + missing.values());
+    for(Map.Entry<Key, Entity> entity
+          : m_data.getEntities(missing.keySet()).entrySet())
+      for(EntryKey key : missing.get(entity.getKey()))
+      {
+        Optional<? extends AbstractEntry> entry =
+          convert(key.getID(), key.getType(), entity.getValue());
+        if(entry.isPresent())
+        {
+          cache(key, entry.get(), entity.getValue(), generations.get(key));
+          entries.put(key, entry.get());
+        }
+      }
+
+    return entries;
+  }
+
   /**
    * Gets all the entries of a specific type.
    *
@@ -170,6 +363,29 @@ public class DMADatastore
     return entries;
   }
 
+  /**
+   * Gets a page of entries of a specific type.
+   *
+   * @param    <T>      the type of entry to get
+   * @param    inType   the type of entries to get
+   * @param    inParent the key of the parent, if any
+   * @param    inCursor the cursor where the page starts, if any
+   * @param    inStart  the starting number of entries to get (starts as 0),
+   *                    only used if no cursor is given
+   * @param    inSize   the maximal number of entries to return
+   *
+   * @return   the page with the entries and the cursor to the next page
+   */
+  public <T extends AbstractEntry> Page<T>
+  getEntries(AbstractType<T> inType, Optional<EntryKey> inParent,
+             Optional<String> inCursor, int inStart, int inSize)
+  {
+    return convert(m_data.getEntitiesPage(escapeType(inType.toString()),
+                                          convert(inParent),
+                                          inType.getSortField(), inCursor,
+                                          inStart, inSize));
+  }
+
   /**
    * Get the entry denoted by a key value pair.
    *
@@ -301,6 +517,166 @@ public class DMADatastore
     return entries;
   }
 
+  /**
+   * Get a page of the entries for the given index.
+   *
+   * @param    inIndex  the name of the index to get
+   * @param    inType   the type of entries to return for the index (app engine
+   *                    can only do filter on queries with kind)
+   * @param    inParent the parent key, if any
+   * @param    inGroup  the group to get entries for
+   * @param    inCursor the cursor where the page starts, if any
+   * @param    inStart  the 0 based index of the first entry to return, only
+   *                    used if no cursor is given
+   * @param    inSize   the maximal number of entries to return
+   *
+   * @return   the page with the entries matching the given index
+   */
+  public Page<AbstractEntry> getIndexEntries(String inIndex,
+                                             AbstractType<?> inType,
+                                             Optional<EntryKey> inParent,
+                                             String inGroup,
+                                             Optional<String> inCursor,
+                                             int inStart, int inSize)
+  {
+    if(inParent.isPresent())
+      return convert(m_data.getEntitiesPage(escapeType(inType.toString()),
+                                            convert(inParent), inCursor,
+                                            inStart, inSize,
+                                            Index.PREFIX + inIndex, inGroup));
+
+    // Entries without a parent are served from the in memory index.
+    Page<String> ids = indexes(inType).getIDs(escapeType(inType.toString()),
+                                              inIndex, inGroup, inStart,
+                                              inSize);
+    List<EntryKey> keys = new ArrayList<>();
+    for(String id : ids.getValues())
+    {
+      Optional<EntryKey> key = EntryKey.fromString(id);
+      if(key.isPresent())
+        keys.add(key.get());
+    }
+
+    Map<EntryKey, AbstractEntry> found = getEntries(keys);
+    List<AbstractEntry> entries = new ArrayList<>();
+    for(EntryKey key : keys)
+    {
+      AbstractEntry entry = found.get(key);
+      if(entry != null)
+        entries.add(entry);
+    }
+
+    return new Page<>(entries, ids.getCursor());
+  }
+
+  /**
+   * Get the groups of the given index.
+   *
+   * @param    inIndex the name of the index
+   * @param    inType  the type of entries in the index
+   *
+   * @return   the groups with the ids of all the entries in them
+   */
+  public IndexStore.Groups getIndexGroups(String inIndex,
+                                          AbstractType<?> inType)
+  {
+    return indexes(inType).getGroups(escapeType(inType.toString()), inIndex);
+  }
+
+  /**
+   * Get the index store, ensuring that the index for the given type is built.
+   *
+   * @param    inType the type of entries to get the index for
+   *
+   * @return   the index store
+   */
+  private IndexStore indexes(AbstractType<?> inType)
+  {
+    String type = escapeType(inType.toString());
+    if(!m_indexes.exists(type))
+      rebuildIndexes(type);
+
+    return m_indexes;
+  }
+
+  /**
+   * Rebuild the in memory indexes and the field values of the given type
+   * from the stored entities.
+   *
+   * NOTE: this reads all the entities of the type.
+   *
+   * @param    inType the escaped type to rebuild the indexes for
+   */
+  public void rebuildIndexes(String inType)
+  {
+    Map<String, Multimap<String, String>> values = new HashMap<>();
+    for(Entity entity : m_data.getAllEntities(inType))
+    {
+      Optional<EntryKey> key = convert(entity.getKey());
+      if(key.isPresent())
+        values.put(key.get().toString(), indexValues(entity));
+    }
+
+    m_indexes.rebuild(inType, values);
+  }
+
+  /**
+   * Compute the id of the entry with the given key in the indexes. The ids
+   * are derived from the datastore keys, which are lower case, so that
+   * rebuilding and updating the indexes use the same ids.
+   *
+   * @param    inKey the key of the entry
+   *
+   * @return   the id to use in the indexes
+   */
+  private String indexID(EntryKey inKey)
+  {
+    Optional<EntryKey> key = convert(convert(inKey));
+    if(key.isPresent())
+      return key.get().toString();
+
+    return inKey.toString();
+  }
+
+  /**
+   * Extract the index values stored in the given entity.
+   *
+   * @param    inEntity the entity with the index values
+   *
+   * @return   the index values, by index path
+   */
+  @SuppressWarnings("unchecked") // need to cast from property value
+  private Multimap<String, String> indexValues(Entity inEntity)
+  {
+    Multimap<String, String> values = HashMultimap.create();
+    String prefix = m_data.toPropertyName(Index.PREFIX);
+    for(Map.Entry<String, Object> property
+          : inEntity.getProperties().entrySet())
+      if(property.getKey().startsWith(prefix)
+         && property.getValue() instanceof Collection)
+        values.putAll(property.getKey().substring(prefix.length()),
+                      (Collection<String>)property.getValue());
+
+    return values;
+  }
+
+  /**
+   * Extract the index values of the given entry.
+   *
+   * @param    inEntry the entry to get the values from
+   *
+   * @return   the index values, by index path
+   */
+  private static Multimap<String, String> indexValues(AbstractEntry inEntry)
+  {
+    Multimap<String, String> values = HashMultimap.create();
+    Multimap<Index.Path, String> indexes = inEntry.computeIndexValues();
+    for(Map.Entry<Index.Path, String> index : indexes.entries())
+      values.put(index.getKey().getPath(), index.getValue());
+
+    return values;
+  }
+
   /**
    * Get the names for the given index.
    *
@@ -315,7 +691,8 @@ public class DMADatastore
    *                        job is not possible, as giving a job filter will
    *                        return all persons from all entities that have that
    *                        job, not necessarily that have that job for the
-   *                        name)
+   *                        name); without filters, the names are read from
+   *                        the in memory index
    *
    * @return      a multi map with all the names
    */
@@ -326,6 +703,9 @@ public class DMADatastore
    AbstractType<? extends AbstractEntry> inType, boolean inCached,
    String ... inFilters)
   {
+    if(inFilters.length == 0)
+      return getIndexGroups(inIndex, inType).getGroups();
+
     SortedSet<String> names = new TreeSet<String>();
 
     for(Entity entity : m_data.getEntities(escapeType(inType.toString()),
@@ -397,7 +777,13 @@ public class DMADatastore
    */
   public boolean remove(AbstractEntry inEntry)
   {
-    return m_data.remove(convert(inEntry.getKey()));
+    uncache(inEntry.getKey());
+    if(!m_data.remove(convert(inEntry.getKey())))
+      return false;
+
+    m_indexes.remove(escapeType(inEntry.getType().toString()),
+                     indexID(inEntry.getKey()));
+    return true;
   }
 
   /**
@@ -416,7 +802,189 @@ public class DMADatastore
       ((Entry)inEntry).complete();
     }
 
-    return m_data.update(convert(inEntry));
+    uncache(inEntry.getKey());
+    if(!m_data.update(convert(inEntry)))
+      return false;
+
+    m_indexes.update(escapeType(inEntry.getType().toString()),
+                     indexID(inEntry.getKey()), indexValues(inEntry));
+
+    // There might be too many dependents to refresh them within the request.
+    if(hasDependents(inEntry.getType()))
+      Rebuild.get().refreshDependents(inEntry.getKey());
+
+    return true;
+  }
+
+  /**
+   * Store the given entities, converted from entries, in a single batch, e.g.
+   * when importing. The caches, indexes and field values are changed as when
+   * updating single entries, but dependent entries are not refreshed; use
+   * refreshDependents() after storing all entries for that.
+   *
+   * @param       inEntities the entities to store
+   *
+   * @return      true if stored, false if there was an error
+   */
+  public boolean store(List<Entity> inEntities)
+  {
+    List<Key> keys = new ArrayList<>();
+    for(Entity entity : inEntities)
+      keys.add(entity.getKey());
+    Map<Key, Entity> old = m_data.getEntities(keys);
+
+    Map<String, Map<String, Multimap<String, String>>> indexes =
+      new HashMap<>();
+    for(Entity entity : inEntities)
+    {
+      // Entries imported again unchanged keep their time of change.
+      Entity previous = old.get(entity.getKey());
+      if(previous != null)
+        keepChange(previous, entity);
+
+      Optional<EntryKey> key = convert(entity.getKey());
+      if(!key.isPresent())
+        continue;
+
+      uncache(key.get());
+      Map<String, Multimap<String, String>> values =
+        indexes.get(entity.getKind());
+      if(values == null)
+      {
+        values = new HashMap<>();
+        indexes.put(entity.getKind(), values);
+      }
+      values.put(key.get().toString(), indexValues(entity));
+    }
+
+    if(!m_data.update(inEntities, old))
+      return false;
+
+    for(Map.Entry<String, Map<String, Multimap<String, String>>> entry
+          : indexes.entrySet())
+      m_indexes.update(entry.getKey(), entry.getValue());
+
+    return true;
+  }
+
+  /**
+   * Check whether entries of the given type can have dependent entries, i.e.
+   * whether any type uses it as its base type.
+   *
+   * @param       inType the type to check
+   *
+   * @return      true if there can be dependents, false if not
+   */
+  private static boolean hasDependents(AbstractType<?> inType)
+  {
+    for(AbstractType<? extends AbstractEntry> type : AbstractType.getAll())
+      if(inType.equals(type.getBaseType()))
+        return true;
+
+    return false;
+  }
+
+  /**
+   * Refresh the snapshots of all the entries directly or indirectly based on
+   * the entry with the given key. The entry is read from the datastore, as
+   * the cache of this instance might not have the latest version.
+   *
+   * @param       inKey the key of the entry that changed
+   */
+  public void refreshDependents(EntryKey inKey)
+  {
+    Optional<Entity> entity = m_data.getEntity(convert(inKey));
+    if(!entity.isPresent())
+      return;
+
+    Optional<? extends AbstractEntry> entry =
+      convert(inKey.getID(), inKey.getType(), entity.get(), false);
+    if(entry.isPresent())
+      refreshDependents(ImmutableList.of(entry.get()));
+  }
+
+  /**
+   * Refresh the snapshots of all the entries directly or indirectly based on
+   * the given entries. The dependents are found with the 'bases' property of
+   * the entities and are refreshed level by level, so that each level sees
+   * the already refreshed entries of the level before.
+   *
+   * @param       inEntries the entries that changed
+   */
+  public void refreshDependents(Collection<? extends AbstractEntry> inEntries)
+  {
+    Set<Key> done = new HashSet<>();
+    List<AbstractEntry> level = new ArrayList<>();
+    for(AbstractEntry entry : inEntries)
+      if(hasDependents(entry.getType()) && done.add(convert(entry.getKey())))
+        level.add(entry);
+
+    while(!level.isEmpty())
+    {
+      // Use the entries just refreshed as bases, instead of possibly stale
+      // cached versions.
+      Map<EntryKey, AbstractEntry> known = new HashMap<>();
+      for(AbstractEntry base : level)
+        known.put(base.getKey(), base);
+
+      List<AbstractEntry> next = new ArrayList<>();
+      for(AbstractEntry base : level)
+        for(AbstractType<? extends AbstractEntry> type : AbstractType.getAll())
+        {
+          if(!base.getType().equals(type.getBaseType()))
+            continue;
+
+          // Read all the dependents page by page, storing each page.
+          Optional<String> cursor = Optional.absent();
+          do
+          {
+            Page<Entity> page =
+              m_data.getEntitiesPage(escapeType(type.toString()),
+                                     Optional.<Key>absent(), cursor, 0,
+                                     DEPENDENTS_BATCH, "bases",
+                                     base.getName().toLowerCase(Locale.US));
+            List<Entity> changed = new ArrayList<>();
+            Map<Key, Entity> old = new HashMap<>();
+            for(Entity entity : page.getValues())
+            {
+              Optional<EntryKey> key = convert(entity.getKey());
+              if(!key.isPresent() || !done.add(entity.getKey()))
+                continue;
+
+              Optional<? extends AbstractEntry> dependent =
+                convert(key.get().getID(), key.get().getType(), entity, false);
+              if(!dependent.isPresent())
+                continue;
+
+              AbstractEntry.resolveBaseEntries
+                (ImmutableList.of(dependent.get()), known);
+              next.add(dependent.get());
+
+              // Only the snapshot is refreshed, the entry itself did not
+              // change.
+              Entity converted = convert(dependent.get());
+              if(equals(entity, converted))
+                continue;
+
+              keepChange(entity, converted);
+              uncache(key.get());
+              changed.add(converted);
+              old.put(entity.getKey(), entity);
+            }
+
+            if(!changed.isEmpty())
+            {
+              Log.important("refreshing snapshots of " + changed.size()
+                            + " dependent entries");
+              m_data.update(changed, old);
+            }
+
+            cursor = page.getCursor();
+          } while(cursor.isPresent());
+        }
+
+      level = next;
+    }
   }
 
   /**
@@ -434,89 +1002,108 @@ public class DMADatastore
 
   /**
    * Rebuild the given type. This means mainly rebuilding the indexes. It is
-   * accomplished by reading all entries and writing them back.
+   * accomplished by reading all entries and writing them back in background
+   * tasks.
    *
    * NOTE: this produces a lot of datastore traffic.
    *
    * @param      inType  the type to rebuild for
    *
-   * @return     the numbert of enties updated
-   *
+   * @return     the id of the rebuild job started
    */
-  public int rebuild(AbstractType<? extends AbstractEntry> inType)
+  public String rebuild(AbstractType<? extends AbstractEntry> inType)
   {
     Log.debug("rebuilding data for " + inType);
-
-    int count = 0;
-    for(Entity entity : m_data.getEntities(inType.toString(),
-                                           Optional.<Key>absent(),
-                                           Optional.<String>absent(),
-                                           0, 10000))
-    {
-      Optional<AbstractEntry> entry = convert(entity);
-      if(entry.isPresent())
-        m_data.update(convert(entry.get()));
-      count++;
-    }
-
-    return count;
+    return Rebuild.get().start(escapeType(inType.toString()), false);
   }
 
   /**
-   * Rebuild the given type. This means mainly rebuilding the indexes. It is
-   * accomplished by reading all entries and writing them back.
+   * Refresh the given type. All entries are read and the ones that changed
+   * when converting them are written back in background tasks.
    *
-   * NOTE: this produces a lot of datastore traffic.
-   *
-   * @param      inType    the type to rebuild for
-   * @param      inRequest the original request
+   * @param      inType    the type to refresh
    *
-   * @return     the numbert of enties updated
+   * @return     the id of the refresh job started
    */
-  public int refresh(AbstractType<? extends AbstractEntry> inType,
-                     DMARequest inRequest)
+  public String refresh(AbstractType<? extends AbstractEntry> inType)
   {
     Log.debug("refresh data for " + inType);
+    return Rebuild.get().start(escapeType(inType.toString()), true);
+  }
+
+  /**
+   * Rebuild the given entities by converting them to entries and back,
+   * storing them in a single batch.
+   *
+   * @param      inEntities    the entities to rebuild
+   * @param      inChangedOnly if true, only entities that changed when
+   *                           converting are stored
+   *
+   * @return     the number of entities stored
+   */
+  public int rebuild(List<Entity> inEntities, boolean inChangedOnly)
+  {
+    List<Entity> changed = new ArrayList<>();
+    Map<Key, Entity> old = new HashMap<>();
+    List<Key> moved = new ArrayList<>();
+    ListMultimap<String, EntryKey> removed = ArrayListMultimap.create();
+    Map<String, Map<String, Multimap<String, String>>> indexes =
+      new HashMap<>();
 
-    int count = 0;
-    int chunk = 10;
-    for(int start = 0; count < 10000; start += chunk)
+    for(Entity entity : inEntities)
     {
-      if(inRequest.timeIsRunningOut())
-        break;
+      old.put(entity.getKey(), entity);
 
-      List<Entity> entities =
-        m_data.getEntitiesList(escapeType(inType.toString()),
-                               Optional.<Key>absent(),
-                               Optional.<String>absent(),
-                               start, chunk);
+      // Don't use the stored snapshot, to refresh it from the current bases.
+      Optional<EntryKey> key = convert(entity.getKey());
+      if(!key.isPresent())
+        continue;
 
-      for(Entity entity : entities)
-      {
-        if(inRequest.timeIsRunningOut())
-          break;
+      Optional<? extends AbstractEntry> entry =
+        convert(key.get().getID(), key.get().getType(), entity, false);
+      if(!entry.isPresent())
+        continue;
 
-        Optional<AbstractEntry> entry = convert(entity);
-        if(!entry.isPresent())
-          continue;
+      Entity converted = convert(entry.get());
+      if(inChangedOnly && equals(entity, converted))
+        continue;
 
-        Entity converted  = convert(entry.get());
-        if (equals(entity, converted))
-          continue;
+      keepChange(entity, converted);
 
-        m_data.update(converted);
+      uncache(entry.get().getKey());
+      changed.add(converted);
 
-        if (!entity.getKey().equals(converted.getKey()))
-          m_data.remove(entity.getKey());
+      String type = escapeType(entry.get().getType().toString());
+      Map<String, Multimap<String, String>> values = indexes.get(type);
+      if(values == null)
+      {
+        values = new HashMap<>();
+        indexes.put(type, values);
+      }
+      values.put(indexID(entry.get().getKey()), indexValues(entry.get()));
 
-        count++;
+      if(!entity.getKey().equals(converted.getKey()))
+      {
+        moved.add(entity.getKey());
+        removed.put(type, key.get());
       }
+    }
+
+    m_data.update(changed, old);
+    for(Key key : moved)
+      m_data.remove(key);
 
-      if(entities.size() < chunk)
-        break;
+    for(Map.Entry<String, EntryKey> entry : removed.entries())
+    {
+      uncache(entry.getValue());
+      m_indexes.remove(entry.getKey(), entry.getValue().toString());
     }
 
-    return count;
+    for(Map.Entry<String, Map<String, Multimap<String, String>>> entry
+          : indexes.entrySet())
+      m_indexes.update(entry.getKey(), entry.getValue());
+
+    return changed.size();
   }
 
   /**
@@ -538,6 +1125,24 @@ public class DMADatastore
     return true;
   }
 
+  /**
+   * Keep the time of the last change of the old entity in the new one if the
+   * entry itself did not change, i.e. only derived values like indexes or
+   * snapshots are stored again. Such entities thus don't show up as recently
+   * changed and are not exported again.
+   *
+   * @param       inOld the entity as stored before
+   * @param       inNew the entity to store, changed in place
+   */
+  private void keepChange(Entity inOld, Entity inNew)
+  {
+    String change = m_data.toPropertyName("change");
+    Object proto = inOld.getProperty("proto");
+    if(inOld.hasProperty(change) && proto != null
+       && proto.equals(inNew.getProperty("proto")))
+      inNew.setProperty(change, inOld.getProperty(change));
+  }
+
   /**
    * Check if the two given entities have equal properties.
    *
@@ -641,9 +1246,27 @@ public class DMADatastore
    *
    * @return     the converted entry, if any
    */
-  @SuppressWarnings("unchecked")
   public <T extends AbstractEntry> Optional<T>
     convert(String inID, AbstractType<T> inType, Entity inEntity)
+  {
+    return convert(inID, inType, inEntity, true);
+  }
+
+  /**
+   * Convert the given datastore entity into a dma entry.
+   *
+   * @param      inID       the id of the entry to convert
+   * @param      inType     the type of the entry to convert
+   * @param      inEntity   the entity to convert
+   * @param      inSnapshot whether to take the base entries from the
+   *                        snapshot stored with the entity, if any
+   * @param      <T>        the type of the entry to convert
+   *
+   * @return     the converted entry, if any
+   */
+  private <T extends AbstractEntry> Optional<T>
+    convert(String inID, AbstractType<T> inType, Entity inEntity,
+            boolean inSnapshot)
   {
     Tracer tracer = new Tracer("converting " + inID);
 
@@ -670,6 +1293,13 @@ public class DMADatastore
     if(key.isPresent())
     entry.get().updateKey(key.get());
 
+    Blob snapshot = (Blob)inEntity.getProperty(SNAPSHOT);
+    if(inSnapshot && snapshot != null)
+    {
+      restore(entry.get(), snapshot.getBytes());
+      parsing.done("snapshot");
+    }
+
     tracer.done("uncached");
     return entry;
   }
@@ -727,6 +1357,20 @@ public class DMADatastore
     return entries;
   }
 
+  /**
+   * Convert the given page of datastore entities into a page of dma entries.
+   *
+   * @param      inPage the page with the entities to convert
+   * @param      <T>    the type of entries converted to
+   *
+   * @return     the page with the entries
+   */
+  public <T extends AbstractEntry> Page<T> convert(Page<Entity> inPage)
+  {
+    List<T> entries = convert(inPage.getValues());
+    return new Page<>(entries, inPage.getCursor());
+  }
+
   /**
    * Convert the given dma entry into a datastore entity.
    *
@@ -756,9 +1400,124 @@ public class DMADatastore
     entity.setProperty(m_data.toPropertyName("change"), new Date());
 
     entity.setProperty("proto", new Blob(inEntry.toProto().toByteArray()));
+
+    Optional<byte []> snapshot = snapshot(inEntry);
+    if(snapshot.isPresent())
+      entity.setProperty(SNAPSHOT, new Blob(snapshot.get()));
+
     return entity;
   }
 
+  /**
+   * Create the snapshot of all the base entries the given entry directly or
+   * indirectly depends on. Storing it with the entry allows to read the entry
+   * with all combined values without reading any of its bases.
+   *
+   * @param      inEntry the entry to snapshot the bases of
+   *
+   * @return     the snapshot, if the entry has bases and the snapshot is not
+   *             too big
+   */
+  private Optional<byte []> snapshot(AbstractEntry inEntry)
+  {
+    Map<EntryKey, AbstractEntry> bases = new LinkedHashMap<>();
+    List<AbstractEntry> pending = new ArrayList<>();
+    pending.add(inEntry);
+    while(!pending.isEmpty())
+    {
+      AbstractEntry entry = pending.remove(pending.size() - 1);
+      for(AbstractEntry base : entry.getBaseEntries())
+        if(base != null && !bases.containsKey(base.getKey())
+           && !base.getKey().equals(inEntry.getKey()))
+        {
+          bases.put(base.getKey(), base);
+          pending.add(base);
+        }
+    }
+
+    if(bases.isEmpty())
+      return Optional.absent();
+
+    try
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeInt(bases.size());
+      for(AbstractEntry base : bases.values())
+      {
+        byte []proto = base.toProto().toByteArray();
+        out.writeUTF(base.getType().getName());
+        out.writeUTF(base.getName());
+        out.writeInt(proto.length);
+        out.write(proto);
+      }
+      out.close();
+
+      if(bytes.size() > MAX_SNAPSHOT)
+      {
+        Log.warning("snapshot for " + inEntry.getKey() + " too big: "
+                    + bytes.size());
+        return Optional.absent();
+      }
+
+      return Optional.of(bytes.toByteArray());
+    }
+    catch(IOException e)
+    {
+      Log.warning("cannot create snapshot for " + inEntry.getKey() + ": " + e);
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Restore the base entries of the given entry from the given snapshot. Base
+   * entries not in the snapshot are read from the datastore as usual.
+   *
+   * @param      inEntry    the entry to restore the bases of
+   * @param      inSnapshot the snapshot with the base entries
+   */
+  private void restore(AbstractEntry inEntry, byte []inSnapshot)
+  {
+    Map<EntryKey, AbstractEntry> bases = new HashMap<>();
+    try
+    {
+      DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(inSnapshot));
+      if(in.readInt() != SNAPSHOT_VERSION)
+        return;
+
+      for(int i = in.readInt(); i > 0; i--)
+      {
+        String typeName = in.readUTF();
+        String id = in.readUTF();
+        byte []proto = new byte[in.readInt()];
+        in.readFully(proto);
+
+        Optional<? extends AbstractType<? extends AbstractEntry>> type =
+          AbstractType.getTyped(typeName);
+        if(!type.isPresent())
+          continue;
+
+        Optional<? extends AbstractEntry> base = type.get().create(id);
+        if(!base.isPresent())
+          continue;
+
+        base.get().parseFrom(proto);
+        bases.put(base.get().getKey(), base.get());
+      }
+    }
+    catch(IOException e)
+    {
+      Log.warning("cannot read snapshot for " + inEntry.getKey() + ": " + e);
+      return;
+    }
+
+    List<AbstractEntry> entries = new ArrayList<>(bases.values());
+    entries.add(inEntry);
+    AbstractEntry.resolveBaseEntries(entries, bases);
+  }
+
   /**
    * Escape the given type for storage. This means to replace spaces with
    * underscores.
@@ -783,4 +1542,275 @@ public class DMADatastore
   {
     return inType.replace("_", " ");
   }
+
+  //----------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends DataStore.Test
+  {
+    @Override
+    public void setUpTest()
+    {
+      super.setUpTest();
+
+      // Missing snapshots and indexes are expected when starting empty.
+      m_logger.banClass(DataStore.class);
+    }
+
+    /** The indexes Test. */
+    @org.junit.Test
+    public void indexes()
+    {
+      DMADatastore store = new DMADatastore();
+      BaseItem item = new BaseItem("Mixed Case");
+      String type = store.escapeType(BaseItem.TYPE.toString());
+      String path = Index.Path.SIZES.getPath();
+      String id = store.indexID(item.getKey());
+
+      assertEquals("id", "/base item/mixed case", id);
+
+      // Stored without indexes, as an import would.
+      store.m_data.update(store.convert(item));
+      store.rebuildIndexes(type);
+      IndexStore.Groups groups = store.m_indexes.getGroups(type, path);
+      assertTrue("rebuilt", groups.contains(id));
+      assertFalse("rebuilt case", groups.contains(item.getKey().toString()));
+
+      store.update(item);
+      groups = store.m_indexes.getGroups(type, path);
+      assertTrue("updated", groups.contains(id));
+      assertFalse("updated case", groups.contains(item.getKey().toString()));
+      assertEquals("single id", 1,
+                   (int)groups.getCounts().values().iterator().next());
+
+      store.remove(item);
+      groups = store.m_indexes.getGroups(type, path);
+      assertFalse("removed", groups.contains(id));
+      assertFalse("removed case", groups.contains(item.getKey().toString()));
+    }
+
+    /** The store Test. */
+    @org.junit.Test
+    public void store()
+    {
+      DMADatastore store = new DMADatastore();
+      BaseItem item = new BaseItem("Stored");
+      String type = store.escapeType(BaseItem.TYPE.toString());
+
+      assertTrue("store", store.store(ImmutableList.of(store.convert(item))));
+      assertTrue("indexed",
+                 store.getIndexGroups(Index.Path.SIZES.getPath(),
+                                      BaseItem.TYPE)
+                 .contains(store.indexID(item.getKey())));
+      assertTrue("stored", store.getEntry(item.getKey()).isPresent());
+      assertTrue("directory", store.m_indexes.exists(type));
+
+      // Storing the same entry again, or rebuilding it, keeps the time of
+      // the change.
+      Entity stored =
+        store.m_data.getEntity(store.convert(item.getKey())).get();
+      Entity again = store.convert(item);
+      again.setProperty("change", new Date(0));
+      assertTrue("store again", store.store(ImmutableList.of(again)));
+      store.rebuild(ImmutableList.of(stored), false);
+      assertEquals("change kept", stored.getProperty("change"),
+                   store.m_data.getEntity(store.convert(item.getKey())).get()
+                   .getProperty("change"));
+    }
+
+    /** The entry cache Test. */
+    @org.junit.Test
+    public void cache()
+    {
+      DMADatastore store = new DMADatastore();
+      BaseItem item = new BaseItem("Cached");
+      store.update(item);
+
+      Optional<BaseItem> read = store.getEntry(item.getKey());
+      assertEquals("read", "", read.get().getDescription());
+
+      // Changing an entry read does not change the cached entry.
+      describe(read.get(), "changed");
+      CacheStats before = cacheStats();
+      assertEquals("copy", "",
+                   store.<BaseItem>getEntry(item.getKey()).get()
+                   .getDescription());
+      assertEquals("cached", 1, cacheStats().minus(before).hitCount());
+
+      // An update is seen by the next read, also of other stores, as the
+      // cache is shared.
+      store.update(read.get());
+      assertEquals("updated", "changed",
+                   new DMADatastore().<BaseItem>getEntry(item.getKey()).get()
+                   .getDescription());
+      assertEquals("updated cached", "changed",
+                   store.<BaseItem>getEntry(item.getKey()).get()
+                   .getDescription());
+
+      // A change not done through this store, as on another instance, is seen
+      // as well.
+      describe(read.get(), "other");
+      store.m_data.update(store.convert(read.get()));
+      assertEquals("other instance", "other",
+                   store.<BaseItem>getEntry(item.getKey()).get()
+                   .getDescription());
+
+      store.remove(read.get());
+      assertFalse("removed", store.getEntry(item.getKey()).isPresent());
+    }
+
+    /** The batched entries Test. */
+    @org.junit.Test
+    public void entries()
+    {
+      DMADatastore store = new DMADatastore();
+      BaseItem first = new BaseItem("First");
+      BaseItem second = new BaseItem("Second");
+      EntryKey missing = new EntryKey("missing", BaseItem.TYPE);
+      store.update(first);
+      store.update(second);
+      clearCache();
+
+      // Nothing cached, all read from the datastore.
+      CacheStats before = cacheStats();
+      Map<EntryKey, AbstractEntry> entries =
+        store.getEntries(ImmutableList.of(first.getKey(), missing));
+      CacheStats stats = cacheStats().minus(before);
+      assertEquals("datastore", 1, entries.size());
+      assertEquals("datastore key", first.getKey(),
+                   entries.get(first.getKey()).getKey());
+      assertFalse("missing", entries.containsKey(missing));
+      assertEquals("datastore hits", 0, stats.hitCount());
+      assertEquals("datastore misses", 2, stats.missCount());
+
+      // The first is now cached, the second is read.
+      before = cacheStats();
+      entries = store.getEntries(ImmutableList.of(first.getKey(),
+                                                  second.getKey(), missing));
+      stats = cacheStats().minus(before);
+      assertEquals("mixed", 2, entries.size());
+      assertEquals("mixed first", first.getKey(),
+                   entries.get(first.getKey()).getKey());
+      assertEquals("mixed second", second.getKey(),
+                   entries.get(second.getKey()).getKey());
+      assertEquals("mixed hits", 1, stats.hitCount());
+      assertEquals("mixed misses", 2, stats.missCount());
+
+      // All cached.
+      before = cacheStats();
+      entries = store.getEntries(ImmutableList.of(first.getKey(),
+                                                  second.getKey()));
+      stats = cacheStats().minus(before);
+      assertEquals("cached", 2, entries.size());
+      assertEquals("cached hits", 2, stats.hitCount());
+      assertEquals("cached misses", 0, stats.missCount());
+
+      // Every entry read is a copy of its own.
+      assertNotSame("copies", entries.get(first.getKey()),
+                    store.getEntries(ImmutableList.of(first.getKey()))
+                    .get(first.getKey()));
+    }
+
+    /** The snapshot Test. */
+    @org.junit.Test
+    public void snapshot()
+    {
+      DMADatastore store = new DMADatastore();
+      BaseItem base = new BaseItem("Base");
+      store.update(base);
+      Item item = new Item("item");
+      item.addBase("Base");
+
+      assertFalse("no bases", store.snapshot(base).isPresent());
+      Entity entity = store.convert(item);
+      assertNotNull("snapshot", entity.getProperty(SNAPSHOT));
+      store.m_data.update(entity);
+
+      // The base is not needed anymore when reading the entry.
+      store.m_data.remove(store.convert(base.getKey()));
+      clearCache();
+      Optional<Item> read = store.getEntry(item.getKey());
+      assertTrue("read", read.isPresent());
+      assertEquals("restored", 1, read.get().getBaseEntries().size());
+      assertEquals("restored base", base.getKey(),
+                   read.get().getBaseEntries().get(0).getKey());
+
+      // The snapshot is cached with the entry.
+      CacheStats before = cacheStats();
+      read = store.getEntry(item.getKey());
+      assertEquals("cached", 1, cacheStats().minus(before).hitCount());
+      assertEquals("cached base", base.getKey(),
+                   read.get().getBaseEntries().get(0).getKey());
+
+      // An unknown format is ignored.
+      Item restored = new Item("item");
+      restored.addBase("Base");
+      m_logger.addExpected("WARNING: base item 'Base' not found");
+      store.restore(restored, new byte [] { 0, 0, 0, 42 });
+      assertTrue("ignored", restored.getBaseEntries().isEmpty());
+    }
+
+    /** The dependents Test. */
+    @org.junit.Test
+    public void dependents()
+    {
+      DMADatastore store = new DMADatastore();
+      BaseItem base = new BaseItem("Base");
+      store.update(base);
+      Item item = new Item("item");
+      item.addBase("Base");
+      store.update(item);
+      runTasks();
+
+      describe(base, "changed");
+      store.update(base);
+
+      // The dependents are refreshed in the background.
+      assertEquals("queued", 1, m_tasks.size());
+      assertEquals("not refreshed", "", baseDescription(store, item));
+
+      Object change =
+        store.m_data.getEntity(store.convert(item.getKey())).get()
+        .getProperty("change");
+      runTasks();
+      assertEquals("refreshed", "changed", baseDescription(store, item));
+
+      // Only the snapshot changed, not the entry itself.
+      assertEquals("change kept", change,
+                   store.m_data.getEntity(store.convert(item.getKey())).get()
+                   .getProperty("change"));
+    }
+
+    /**
+     * Change the description of the given item.
+     *
+     * @param inItem        the item to change
+     * @param inDescription the new description
+     */
+    private static void describe(BaseItem inItem, String inDescription)
+    {
+      net.ixitxachitls.dma.proto.Entries.BaseItemProto proto =
+        (net.ixitxachitls.dma.proto.Entries.BaseItemProto)inItem.toProto();
+      inItem.fromProto(proto.toBuilder()
+                       .setBase(proto.getBase().toBuilder()
+                                .setDescription(inDescription))
+                       .build());
+    }
+
+    /**
+     * Read the given entry from the datastore and get the description of its
+     * first base, as restored from the snapshot.
+     *
+     * @param inStore the store to read from
+     * @param inEntry the entry to read
+     * @return the description of the base
+     */
+    private String baseDescription(DMADatastore inStore, AbstractEntry inEntry)
+    {
+      clearCache();
+      Optional<AbstractEntry> entry = inStore.getEntry(inEntry.getKey());
+      assertTrue("read", entry.isPresent());
+      return entry.get().getBaseEntries().get(0).getDescription();
+    }
+  }
 }
@@ -21,24 +21,47 @@
 
 package net.ixitxachitls.dma.data;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.SortedSet;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.memcache.Expiration;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultiset;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
 
 import net.ixitxachitls.dma.server.servlets.DMAServlet;
 import net.ixitxachitls.util.Tracer;
@@ -64,50 +87,108 @@ public class DataStore
   /** The access to the datastore. */
   private DatastoreService m_store;
 
-  /** The cache for indexes. */
-  private static MemcacheService s_cacheEntity =
-    MemcacheServiceFactory.getMemcacheService("entity");
+  /** The values of fields, maintained with every change. */
+  private final ValueStore m_values = new ValueStore(this);
 
-  /** The cache for lookups by value. */
-  private static MemcacheService s_cacheByValue =
-    MemcacheServiceFactory.getMemcacheService("byValue");
+  /** A key of a cached value, within the namespace it belongs to. */
+  private static class CacheKey implements Serializable
+  {
+    /**
+     * Create the cache key.
+     *
+     * @param inNamespace the namespace of the value
+     * @param inKey       the key within the namespace
+     */
+    public CacheKey(String inNamespace, String inKey)
+    {
+      m_namespace = inNamespace;
+      m_key = inKey;
+    }
 
-  /** The cache for lookup lists by value. */
-  private static MemcacheService s_cacheListByValue =
-    MemcacheServiceFactory.getMemcacheService("listByValue");
+    /** The id for serialization. */
+    private static final long serialVersionUID = 1L;
 
-  /** The cache for lookup ids. */
-  // TODO: for some reason, the memcache does not cache long enough
-  private static MemcacheService s_cacheIDs =
-    MemcacheServiceFactory.getMemcacheService("ids");
+    /** The namespace of the value. */
+    private final String m_namespace;
+
+    /** The key within the namespace. */
+    private final String m_key;
+
+    @Override
+    public boolean equals(Object inOther)
+    {
+      if(!(inOther instanceof CacheKey))
+        return false;
+
+      return m_namespace.equals(((CacheKey)inOther).m_namespace)
+        && m_key.equals(((CacheKey)inOther).m_key);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return m_namespace.hashCode() * 31 + m_key.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_namespace + ":" + m_key;
+    }
+  }
+
+  /** Grouping cached entities by their kind. */
+  private static final Function<Object, String> KINDS =
+    new Function<Object, String>()
+    {
+      @Override
+      public String apply(Object inKey)
+      {
+        return ((Key)inKey).getKind();
+      }
+    };
+
+  /** Grouping cached values by their namespace. */
+  private static final Function<Object, String> NAMESPACES =
+    new Function<Object, String>()
+    {
+      @Override
+      public String apply(Object inKey)
+      {
+        return ((CacheKey)inKey).m_namespace;
+      }
+    };
 
-  /** The cache for lookup ids by value. */
-  private static MemcacheService s_cacheIDsByValue =
-    MemcacheServiceFactory.getMemcacheService("idsByValue");
+  /** The cache for entities, invalidated per kind. */
+  private static final LayeredCache s_cacheEntity =
+    new LayeredCache("entity", 1000, 10, KINDS);
 
-  /** The cache for lookup ids by value. */
-  private static MemcacheService s_cacheRecent =
-    MemcacheServiceFactory.getMemcacheService("recent");
+  /** The cache for lookups by value, invalidated per type. */
+  private static final LayeredCache s_cacheByValue =
+    new LayeredCache("byValue", 1000, 10, NAMESPACES);
 
-  /** The cache for lookup ids by value. */
-  private static MemcacheService s_cacheValues =
-    MemcacheServiceFactory.getMemcacheService("values");
+  /** The cache for pages, ids and recent entities, invalidated per type. */
+  // TODO: for some reason, the memcache does not cache long enough
+  private static final LayeredCache s_cacheLists =
+    new LayeredCache("lists", 500, 60, NAMESPACES);
 
-  /** The cache for lookup ids by value. */
-  private static MemcacheService s_cacheMultiValues =
-    MemcacheServiceFactory.getMemcacheService("multiValues");
+  /** The number of invalidations per namespace done by this instance. */
+  private static final Multiset<String> s_invalidations =
+    ConcurrentHashMultiset.create();
 
   /** Expiration time for the cache. */
   private static Expiration s_expiration =
     Expiration.byDeltaSeconds(60 * 60 * 24);
 
-  /** Expiration time for the cache. */
-  private static Expiration s_longExpiration =
-    Expiration.byDeltaSeconds(60 * 60 * 24 * 7);
-
   /** The key for the value containing the last change of an entity. */
   private static final String CHANGE = "change";
 
+  /** The maximal number of entities to read in a single batch request. */
+  private static final int MAX_BATCH = 1000;
+
+  /** The maximal number of times to retry a failed transaction. */
+  private static final int MAX_RETRIES = 5;
+
   /**
    * Get an entity denoted with a key.
    *
@@ -146,6 +227,56 @@ public class DataStore
     return Optional.fromNullable(entity);
   }
 
+  /**
+   * Get all the entities denoted by the given keys in a single batch. Entities
+   * are read from the cache if possible and all the missing ones are fetched
+   * with a single datastore request.
+   *
+   * @param       inKeys the keys of the entities to get
+   *
+   * @return      a map with all the entities found, by key; missing entities
+   *              are not part of the map
+   */
+  public Map<Key, Entity> getEntities(Collection<Key> inKeys)
+  {
+    Tracer tracer = new Tracer("getting " + inKeys.size() + " entities");
+    Map<Key, Entity> entities = new HashMap<>();
+    if(inKeys.isEmpty())
+    {
+      tracer.done("empty");
+      return entities;
+    }
+
+    if(!DMAServlet.isDev())
+      for(Entry<Key, Object> entry : s_cacheEntity.getAll(inKeys).entrySet())
+        if(entry.getValue() != null)
+          entities.put(entry.getKey(), (Entity)entry.getValue());
+
+    List<Key> missing = new ArrayList<>();
+    for(Key key : inKeys)
+      if(!entities.containsKey(key))
+        missing.add(key);
+
+    if(missing.isEmpty())
+    {
+      tracer.done("cached");
+      return entities;
+    }
+
+    Log.important("gae: getting " + missing.size() + " entities for "
+                  + missing);
+    for(List<Key> batch : Lists.partition(missing, MAX_BATCH))
+    {
+      Map<Key, Entity> fetched = m_store.get(batch);
+      if(!DMAServlet.isDev())
+        s_cacheEntity.putAll(fetched, s_expiration);
+
+      entities.putAll(fetched);
+    }
+    tracer.done((inKeys.size() - missing.size()) + " cached");
+    return entities;
+  }
+
   /**
    * Get a single entity denoted with a type and a key value pair.
    *
@@ -159,8 +290,8 @@ public class DataStore
   {
     Tracer tracer = new Tracer
       ("getting " + inType + " entity with " + inKey + " = " + inValue);
-    Entity entity = (Entity)
-      s_cacheByValue.get(inKey + "--" + inValue);
+    CacheKey key = new CacheKey(inType, inKey + "--" + inValue);
+    Entity entity = (Entity)s_cacheByValue.get(key);
 
     if(entity == null)
     {
@@ -179,7 +310,7 @@ public class DataStore
       }
 
       // TODO: this fails when the entity is already otherwise cached!
-      s_cacheByValue.put(inKey + "--" + inValue, entity, s_expiration);
+      s_cacheByValue.put(key, entity, s_expiration);
       s_cacheEntity.put(entity.getKey(), entity, s_expiration);
       tracer.done("uncached");
     }
@@ -279,16 +410,138 @@ public class DataStore
    * @return   all the matching entities found
    *
    */
-  @SuppressWarnings("unchecked")
   public List<Entity> getEntities(String inType, Optional<Key> inParent,
                                   int inStart, int inSize, String ... inFilters)
   {
-    String key = Arrays.toString(inFilters);
-    List<Entity> entities = (List<Entity>)s_cacheListByValue.get(key);
+    return getEntitiesPage(inType, inParent, Optional.<String>absent(),
+                           inStart, inSize, inFilters).getValues();
+  }
 
-    if(entities == null)
+  /**
+   * Get a page of entities for the given type. If a cursor is given, the page
+   * starts at the cursor, otherwise at the given offset. Cursors don't need to
+   * skip over all the entities of the previous pages and are thus much cheaper
+   * for pages deep in the list.
+   *
+   * @param    inType       the type of the entities to get
+   * @param    inParent     the parent entity, if any
+   * @param    inSortField  an optional name of the field to sort by
+   * @param    inCursor     the cursor to start the page at, if any
+   * @param    inStart      the starting index of the entities to return
+   *                        (0 based), if no cursor is given
+   * @param    inSize       the maximal number of entities to return
+   *
+   * @return   the page with the entities and the cursor to the next page
+   */
+  public Page<Entity> getEntitiesPage(String inType, Optional<Key> inParent,
+                                      Optional<String> inSortField,
+                                      Optional<String> inCursor,
+                                      int inStart, int inSize)
+  {
+    Tracer tracer = new Tracer("getting page of entities for " + inType);
+    Query query;
+    if(inParent.isPresent())
+      query = new Query(inType, inParent.get());
+    else
+      query = new Query(inType);
+
+    if(inSortField.isPresent())
+      query.addSort(inSortField.get(), Query.SortDirection.ASCENDING);
+
+    Log.important("gae: getting entities for " + inType
+                  + (inParent.isPresent() ? " (" + inParent + ")" : "")
+                  + (inSortField.isPresent() ? " sorted by " + inSortField : "")
+                  + (inCursor.isPresent()
+                     ? " from cursor" : " from " + inStart)
+                  + " size " + inSize);
+
+    Page<Entity> page = resolve(page(query, inCursor, inStart, inSize));
+    tracer.done();
+    return page;
+  }
+
+  /**
+   * Get all the entities of the given type. The entities are read lazily,
+   * page by page with cursors, while iterating, thus there is no limit on the
+   * number of entities.
+   *
+   * @param    inType the type of the entities to get
+   *
+   * @return   all the entities of the type
+   */
+  public Iterable<Entity> getAllEntities(final String inType)
+  {
+    return new Iterable<Entity>()
+    {
+      @Override
+      public Iterator<Entity> iterator()
+      {
+        return new AbstractIterator<Entity>()
+        {
+          /** The entities of the current page. */
+          private Iterator<Entity> m_page = Collections.emptyIterator();
+
+          /** The cursor to the next page, if any. */
+          private Optional<String> m_cursor = Optional.absent();
+
+          /** Whether the current page is the last one. */
+          private boolean m_last = false;
+
+          @Override
+          protected Entity computeNext()
+          {
+            while(!m_page.hasNext())
+            {
+              if(m_last)
+                return endOfData();
+
+              Page<Entity> page =
+                getEntitiesPage(inType, Optional.<Key>absent(),
+                                Optional.<String>absent(), m_cursor, 0,
+                                MAX_BATCH);
+              m_page = page.getValues().iterator();
+              m_cursor = page.getCursor();
+              m_last = !m_cursor.isPresent();
+            }
+
+            return m_page.next();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Get a page of the entities matching the given key/value pair(s).
+   *
+   * @param    inType    the type of entry to get
+   * @param    inParent  the key to the parent entity, if any
+   * @param    inCursor  the cursor to start the page at, if any
+   * @param    inStart   the index of the starting entity, if no cursor is
+   *                     given
+   * @param    inSize    the number of entities to return
+   * @param    inFilters key value pairs to look for.
+   *
+   * @return   the page with the matching entities
+   */
+  @SuppressWarnings("unchecked")
+  public Page<Entity> getEntitiesPage(String inType, Optional<Key> inParent,
+                                      Optional<String> inCursor,
+                                      int inStart, int inSize,
+                                      String ... inFilters)
+  {
+    CacheKey key = new CacheKey(namespace(inType, inParent),
+                                "page-" + Arrays.toString(inFilters) + "/"
+                                + (inCursor.isPresent()
+                                   ? inCursor.get() : inStart)
+                                + "/" + inSize);
+    // Only the keys are cached, the entities themselves are resolved from
+    // the entity cache.
+    Page<Key> keys = (Page<Key>)s_cacheLists.get(key);
+
+    if(keys == null)
     {
-      Log.important("gae: getting multiple " + inType + " with "
+      Log.important("gae: getting page of " + inType + " with "
                     + Arrays.toString(inFilters) + " (uncached)");
 
       Query query;
@@ -297,36 +550,177 @@ public class DataStore
       else
         query = new Query(inType);
 
-      if(inFilters.length > 2)
-      {
-        List<Query.Filter> filters = new ArrayList<Query.Filter>();
-        for(int i = 0; i + 1 < inFilters.length; i += 2)
-          filters.add(new Query.FilterPredicate(toPropertyName(inFilters[i]),
-                                                Query.FilterOperator.EQUAL,
-                                                inFilters[i + 1]));
+      filter(query, inFilters);
+      keys = page(query, inCursor, inStart, inSize);
 
-        query.setFilter(new Query.CompositeFilter
-                        (Query.CompositeFilterOperator.AND, filters));
+      s_cacheLists.put(key, keys, s_expiration);
+    }
+    else
+      Log.debug("gae: getting page of " + inType + " with "
+                + Arrays.toString(inFilters) + " (cached)");
+
+    return resolve(keys);
+  }
+
+  /**
+   * Get the keys of all the entities of the given type, in key order.
+   *
+   * @param    inType the type of the entities
+   *
+   * @return   all the keys
+   */
+  public List<Key> getKeys(String inType)
+  {
+    Log.important("gae: getting all keys for " + inType);
+
+    Query query = new Query(inType);
+    query.addSort(Entity.KEY_RESERVED_PROPERTY);
+    query.setKeysOnly();
+
+    List<Key> keys = new ArrayList<>();
+    FetchOptions options = FetchOptions.Builder.withChunkSize(1000);
+    for(Entity entity : m_store.prepare(query).asIterable(options))
+      keys.add(entity.getKey());
+
+    return keys;
+  }
+
+  /**
+   * Get a page of the entities of the given type in the given key range, in
+   * key order.
+   *
+   * @param    inType   the type of the entities
+   * @param    inFrom   the first key of the range (inclusive), if any
+   * @param    inTo     the end of the range (exclusive), if any
+   * @param    inCursor the cursor to start the page at, if any
+   * @param    inSize   the maximal number of entities to return
+   *
+   * @return   the page with the entities and the cursor to the next page
+   */
+  public Page<Entity> getEntitiesRange(String inType, Optional<Key> inFrom,
+                                       Optional<Key> inTo,
+                                       Optional<String> inCursor, int inSize)
+  {
+    Query query = new Query(inType);
+    List<Query.Filter> filters = new ArrayList<>();
+    if(inFrom.isPresent())
+      filters.add(new Query.FilterPredicate
+                  (Entity.KEY_RESERVED_PROPERTY,
+                   Query.FilterOperator.GREATER_THAN_OR_EQUAL, inFrom.get()));
+    if(inTo.isPresent())
+      filters.add(new Query.FilterPredicate
+                  (Entity.KEY_RESERVED_PROPERTY,
+                   Query.FilterOperator.LESS_THAN, inTo.get()));
+
+    if(filters.size() > 1)
+      query.setFilter(new Query.CompositeFilter
+                      (Query.CompositeFilterOperator.AND, filters));
+    else if(filters.size() == 1)
+      query.setFilter(filters.get(0));
+
+    query.addSort(Entity.KEY_RESERVED_PROPERTY);
+
+    Log.important("gae: getting entities for " + inType + " from "
+                  + inFrom.orNull() + " to " + inTo.orNull() + " size "
+                  + inSize);
+
+    return resolve(page(query, inCursor, 0, inSize));
+  }
+
+  /**
+   * Run the given query to get the keys of a single page of results. The
+   * query is run keys only, which is much cheaper than reading the entities.
+   *
+   * @param    inQuery  the query to run
+   * @param    inCursor the cursor to start at, if any
+   * @param    inStart  the offset to start at, if there is no (valid) cursor
+   * @param    inSize   the maximal number of entities to return
+   *
+   * @return   the page of keys read
+   */
+  private Page<Key> page(Query inQuery, Optional<String> inCursor,
+                         int inStart, int inSize)
+  {
+    // Read one more entity to know whether there is a next page.
+    FetchOptions options = FetchOptions.Builder.withLimit(inSize + 1);
+    Optional<Cursor> cursor = Optional.absent();
+    if(inCursor.isPresent())
+      try
+      {
+        cursor = Optional.of(Cursor.fromWebSafeString(inCursor.get()));
+      }
+      catch(IllegalArgumentException e)
+      {
+        Log.warning("invalid cursor '" + inCursor.get()
+                    + "', using offset instead: " + e);
       }
-      else if(inFilters.length > 0)
-        query.setFilter(new Query.FilterPredicate(toPropertyName(inFilters[0]),
-                                                  Query.FilterOperator.EQUAL,
-                                                  inFilters[1]));
 
-      FetchOptions options =
-        FetchOptions.Builder.withOffset(inStart).limit(inSize);
+    if(cursor.isPresent())
+      options.startCursor(cursor.get());
+    else
+      options.offset(inStart);
 
-      entities = new ArrayList<Entity>();
-      for(Entity entity : m_store.prepare(query).asIterable(options))
-        entities.add(entity);
+    inQuery.setKeysOnly();
+    QueryResultIterator<Entity> results =
+      m_store.prepare(inQuery).asQueryResultIterator(options);
+    List<Key> keys = new ArrayList<>();
+    while(keys.size() < inSize && results.hasNext())
+      keys.add(results.next().getKey());
+
+    Cursor next = results.getCursor();
+    if(next != null && results.hasNext())
+      return new Page<>(keys, Optional.of(next.toWebSafeString()));
 
-      s_cacheListByValue.put(key, entities, s_expiration);
+    return new Page<>(keys, Optional.<String>absent());
+  }
+
+  /**
+   * Resolve the entities for the given page of keys. Entities are read from
+   * the cache where possible and all others with a single batch request.
+   *
+   * @param    inKeys the page of keys to resolve
+   *
+   * @return   the page of entities, in the same order as the keys
+   */
+  private Page<Entity> resolve(Page<Key> inKeys)
+  {
+    Map<Key, Entity> resolved = getEntities(inKeys.getValues());
+    List<Entity> entities = new ArrayList<>();
+    for(Key key : inKeys.getValues())
+    {
+      Entity entity = resolved.get(key);
+      if(entity != null)
+        entities.add(entity);
+      else
+        Log.warning("could not resolve entity for " + key);
     }
-    else
-      Log.debug("gae: getting multiple " + inType + " with "
-                + Arrays.toString(inFilters) + " (cached)");
 
-    return entities;
+    return new Page<>(entities, inKeys.getCursor());
+  }
+
+  /**
+   * Add equality filters for the given key value pairs to the query.
+   *
+   * @param    inQuery   the query to add filters to
+   * @param    inFilters key value pairs for filtering
+   */
+  private void filter(Query inQuery, String ... inFilters)
+  {
+    if(inFilters.length > 2)
+    {
+      List<Query.Filter> filters = new ArrayList<Query.Filter>();
+      for(int i = 0; i + 1 < inFilters.length; i += 2)
+        filters.add(new Query.FilterPredicate(toPropertyName(inFilters[i]),
+                                              Query.FilterOperator.EQUAL,
+                                              inFilters[i + 1]));
+
+      inQuery.setFilter(new Query.CompositeFilter
+                        (Query.CompositeFilterOperator.AND, filters));
+    }
+    else if(inFilters.length > 0)
+      inQuery.setFilter(new Query.FilterPredicate(toPropertyName(inFilters[0]),
+                                                  Query.FilterOperator.EQUAL,
+                                                  inFilters[1]));
   }
 
   /**
@@ -342,8 +736,9 @@ public class DataStore
   @SuppressWarnings("unchecked")
   public List<Entity> getIDs(String inType, String inKey, String inValue)
   {
-    String key = inType + "--" + inKey + "=" + inValue;
-    List<Entity> ids = (List<Entity>)s_cacheIDsByValue.get(key);
+    CacheKey key = new CacheKey(namespace(inType, Optional.<Key>absent()),
+                                "ids-" + inKey + "=" + inValue);
+    List<Entity> ids = (List<Entity>)s_cacheLists.get(key);
 
     if(ids == null)
     {
@@ -361,7 +756,8 @@ public class DataStore
       for(Entity entity : m_store.prepare(query).asIterable(options))
         ids.add(entity);
 
-      s_cacheIDsByValue.put(key, ids, s_expiration);
+      ids = ImmutableList.copyOf(ids);
+      s_cacheLists.put(key, ids, s_expiration);
     }
 
     return ids;
@@ -380,7 +776,8 @@ public class DataStore
   public List<String> getIDs(String inType, Optional<String> inSortField,
                              Optional<Key> inParent)
   {
-    List<String> ids = (List<String>)s_cacheIDs.get(inType);
+    CacheKey key = new CacheKey(namespace(inType, inParent), "ids");
+    List<String> ids = (List<String>)s_cacheLists.get(key);
 
     if(ids == null)
     {
@@ -402,7 +799,8 @@ public class DataStore
       for(Entity entity : m_store.prepare(query).asIterable(options))
         ids.add(entity.getKey().getName());
 
-      s_cacheIDs.put(inType, ids, s_expiration);
+      ids = ImmutableList.copyOf(ids);
+      s_cacheLists.put(key, ids, s_expiration);
     }
 
     return ids;
@@ -422,8 +820,9 @@ public class DataStore
   public List<Entity> getRecentEntities(String inType, int inSize,
                                         Optional<Key> inParent)
   {
-    String key = inType + (inParent != null ? inParent.toString() : "");
-    List<Entity> entities = (List<Entity>)s_cacheRecent.get(key);
+    CacheKey key = new CacheKey(namespace(inType, inParent),
+                                "recent-" + inSize);
+    List<Entity> entities = (List<Entity>)s_cacheLists.get(key);
 
     if(entities == null)
     {
@@ -439,16 +838,17 @@ public class DataStore
       query.addSort(CHANGE, Query.SortDirection.DESCENDING);
       FetchOptions options =
         FetchOptions.Builder.withLimit(inSize);
-      entities = m_store.prepare(query).asList(options);
+      entities = ImmutableList.copyOf(m_store.prepare(query).asList(options));
 
-      s_cacheRecent.put(key, entities, s_expiration);
+      s_cacheLists.put(key, entities, s_expiration);
     }
 
     return entities;
   }
 
   /**
-   * Get the values for the given fields.
+   * Get the values for the given fields. The values of entities without parent
+   * are maintained incrementally with every change, others are queried.
    *
    * @param       inType   the type of entries to look for
    * @param       inParent the key of the parent entry, if any
@@ -458,48 +858,19 @@ public class DataStore
    *              in the order they were specificed
    *
    */
-  @SuppressWarnings("unchecked")
   public List<List<String>> getMultiValues(String inType,
                                            Optional<Key> inParent,
                                            String ... inFields)
   {
-    List<List<String>> records = (List<List<String>>)s_cacheMultiValues.get
-      (inType + ":" + Arrays.toString(inFields));
-
-    if (records == null)
-    {
-      Log.important("gae: get multi values for " + inType + " ("
-                    + inParent + ") " + Arrays.toString(inFields));
-      Query query;
-      if(inParent.isPresent())
-        query = new Query(inType, inParent.get());
-      else
-        query = new Query(inType);
-
-      for(String field : inFields)
-        query.addProjection(new PropertyProjection(field, String.class));
-
-      records = new ArrayList<List<String>>();
-      FetchOptions options = FetchOptions.Builder.withChunkSize(1000);
-      for (Entity entity : m_store.prepare(query).asIterable(options))
-      {
-        List<String> record = new ArrayList<String>();
-        for(String field : inFields)
-          record.add((String)entity.getProperty(field));
-
-        records.add(record);
-      }
-
-      // These queries are really expensive!
-      s_cacheMultiValues.put(inType + ":" + Arrays.toString(inFields), records,
-                             s_longExpiration);
-    }
+    if(!inParent.isPresent())
+      return m_values.getRecords(inType, inFields);
 
-    return records;
+    return project(inType, inParent, inFields);
   }
 
   /**
-   * Get the values for the given field.
+   * Get the values for the given field. The values of entities without parent
+   * are maintained incrementally with every change, others are queried.
    *
    * @param       inType   the type of entries to look for
    * @param       inParent the key of the parent entry, if any
@@ -508,39 +879,72 @@ public class DataStore
    * @return      a list of values found
    *
    */
-  @SuppressWarnings("unchecked")
   public SortedSet<String> getValues(String inType, Optional<Key> inParent,
                                      String inField)
   {
-    SortedSet<String> values =
-      (SortedSet<String>)s_cacheValues.get(inType + ":" + inField);
+    if(!inParent.isPresent())
+      return m_values.getValues(inType, inField);
 
-    if (values == null)
-    {
-      Log.important("gae: getting values for " + inType + " (" + inParent
-                    + ") " + " for field " + inField);
-      Query query;
-      if(inParent.isPresent())
-      query = new Query(inType, inParent.get());
-      else
-        query = new Query(inType);
+    ImmutableSortedSet.Builder<String> builder =
+      ImmutableSortedSet.naturalOrder();
+    for(List<String> record : project(inType, inParent, inField))
+      builder.add(record.get(0));
 
-      query.addProjection(new PropertyProjection(inField, String.class));
+    return builder.build();
+  }
 
-      ImmutableSortedSet.Builder<String> builder =
-        ImmutableSortedSet.naturalOrder();
-      FetchOptions options = FetchOptions.Builder.withChunkSize(1000);
-      for(Entity entity : m_store.prepare(query).asIterable(options))
-        if(entity != null && entity.getProperty(inField) != null)
-          builder.add((String)entity.getProperty(inField));
+  /**
+   * Query the values of the given fields of all entities with a projection
+   * query.
+   *
+   * NOTE: these queries are really expensive!
+   *
+   * @param       inType   the type of entries to look for
+   * @param       inParent the key of the parent entry, if any
+   * @param       inFields the fields to return
+   *
+   * @return      a list of records found, each with values for each field,
+   *              in the order they were specificed
+   */
+  List<List<String>> project(String inType, Optional<Key> inParent,
+                             String ... inFields)
+  {
+    Log.important("gae: get multi values for " + inType + " ("
+                  + inParent + ") " + Arrays.toString(inFields));
+    Query query;
+    if(inParent.isPresent())
+      query = new Query(inType, inParent.get());
+    else
+      query = new Query(inType);
+
+    for(String field : inFields)
+      query.addProjection(new PropertyProjection(field, String.class));
 
-      values = builder.build();
+    List<List<String>> records = new ArrayList<List<String>>();
+    FetchOptions options = FetchOptions.Builder.withChunkSize(1000);
+    for (Entity entity : m_store.prepare(query).asIterable(options))
+    {
+      List<String> record = new ArrayList<String>();
+      for(String field : inFields)
+        record.add((String)entity.getProperty(field));
 
-      // These queries are really expensive!
-      s_cacheValues.put(inType + ":" + inField, values, s_longExpiration);
+      records.add(record);
     }
 
-    return values;
+    return records;
+  }
+
+  /**
+   * Recompute all the maintained field values of the given type from the
+   * entities.
+   *
+   * NOTE: this reads all the entities of the type.
+   *
+   * @param       inType the type of entities to recompute values for
+   */
+  public void rebuildValues(String inType)
+  {
+    m_values.rebuild(inType, getAllEntities(inType));
   }
 
   /**
@@ -558,15 +962,10 @@ public class DataStore
     try
     {
       Log.important("gae: removing entity " + inKey);
-      s_cacheEntity.delete(inKey);
+      m_values.update(inKey, Optional.<Entity>absent());
       m_store.delete(inKey);
-      // TODO: we should clear some of these caches too, but just clearing all
-      // of them results in too many requests to the datastore
-      //s_cacheByValue.clearAll();
-      //s_cacheListByValue.clearAll();
-      //s_cacheRecent.clearAll();
-      s_cacheIDs.clearAll();
-      s_cacheIDsByValue.clearAll();
+      s_cacheEntity.delete(inKey);
+      invalidate(inKey);
 
       return true;
     }
@@ -589,27 +988,283 @@ public class DataStore
   {
     Log.important("gae: storing data for " + inEntity.getKey());
 
-    // Only clear the cache for new entities; this does only check the cache,
-    // but should usually be enough.
-    if(s_cacheEntity.get(inEntity.getKey()) == null)
+    m_values.update(inEntity.getKey(), Optional.of(inEntity));
+    m_store.put(inEntity);
+    s_cacheEntity.change(inEntity.getKey(), inEntity, s_expiration);
+
+    // Clear all the cache key value matches of the kind.
+    s_cacheByValue.invalidate(inEntity.getKind());
+
+    // Invalidate all the lists containing entities of the same kind.
+    invalidate(inEntity.getKey());
+
+    return true;
+  }
+
+  /**
+   * Add the given value to the list property of the entity with the given
+   * key. The entity is changed in a transaction, thus concurrent additions
+   * from other threads or instances are never lost.
+   *
+   * @param   inKey      the key of the entity to change
+   * @param   inProperty the name of the list property
+   * @param   inValue    the value to add
+   *
+   * @return  the number of values in the list after adding, absent if the
+   *          value was already in the list or the entity does not exist
+   */
+  @SuppressWarnings("unchecked") // casting property value
+  public Optional<Integer> addValue(Key inKey, String inProperty,
+                                    Object inValue)
+  {
+    Log.important("gae: adding " + inValue + " to " + inProperty + " of "
+                  + inKey);
+
+    for(int retries = 0; ; retries++)
     {
-      s_cacheIDs.clearAll();
-      s_cacheIDsByValue.clearAll();
-      s_cacheRecent.clearAll();
+      Transaction transaction = m_store.beginTransaction();
+      try
+      {
+        Entity entity = m_store.get(transaction, inKey);
+        List<Object> values = new ArrayList<>();
+        Object property = entity.getProperty(inProperty);
+        if(property instanceof Collection)
+          values.addAll((Collection<Object>)property);
+
+        if(values.contains(inValue))
+          return Optional.absent();
+
+        values.add(inValue);
+        entity.setUnindexedProperty(inProperty, values);
+        m_store.put(transaction, entity);
+        transaction.commit();
+        s_cacheEntity.delete(inKey);
+
+        return Optional.of(values.size());
+      }
+      catch(com.google.appengine.api.datastore.EntityNotFoundException e)
+      {
+        Log.warning("could not add value to " + inKey + ": " + e);
+        return Optional.absent();
+      }
+      catch(ConcurrentModificationException e)
+      {
+        if(retries >= MAX_RETRIES)
+          throw e;
+
+        Log.debug("retrying to add value to " + inKey + ": " + e);
+      }
+      finally
+      {
+        if(transaction.isActive())
+          transaction.rollback();
+      }
     }
+  }
 
-    s_cacheEntity.put(inEntity.getKey(), inEntity, s_expiration);
-    m_store.put(inEntity);
+  /**
+   * Change the entity with the given key in a transaction. The change is
+   * given the entity as currently stored and is applied again if the entity
+   * was changed concurrently, thus concurrent changes from other threads or
+   * instances are never lost.
+   *
+   * @param   inKey    the key of the entity to change
+   * @param   inChange the change, getting the current entity, if any, and
+   *                   returning the entity to store or absent to leave it
+   *                   unchanged
+   *
+   * @return  the entity stored, absent if nothing was changed
+   */
+  public Optional<Entity> change(Key inKey,
+                                 Function<Optional<Entity>,
+                                          Optional<Entity>> inChange)
+  {
+    Log.important("gae: changing " + inKey);
+
+    for(int retries = 0; ; retries++)
+    {
+      Transaction transaction = m_store.beginTransaction();
+      try
+      {
+        Optional<Entity> entity;
+        try
+        {
+          entity = Optional.of(m_store.get(transaction, inKey));
+        }
+        catch(com.google.appengine.api.datastore.EntityNotFoundException e)
+        {
+          entity = Optional.absent();
+        }
+
+        Optional<Entity> changed = inChange.apply(entity);
+        if(!changed.isPresent())
+          return changed;
+
+        m_store.put(transaction, changed.get());
+        transaction.commit();
+        s_cacheEntity.delete(inKey);
+
+        return changed;
+      }
+      catch(ConcurrentModificationException e)
+      {
+        if(retries >= MAX_RETRIES)
+          throw e;
+
+        Log.debug("retrying to change " + inKey + ": " + e);
+      }
+      finally
+      {
+        if(transaction.isActive())
+          transaction.rollback();
+      }
+    }
+  }
+
+  /**
+   * Update the datastore with all the given entities in a single batch.
+   *
+   * @param   inEntities the updated entities
+   *
+   * @return  true if successfully updated, false if not
+   */
+  public boolean update(Collection<Entity> inEntities)
+  {
+    return update(inEntities, Collections.<Key, Entity>emptyMap());
+  }
+
+  /**
+   * Update the datastore with all the given entities in a single batch,
+   * using the given entities as they were before the change where known, to
+   * not read them again.
+   *
+   * @param   inEntities the updated entities
+   * @param   inOld      the entities before the change, by key, as far as
+   *                     already read
+   *
+   * @return  true if successfully updated, false if not
+   */
+  public boolean update(Collection<Entity> inEntities, Map<Key, Entity> inOld)
+  {
+    if(inEntities.isEmpty())
+      return true;
 
-    // Clear all the cache key value matches.
-    for(Entry<String, Object> entry : inEntity.getProperties().entrySet())
-      s_cacheByValue.delete(entry.getKey() + "--" + entry.getValue());
+    Log.important("gae: storing " + inEntities.size() + " entities");
+
+    Map<Key, Optional<Entity>> changes = new HashMap<>();
+    Map<Key, Entity> entities = new HashMap<>();
+    for(Entity entity : inEntities)
+    {
+      changes.put(entity.getKey(), Optional.of(entity));
+      entities.put(entity.getKey(), entity);
+    }
 
-    s_cacheListByValue.clearAll();
+    m_values.update(changes, inOld);
+    m_store.put(inEntities);
+    s_cacheEntity.changeAll(entities, s_expiration);
+
+    Set<Key> kinds = new HashSet<>();
+    Set<String> byValue = new HashSet<>();
+    for(Entity entity : inEntities)
+    {
+      if(byValue.add(entity.getKind()))
+        s_cacheByValue.invalidate(entity.getKind());
+
+      // Only invalidate each kind and parent once.
+      if(kinds.add(KeyFactory.createKey(entity.getKey().getParent(),
+                                        entity.getKind(), "*")))
+        invalidate(entity.getKey());
+    }
 
     return true;
   }
 
+  /**
+   * Get the current generation of the cached entities of the given kind. The
+   * generation changes with every change of an entity of the kind, on any
+   * instance.
+   *
+   * @param       inKind the kind of the entities
+   *
+   * @return      the generation
+   */
+  public static long generation(String inKind)
+  {
+    return s_cacheEntity.generation(inKind);
+  }
+
+  /**
+   * Get the number of invalidations done by this instance, per namespace.
+   *
+   * @return      the invalidation counts
+   */
+  public static Multiset<String> getInvalidations()
+  {
+    return ImmutableMultiset.copyOf(s_invalidations);
+  }
+
+  /**
+   * Get all the caches used by the data store.
+   *
+   * @return   the caches
+   */
+  public static List<LayeredCache> getCaches()
+  {
+    return ImmutableList.of(s_cacheEntity, s_cacheByValue, s_cacheLists);
+  }
+
+  /**
+   * Clear all the caches of the data store, local and in memcache.
+   */
+  public static void clearCaches()
+  {
+    for(LayeredCache cache : getCaches())
+      cache.clearAll();
+  }
+
+  /**
+   * Compute the cache namespace for entities of the given type and parent.
+   *
+   * @param    inType   the type of the entities
+   * @param    inParent the key of the parent, if any
+   *
+   * @return   the namespace
+   */
+  private static String namespace(String inType, Optional<Key> inParent)
+  {
+    if(inParent.isPresent())
+      return inType + "@" + inParent.get();
+
+    return inType;
+  }
+
+  /**
+   * Invalidate all the cached lists that may contain the entity with the
+   * given key, i.e. all lists of its kind, without parent and with any of its
+   * ancestors as parent (queries with a parent return all descendants).
+   *
+   * @param    inKey the key of the entity changed
+   */
+  private static void invalidate(Key inKey)
+  {
+    invalidate(namespace(inKey.getKind(), Optional.<Key>absent()));
+    for(Key ancestor = inKey.getParent(); ancestor != null;
+        ancestor = ancestor.getParent())
+      invalidate(namespace(inKey.getKind(), Optional.of(ancestor)));
+  }
+
+  /**
+   * Invalidate all cached values in the given namespace.
+   *
+   * @param    inNamespace the namespace to invalidate
+   */
+  private static void invalidate(String inNamespace)
+  {
+    Log.debug("invalidating cache namespace " + inNamespace);
+    s_cacheLists.invalidate(inNamespace);
+    s_invalidations.add(inNamespace);
+  }
+
   /**
    * Convert the given name into a name that can be used as a property in the
    * datastore.
@@ -636,4 +1291,228 @@ public class DataStore
   {
     return inName.replaceAll("_", " ");
   }
+
+  //----------------------------------------------------------------------------
+
+  /** The test, with a local datastore and memcache. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /** The app engine test helper for the datastore and memcache. */
+    protected LocalServiceTestHelper m_localServiceTestHelper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+                                 new LocalMemcacheServiceTestConfig());
+
+    /** The background tasks queued, run with runTasks(). */
+    protected List<DeferredTask> m_tasks = new ArrayList<>();
+
+    @Override
+    public void setUpTest()
+    {
+      super.setUpTest();
+      m_localServiceTestHelper.setUp();
+
+      // Don't let values cached by other tests leak in.
+      DataStore.clearCaches();
+      ValueStore.clearCache();
+      IndexStore.clearCache();
+      DMADatastore.clearCache();
+
+      // Collect the background tasks to run them in the test thread, which
+      // has the local datastore.
+      Rebuild.set(new Rebuild(DMADataFactory.get(), new DataStore(),
+                              new RebuildQueue()
+                              {
+                                @Override
+                                public void add(DeferredTask inTask)
+                                {
+                                  m_tasks.add(inTask);
+                                }
+                              }));
+    }
+
+    @Override
+    public void tearDown()
+    {
+      super.tearDown();
+
+      Rebuild.set(null);
+      m_localServiceTestHelper.tearDown();
+      m_localServiceTestHelper = null;
+    }
+
+    /**
+     * Run all the background tasks queued, including the ones added while
+     * running.
+     */
+    protected void runTasks()
+    {
+      while(!m_tasks.isEmpty())
+        m_tasks.remove(0).run();
+    }
+
+    /** The update Test. */
+    @org.junit.Test
+    public void update()
+    {
+      DataStore store = new DataStore();
+      Key key = KeyFactory.createKey("kind", "name");
+      Entity entity = new Entity(key);
+      entity.setProperty("value", "first");
+
+      assertTrue("update", store.update(entity));
+      assertEquals("stored", "first",
+                   store.getEntity(key).get().getProperty("value"));
+
+      entity = new Entity(key);
+      entity.setProperty("value", "second");
+      store.update(entity);
+      assertEquals("updated", "second",
+                   store.getEntity(key).get().getProperty("value"));
+
+      assertTrue("remove", store.remove(key));
+      m_logger.addExpectedPattern("WARNING: could not get entity for "
+                                  + "kind\\(\"name\"\\): .*");
+      assertFalse("removed", store.getEntity(key).isPresent());
+    }
+
+    /** The page Test. */
+    @org.junit.Test
+    public void page()
+    {
+      DataStore store = new DataStore();
+      for(String name : new String [] { "first", "second", "third" })
+      {
+        Entity entity = new Entity(KeyFactory.createKey("kind", name));
+        entity.setProperty("group", "third".equals(name) ? "b" : "a");
+        entity.setProperty("value", name);
+        store.update(entity);
+      }
+
+      Optional<Key> noParent = Optional.absent();
+      Optional<String> noCursor = Optional.absent();
+      List<Entity> entities =
+        store.getEntitiesPage("kind", noParent, noCursor, 0, 10, "group", "a")
+        .getValues();
+      assertEquals("page", 2, entities.size());
+      assertEquals("first", "first", entities.get(0).getProperty("value"));
+      assertEquals("second", "second", entities.get(1).getProperty("value"));
+
+      // The cached page of keys is resolved from the entity cache.
+      CacheStats before = s_cacheEntity.localStats();
+      entities =
+        store.getEntitiesPage("kind", noParent, noCursor, 0, 10, "group", "a")
+        .getValues();
+      CacheStats stats = s_cacheEntity.localStats().minus(before);
+      assertEquals("cached", 2, entities.size());
+      assertEquals("hits", 2, stats.hitCount());
+      assertEquals("misses", 0, stats.missCount());
+
+      Entity entity = new Entity(KeyFactory.createKey("kind", "first"));
+      entity.setProperty("group", "a");
+      entity.setProperty("value", "changed");
+      store.update(entity);
+
+      entities =
+        store.getEntitiesPage("kind", noParent, noCursor, 0, 10, "group", "a")
+        .getValues();
+      assertEquals("updated", "changed",
+                   entities.get(0).getProperty("value"));
+      assertEquals("other", "second", entities.get(1).getProperty("value"));
+    }
+
+    /** The kinds Test. */
+    @org.junit.Test
+    public void kinds()
+    {
+      DataStore store = new DataStore();
+      Key key = KeyFactory.createKey("kind", "name");
+      Entity entity = new Entity(key);
+      entity.setProperty("value", "first");
+      store.update(entity);
+      store.update(new Entity(KeyFactory.createKey("other", "name")));
+
+      assertEquals("by value", key,
+                   store.getEntity("kind", "value", "first").get().getKey());
+      assertEquals("entity", "first",
+                   store.getEntity(key).get().getProperty("value"));
+
+      // Changes of other kinds leave the cached entities alone.
+      CacheStats before = s_cacheEntity.localStats();
+      store.update(new Entity(KeyFactory.createKey("other", "name")));
+      store.getEntity(key);
+      assertEquals("still cached", 1,
+                   s_cacheEntity.localStats().minus(before).hitCount());
+
+      // Changes of the same kind invalidate the lookups by value.
+      entity = new Entity(key);
+      entity.setProperty("value", "second");
+      store.update(entity);
+      assertFalse("old value",
+                  store.getEntity("kind", "value", "first").isPresent());
+      assertEquals("new value", key,
+                   store.getEntity("kind", "value", "second").get().getKey());
+    }
+
+    /** The invalidate Test. */
+    @org.junit.Test
+    public void invalidate()
+    {
+      DataStore store = new DataStore();
+      Key parent = KeyFactory.createKey("parent", "p");
+      store.update(new Entity(KeyFactory.createKey("kind", "first")));
+      store.update(new Entity(KeyFactory.createKey("other", "first")));
+
+      Optional<String> noSort = Optional.absent();
+      Optional<Key> noParent = Optional.absent();
+      List<String> kinds = store.getIDs("kind", noSort, noParent);
+      List<String> others = store.getIDs("other", noSort, noParent);
+      List<String> children = store.getIDs("kind", noSort,
+                                           Optional.of(parent));
+      assertEquals("kinds", "[first]", kinds.toString());
+      assertEquals("children", "[]", children.toString());
+      assertSame("cached", kinds, store.getIDs("kind", noSort, noParent));
+
+      Multiset<String> invalidations = getInvalidations();
+      store.update(new Entity(KeyFactory.createKey(parent, "kind", "second")));
+
+      assertEquals("kind invalidated", invalidations.count("kind") + 1,
+                   getInvalidations().count("kind"));
+      assertEquals("parent invalidated",
+                   invalidations.count("kind@" + parent) + 1,
+                   getInvalidations().count("kind@" + parent));
+      assertEquals("other not invalidated", invalidations.count("other"),
+                   getInvalidations().count("other"));
+
+      assertEquals("kinds updated", "[first, second]",
+                   store.getIDs("kind", noSort, noParent).toString());
+      assertEquals("children updated", "[second]",
+                   store.getIDs("kind", noSort, Optional.of(parent))
+                   .toString());
+      assertSame("other still cached", others,
+                 store.getIDs("other", noSort, noParent));
+
+      // Lists with any ancestor as parent contain the entity.
+      Key child = KeyFactory.createKey(parent, "child", "c");
+      assertEquals("grandchildren", "[]",
+                   store.getIDs("kind", noSort, Optional.of(child))
+                   .toString());
+      invalidations = getInvalidations();
+      store.update(new Entity(KeyFactory.createKey(child, "kind", "third")));
+      assertEquals("ancestor invalidated",
+                   invalidations.count("kind@" + parent) + 1,
+                   getInvalidations().count("kind@" + parent));
+      assertEquals("grandchildren updated", "[third]",
+                   store.getIDs("kind", noSort, Optional.of(child))
+                   .toString());
+      assertEquals("ancestor updated", "[second, third]",
+                   ImmutableSortedSet.copyOf
+                   (store.getIDs("kind", noSort, Optional.of(parent)))
+                   .toString());
+
+      assertTrue("remove", store.remove(KeyFactory.createKey("kind", "first")));
+      assertEquals("kinds removed", "[second, third]",
+                   ImmutableSortedSet.copyOf
+                   (store.getIDs("kind", noSort, noParent)).toString());
+    }
+  }
 }
@@ -24,6 +24,7 @@ package net.ixitxachitls.dma.data;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,7 +42,6 @@ import net.ixitxachitls.dma.entries.BaseCharacter;
 import net.ixitxachitls.dma.entries.BaseEntry;
 import net.ixitxachitls.dma.entries.EntryKey;
 import net.ixitxachitls.dma.proto.Entries;
-import net.ixitxachitls.dma.server.servlets.DMARequest;
 import net.ixitxachitls.util.logging.Log;
 import net.ixitxachitls.util.resources.Resource;
 
@@ -106,6 +106,17 @@ public class FakeDMADatastore extends DMADatastore
     return Optional.fromNullable((T) m_entries.get(inKey));
   }
 
+  @Override
+  public Map<EntryKey, AbstractEntry> getEntries(Collection<EntryKey> inKeys)
+  {
+    Map<EntryKey, AbstractEntry> entries = new HashMap<>();
+    for(EntryKey key : inKeys)
+      if(m_entries.containsKey(key))
+        entries.put(key, m_entries.get(key));
+
+    return entries;
+  }
+
   @Override
   public <T extends AbstractEntry> List<T>
   getEntries(AbstractType<T> inType, Optional<EntryKey> inParent,
@@ -114,6 +125,14 @@ public class FakeDMADatastore extends DMADatastore
     throw new UnsupportedOperationException("not yet implemented");
   }
 
+  @Override
+  public <T extends AbstractEntry> Page<T>
+  getEntries(AbstractType<T> inType, Optional<EntryKey> inParent,
+             Optional<String> inCursor, int inStart, int inSize)
+  {
+    throw new UnsupportedOperationException("not yet implemented");
+  }
+
   @Override
   public <T extends AbstractEntry>
   Optional<T> getEntry(AbstractType<T> inType, String inKey, String inValue)
@@ -179,6 +198,24 @@ public class FakeDMADatastore extends DMADatastore
     throw new UnsupportedOperationException("not yet implemented");
   }
 
+  @Override
+  public Page<AbstractEntry> getIndexEntries(String inIndex,
+                                             AbstractType<?> inType,
+                                             Optional<EntryKey> inParent,
+                                             String inGroup,
+                                             Optional<String> inCursor,
+                                             int inStart, int inSize)
+  {
+    throw new UnsupportedOperationException("not yet implemented");
+  }
+
+  @Override
+  public IndexStore.Groups getIndexGroups(String inIndex,
+                                          AbstractType<?> inType)
+  {
+    throw new UnsupportedOperationException("not yet implemented");
+  }
+
   @Override
   public SortedSet<String> getIndexNames
       (String inIndex,
@@ -223,14 +260,13 @@ public class FakeDMADatastore extends DMADatastore
   }
 
   @Override
-  public int rebuild(AbstractType<? extends AbstractEntry> inType)
+  public String rebuild(AbstractType<? extends AbstractEntry> inType)
   {
     throw new UnsupportedOperationException("not yet implemented");
   }
 
   @Override
-  public int refresh(AbstractType<? extends AbstractEntry> inType,
-                     DMARequest inRequest)
+  public String refresh(AbstractType<? extends AbstractEntry> inType)
   {
     throw new UnsupportedOperationException("not yet implemented");
   }
@@ -0,0 +1,672 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Multimap;
+
+import net.ixitxachitls.util.configuration.Config;
+import net.ixitxachitls.util.logging.Log;
+
+/**
+ * An in memory inverted index of the index values of entries. For each type
+ * and index path, the index maps all the groups to the sorted ids of the
+ * entries in that group.
+ *
+ * The index is changed incrementally whenever an entry is updated or removed
+ * and each type and path is stored as a snapshot blob in the datastore, thus
+ * the index is only computed from the entries themselves when no snapshot
+ * exists yet. The snapshots are shared by all requests and are never changed;
+ * changes always store a new snapshot. A small directory per type lists all
+ * the paths with a snapshot; which entries are in a path is only stored in
+ * the snapshot of the path itself, so no single snapshot has to contain all
+ * the paths and ids of a type.
+ *
+ * Concurrent changes of entries of the same type on different instances
+ * might lose an update of the index; rebuilding the type fixes this.
+ *
+ * @file          IndexStore.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ParametersAreNonnullByDefault
+public class IndexStore
+{
+  /**
+   * Create the index store.
+   *
+   * @param inData the datastore to read and store snapshots
+   */
+  public IndexStore(DataStore inData)
+  {
+    m_data = inData;
+  }
+
+  /** The datastore for storing snapshots. */
+  private final DataStore m_data;
+
+  /** The datastore kind for storing snapshots. */
+  private static final String KIND = "IndexStore";
+
+  /** The path of the directory, storing the paths indexed. */
+  private static final String DIRECTORY = "*";
+
+  /** The decoded directories, by type. */
+  private static final Cache<String, SortedSet<String>> s_directories =
+    CacheBuilder.newBuilder()
+    .maximumSize(Config.get("web.data.indexes.size", 500))
+    // Other instances might add paths, thus only keep them shortly.
+    .expireAfterWrite(Config.get("web.data.indexes.seconds", 60),
+                      TimeUnit.SECONDS)
+    .build();
+
+  /** The decoded snapshots, by type and path. */
+  private static final Cache<String, Groups> s_snapshots =
+    CacheBuilder.newBuilder()
+    .maximumSize(Config.get("web.data.indexes.size", 500))
+    // Other instances might change indexes, thus only keep them shortly.
+    .expireAfterWrite(Config.get("web.data.indexes.seconds", 60),
+                      TimeUnit.SECONDS)
+    .build();
+
+  /**
+   * The groups of a single index, with the ids of the entries in each group.
+   */
+  public static class Groups implements Serializable
+  {
+    /** Create empty groups. */
+    public Groups()
+    {
+      m_groups = new TreeMap<>();
+    }
+
+    /**
+     * Create groups as a copy of the given groups.
+     *
+     * @param inGroups the groups to copy
+     */
+    public Groups(Groups inGroups)
+    {
+      m_groups = new TreeMap<>();
+      for(Map.Entry<String, TreeSet<String>> entry
+            : inGroups.m_groups.entrySet())
+        m_groups.put(entry.getKey(), new TreeSet<>(entry.getValue()));
+    }
+
+    /** The id for serialization. */
+    private static final long serialVersionUID = 1L;
+
+    /** The ids of all entries, by group. */
+    private final TreeMap<String, TreeSet<String>> m_groups;
+
+    /**
+     * Get all the groups.
+     *
+     * @return the sorted groups
+     */
+    public SortedSet<String> getGroups()
+    {
+      return ImmutableSortedSet.copyOf(m_groups.keySet());
+    }
+
+    /**
+     * Get the number of entries in each group.
+     *
+     * @return the counts per group
+     */
+    public SortedMap<String, Integer> getCounts()
+    {
+      ImmutableSortedMap.Builder<String, Integer> counts =
+        ImmutableSortedMap.naturalOrder();
+      for(Map.Entry<String, TreeSet<String>> entry : m_groups.entrySet())
+        counts.put(entry.getKey(), entry.getValue().size());
+
+      return counts.build();
+    }
+
+    /**
+     * Get the ids of all the entries in the given group.
+     *
+     * @param inGroup the group to get the ids for
+     * @return the sorted ids
+     */
+    public List<String> getIDs(String inGroup)
+    {
+      TreeSet<String> ids = m_groups.get(inGroup);
+      if(ids == null)
+        return ImmutableList.of();
+
+      return ImmutableList.copyOf(ids);
+    }
+
+    /**
+     * Check whether the given id is in any of the groups.
+     *
+     * @param inID the id to check for
+     * @return true if the id is in at least one group, false if not
+     */
+    public boolean contains(String inID)
+    {
+      for(TreeSet<String> ids : m_groups.values())
+        if(ids.contains(inID))
+          return true;
+
+      return false;
+    }
+
+    /**
+     * Add the id to the given group.
+     *
+     * @param inGroup the group to add to
+     * @param inID    the id to add
+     */
+    private void add(String inGroup, String inID)
+    {
+      TreeSet<String> ids = m_groups.get(inGroup);
+      if(ids == null)
+      {
+        ids = new TreeSet<>();
+        m_groups.put(inGroup, ids);
+      }
+
+      ids.add(inID);
+    }
+
+    /**
+     * Remove the given id from all groups.
+     *
+     * @param inID the id to remove
+     */
+    private void remove(String inID)
+    {
+      for(Iterator<TreeSet<String>> i = m_groups.values().iterator();
+          i.hasNext(); )
+      {
+        TreeSet<String> ids = i.next();
+        if(ids.remove(inID) && ids.isEmpty())
+          i.remove();
+      }
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_groups.toString();
+    }
+  }
+
+  /**
+   * Get the index groups for the given type and path.
+   *
+   * @param inType the (escaped) type of the entries
+   * @param inPath the path of the index
+   * @return the groups
+   */
+  public Groups getGroups(String inType, String inPath)
+  {
+    return snapshot(inType, inPath);
+  }
+
+  /**
+   * Get a page of ids of the entries in the given group.
+   *
+   * @param inType  the (escaped) type of the entries
+   * @param inPath  the path of the index
+   * @param inGroup the group to get the ids for
+   * @param inStart the index of the first id to return
+   * @param inSize  the maximal number of ids to return
+   * @return the page of ids, with the start of the next page as cursor
+   */
+  public Page<String> getIDs(String inType, String inPath, String inGroup,
+                             int inStart, int inSize)
+  {
+    List<String> ids = getGroups(inType, inPath).getIDs(inGroup);
+    if(inStart >= ids.size())
+      return new Page<>(ImmutableList.<String>of(), Optional.<String>absent());
+
+    int end = Math.min(ids.size(), inStart + inSize);
+    return new Page<>(ids.subList(inStart, end),
+                      end < ids.size()
+                      ? Optional.of(String.valueOf(end))
+                      : Optional.<String>absent());
+  }
+
+  /**
+   * Update the index for the given entry.
+   *
+   * @param inType   the (escaped) type of the entry
+   * @param inID     the id of the entry
+   * @param inValues the index values of the entry, by path
+   */
+  public void update(String inType, String inID,
+                     Multimap<String, String> inValues)
+  {
+    update(inType, ImmutableMap.of(inID, inValues));
+  }
+
+  /**
+   * Update the index for the given entries. Each snapshot is stored at most
+   * once and only if it changed.
+   *
+   * @param inType   the (escaped) type of the entries
+   * @param inValues the index values of the entries, by id and path
+   */
+  public void update(String inType,
+                     Map<String, ? extends Multimap<String, String>> inValues)
+  {
+    SortedSet<String> directory = directory(inType);
+    TreeSet<String> paths = new TreeSet<>(directory);
+    for(Multimap<String, String> values : inValues.values())
+      paths.addAll(values.keySet());
+
+    for(String path : paths)
+    {
+      Groups snapshot = snapshot(inType, path);
+      if(!affects(snapshot, path, inValues))
+        continue;
+
+      Groups groups = new Groups(snapshot);
+      for(Map.Entry<String, ? extends Multimap<String, String>> entry
+            : inValues.entrySet())
+      {
+        groups.remove(entry.getKey());
+        for(String group : entry.getValue().get(path))
+          groups.add(group, entry.getKey());
+      }
+
+      if(!groups.m_groups.equals(snapshot.m_groups))
+        store(inType, path, groups);
+    }
+
+    if(!directory.containsAll(paths))
+      storeDirectory(inType, paths);
+  }
+
+  /**
+   * Check whether updating the given values can change the snapshot of the
+   * path, i.e. whether any of the entries is in it or has values for it.
+   *
+   * @param inSnapshot the current snapshot of the path
+   * @param inPath     the path of the index
+   * @param inValues   the index values of the entries, by id and path
+   * @return true if the snapshot might change, false if not
+   */
+  private static boolean affects
+    (Groups inSnapshot, String inPath,
+     Map<String, ? extends Multimap<String, String>> inValues)
+  {
+    for(Map.Entry<String, ? extends Multimap<String, String>> entry
+          : inValues.entrySet())
+      if(entry.getValue().containsKey(inPath)
+         || inSnapshot.contains(entry.getKey()))
+        return true;
+
+    return false;
+  }
+
+  /**
+   * Remove the entry with the given id from the index.
+   *
+   * @param inType the (escaped) type of the entry
+   * @param inID   the id of the entry
+   */
+  public void remove(String inType, String inID)
+  {
+    update(inType, inID, ImmutableMultimap.<String, String>of());
+  }
+
+  /**
+   * Rebuild the index for the given type from scratch.
+   *
+   * @param inType   the (escaped) type of the entries
+   * @param inValues the index values of all entries, by id and path
+   */
+  public void rebuild(String inType,
+                      Map<String, ? extends Multimap<String, String>> inValues)
+  {
+    Log.important("rebuilding index store for " + inType);
+
+    // Clear out paths not used anymore.
+    Map<String, Groups> indexes = new TreeMap<>();
+    for(String path : directory(inType))
+      indexes.put(path, new Groups());
+
+    for(Map.Entry<String, ? extends Multimap<String, String>> entry
+          : inValues.entrySet())
+      for(Map.Entry<String, String> value : entry.getValue().entries())
+      {
+        Groups groups = indexes.get(value.getKey());
+        if(groups == null)
+        {
+          groups = new Groups();
+          indexes.put(value.getKey(), groups);
+        }
+
+        groups.add(value.getValue(), entry.getKey());
+      }
+
+    TreeSet<String> paths = new TreeSet<>();
+    for(Map.Entry<String, Groups> index : indexes.entrySet())
+    {
+      store(inType, index.getKey(), index.getValue());
+      if(!index.getValue().m_groups.isEmpty())
+        paths.add(index.getKey());
+    }
+
+    storeDirectory(inType, paths);
+  }
+
+  /**
+   * Check whether a snapshot of the index of the given type exists.
+   *
+   * @param inType the (escaped) type of the entries
+   * @return true if there is a snapshot, false if the index has to be built
+   */
+  public boolean exists(String inType)
+  {
+    return s_directories.getIfPresent(inType) != null
+      || m_data.getEntity(key(inType, DIRECTORY)).isPresent();
+  }
+
+  /**
+   * Clear all the decoded snapshots of this instance.
+   */
+  public static void clearCache()
+  {
+    s_snapshots.invalidateAll();
+    s_directories.invalidateAll();
+  }
+
+  /**
+   * Get the directory of the given type, i.e. all the paths indexed.
+   *
+   * @param inType the (escaped) type of the entries
+   * @return the paths, empty if no directory is stored
+   */
+  @SuppressWarnings("unchecked") // casting property value
+  private SortedSet<String> directory(String inType)
+  {
+    SortedSet<String> paths = s_directories.getIfPresent(inType);
+    if(paths != null)
+      return paths;
+
+    paths = ImmutableSortedSet.of();
+    Optional<Entity> entity = m_data.getEntity(key(inType, DIRECTORY));
+    if(entity.isPresent())
+    {
+      Object stored = entity.get().getProperty("paths");
+      if(stored instanceof Collection)
+        paths = ImmutableSortedSet.copyOf((Collection<String>)stored);
+    }
+
+    s_directories.put(inType, paths);
+    return paths;
+  }
+
+  /**
+   * Store the given paths as the directory of the type.
+   *
+   * @param inType  the (escaped) type of the entries
+   * @param inPaths the paths indexed
+   */
+  private void storeDirectory(String inType, SortedSet<String> inPaths)
+  {
+    SortedSet<String> paths = ImmutableSortedSet.copyOf(inPaths);
+    Entity entity = new Entity(key(inType, DIRECTORY));
+    entity.setUnindexedProperty("paths", new ArrayList<>(paths));
+    m_data.update(entity);
+
+    s_directories.put(inType, paths);
+  }
+
+  /**
+   * Get the snapshot for the given type and path.
+   *
+   * @param inType the (escaped) type of the entries
+   * @param inPath the path of the index
+   * @return the snapshot, empty if none is stored
+   */
+  private Groups snapshot(String inType, String inPath)
+  {
+    String name = name(inType, inPath);
+    Groups groups = s_snapshots.getIfPresent(name);
+    if(groups != null)
+      return groups;
+
+    Optional<Entity> entity = m_data.getEntity(key(inType, inPath));
+    if(entity.isPresent())
+      groups = decode((Blob)entity.get().getProperty("snapshot"));
+
+    if(groups == null)
+      groups = new Groups();
+
+    s_snapshots.put(name, groups);
+    return groups;
+  }
+
+  /**
+   * Store the given groups as the snapshot for the type and path.
+   *
+   * @param inType   the (escaped) type of the entries
+   * @param inPath   the path of the index
+   * @param inGroups the groups to store
+   */
+  private void store(String inType, String inPath, Groups inGroups)
+  {
+    Entity entity = new Entity(key(inType, inPath));
+    entity.setUnindexedProperty("snapshot", encode(inGroups));
+    m_data.update(entity);
+
+    s_snapshots.put(name(inType, inPath), inGroups);
+  }
+
+  /**
+   * Compute the name of the snapshot for the given type and path.
+   *
+   * @param inType the (escaped) type of the entries
+   * @param inPath the path of the index
+   * @return the name of the snapshot
+   */
+  private static String name(String inType, String inPath)
+  {
+    return inType + "/" + inPath;
+  }
+
+  /**
+   * Create the datastore key of the snapshot for the given type and path.
+   *
+   * @param inType the (escaped) type of the entries
+   * @param inPath the path of the index
+   * @return the key
+   */
+  private static Key key(String inType, String inPath)
+  {
+    return KeyFactory.createKey(KIND, name(inType, inPath));
+  }
+
+  /**
+   * Encode the given groups into a blob, as the number of groups followed by
+   * each group with the number of its ids and the ids, in order.
+   *
+   * @param inGroups the groups to encode
+   * @return the blob with the encoded groups
+   */
+  private static Blob encode(Groups inGroups)
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes))
+    {
+      out.writeInt(inGroups.m_groups.size());
+      for(Map.Entry<String, TreeSet<String>> entry
+            : inGroups.m_groups.entrySet())
+      {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().size());
+        for(String id : entry.getValue())
+          out.writeUTF(id);
+      }
+    }
+    catch(IOException e)
+    {
+      throw new IllegalStateException("cannot encode index groups", e);
+    }
+
+    return new Blob(bytes.toByteArray());
+  }
+
+  /**
+   * Decode the groups from the given blob.
+   *
+   * @param inBlob the blob to decode
+   * @return the decoded groups or null if the blob could not be read
+   */
+  private static Groups decode(Blob inBlob)
+  {
+    try (DataInputStream in =
+           new DataInputStream(new ByteArrayInputStream(inBlob.getBytes())))
+    {
+      Groups groups = new Groups();
+      for(int i = in.readInt(); i > 0; i--)
+      {
+        String group = in.readUTF();
+        for(int j = in.readInt(); j > 0; j--)
+          groups.add(group, in.readUTF());
+      }
+
+      return groups;
+    }
+    catch(IOException e)
+    {
+      Log.warning("cannot read index snapshot: " + e);
+      return null;
+    }
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends DataStore.Test
+  {
+    /** The groups Test. */
+    @org.junit.Test
+    public void groups()
+    {
+      Groups groups = new Groups();
+      groups.add("b", "id2");
+      groups.add("a", "id3");
+      groups.add("a", "id1");
+      groups.add("c", "id3");
+
+      assertEquals("groups", "[a, b, c]", groups.getGroups().toString());
+      assertEquals("counts", "{a=2, b=1, c=1}",
+                   groups.getCounts().toString());
+      assertEquals("ids", "[id1, id3]", groups.getIDs("a").toString());
+      assertEquals("no ids", "[]", groups.getIDs("d").toString());
+      assertTrue("contains", groups.contains("id2"));
+
+      Groups copy = new Groups(groups);
+      copy.remove("id3");
+      assertEquals("copy", "{a=[id1], b=[id2]}", copy.toString());
+      assertEquals("original", "{a=[id1, id3], b=[id2], c=[id3]}",
+                   groups.toString());
+
+      copy.remove("id2");
+      assertFalse("removed", copy.contains("id2"));
+      assertEquals("empty group", "[a]", copy.getGroups().toString());
+    }
+
+    /** The encode Test. */
+    @org.junit.Test
+    public void encoding()
+    {
+      Groups groups = new Groups();
+      groups.add("group", "id");
+      groups.add("group", "other");
+      groups.add("second", "id");
+
+      assertEquals("encoded", "{group=[id, other], second=[id]}",
+                   decode(encode(groups)).toString());
+      assertEquals("empty", "{}", decode(encode(new Groups())).toString());
+
+      m_logger.addExpectedPattern("WARNING: cannot read index snapshot: .*");
+      assertNull("invalid", decode(new Blob(new byte [] { 0, 0, 0, 1 })));
+    }
+
+    /** The update Test. */
+    @org.junit.Test
+    public void update()
+    {
+      // Missing snapshots are expected when starting empty.
+      m_logger.banClass(DataStore.class);
+
+      IndexStore store = new IndexStore(new DataStore());
+      store.update("type", "id1", ImmutableMultimap.of("a", "x", "b", "y"));
+      store.update("type", "id2", ImmutableMultimap.of("a", "x"));
+      assertEquals("directory", "[a, b]", store.directory("type").toString());
+      assertEquals("a", "{x=[id1, id2]}",
+                   store.getGroups("type", "a").toString());
+
+      store.update("type", "id1", ImmutableMultimap.of("a", "z"));
+      assertEquals("a changed", "{x=[id2], z=[id1]}",
+                   store.getGroups("type", "a").toString());
+      assertEquals("b removed", "{}",
+                   store.getGroups("type", "b").toString());
+
+      store.remove("type", "id2");
+      clearCache();
+      assertTrue("exists", store.exists("type"));
+      assertEquals("stored directory", "[a, b]",
+                   store.directory("type").toString());
+      assertEquals("stored", "{z=[id1]}",
+                   store.getGroups("type", "a").toString());
+    }
+  }
+}
@@ -0,0 +1,730 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import net.ixitxachitls.util.configuration.Config;
+
+/**
+ * A two level cache, with a small, short lived local cache in front of a
+ * memcache namespace. Reads are served from the local cache if possible and
+ * from memcache otherwise, writes go through to both.
+ *
+ * The keys of the cache are divided into groups (e.g. by kind). Changes are
+ * detected with a generation per group stored in memcache, which is
+ * incremented with every change of a value of the group. All values are
+ * stored with the generation of their group they were read or written with
+ * and are only served while the generation is still the same. Thus a change
+ * invalidates all the values of the group on all instances, without having
+ * to know the keys of the values.
+ *
+ * The generation of a group is fetched with the same memcache request as the
+ * values. Once fetched, it is trusted for a short time (one second by
+ * default, configured with web.data.local.<namespace>.check.millis), during
+ * which local values are served without asking memcache at all. Changes
+ * done on other instances are thus seen after at most that time, changes
+ * done on this instance are seen immediately.
+ *
+ * Values read from the local cache are shared between requests and must not
+ * be changed.
+ *
+ * @file          LayeredCache.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ParametersAreNonnullByDefault
+public class LayeredCache
+{
+  /**
+   * Create the cache for the given memcache namespace, with all values in a
+   * single group.
+   *
+   * @param inNamespace the memcache namespace to use
+   * @param inSize      the default maximal number of values cached locally
+   * @param inSeconds   the default number of seconds to cache values locally
+   */
+  public LayeredCache(String inNamespace, int inSize, int inSeconds)
+  {
+    this(inNamespace, inSize, inSeconds, Functions.constant(""));
+  }
+
+  /**
+   * Create the cache for the given memcache namespace. The size and time of
+   * the local cache can be configured with web.data.local.<namespace>.size
+   * and web.data.local.<namespace>.seconds.
+   *
+   * @param inNamespace the memcache namespace to use
+   * @param inSize      the default maximal number of values cached locally
+   * @param inSeconds   the default number of seconds to cache values locally
+   * @param inGroups    the function computing the group of a key
+   */
+  public LayeredCache(String inNamespace, int inSize, int inSeconds,
+                      Function<Object, String> inGroups)
+  {
+    this(inNamespace, MemcacheServiceFactory.getMemcacheService(inNamespace),
+         Config.get("web.data.local." + inNamespace + ".size", inSize),
+         Config.get("web.data.local." + inNamespace + ".seconds", inSeconds),
+         Config.get("web.data.local." + inNamespace + ".check.millis", 1000),
+         inGroups);
+  }
+
+  /**
+   * Create the cache in front of the given memcache.
+   *
+   * @param inNamespace the name of the namespace
+   * @param inMemcache  the memcache service to use
+   * @param inSize      the maximal number of values cached locally
+   * @param inSeconds   the number of seconds to cache values locally
+   * @param inCheck     the milliseconds a generation is trusted once fetched
+   * @param inGroups    the function computing the group of a key
+   */
+  LayeredCache(String inNamespace, MemcacheService inMemcache, int inSize,
+               int inSeconds, int inCheck, Function<Object, String> inGroups)
+  {
+    m_namespace = inNamespace;
+    m_memcache = inMemcache;
+    m_check = inCheck;
+    m_groups = inGroups;
+    m_local = CacheBuilder.newBuilder()
+      .maximumSize(inSize)
+      .expireAfterWrite(inSeconds, TimeUnit.SECONDS)
+      .recordStats()
+      .build();
+  }
+
+  /** A value cached locally, with the generation it was read with. */
+  private static class Local
+  {
+    /**
+     * Create the local value.
+     *
+     * @param inValue      the value cached
+     * @param inGeneration the generation of the group when read
+     */
+    public Local(Object inValue, long inGeneration)
+    {
+      m_value = inValue;
+      m_generation = inGeneration;
+    }
+
+    /** The value cached. */
+    private final Object m_value;
+
+    /** The generation of the group the value was read with. */
+    private final long m_generation;
+  }
+
+  /** A value stored in memcache, with the generation it was stored with. */
+  private static class Tagged implements Serializable
+  {
+    /**
+     * Create the tagged value.
+     *
+     * @param inValue      the value to store
+     * @param inGeneration the generation of the group
+     */
+    public Tagged(Object inValue, long inGeneration)
+    {
+      m_value = inValue;
+      m_generation = inGeneration;
+    }
+
+    /** The id for serialization. */
+    private static final long serialVersionUID = 1L;
+
+    /** The value stored. */
+    private final Object m_value;
+
+    /** The generation of the group the value was stored with. */
+    private final long m_generation;
+  }
+
+  /** A generation fetched from memcache. */
+  private static class Checked
+  {
+    /**
+     * Create the fetched generation.
+     *
+     * @param inGeneration the generation fetched
+     * @param inTime       the time it was fetched, in milliseconds
+     */
+    public Checked(long inGeneration, long inTime)
+    {
+      m_generation = inGeneration;
+      m_time = inTime;
+    }
+
+    /** The generation. */
+    private final long m_generation;
+
+    /** The time the generation was fetched. */
+    private final long m_time;
+  }
+
+  /** The name of the namespace cached. */
+  private final String m_namespace;
+
+  /** The memcache namespace. */
+  private final MemcacheService m_memcache;
+
+  /** The local cache. */
+  private final Cache<Object, Local> m_local;
+
+  /** The milliseconds a generation fetched is trusted. */
+  private final int m_check;
+
+  /** The function computing the group of a key. */
+  private final Function<Object, String> m_groups;
+
+  /** The generations last fetched, by group. */
+  private final ConcurrentMap<String, Checked> m_checked =
+    new ConcurrentHashMap<>();
+
+  /** The number of local values found to be stale. */
+  private final AtomicLong m_stale = new AtomicLong();
+
+  /** The prefix of the memcache keys of the generations of the groups. */
+  private static final String GENERATION = "#generation:";
+
+  /** The generation if it cannot be determined; never served. */
+  private static final long NO_GENERATION = Long.MIN_VALUE;
+
+  /**
+   * Get the value for the given key.
+   *
+   * @param  inKey the key of the value to get
+   * @return the value found or null if not cached
+   */
+  public @Nullable Object get(Object inKey)
+  {
+    return getAll(Collections.singletonList(inKey)).get(inKey);
+  }
+
+  /**
+   * Get all the values for the given keys. Values cached locally are served
+   * without asking memcache while the generations of their groups are
+   * trusted. Otherwise the generations and all the values not cached
+   * locally are fetched with a single memcache request.
+   *
+   * @param  inKeys the keys of the values to get
+   * @param  <T>    the type of the keys
+   * @return a map with all the values found
+   */
+  public <T> Map<T, Object> getAll(Collection<T> inKeys)
+  {
+    long now = System.currentTimeMillis();
+    Map<T, Object> values = new HashMap<>();
+    Map<T, Local> unchecked = new HashMap<>();
+    List<T> missing = new ArrayList<>();
+    Set<String> groups = new HashSet<>();
+    for(T key : inKeys)
+    {
+      String group = m_groups.apply(key);
+      Local local = m_local.getIfPresent(key);
+      if(local != null && local.m_generation == checked(group, now))
+      {
+        values.put(key, local.m_value);
+        continue;
+      }
+
+      groups.add(group);
+      if(local != null)
+        unchecked.put(key, local);
+      else
+        missing.add(key);
+    }
+
+    if(groups.isEmpty())
+      return values;
+
+    List<Object> request = new ArrayList<>();
+    for(String group : groups)
+      request.add(GENERATION + group);
+    request.addAll(missing);
+
+    Map<Object, Object> cached = m_memcache.getAll(request);
+    Map<String, Long> generations = new HashMap<>();
+    for(String group : groups)
+      generations.put(group, generation(group, cached.get(GENERATION + group),
+                                        now));
+
+    for(Map.Entry<T, Local> entry : unchecked.entrySet())
+    {
+      long generation = generations.get(m_groups.apply(entry.getKey()));
+      if(entry.getValue().m_generation == generation)
+        values.put(entry.getKey(), entry.getValue().m_value);
+      else
+      {
+        m_stale.incrementAndGet();
+        m_local.invalidate(entry.getKey());
+        missing.add(entry.getKey());
+      }
+    }
+
+    // Stale local values have to be fetched again.
+    if(missing.size() > request.size() - groups.size())
+      cached.putAll(m_memcache.getAll(unchecked.keySet()));
+
+    for(T key : missing)
+    {
+      Object value = cached.get(key);
+      long generation = generations.get(m_groups.apply(key));
+      if(value instanceof Tagged && generation != NO_GENERATION
+         && ((Tagged)value).m_generation == generation)
+      {
+        store(key, ((Tagged)value).m_value, generation);
+        values.put(key, ((Tagged)value).m_value);
+      }
+    }
+
+    return values;
+  }
+
+  /**
+   * Store the given value in both caches. The value must be read from the
+   * source of the cache and not be a change, as other instances are not
+   * told to drop their local values (see change()). The value is stored with
+   * the generation of its group last fetched, i.e. usually the one fetched
+   * when not finding the value. If the group is changed in between, the
+   * value is thus not served.
+   *
+   * @param inKey        the key to store under
+   * @param inValue      the value to store
+   * @param inExpiration when the value expires from memcache
+   */
+  public void put(Object inKey, @Nullable Object inValue,
+                  @Nullable Expiration inExpiration)
+  {
+    if(inValue == null)
+    {
+      m_local.invalidate(inKey);
+      m_memcache.delete(inKey);
+    }
+    else
+      putAll(Collections.singletonMap(inKey, inValue), inExpiration);
+  }
+
+  /**
+   * Store all the given values in both caches. The values must be read from
+   * the source of the cache and not be changes (see changeAll()).
+   *
+   * @param inValues     the values to store, by key
+   * @param inExpiration when the values expire from memcache
+   */
+  public void putAll(Map<?, ?> inValues, @Nullable Expiration inExpiration)
+  {
+    Map<String, Long> generations = new HashMap<>();
+    Map<Object, Object> tagged = new HashMap<>();
+    for(Map.Entry<?, ?> entry : inValues.entrySet())
+    {
+      if(entry.getValue() == null)
+        continue;
+
+      String group = m_groups.apply(entry.getKey());
+      Long generation = generations.get(group);
+      if(generation == null)
+      {
+        Checked checked = m_checked.get(group);
+        generation = checked == null ? generation(group) : checked.m_generation;
+        generations.put(group, generation);
+      }
+
+      store(entry.getKey(), entry.getValue(), generation);
+      tagged.put(entry.getKey(), new Tagged(entry.getValue(), generation));
+    }
+
+    m_memcache.putAll(tagged, inExpiration);
+  }
+
+  /**
+   * Store the given changed value in both caches and make all instances
+   * drop their values of the group.
+   *
+   * @param inKey        the key to store under
+   * @param inValue      the value to store
+   * @param inExpiration when the value expires from memcache
+   */
+  public void change(Object inKey, Object inValue,
+                     @Nullable Expiration inExpiration)
+  {
+    changeAll(Collections.singletonMap(inKey, inValue), inExpiration);
+  }
+
+  /**
+   * Store all the given changed values in both caches and make all instances
+   * drop their values of the groups changed.
+   *
+   * @param inValues     the values to store, by key
+   * @param inExpiration when the values expire from memcache
+   */
+  public void changeAll(Map<?, ?> inValues, @Nullable Expiration inExpiration)
+  {
+    SetMultimap<String, Object> groups = LinkedHashMultimap.create();
+    for(Object key : inValues.keySet())
+      groups.put(m_groups.apply(key), key);
+
+    Map<Object, Object> tagged = new HashMap<>();
+    List<Object> removed = new ArrayList<>();
+    for(String group : groups.keySet())
+    {
+      long generation = invalidate(group);
+      for(Object key : groups.get(group))
+      {
+        Object value = inValues.get(key);
+        if(value == null)
+          removed.add(key);
+        else
+        {
+          store(key, value, generation);
+          tagged.put(key, new Tagged(value, generation));
+        }
+      }
+    }
+
+    m_local.invalidateAll(removed);
+    m_memcache.deleteAll(removed);
+    m_memcache.putAll(tagged, inExpiration);
+  }
+
+  /**
+   * Remove the value with the given key from both caches, on all instances.
+   *
+   * @param inKey the key of the value to remove
+   */
+  public void delete(Object inKey)
+  {
+    deleteAll(Collections.singletonList(inKey));
+  }
+
+  /**
+   * Remove the values with the given keys from both caches, on all
+   * instances.
+   *
+   * @param inKeys the keys of the values to remove
+   */
+  public void deleteAll(Collection<?> inKeys)
+  {
+    if(inKeys.isEmpty())
+      return;
+
+    m_local.invalidateAll(inKeys);
+    m_memcache.deleteAll(inKeys);
+
+    Set<String> groups = new HashSet<>();
+    for(Object key : inKeys)
+      if(groups.add(m_groups.apply(key)))
+        invalidate(m_groups.apply(key));
+  }
+
+  /**
+   * Invalidate all the values of the given group, on all instances.
+   *
+   * @param inGroup the group to invalidate
+   * @return the new generation of the group
+   */
+  public long invalidate(String inGroup)
+  {
+    Long generation = m_memcache.increment(GENERATION + inGroup, 1,
+                                           System.currentTimeMillis());
+    return checked(inGroup, generation, System.currentTimeMillis());
+  }
+
+  /**
+   * Get the current generation of the given group. The generation is only
+   * fetched from memcache if the one last fetched is not trusted anymore.
+   *
+   * @param inGroup the group to get the generation for
+   * @return the generation
+   */
+  public long generation(String inGroup)
+  {
+    long now = System.currentTimeMillis();
+    long generation = checked(inGroup, now);
+    if(generation != NO_GENERATION)
+      return generation;
+
+    return generation(inGroup, m_memcache.get(GENERATION + inGroup), now);
+  }
+
+  /**
+   * Clear all values in the local cache and in memcache.
+   */
+  public void clearAll()
+  {
+    m_local.invalidateAll();
+    m_memcache.clearAll();
+    m_checked.clear();
+  }
+
+  /**
+   * Get the statistics of the local cache.
+   *
+   * @return the statistics
+   */
+  public CacheStats localStats()
+  {
+    return m_local.stats();
+  }
+
+  @Override
+  public String toString()
+  {
+    return m_namespace + " (" + m_local.size() + " local, " + m_stale.get()
+      + " stale)";
+  }
+
+  /**
+   * Store the given value locally, if the generation is known.
+   *
+   * @param inKey        the key of the value
+   * @param inValue      the value to store
+   * @param inGeneration the generation the value was read with
+   */
+  private void store(Object inKey, Object inValue, long inGeneration)
+  {
+    if(inGeneration == NO_GENERATION)
+      m_local.invalidate(inKey);
+    else
+      m_local.put(inKey, new Local(inValue, inGeneration));
+  }
+
+  /**
+   * Get the generation of the given group, if it is still trusted.
+   *
+   * @param  inGroup the group
+   * @param  inNow   the current time in milliseconds
+   * @return the generation or NO_GENERATION if not trusted
+   */
+  private long checked(String inGroup, long inNow)
+  {
+    Checked checked = m_checked.get(inGroup);
+    if(checked == null || inNow - checked.m_time >= m_check)
+      return NO_GENERATION;
+
+    return checked.m_generation;
+  }
+
+  /**
+   * Remember the given generation of the group as fetched now.
+   *
+   * @param  inGroup      the group
+   * @param  inGeneration the generation fetched, if any
+   * @param  inNow        the current time in milliseconds
+   * @return the generation or NO_GENERATION if there is none
+   */
+  private long checked(String inGroup, @Nullable Long inGeneration,
+                       long inNow)
+  {
+    if(inGeneration == null)
+    {
+      m_checked.remove(inGroup);
+      return NO_GENERATION;
+    }
+
+    m_checked.put(inGroup, new Checked(inGeneration, inNow));
+    return inGeneration;
+  }
+
+  /**
+   * Determine the generation of the group from the value read from
+   * memcache. If there is none, e.g. because it was evicted, a new one is
+   * started with the current time, so that it differs from all generations
+   * used before.
+   *
+   * @param  inGroup the group of the generation
+   * @param  inValue the generation read from memcache, if any
+   * @param  inNow   the current time in milliseconds
+   * @return the current generation
+   */
+  private long generation(String inGroup, @Nullable Object inValue,
+                          long inNow)
+  {
+    Long generation = inValue instanceof Long
+      ? (Long)inValue
+      : m_memcache.increment(GENERATION + inGroup, 0, inNow);
+
+    return checked(inGroup, generation, inNow);
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends DataStore.Test
+  {
+    /** The groups of the test keys, the text before the colon. */
+    private static final Function<Object, String> GROUPS =
+      new Function<Object, String>()
+      {
+        @Override
+        public String apply(Object inKey)
+        {
+          return inKey.toString().replaceAll(":.*", "");
+        }
+      };
+
+    /**
+     * Create a cache for testing.
+     *
+     * @param inCheck the milliseconds to trust generations
+     * @return the cache
+     */
+    private static LayeredCache cache(int inCheck)
+    {
+      return new LayeredCache("test",
+                              MemcacheServiceFactory.getMemcacheService("test"),
+                              10, 60, inCheck, GROUPS);
+    }
+
+    /** The get Test. */
+    @org.junit.Test
+    public void get()
+    {
+      LayeredCache cache = cache(1000);
+      cache.put("a:key", "value", null);
+      assertEquals("first", "value", cache.get("a:key"));
+      assertEquals("local", "value", cache.get("a:key"));
+      assertNull("missing", cache.get("a:other"));
+      assertEquals("local hits", 2, cache.localStats().hitCount());
+
+      // Values not stored by the cache are not served.
+      MemcacheServiceFactory.getMemcacheService("test").put("a:raw", "raw");
+      assertNull("raw", cache.get("a:raw"));
+    }
+
+    /** The delete Test. */
+    @org.junit.Test
+    public void delete()
+    {
+      MemcacheService memcache =
+        MemcacheServiceFactory.getMemcacheService("test");
+      LayeredCache cache = cache(1000);
+      cache.put("a:key", "value", null);
+      cache.delete("a:key");
+      assertNull("deleted", cache.get("a:key"));
+      assertNull("memcache", memcache.get("a:key"));
+    }
+
+    /** The generation Test, with caches of two instances. */
+    @org.junit.Test
+    public void generation()
+    {
+      LayeredCache first = cache(0);
+      LayeredCache second = cache(0);
+
+      second.put("a:key", "value", null);
+      second.put("a:other", "other value", null);
+      second.put("b:key", "b value", null);
+      assertEquals("first", "value", first.get("a:key"));
+      assertEquals("all", 3,
+                   first.getAll(ImmutableList.of("a:key", "a:other",
+                                                 "b:key")).size());
+
+      // A change on the other instance is seen without waiting for the
+      // local value to expire, but only the values of its group are stale.
+      second.change("a:key", "changed", null);
+      assertEquals("changed", "changed", first.get("a:key"));
+      assertEquals("b unchanged", "b value", first.get("b:key"));
+      assertEquals("stale", "test (3 local, 1 stale)", first.toString());
+      assertEquals("other stale", "other value",
+                   first.getAll(ImmutableList.of("a:other")).get("a:other"));
+
+      second.delete("a:other");
+      assertTrue("deleted",
+                 first.getAll(ImmutableList.of("a:other")).isEmpty());
+      assertNull("deleted single", first.get("a:other"));
+
+      // Filling the cache does not change the generation.
+      assertEquals("reread", "changed", first.get("a:key"));
+      long stale = first.m_stale.get();
+      second.put("a:filled", "value", null);
+      assertEquals("unchanged", "changed", first.get("a:key"));
+      assertEquals("not stale", stale, first.m_stale.get());
+
+      second.invalidate("a");
+      assertNull("invalidated", first.get("a:key"));
+      assertEquals("stale again", stale + 1, first.m_stale.get());
+    }
+
+    /** The check Test, for trusting generations a while. */
+    @org.junit.Test
+    public void check()
+    {
+      LayeredCache first = cache(60 * 1000);
+      LayeredCache second = cache(60 * 1000);
+
+      first.put("a:key", "value", null);
+      assertEquals("first", "value", first.get("a:key"));
+
+      // Changes on other instances are not seen while the generation is
+      // trusted, but changes of the same instance are.
+      second.change("a:key", "changed", null);
+      assertEquals("trusted", "value", first.get("a:key"));
+      first.change("a:key", "own", null);
+      assertEquals("own", "own", first.get("a:key"));
+      assertEquals("other", "own", second.get("a:key"));
+    }
+
+    /** The fill Test, for values read before a change. */
+    @org.junit.Test
+    public void fill()
+    {
+      LayeredCache first = cache(0);
+      LayeredCache second = cache(0);
+
+      // The first instance does not find the value and reads it from the
+      // source, while the second changes it.
+      assertNull("missing", first.get("a:key"));
+      second.change("a:key", "changed", null);
+      first.put("a:key", "old", null);
+
+      assertNull("old not served", second.get("a:key"));
+      assertNull("old not served locally", first.get("a:key"));
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+package net.ixitxachitls.dma.data;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+
+import net.ixitxachitls.util.logging.Log;
+
+/**
+ * A rebuild queue running the tasks in threads of this instance. This is
+ * mainly useful for testing and running without app engine.
+ *
+ * @file          LocalRebuildQueue.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ParametersAreNonnullByDefault
+public class LocalRebuildQueue implements RebuildQueue
+{
+  /**
+   * Create the queue.
+   *
+   * @param inThreads the number of tasks to run in parallel
+   */
+  public LocalRebuildQueue(int inThreads)
+  {
+    m_executor = Executors.newFixedThreadPool(inThreads);
+  }
+
+  /** The executor running the tasks. */
+  private final ExecutorService m_executor;
+
+  @Override
+  public void add(final DeferredTask inTask)
+  {
+    m_executor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            inTask.run();
+          }
+          catch(RuntimeException e)
+          {
+            Log.warning("rebuild task " + inTask + " failed: " + e);
+          }
+        }
+      });
+  }
+
+  /**
+   * Stop accepting tasks and wait for all the queued tasks to be done. Tasks
+   * cannot add further tasks once the queue is shut down.
+   *
+   * @param  inSeconds the maximal number of seconds to wait
+   * @return true if all tasks are done, false if time ran out
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean shutdown(int inSeconds) throws InterruptedException
+  {
+    m_executor.shutdown();
+    return m_executor.awaitTermination(inSeconds, TimeUnit.SECONDS);
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /**
+     * The run Test.
+     *
+     * @throws Exception should not happen
+     */
+    @org.junit.Test
+    public void run() throws Exception
+    {
+      final java.util.concurrent.atomic.AtomicInteger count =
+        new java.util.concurrent.atomic.AtomicInteger();
+      LocalRebuildQueue queue = new LocalRebuildQueue(2);
+      for(int i = 0; i < 5; i++)
+        queue.add(new Rebuild.Task("job", i)
+          {
+            /** The id for serialization. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void run()
+            {
+              count.incrementAndGet();
+            }
+          });
+
+      assertTrue("done", queue.shutdown(10));
+      assertEquals("count", 5, count.get());
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.base.Optional;
+
+/**
+ * A single page of values read from the datastore, together with the cursor
+ * to read the next page.
+ *
+ * @param         <T> the type of values in the page
+ *
+ * @file          Page.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ParametersAreNonnullByDefault
+public class Page<T> implements Serializable
+{
+  /**
+   * Create the page.
+   *
+   * @param inValues the values in the page
+   * @param inCursor the web safe cursor to the next page, if there is one
+   */
+  public Page(List<T> inValues, Optional<String> inCursor)
+  {
+    m_values = new ArrayList<>(inValues);
+    m_cursor = inCursor.orNull();
+  }
+
+  /** The serial version id. */
+  private static final long serialVersionUID = 1L;
+
+  /** The values in the page. */
+  private final ArrayList<T> m_values;
+
+  /** The cursor to the next page, if any. */
+  private final @Nullable String m_cursor;
+
+  /**
+   * Get the values of the page.
+   *
+   * @return the values
+   */
+  public List<T> getValues()
+  {
+    return m_values;
+  }
+
+  /**
+   * Get the cursor to the next page.
+   *
+   * @return the web safe cursor string, absent if this is the last page
+   */
+  public Optional<String> getCursor()
+  {
+    return Optional.fromNullable(m_cursor);
+  }
+
+  @Override
+  public String toString()
+  {
+    return m_values + (m_cursor != null ? " (next " + m_cursor + ")" : "");
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /** The page Test. */
+    @org.junit.Test
+    public void page()
+    {
+      Page<String> page = new Page<>(com.google.common.collect.ImmutableList
+                                     .of("a", "b"), Optional.of("next"));
+
+      assertEquals("values", "[a, b]", page.getValues().toString());
+      assertEquals("cursor", "next", page.getCursor().get());
+      assertEquals("string", "[a, b] (next next)", page.toString());
+
+      page = new Page<>(new ArrayList<String>(), Optional.<String>absent());
+      assertTrue("empty", page.getValues().isEmpty());
+      assertFalse("no cursor", page.getCursor().isPresent());
+    }
+  }
+}
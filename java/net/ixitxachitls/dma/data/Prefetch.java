@@ -0,0 +1,247 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.data;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.collect.HashMultimap;
+
+import org.easymock.EasyMock;
+
+import net.ixitxachitls.dma.entries.AbstractEntry;
+import net.ixitxachitls.dma.entries.BaseItem;
+import net.ixitxachitls.dma.entries.EntryKey;
+import net.ixitxachitls.dma.entries.Item;
+import net.ixitxachitls.dma.entries.Monster;
+import net.ixitxachitls.dma.server.servlets.DMARequest;
+import net.ixitxachitls.util.Tracer;
+import net.ixitxachitls.util.logging.Log;
+
+/**
+ * A planner to read all the entries referenced from an entry before it is
+ * rendered. The references are collected level by level and each level is
+ * read with a single batched request, instead of reading every referenced
+ * entry on its own when it is first used.
+ *
+ * @file          Prefetch.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ParametersAreNonnullByDefault
+public class Prefetch
+{
+  /** The kinds of references to follow. */
+  public enum Follow
+  {
+    /** The base entries, including the bases of nested feats, qualities,
+     * skills and levels. */
+    BASES,
+    /** The possessions of monsters. */
+    POSSESSIONS,
+    /** The contents of containers. */
+    CONTENTS;
+  }
+
+  /** The shape of a page showing an entry with all its details. */
+  public static final Set<Follow> PAGE = EnumSet.allOf(Follow.class);
+
+  /**
+   * Create the prefetch planner.
+   *
+   * @param inShape the references to follow
+   */
+  public Prefetch(Set<Follow> inShape)
+  {
+    m_shape = EnumSet.copyOf(inShape);
+  }
+
+  /** The references to follow. */
+  private final Set<Follow> m_shape;
+
+  /** The maximal number of levels to follow. */
+  private static final int MAX_LEVELS = 10;
+
+  /**
+   * Read and resolve all the entries referenced from the given root entry.
+   *
+   * @param inRoot  the entry to start with
+   *
+   * @return all the entries read, by key
+   */
+  public Map<EntryKey, AbstractEntry> fetch(AbstractEntry inRoot)
+  {
+    Tracer tracer = new Tracer("prefetching " + inRoot.getKey());
+    Map<EntryKey, AbstractEntry> entries = new HashMap<>();
+    Set<EntryKey> requested = new HashSet<>();
+    entries.put(inRoot.getKey(), inRoot);
+    requested.add(inRoot.getKey());
+
+    List<AbstractEntry> level = new ArrayList<>();
+    level.add(inRoot);
+    int requests = 0;
+    for(int i = 0; i < MAX_LEVELS && !level.isEmpty(); i++)
+    {
+      Set<EntryKey> keys = new HashSet<>();
+      for(AbstractEntry entry : level)
+        for(EntryKey key : references(entry))
+          if(requested.add(key))
+            keys.add(key);
+
+      Map<EntryKey, AbstractEntry> read = new HashMap<>();
+      if(!keys.isEmpty())
+      {
+        read = DMADataFactory.get().getEntries(keys);
+        entries.putAll(read);
+        requests++;
+      }
+
+      List<AbstractEntry> next = new ArrayList<>(read.values());
+      for(AbstractEntry entry : level)
+      {
+        if(m_shape.contains(Follow.BASES))
+          entry.resolveReferences(entries);
+
+        next.addAll(contained(entry, entries));
+      }
+
+      level = next;
+    }
+
+    Log.debug("prefetched " + entries.size() + " entries in " + requests
+              + " requests for " + inRoot.getKey());
+    tracer.done();
+    return entries;
+  }
+
+  /**
+   * Get the keys of the entries referenced by the given entry that have to be
+   * read.
+   *
+   * @param inEntry the entry to get references for
+   *
+   * @return the keys of the referenced entries
+   */
+  private Set<EntryKey> references(AbstractEntry inEntry)
+  {
+    if(m_shape.contains(Follow.BASES))
+      return inEntry.getUnresolvedReferences();
+
+    return new HashSet<>();
+  }
+
+  /**
+   * Get the entries contained in the given entry, i.e. the possessions of
+   * monsters and the contents of containers. These are read by queries and
+   * thus can't be batched with the other references.
+   *
+   * @param inEntry   the entry to get the contained entries of
+   * @param inEntries all the entries read so far, the new ones are added
+   *
+   * @return the contained entries not yet read
+   */
+  private List<AbstractEntry> contained(AbstractEntry inEntry,
+                                        Map<EntryKey, AbstractEntry> inEntries)
+  {
+    List<AbstractEntry> contained = new ArrayList<>();
+    if(m_shape.contains(Follow.POSSESSIONS) && inEntry instanceof Monster
+       && ((Monster)inEntry).getCampaign().isPresent())
+      contained.addAll(((Monster)inEntry).getPossessions());
+
+    // only resolved items know whether they are containers
+    if(m_shape.contains(Follow.CONTENTS) && inEntry instanceof Item
+       && inEntry.getUnresolvedReferences().isEmpty()
+       && ((Item)inEntry).isContainer()
+       && ((Item)inEntry).getCampaign().isPresent())
+      contained.addAll(((Item)inEntry).getContents());
+
+    List<AbstractEntry> added = new ArrayList<>();
+    for(AbstractEntry entry : contained)
+      if(!inEntries.containsKey(entry.getKey()))
+      {
+        inEntries.put(entry.getKey(), entry);
+        added.add(entry);
+      }
+
+    return added;
+  }
+
+  //---------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends DataStore.Test
+  {
+    /** The fetch Test. */
+    @org.junit.Test
+    public void fetch()
+    {
+      DMADatastore store = DMADataFactory.get();
+      BaseItem grand = new BaseItem("Prefetch Grand");
+      store.update(grand);
+      BaseItem parent = new BaseItem("Prefetch Parent");
+      parent.addBase("Prefetch Grand");
+      store.update(parent);
+      BaseItem root = new BaseItem("Prefetch Root");
+      root.addBase("Prefetch Parent");
+      store.update(root);
+
+      root = store.<BaseItem>getEntry(root.getKey()).get();
+      assertTrue("unresolved",
+                 root.getUnresolvedReferences().contains(parent.getKey()));
+
+      Map<EntryKey, AbstractEntry> entries =
+        new Prefetch(Prefetch.PAGE).fetch(root);
+      assertEquals("entries", 3, entries.size());
+      assertTrue("root resolved", root.getUnresolvedReferences().isEmpty());
+
+      AbstractEntry read = entries.get(parent.getKey());
+      assertSame("parent", read, root.getBaseEntries().get(0));
+      assertTrue("parent resolved", read.getUnresolvedReferences().isEmpty());
+      assertSame("grand", entries.get(grand.getKey()),
+                 read.getBaseEntries().get(0));
+
+      // The entries prefetched are used for the rest of the request.
+      HttpServletRequest mockRequest =
+        EasyMock.createMock(HttpServletRequest.class);
+      EasyMock.replay(mockRequest);
+      DMARequest request =
+        new DMARequest(mockRequest, HashMultimap.<String, String>create());
+
+      root = store.<BaseItem>getEntry(root.getKey()).get();
+      request.prefetch(root, Prefetch.PAGE);
+      assertSame("request parent", root.getBaseEntries().get(0),
+                 request.getEntry(parent.getKey()).get());
+      assertSame("request grand",
+                 root.getBaseEntries().get(0).getBaseEntries().get(0),
+                 request.getEntry(grand.getKey()).get());
+
+      EasyMock.verify(mockRequest);
+    }
+  }
+}
@@ -0,0 +1,661 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+package net.ixitxachitls.dma.data;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+import net.ixitxachitls.dma.entries.BaseItem;
+import net.ixitxachitls.dma.entries.EntryKey;
+import net.ixitxachitls.util.configuration.Config;
+import net.ixitxachitls.util.logging.Log;
+
+/**
+ * The pipeline to rebuild or refresh all entities of a kind in the
+ * background.
+ *
+ * A job splits the keys of the kind into shards that are processed in
+ * parallel by tasks of a rebuild queue. Each task processes batches of
+ * entities until its time is up, storing the cursor of its shard after each
+ * batch and adding a new task to continue if there are entities left. Thus a
+ * job can be resumed after failures and its progress is visible from all
+ * instances. The shards done are recorded transactionally with the job, and
+ * the task completing the last shard rebuilds the indexes and values of the
+ * kind and removes the checkpoints of the job.
+ *
+ * The queue is also used for other work that is too much for a request,
+ * like computing the values of fields not tracked so far or refreshing the
+ * snapshots of entries depending on a changed entry.
+ *
+ * @file          Rebuild.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ParametersAreNonnullByDefault
+public class Rebuild
+{
+  /**
+   * Create the rebuild pipeline.
+   *
+   * @param inEntries the datastore for entries
+   * @param inData    the datastore for entities
+   * @param inQueue   the queue to run tasks
+   */
+  public Rebuild(DMADatastore inEntries, DataStore inData,
+                 RebuildQueue inQueue)
+  {
+    m_entries = inEntries;
+    m_data = inData;
+    m_queue = inQueue;
+  }
+
+  /** The datastore for entries. */
+  private final DMADatastore m_entries;
+
+  /** The datastore for entities and checkpoints. */
+  private final DataStore m_data;
+
+  /** The queue running the tasks. */
+  private final RebuildQueue m_queue;
+
+  /** The singleton pipeline. */
+  private static @Nullable Rebuild s_rebuild;
+
+  /** The kind for storing shard checkpoints. */
+  private static final String KIND = "RebuildShard";
+
+  /** The kind for storing the shards done of a job. */
+  private static final String JOB_KIND = "RebuildJob";
+
+  /** The maximal number of shards for a job. */
+  private static final int SHARDS = Config.get("web.rebuild.shards", 8);
+
+  /** The number of entities to process and store in a batch. */
+  private static final int BATCH = Config.get("web.rebuild.batch", 50);
+
+  /** The number of seconds a task runs before continuing in a new task. */
+  private static final int SECONDS = Config.get("web.rebuild.seconds", 60);
+
+  /**
+   * A single task of a rebuild job, processing a part of a shard.
+   */
+  public static class Task implements DeferredTask
+  {
+    /**
+     * Create the task.
+     *
+     * @param inJob   the id of the job
+     * @param inShard the number of the shard to process
+     */
+    public Task(String inJob, int inShard)
+    {
+      m_job = inJob;
+      m_shard = inShard;
+    }
+
+    /** The id for serialization. */
+    private static final long serialVersionUID = 1L;
+
+    /** The id of the job. */
+    private final String m_job;
+
+    /** The number of the shard. */
+    private final int m_shard;
+
+    @Override
+    public void run()
+    {
+      Rebuild.get().process(m_job, m_shard);
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_job + "/" + m_shard;
+    }
+  }
+
+  /**
+   * A task refreshing the snapshots of all the entries depending on an
+   * entry.
+   */
+  public static class DependentsTask implements DeferredTask
+  {
+    /**
+     * Create the task.
+     *
+     * @param inKey the key of the entry changed
+     */
+    public DependentsTask(EntryKey inKey)
+    {
+      m_key = inKey.toString();
+    }
+
+    /** The id for serialization. */
+    private static final long serialVersionUID = 1L;
+
+    /** The key of the entry changed, as text to be serializable. */
+    private final String m_key;
+
+    @Override
+    public void run()
+    {
+      Optional<EntryKey> key = EntryKey.fromString(m_key);
+      if(!key.isPresent())
+      {
+        Log.warning("invalid key for refreshing dependents: " + m_key);
+        return;
+      }
+
+      Rebuild.get().m_entries.refreshDependents(key.get());
+    }
+
+    @Override
+    public String toString()
+    {
+      return "dependents of " + m_key;
+    }
+  }
+
+  /**
+   * The progress of a rebuild job.
+   */
+  public static class Progress
+  {
+    /**
+     * Create the progress.
+     *
+     * @param inJob the id of the job
+     */
+    private Progress(String inJob)
+    {
+      m_job = inJob;
+    }
+
+    /** The id of the job. */
+    private final String m_job;
+
+    /** The number of shards. */
+    private int m_shards = 0;
+
+    /** The number of shards done. */
+    private int m_done = 0;
+
+    /** The number of entities processed. */
+    private long m_processed = 0;
+
+    /** The number of entities updated. */
+    private long m_updated = 0;
+
+    /** The time the job started. */
+    private long m_started = Long.MAX_VALUE;
+
+    /** The last time the job was changed. */
+    private long m_changed = 0;
+
+    /**
+     * Get the id of the job.
+     *
+     * @return the job id
+     */
+    public String getJob()
+    {
+      return m_job;
+    }
+
+    /**
+     * Check whether all the shards of the job are done.
+     *
+     * @return true if done, false if still running
+     */
+    public boolean isDone()
+    {
+      return m_done == m_shards;
+    }
+
+    /**
+     * Get the number of entities processed per second.
+     *
+     * @return the throughput
+     */
+    public long getThroughput()
+    {
+      long seconds = (m_changed - m_started) / 1000;
+      if(seconds <= 0)
+        return m_processed;
+
+      return m_processed / seconds;
+    }
+
+    /**
+     * Add the state of a single shard.
+     *
+     * @param inDone      whether the shard is done
+     * @param inProcessed the number of entities processed by the shard
+     * @param inUpdated   the number of entities updated by the shard
+     * @param inStarted   the time the shard was started
+     * @param inChanged   the last time the shard was changed
+     */
+    private void add(boolean inDone, long inProcessed, long inUpdated,
+                     long inStarted, long inChanged)
+    {
+      m_shards++;
+      if(inDone)
+        m_done++;
+      m_processed += inProcessed;
+      m_updated += inUpdated;
+      m_started = Math.min(m_started, inStarted);
+      m_changed = Math.max(m_changed, inChanged);
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_done + "/" + m_shards + " shards done, " + m_processed
+        + " processed, " + m_updated + " updated, " + getThroughput()
+        + " entities/s";
+    }
+  }
+
+  /**
+   * Get the rebuild pipeline. Tasks are run with the app engine task queue
+   * configured in web.rebuild.queue, or locally if web.rebuild.local is set.
+   *
+   * @return the pipeline
+   */
+  public static synchronized Rebuild get()
+  {
+    if(s_rebuild == null)
+    {
+      RebuildQueue queue;
+      if(Config.get("web.rebuild.local", false))
+        queue = new LocalRebuildQueue(SHARDS);
+      else
+        queue = new TaskRebuildQueue(Config.get("web.rebuild.queue",
+                                                "default"));
+
+      s_rebuild = new Rebuild(DMADataFactory.get(), new DataStore(), queue);
+    }
+
+    return s_rebuild;
+  }
+
+  /**
+   * Set the rebuild pipeline to use, e.g. with a queue running the tasks in
+   * tests.
+   *
+   * @param inRebuild the pipeline to use, or null to create it again when
+   *                  needed
+   */
+  @VisibleForTesting
+  static synchronized void set(@Nullable Rebuild inRebuild)
+  {
+    s_rebuild = inRebuild;
+  }
+
+  /**
+   * Start a job to rebuild all entities of the given kind.
+   *
+   * @param  inKind        the kind of entities to rebuild
+   * @param  inChangedOnly if true, only entities changed when converting are
+   *                       stored
+   * @return the id of the job started
+   */
+  public String start(String inKind, boolean inChangedOnly)
+  {
+    String job = inKind + "-" + System.currentTimeMillis();
+    List<Key> keys = m_data.getKeys(inKind);
+    List<Optional<Key>> boundaries =
+      boundaries(keys, Math.min(SHARDS, keys.size() / BATCH + 1));
+
+    Log.important("starting rebuild job " + job + " for " + keys.size()
+                  + " entities with " + (boundaries.size() - 1) + " shards");
+
+    List<Entity> shards = new ArrayList<>();
+    Date now = new Date();
+    for(int i = 0; i + 1 < boundaries.size(); i++)
+    {
+      Entity shard = new Entity(key(job, i));
+      shard.setProperty("job", job);
+      shard.setProperty("kind", inKind);
+      shard.setProperty("changedOnly", inChangedOnly);
+      shard.setProperty("from", boundaries.get(i).orNull());
+      shard.setProperty("to", boundaries.get(i + 1).orNull());
+      shard.setProperty("processed", 0L);
+      shard.setProperty("updated", 0L);
+      shard.setProperty("done", false);
+      shard.setProperty("started", now);
+      shard.setProperty("changed", now);
+      shards.add(shard);
+    }
+
+    Entity entity = new Entity(jobKey(job));
+    entity.setProperty("kind", inKind);
+    entity.setProperty("shards", (long)shards.size());
+    m_data.update(entity);
+
+    m_data.update(shards);
+    for(int i = 0; i < shards.size(); i++)
+      m_queue.add(new Task(job, i));
+
+    return job;
+  }
+
+  /**
+   * Add the given task to be run in the background with the queue of the
+   * pipeline.
+   *
+   * @param inTask the task to run
+   */
+  public void add(DeferredTask inTask)
+  {
+    m_queue.add(inTask);
+  }
+
+  /**
+   * Refresh the snapshots of all the entries depending on the given entry in
+   * the background.
+   *
+   * @param inKey the key of the entry changed
+   */
+  public void refreshDependents(EntryKey inKey)
+  {
+    add(new DependentsTask(inKey));
+  }
+
+  /**
+   * Process the given shard of a job, until done or the time for the task is
+   * up.
+   *
+   * @param inJob   the id of the job
+   * @param inShard the number of the shard
+   */
+  public void process(String inJob, int inShard)
+  {
+    Optional<Entity> checkpoint = m_data.getEntity(key(inJob, inShard));
+    if(!checkpoint.isPresent())
+    {
+      Log.warning("no checkpoint found for rebuild " + inJob + "/" + inShard);
+      return;
+    }
+
+    Entity shard = checkpoint.get();
+    if((Boolean)shard.getProperty("done"))
+    {
+      // A task failing after storing the checkpoint might not have recorded
+      // the shard as done.
+      complete(inJob, inShard);
+      return;
+    }
+
+    String kind = (String)shard.getProperty("kind");
+    boolean changedOnly = (Boolean)shard.getProperty("changedOnly");
+    Optional<Key> from = Optional.fromNullable((Key)shard.getProperty("from"));
+    Optional<Key> to = Optional.fromNullable((Key)shard.getProperty("to"));
+    long end = System.currentTimeMillis() + SECONDS * 1000L;
+
+    while(System.currentTimeMillis() < end)
+    {
+      Text text = (Text)shard.getProperty("cursor");
+      Optional<String> cursor = text == null
+        ? Optional.<String>absent() : Optional.of(text.getValue());
+      Page<Entity> page = m_data.getEntitiesRange(kind, from, to, cursor,
+                                                  BATCH);
+      int updated = m_entries.rebuild(page.getValues(), changedOnly);
+
+      shard.setProperty("processed", (Long)shard.getProperty("processed")
+                        + page.getValues().size());
+      shard.setProperty("updated", (Long)shard.getProperty("updated")
+                        + updated);
+      shard.setProperty("cursor", page.getCursor().isPresent()
+                        ? new Text(page.getCursor().get()) : null);
+      shard.setProperty("done", !page.getCursor().isPresent());
+      shard.setProperty("changed", new Date());
+      m_data.update(shard);
+
+      if(!page.getCursor().isPresent())
+      {
+        Log.important("rebuild " + inJob + "/" + inShard + " done");
+        complete(inJob, inShard);
+        return;
+      }
+    }
+
+    // Time is up, continue in a new task.
+    m_queue.add(new Task(inJob, inShard));
+  }
+
+  /**
+   * Get the progress of all the jobs started.
+   *
+   * @return the progress, by job
+   */
+  public List<Progress> getProgress()
+  {
+    Map<String, Progress> jobs = new TreeMap<>();
+    for(Entity shard : m_data.getEntitiesList(KIND, Optional.<Key>absent(),
+                                              Optional.<String>absent(),
+                                              0, 1000))
+    {
+      String job = (String)shard.getProperty("job");
+      Progress progress = jobs.get(job);
+      if(progress == null)
+      {
+        progress = new Progress(job);
+        jobs.put(job, progress);
+      }
+
+      progress.add((Boolean)shard.getProperty("done"),
+                   (Long)shard.getProperty("processed"),
+                   (Long)shard.getProperty("updated"),
+                   ((Date)shard.getProperty("started")).getTime(),
+                   ((Date)shard.getProperty("changed")).getTime());
+    }
+
+    return ImmutableList.copyOf(jobs.values());
+  }
+
+  /**
+   * Record the given shard of the job as done and finish the job if it was
+   * the last one. Recording a shard is idempotent, thus the job is finished
+   * only once, even if tasks are run repeatedly.
+   *
+   * @param inJob   the id of the job
+   * @param inShard the number of the shard done
+   */
+  private void complete(String inJob, int inShard)
+  {
+    Optional<Entity> job = m_data.getEntity(jobKey(inJob));
+    if(!job.isPresent())
+    {
+      Log.warning("no job found for rebuild " + inJob);
+      return;
+    }
+
+    Optional<Integer> done =
+      m_data.addValue(jobKey(inJob), "done", (long)inShard);
+    long shards = (Long)job.get().getProperty("shards");
+    if(done.isPresent() && done.get() == shards)
+      finish(inJob, (String)job.get().getProperty("kind"), (int)shards);
+  }
+
+  /**
+   * Finish the job after all shards are done. The indexes and values of the
+   * kind are recomputed to remove stale values, also when refreshing, as
+   * entities stored without changing the indexes are fixed up this way. The
+   * checkpoints of the job are removed.
+   *
+   * @param inJob    the id of the job
+   * @param inKind   the kind of entities rebuilt
+   * @param inShards the number of shards of the job
+   */
+  private void finish(String inJob, String inKind, int inShards)
+  {
+    Log.important("rebuild " + inJob + " done, rebuilding indexes");
+    m_entries.rebuildIndexes(inKind);
+    m_data.rebuildValues(inKind);
+
+    for(int i = 0; i < inShards; i++)
+      m_data.remove(key(inJob, i));
+    m_data.remove(jobKey(inJob));
+  }
+
+  /**
+   * Split the given sorted keys into shards of about equal size.
+   *
+   * @param  inKeys   the sorted keys
+   * @param  inShards the number of shards to create
+   * @param  <T>      the type of keys
+   * @return the boundaries of the shards, starting with absent and ending
+   *         with absent for the open ends
+   */
+  static <T> List<Optional<T>> boundaries(List<T> inKeys, int inShards)
+  {
+    List<Optional<T>> boundaries = new ArrayList<>();
+    boundaries.add(Optional.<T>absent());
+    for(int i = 1; i < inShards; i++)
+    {
+      int index = i * inKeys.size() / inShards;
+      if(index > 0 && index < inKeys.size())
+        boundaries.add(Optional.of(inKeys.get(index)));
+    }
+    boundaries.add(Optional.<T>absent());
+
+    return boundaries;
+  }
+
+  /**
+   * Create the key for the checkpoint of the given shard.
+   *
+   * @param  inJob   the id of the job
+   * @param  inShard the number of the shard
+   * @return the key
+   */
+  private static Key key(String inJob, int inShard)
+  {
+    return KeyFactory.createKey(KIND, inJob + "/" + inShard);
+  }
+
+  /**
+   * Create the key for the entity recording the shards done of the job.
+   *
+   * @param  inJob the id of the job
+   * @return the key
+   */
+  private static Key jobKey(String inJob)
+  {
+    return KeyFactory.createKey(JOB_KIND, inJob);
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends DataStore.Test
+  {
+    /** The boundaries Test. */
+    @org.junit.Test
+    public void split()
+    {
+      List<String> keys = ImmutableList.of("a", "b", "c", "d", "e", "f");
+
+      assertEquals("single", "[Optional.absent(), Optional.absent()]",
+                   boundaries(keys, 1).toString());
+      assertEquals("two", "[Optional.absent(), Optional.of(d), "
+                   + "Optional.absent()]",
+                   boundaries(keys, 2).toString());
+      assertEquals("three", "[Optional.absent(), Optional.of(c), "
+                   + "Optional.of(e), Optional.absent()]",
+                   boundaries(keys, 3).toString());
+      assertEquals("empty", "[Optional.absent(), Optional.absent()]",
+                   boundaries(ImmutableList.<String>of(), 3).toString());
+    }
+
+    /** The progress Test. */
+    @org.junit.Test
+    public void progress()
+    {
+      Progress progress = new Progress("job");
+      progress.add(true, 100, 10, 1000, 11000);
+      progress.add(false, 50, 5, 2000, 6000);
+
+      assertFalse("done", progress.isDone());
+      assertEquals("progress",
+                   "1/2 shards done, 150 processed, 15 updated, "
+                   + "15 entities/s", progress.toString());
+    }
+
+    /** The job Test. */
+    @org.junit.Test
+    public void job()
+    {
+      // Missing snapshots are expected when starting empty.
+      m_logger.banClass(DataStore.class);
+
+      // Collect the tasks to run them in this thread, which has the local
+      // datastore.
+      final List<Task> tasks = new ArrayList<>();
+      RebuildQueue queue = new RebuildQueue()
+      {
+        @Override
+        public void add(DeferredTask inTask)
+        {
+          tasks.add((Task)inTask);
+        }
+      };
+
+      DataStore data = new DataStore();
+      DMADatastore entries = new DMADatastore();
+      Rebuild rebuild = new Rebuild(entries, data, queue);
+      String kind = entries.escapeType(BaseItem.TYPE.toString());
+      data.update(entries.convert(new BaseItem("first")));
+      data.update(entries.convert(new BaseItem("second")));
+
+      String job = rebuild.start(kind, true);
+      assertEquals("shards", 1, tasks.size());
+      assertEquals("progress", "0/1 shards done, 0 processed, 0 updated, "
+                   + "0 entities/s", rebuild.getProgress().get(0).toString());
+
+      rebuild.process(job, tasks.get(0).m_shard);
+      assertTrue("indexes rebuilt", new IndexStore(data).exists(kind));
+      assertTrue("shards removed", rebuild.getProgress().isEmpty());
+      assertFalse("job removed", data.getEntity(jobKey(job)).isPresent());
+
+      // Running the task again must not finish the job again.
+      rebuild.process(job, tasks.get(0).m_shard);
+      m_logger.addExpected("WARNING: no checkpoint found for rebuild "
+                           + job + "/0");
+    }
+  }
+}
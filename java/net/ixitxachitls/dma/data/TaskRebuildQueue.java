@@ -0,0 +1,62 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+package net.ixitxachitls.dma.data;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * A rebuild queue running the tasks with an app engine task queue.
+ *
+ * @file          TaskRebuildQueue.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ParametersAreNonnullByDefault
+public class TaskRebuildQueue implements RebuildQueue
+{
+  /**
+   * Create the queue.
+   *
+   * @param inName the name of the app engine queue to use
+   */
+  public TaskRebuildQueue(String inName)
+  {
+    m_name = inName;
+  }
+
+  /** The name of the app engine queue. */
+  private final String m_name;
+
+  @Override
+  public void add(DeferredTask inTask)
+  {
+    QueueFactory.getQueue(m_name).add(TaskOptions.Builder.withPayload(inTask));
+  }
+
+  @Override
+  public String toString()
+  {
+    return "task queue " + m_name;
+  }
+}
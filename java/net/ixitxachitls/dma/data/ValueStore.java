@@ -0,0 +1,906 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+
+import net.ixitxachitls.util.configuration.Config;
+import net.ixitxachitls.util.logging.Log;
+
+/**
+ * The values of fields of all entities of a kind, with the number of entities
+ * having each value. The values are changed incrementally whenever an entity
+ * is updated or removed and are stored as a compact, sorted snapshot blob per
+ * kind and fields in the datastore.
+ *
+ * A snapshot is only computed from the entities the first time the values of
+ * some fields are requested; from then on the fields are tracked for the
+ * kind and changed with each update. As computing the snapshot reads all the
+ * entities of the kind, it is done in the background with the rebuild queue
+ * and the values are queried until it is done. If the computation does not
+ * finish in time, e.g. because the task was lost, it is requested again.
+ *
+ * Snapshots are changed in transactions on the current snapshot, thus
+ * concurrent changes on different instances are not lost. Changes done
+ * while a snapshot is computed might be missed; rebuilding the kind fixes
+ * this.
+ *
+ * @file          ValueStore.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ParametersAreNonnullByDefault
+public class ValueStore
+{
+  /**
+   * Create the value store.
+   *
+   * @param inStore the datastore to read and store snapshots
+   */
+  public ValueStore(DataStore inStore)
+  {
+    m_store = inStore;
+  }
+
+  /** The datastore for storing snapshots. */
+  private final DataStore m_store;
+
+  /** The datastore kind for storing snapshots. */
+  private static final String KIND = "ValueStore";
+
+  /** The name of the snapshot with all the tracked fields of a kind. */
+  private static final String DIRECTORY = "*";
+
+  /** The directory value of fields for which the values are tracked. Fields
+   * for which the values are computed have the time in seconds the
+   * computation was requested instead. */
+  private static final int TRACKED = -1;
+
+  /** The seconds after which a computation of values is requested again. */
+  private static final int PENDING_SECONDS =
+    Config.get("web.data.values.pending.seconds", 10 * 60);
+
+  /** The separator for fields and for values of multiple fields. */
+  private static final char SEPARATOR = '\u001f';
+
+  /** The joiner for fields and values. */
+  private static final Joiner s_joiner = Joiner.on(SEPARATOR);
+
+  /** The splitter for fields and values. */
+  private static final Splitter s_splitter = Splitter.on(SEPARATOR);
+
+  /** The decoded snapshots, by kind and fields. */
+  private static final Cache<String, SortedMap<String, Integer>> s_snapshots =
+    CacheBuilder.newBuilder()
+    .maximumSize(Config.get("web.data.values.size", 200))
+    // Other instances might change values, thus only keep them shortly.
+    .expireAfterWrite(Config.get("web.data.values.seconds", 60),
+                      TimeUnit.SECONDS)
+    .build();
+
+  /**
+   * A task computing the values of fields that are not yet tracked.
+   */
+  public static class Task implements DeferredTask
+  {
+    /**
+     * Create the task.
+     *
+     * @param inKind   the kind of entities
+     * @param inFields the joined fields to compute the values of
+     */
+    public Task(String inKind, String inFields)
+    {
+      m_kind = inKind;
+      m_fields = inFields;
+    }
+
+    /** The id for serialization. */
+    private static final long serialVersionUID = 1L;
+
+    /** The kind of entities. */
+    private final String m_kind;
+
+    /** The joined fields. */
+    private final String m_fields;
+
+    @Override
+    public void run()
+    {
+      new ValueStore(new DataStore()).compute(m_kind, m_fields);
+    }
+
+    @Override
+    public String toString()
+    {
+      return "values of " + m_kind + " " + m_fields.replace(SEPARATOR, ',');
+    }
+  }
+
+  /**
+   * Get the values of the given fields, one record per entity and value.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the fields to get the values for
+   * @return the records with the values of the fields, sorted
+   */
+  public List<List<String>> getRecords(String inKind, String ... inFields)
+  {
+    List<List<String>> records = new ArrayList<>();
+    for(Map.Entry<String, Integer> entry
+          : counts(inKind, inFields).entrySet())
+    {
+      List<String> record = ImmutableList.copyOf(s_splitter.split
+                                                 (entry.getKey()));
+      for(int i = 0; i < entry.getValue(); i++)
+        records.add(record);
+    }
+
+    return records;
+  }
+
+  /**
+   * Get the distinct values of the given field.
+   *
+   * @param inKind  the kind of entities
+   * @param inField the field to get the values for
+   * @return the sorted values
+   */
+  public SortedSet<String> getValues(String inKind, String inField)
+  {
+    return ImmutableSortedSet.copyOf(counts(inKind, inField).keySet());
+  }
+
+  /**
+   * Get the values of the given fields with the number of entities having
+   * them. The values of multiple fields are joined with a unit separator.
+   * If the fields are not yet tracked, the values are computed in the
+   * background and queried until then.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the fields to get the values for
+   * @return the values and their counts
+   */
+  public SortedMap<String, Integer> counts(String inKind, String ... inFields)
+  {
+    String fields = s_joiner.join(inFields);
+    Optional<SortedMap<String, Integer>> counts = snapshot(inKind, fields);
+    if(counts.isPresent())
+      return counts.get();
+
+    request(inKind, fields);
+
+    SortedMap<String, Integer> values = new TreeMap<>();
+    for(List<String> record
+          : m_store.project(inKind, Optional.<Key>absent(), inFields))
+      add(values, s_joiner.join(record), 1);
+
+    return values;
+  }
+
+  /**
+   * Request the computation of the values of the given fields in the
+   * background, unless it is already requested and not yet overdue.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the joined fields
+   */
+  private void request(String inKind, final String inFields)
+  {
+    final int now = (int)TimeUnit.MILLISECONDS.toSeconds
+      (System.currentTimeMillis());
+    if(isPending(snapshot(inKind, DIRECTORY).get().get(inFields), now))
+      return;
+
+    // Change the directory in a transaction, to only request the
+    // computation once, even with concurrent requests.
+    boolean requested = change
+      (inKind, DIRECTORY, new Function<Optional<SortedMap<String, Integer>>,
+                                       Optional<SortedMap<String, Integer>>>()
+       {
+         @Override
+         public Optional<SortedMap<String, Integer>>
+           apply(Optional<SortedMap<String, Integer>> inDirectory)
+         {
+           SortedMap<String, Integer> directory = new TreeMap<>();
+           if(inDirectory.isPresent())
+             directory.putAll(inDirectory.get());
+
+           if(isPending(directory.get(inFields), now))
+             return Optional.absent();
+
+           directory.put(inFields, now);
+           return Optional.of(directory);
+         }
+       });
+
+    if(requested)
+    {
+      Log.important("computing values for " + inKind + " "
+                    + inFields.replace(SEPARATOR, ',') + " in the background");
+      Rebuild.get().add(new Task(inKind, inFields));
+    }
+  }
+
+  /**
+   * Check whether the computation of values with the given directory state
+   * is pending and not yet overdue.
+   *
+   * @param inState the state of the fields in the directory, if any
+   * @param inNow   the current time in seconds
+   * @return true if pending, false if not
+   */
+  private static boolean isPending(@Nullable Integer inState, int inNow)
+  {
+    return inState != null && inState != TRACKED
+      && inNow - inState < PENDING_SECONDS;
+  }
+
+  /**
+   * Compute the values of the given fields from all the entities of the kind
+   * and track them from now on.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the joined fields
+   */
+  void compute(String inKind, final String inFields)
+  {
+    Log.important("gae: computing values for " + inKind + " "
+                  + inFields.replace(SEPARATOR, ','));
+
+    SortedMap<String, Integer> values = new TreeMap<>();
+    for(List<String> record
+          : m_store.project(inKind, Optional.<Key>absent(),
+                            Iterables.toArray(s_splitter.split(inFields),
+                                              String.class)))
+      add(values, s_joiner.join(record), 1);
+
+    store(inKind, inFields, values);
+
+    change(inKind, DIRECTORY,
+           new Function<Optional<SortedMap<String, Integer>>,
+                        Optional<SortedMap<String, Integer>>>()
+           {
+             @Override
+             public Optional<SortedMap<String, Integer>>
+               apply(Optional<SortedMap<String, Integer>> inDirectory)
+             {
+               SortedMap<String, Integer> directory = new TreeMap<>();
+               if(inDirectory.isPresent())
+                 directory.putAll(inDirectory.get());
+
+               directory.put(inFields, TRACKED);
+               return Optional.of(directory);
+             }
+           });
+  }
+
+  /**
+   * Update the values for an entity that is about to be changed. This must be
+   * called before the change is stored, as the current entity is read to
+   * determine the values to remove.
+   *
+   * @param inKey the key of the entity changed
+   * @param inNew the entity after the change, absent if it is removed
+   */
+  public void update(Key inKey, Optional<Entity> inNew)
+  {
+    update(Collections.singletonMap(inKey, inNew));
+  }
+
+  /**
+   * Update the values for entities that are about to be changed. This must be
+   * called before the changes are stored, as the current entities are read to
+   * determine the values to remove. Each snapshot is stored at most once.
+   *
+   * @param inChanges the entities after the change, absent if removed, by key
+   */
+  public void update(Map<Key, Optional<Entity>> inChanges)
+  {
+    update(inChanges, Collections.<Key, Entity>emptyMap());
+  }
+
+  /**
+   * Update the values for entities that are about to be changed, using the
+   * given current entities already read by the caller. Only the current
+   * entities not given are read to determine the values to remove. The
+   * snapshots are changed in transactions, with the snapshots as currently
+   * stored.
+   *
+   * @param inChanges the entities after the change, absent if removed, by key
+   * @param inOld     the entities before the change, by key, as far as known
+   */
+  public void update(Map<Key, Optional<Entity>> inChanges,
+                     Map<Key, Entity> inOld)
+  {
+    ListMultimap<String, Key> kinds = ArrayListMultimap.create();
+    for(Key key : inChanges.keySet())
+      kinds.put(key.getKind(), key);
+
+    for(String kind : kinds.keySet())
+    {
+      // Don't use the decoded directory, it might miss fields just tracked.
+      Optional<SortedMap<String, Integer>> directory = read(kind, DIRECTORY);
+      if(!directory.isPresent() || directory.get().isEmpty())
+        continue;
+
+      Map<Key, Entity> old = new HashMap<>();
+      List<Key> missing = new ArrayList<>();
+      for(Key key : kinds.get(kind))
+        if(inOld.containsKey(key))
+          old.put(key, inOld.get(key));
+        else
+          missing.add(key);
+
+      if(!missing.isEmpty())
+        old.putAll(m_store.getEntities(missing));
+
+      for(Map.Entry<String, Integer> fields : directory.get().entrySet())
+      {
+        // Pending values are computed with the changes stored.
+        if(fields.getValue() != TRACKED)
+          continue;
+
+        String []names = Iterables.toArray(s_splitter.split(fields.getKey()),
+                                           String.class);
+        final Map<String, Integer> deltas = new TreeMap<>();
+        for(Key key : kinds.get(kind))
+        {
+          List<String> removed = old.containsKey(key)
+            ? values(old.get(key), names) : ImmutableList.<String>of();
+          List<String> added = inChanges.get(key).isPresent()
+            ? values(inChanges.get(key).get(), names)
+            : ImmutableList.<String>of();
+
+          for(String value : removed)
+            delta(deltas, value, -1);
+          for(String value : added)
+            delta(deltas, value, 1);
+        }
+
+        if(deltas.isEmpty())
+          continue;
+
+        change(kind, fields.getKey(),
+               new Function<Optional<SortedMap<String, Integer>>,
+                            Optional<SortedMap<String, Integer>>>()
+               {
+                 @Override
+                 public Optional<SortedMap<String, Integer>>
+                   apply(Optional<SortedMap<String, Integer>> inCounts)
+                 {
+                   if(!inCounts.isPresent())
+                     return Optional.absent();
+
+                   SortedMap<String, Integer> counts =
+                     new TreeMap<>(inCounts.get());
+                   for(Map.Entry<String, Integer> delta : deltas.entrySet())
+                     add(counts, delta.getKey(), delta.getValue());
+
+                   return Optional.of(counts);
+                 }
+               });
+      }
+    }
+  }
+
+  /**
+   * Rebuild all the tracked values for the given kind.
+   *
+   * @param inKind     the kind of entities
+   * @param inEntities all the entities of the kind
+   */
+  public void rebuild(String inKind, Iterable<Entity> inEntities)
+  {
+    Map<String, SortedMap<String, Integer>> values = new TreeMap<>();
+    for(String fields : read(inKind, DIRECTORY)
+          .or(ImmutableSortedMap.<String, Integer>of()).keySet())
+      values.put(fields, new TreeMap<String, Integer>());
+
+    for(Entity entity : inEntities)
+      for(Map.Entry<String, SortedMap<String, Integer>> entry
+            : values.entrySet())
+        for(String value : values(entity, Iterables.toArray
+                                  (s_splitter.split(entry.getKey()),
+                                   String.class)))
+          add(entry.getValue(), value, 1);
+
+    for(Map.Entry<String, SortedMap<String, Integer>> entry
+          : values.entrySet())
+      store(inKind, entry.getKey(), entry.getValue());
+  }
+
+  /**
+   * Clear all the decoded snapshots of this instance.
+   */
+  public static void clearCache()
+  {
+    s_snapshots.invalidateAll();
+  }
+
+  /**
+   * Compute the values of the given fields for the entity, as a projection
+   * query would return them (i.e. one value for each combination of the
+   * values of multi valued fields and none if any field has no value).
+   *
+   * @param inEntity the entity to get the values from
+   * @param inFields the fields to get the values of
+   * @return the values, with the values of multiple fields joined
+   */
+  @SuppressWarnings("unchecked") // casting property values
+  static List<String> values(Entity inEntity, String ... inFields)
+  {
+    List<String> values = ImmutableList.of("");
+    for(int i = 0; i < inFields.length; i++)
+    {
+      Object property = inEntity.getProperty(inFields[i]);
+      Collection<Object> fieldValues;
+      if(property == null)
+        return ImmutableList.of();
+      else if(property instanceof Collection)
+        fieldValues = (Collection<Object>)property;
+      else
+        fieldValues = Collections.singletonList(property);
+
+      List<String> combined = new ArrayList<>();
+      for(String value : values)
+        for(Object fieldValue : fieldValues)
+          if(fieldValue != null)
+            combined.add(i == 0 ? fieldValue.toString()
+                         : value + SEPARATOR + fieldValue);
+
+      values = combined;
+    }
+
+    Collections.sort(values);
+    return values;
+  }
+
+  /**
+   * Add the given count to the count of the value.
+   *
+   * @param inCounts the counts to change
+   * @param inValue  the value to change the count for
+   * @param inDelta  the delta to add to the count
+   */
+  private static void add(SortedMap<String, Integer> inCounts, String inValue,
+                          int inDelta)
+  {
+    Integer count = inCounts.get(inValue);
+    int updated = (count == null ? 0 : count) + inDelta;
+    if(updated > 0)
+      inCounts.put(inValue, updated);
+    else
+      inCounts.remove(inValue);
+  }
+
+  /**
+   * Add the given delta to the delta of the value.
+   *
+   * @param ioDeltas the deltas to change
+   * @param inValue  the value to change the delta for
+   * @param inDelta  the delta to add
+   */
+  private static void delta(Map<String, Integer> ioDeltas, String inValue,
+                            int inDelta)
+  {
+    Integer delta = ioDeltas.get(inValue);
+    int updated = (delta == null ? 0 : delta) + inDelta;
+    if(updated == 0)
+      ioDeltas.remove(inValue);
+    else
+      ioDeltas.put(inValue, updated);
+  }
+
+  /**
+   * Get the snapshot for the given kind and fields, decoded locally if
+   * possible. The directory of a kind always exists, it is empty if no fields
+   * are tracked.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the joined fields
+   * @return the snapshot, if there is one
+   */
+  private Optional<SortedMap<String, Integer>> snapshot(String inKind,
+                                                        String inFields)
+  {
+    String name = name(inKind, inFields);
+    SortedMap<String, Integer> counts = s_snapshots.getIfPresent(name);
+    if(counts != null)
+      return Optional.of(counts);
+
+    Optional<SortedMap<String, Integer>> read = read(inKind, inFields);
+    if(read.isPresent())
+      counts = read.get();
+    else if(DIRECTORY.equals(inFields))
+      counts = ImmutableSortedMap.of();
+    else
+      return Optional.absent();
+
+    s_snapshots.put(name, counts);
+    return Optional.of(counts);
+  }
+
+  /**
+   * Read the snapshot for the given kind and fields from the datastore.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the joined fields
+   * @return the snapshot, if there is one
+   */
+  private Optional<SortedMap<String, Integer>> read(String inKind,
+                                                    String inFields)
+  {
+    Optional<Entity> entity = m_store.getEntity(key(inKind, inFields));
+    if(!entity.isPresent())
+      return Optional.absent();
+
+    return Optional.fromNullable(decode(entity.get()));
+  }
+
+  /**
+   * Store the counts as the snapshot for the kind and fields, replacing any
+   * snapshot stored.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the joined fields
+   * @param inCounts the counts to store
+   */
+  private void store(String inKind, String inFields,
+                     SortedMap<String, Integer> inCounts)
+  {
+    SortedMap<String, Integer> counts = ImmutableSortedMap.copyOf(inCounts);
+    m_store.update(entity(inKind, inFields, counts));
+
+    s_snapshots.put(name(inKind, inFields), counts);
+  }
+
+  /**
+   * Change the snapshot for the kind and fields in a transaction. The change
+   * might be applied multiple times, if the snapshot is changed
+   * concurrently.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the joined fields
+   * @param inChange the change, getting the current snapshot, if any, and
+   *                 returning the snapshot to store or absent to leave it
+   *                 unchanged
+   * @return true if the snapshot was changed, false if not
+   */
+  private boolean change(final String inKind, final String inFields,
+                         final Function<Optional<SortedMap<String, Integer>>,
+                                        Optional<SortedMap<String, Integer>>>
+                         inChange)
+  {
+    Optional<Entity> changed = m_store.change
+      (key(inKind, inFields),
+       new Function<Optional<Entity>, Optional<Entity>>()
+       {
+         @Override
+         public Optional<Entity> apply(Optional<Entity> inEntity)
+         {
+           Optional<SortedMap<String, Integer>> counts = Optional.absent();
+           if(inEntity.isPresent())
+             counts = Optional.fromNullable(decode(inEntity.get()));
+
+           counts = inChange.apply(counts);
+           if(!counts.isPresent())
+             return Optional.absent();
+
+           return Optional.of(entity(inKind, inFields, counts.get()));
+         }
+       });
+
+    if(!changed.isPresent())
+      return false;
+
+    s_snapshots.put(name(inKind, inFields), decode(changed.get()));
+    return true;
+  }
+
+  /**
+   * Create the entity to store the given counts for the kind and fields.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the joined fields
+   * @param inCounts the counts to store
+   * @return the entity for the snapshot
+   */
+  private static Entity entity(String inKind, String inFields,
+                               SortedMap<String, Integer> inCounts)
+  {
+    Entity entity = new Entity(key(inKind, inFields));
+    entity.setUnindexedProperty("snapshot", encode(inCounts));
+    return entity;
+  }
+
+  /**
+   * Decode the counts of the given snapshot entity.
+   *
+   * @param inEntity the entity with the snapshot
+   * @return the decoded counts or null if the snapshot could not be read
+   */
+  private static @Nullable SortedMap<String, Integer> decode(Entity inEntity)
+  {
+    return decode((Blob)inEntity.getProperty("snapshot"));
+  }
+
+  /**
+   * Compute the name of the snapshot for the given kind and fields.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the joined fields
+   * @return the name of the snapshot
+   */
+  private static String name(String inKind, String inFields)
+  {
+    return inKind + "/" + inFields;
+  }
+
+  /**
+   * Create the datastore key of the snapshot for the given kind and fields.
+   *
+   * @param inKind   the kind of entities
+   * @param inFields the joined fields
+   * @return the key
+   */
+  private static Key key(String inKind, String inFields)
+  {
+    return KeyFactory.createKey(KIND, name(inKind, inFields));
+  }
+
+  /**
+   * Encode the given counts into a blob, as the number of values followed by
+   * each value and its count, in order.
+   *
+   * @param inCounts the counts to encode
+   * @return the blob with the encoded counts
+   */
+  static Blob encode(SortedMap<String, Integer> inCounts)
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes))
+    {
+      out.writeInt(inCounts.size());
+      for(Map.Entry<String, Integer> entry : inCounts.entrySet())
+      {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue());
+      }
+    }
+    catch(IOException e)
+    {
+      throw new IllegalStateException("cannot encode values", e);
+    }
+
+    return new Blob(bytes.toByteArray());
+  }
+
+  /**
+   * Decode the counts from the given blob.
+   *
+   * @param inBlob the blob to decode
+   * @return the decoded counts or null if the blob could not be read
+   */
+  static SortedMap<String, Integer> decode(Blob inBlob)
+  {
+    try (DataInputStream in =
+           new DataInputStream(new ByteArrayInputStream(inBlob.getBytes())))
+    {
+      ImmutableSortedMap.Builder<String, Integer> counts =
+        ImmutableSortedMap.naturalOrder();
+      for(int i = in.readInt(); i > 0; i--)
+        counts.put(in.readUTF(), in.readInt());
+
+      return counts.build();
+    }
+    catch(IOException e)
+    {
+      Log.warning("cannot read value snapshot: " + e);
+      return null;
+    }
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends DataStore.Test
+  {
+    /** The counts Test. */
+    @org.junit.Test
+    public void counts()
+    {
+      // Missing snapshots are expected when starting empty.
+      m_logger.banClass(DataStore.class);
+
+      DataStore data = new DataStore();
+      ValueStore values = new ValueStore(data);
+      Entity first = new Entity("kind", "first");
+      first.setProperty("field", "a");
+      Entity second = new Entity("kind", "second");
+      second.setProperty("field", "b");
+      data.update(ImmutableList.of(first, second));
+
+      // The values are computed in the background, and only once. Until
+      // then, they are queried.
+      assertEquals("computing", "{a=1, b=1}",
+                   values.counts("kind", "field").toString());
+      assertEquals("still computing", "{a=1, b=1}",
+                   values.counts("kind", "field").toString());
+      assertEquals("queued", 1, m_tasks.size());
+
+      runTasks();
+      assertEquals("computed", "{a=1, b=1}",
+                   values.counts("kind", "field").toString());
+
+      // Changes are tracked, with the old entity given.
+      Entity changed = new Entity("kind", "first");
+      changed.setProperty("field", "b");
+      data.update(ImmutableList.of(changed),
+                  Collections.singletonMap(first.getKey(), first));
+      assertEquals("updated", "{b=2}",
+                   values.counts("kind", "field").toString());
+
+      data.remove(second.getKey());
+      assertEquals("removed", "{b=1}",
+                   values.counts("kind", "field").toString());
+    }
+
+    /** The concurrent update Test. */
+    @org.junit.Test
+    public void concurrent()
+    {
+      m_logger.banClass(DataStore.class);
+
+      DataStore data = new DataStore();
+      ValueStore values = new ValueStore(data);
+      Entity first = new Entity("kind", "first");
+      first.setProperty("field", "a");
+      data.update(first);
+      values.counts("kind", "field");
+      runTasks();
+
+      // Another instance adds a value, but this instance still has the old
+      // snapshot decoded.
+      SortedMap<String, Integer> decoded = values.counts("kind", "field");
+      Entity second = new Entity("kind", "second");
+      second.setProperty("field", "a");
+      data.update(second);
+      s_snapshots.put(name("kind", "field"), decoded);
+
+      Entity third = new Entity("kind", "third");
+      third.setProperty("field", "b");
+      data.update(third);
+      assertEquals("both counted", "{a=2, b=1}",
+                   values.read("kind", "field").get().toString());
+    }
+
+    /** The pending Test. */
+    @org.junit.Test
+    public void pending()
+    {
+      m_logger.banClass(DataStore.class);
+
+      DataStore data = new DataStore();
+      ValueStore values = new ValueStore(data);
+      Entity entity = new Entity("kind", "first");
+      entity.setProperty("field", "a");
+      data.update(entity);
+
+      values.counts("kind", "field");
+      assertEquals("queued", 1, m_tasks.size());
+
+      // The task is lost and the computation overdue.
+      m_tasks.clear();
+      values.store("kind", DIRECTORY,
+                   ImmutableSortedMap.of("field", 1));
+      assertEquals("queried", "{a=1}",
+                   values.counts("kind", "field").toString());
+      assertEquals("queued again", 1, m_tasks.size());
+
+      runTasks();
+      assertEquals("tracked", "{field=" + TRACKED + "}",
+                   values.read("kind", DIRECTORY).get().toString());
+      assertEquals("computed", "{a=1}",
+                   values.read("kind", "field").get().toString());
+    }
+
+    /** The values Test. */
+    @org.junit.Test
+    public void values()
+    {
+      Entity entity = new Entity("kind", "name");
+      entity.setProperty("single", "value");
+      entity.setProperty("multiple", Arrays.asList("b", "a"));
+
+      assertEquals("single", "[value]",
+                   ValueStore.values(entity, "single").toString());
+      assertEquals("multiple", "[a, b]",
+                   ValueStore.values(entity, "multiple").toString());
+      assertEquals("missing", "[]",
+                   ValueStore.values(entity, "single", "none").toString());
+      assertEquals("combined", "[value\u001fa, value\u001fb]",
+                   ValueStore.values(entity, "single", "multiple")
+                   .toString());
+    }
+
+    /** The count Test. */
+    @org.junit.Test
+    public void count()
+    {
+      SortedMap<String, Integer> counts = new TreeMap<>();
+      add(counts, "a", 1);
+      add(counts, "b", 1);
+      add(counts, "a", 1);
+      add(counts, "b", -1);
+
+      assertEquals("counts", "{a=2}", counts.toString());
+    }
+
+    /** The encoding Test. */
+    @org.junit.Test
+    public void encoding()
+    {
+      SortedMap<String, Integer> counts = new TreeMap<>();
+      counts.put("first", 1);
+      counts.put("second", 3);
+
+      assertEquals("encoded", "{first=1, second=3}",
+                   decode(encode(counts)).toString());
+    }
+  }
+}
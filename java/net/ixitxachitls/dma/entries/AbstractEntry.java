@@ -26,15 +26,17 @@ package net.ixitxachitls.dma.entries;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.StringTokenizer;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -60,7 +62,9 @@ import net.ixitxachitls.dma.data.DMADataFactory;
 import net.ixitxachitls.dma.entries.indexes.Index;
 import net.ixitxachitls.dma.proto.Entries.AbstractEntryProto;
 import net.ixitxachitls.dma.server.servlets.DMAServlet;
+import net.ixitxachitls.dma.values.ExpressionText;
 import net.ixitxachitls.dma.values.File;
+import net.ixitxachitls.dma.values.Parameters;
 import net.ixitxachitls.dma.values.Values;
 import net.ixitxachitls.dma.values.enums.Group;
 import net.ixitxachitls.util.Strings;
@@ -120,6 +124,28 @@ public abstract class AbstractEntry
     }
   }
 
+  /** A memoized combined value, with the stamp it was computed for. */
+  private static class Memo
+  {
+    /**
+     * Create the memo.
+     *
+     * @param inStamp the combined stamp of the entry for the value
+     * @param inValue the memoized value
+     */
+    private Memo(long inStamp, Object inValue)
+    {
+      m_stamp = inStamp;
+      m_value = inValue;
+    }
+
+    /** The combined stamp of the entry when the value was computed. */
+    private final long m_stamp;
+
+    /** The memoized value. */
+    private final Object m_value;
+  }
+
   /**
    * The constructor with a type.
    *
@@ -230,14 +256,6 @@ public abstract class AbstractEntry
   protected static final String BASE_END =
     Config.get("resource:entries/base.end", "]");
 
-  /** The pattern to replace values in expressions. */
-  protected static final Pattern PATTERN_VAR =
-    Pattern.compile("\\$(\\w+)");
-
-  /** The pattern for expressions. */
-  protected static final Pattern PATTERN_EXPR =
-    Pattern.compile("\\[\\[(.*?)\\]\\]");
-
   /** The serial version id. */
   private static final long serialVersionUID = 1L;
 
@@ -250,6 +268,16 @@ public abstract class AbstractEntry
   /** The base entries for this one. */
   protected List<String> m_base = new ArrayList<>();
 
+  /** The source for the modification stamps of entries. */
+  private static final AtomicLong s_stamps = new AtomicLong();
+
+  /** The stamp of the last modification of this entry; unique over all
+   * entries. */
+  private transient volatile long m_stamp = s_stamps.incrementAndGet();
+
+  /** The memoized combined values, by name. */
+  private transient @Nullable Map<String, Memo> m_memos = null;
+
   /** Google Cloud Storage service for accessing files. */
   private final GcsService m_gcs =
     GcsServiceFactory.createGcsService(new RetryParams.Builder()
@@ -374,20 +402,105 @@ public abstract class AbstractEntry
   public List<BaseEntry> getBaseEntries()
   {
     if(m_baseEntries == null || m_baseEntries.isEmpty())
+      resolveBaseEntries(ImmutableList.of(this));
+
+    return m_baseEntries;
+  }
+
+  /**
+   * Resolve the base entries of all the given entries, reading all that are
+   * not yet resolved with a single datastore request.
+   *
+   * @param       inEntries the entries to resolve base entries for
+   */
+  protected static void
+    resolveBaseEntries(Collection<? extends AbstractEntry> inEntries)
+  {
+    resolveBaseEntries(inEntries,
+                       Collections.<EntryKey, AbstractEntry>emptyMap());
+  }
+
+  /**
+   * Resolve the base entries of all the given entries, using the given known
+   * entries where possible. Only the base entries not known are read, with a
+   * single datastore request.
+   *
+   * @param       inEntries the entries to resolve base entries for
+   * @param       inKnown   the entries already available, by key
+   */
+  public static void
+    resolveBaseEntries(Collection<? extends AbstractEntry> inEntries,
+                       Map<EntryKey, ? extends AbstractEntry> inKnown)
+  {
+    Set<EntryKey> keys = new HashSet<>();
+    List<AbstractEntry> unresolved = new ArrayList<>();
+    for(AbstractEntry entry : inEntries)
+      if(entry.m_baseEntries == null || entry.m_baseEntries.isEmpty())
+      {
+        unresolved.add(entry);
+        for(String base : entry.m_base)
+          keys.add(createKey(base, entry.getType().getBaseType()));
+      }
+
+    if(unresolved.isEmpty())
+      return;
+
+    Map<EntryKey, AbstractEntry> bases = new HashMap<>(inKnown);
+    keys.removeAll(inKnown.keySet());
+    if(!keys.isEmpty())
+      bases.putAll(DMADataFactory.get().getEntries(keys));
+
+    for(AbstractEntry entry : unresolved)
     {
-      m_baseEntries = new ArrayList<>();
+      if(!entry.m_base.isEmpty())
+        entry.touch();
 
-      // TODO: make this in a single datastore request
-      for(String base : m_base)
+      entry.m_baseEntries = new ArrayList<>();
+      for(String base : entry.m_base)
       {
-        Optional<BaseEntry> entry = DMADataFactory.get()
-          .getEntry(createKey(base, getType().getBaseType()));
-        if(entry.isPresent())
-          m_baseEntries.add(entry.get());
+        AbstractEntry baseEntry =
+          bases.get(createKey(base, entry.getType().getBaseType()));
+        if(baseEntry instanceof BaseEntry)
+          entry.m_baseEntries.add((BaseEntry)baseEntry);
       }
     }
+  }
 
-    return m_baseEntries;
+  /**
+   * Get the keys of all the entries directly referenced by this one that are
+   * not yet resolved. These can then be read together with the references of
+   * other entries and be resolved with resolveReferences.
+   *
+   * @return      the keys of the unresolved references
+   */
+  public Set<EntryKey> getUnresolvedReferences()
+  {
+    Set<EntryKey> keys = new HashSet<>();
+    if(m_baseEntries == null || m_baseEntries.isEmpty())
+      for(String base : m_base)
+        keys.add(createKey(base, getType().getBaseType()));
+
+    return keys;
+  }
+
+  /**
+   * Resolve the references of this entry from the given entries. Base
+   * entries are only resolved if all of them are available, as they are
+   * resolved together.
+   *
+   * @param       inEntries the entries available, by key
+   */
+  public void
+    resolveReferences(Map<EntryKey, ? extends AbstractEntry> inEntries)
+  {
+    if(m_baseEntries != null && !m_baseEntries.isEmpty())
+      return;
+
+    for(String base : m_base)
+      if(!inEntries.containsKey(createKey(base, getType().getBaseType())))
+        return;
+
+    resolveBaseEntries(ImmutableList.of(this), inEntries);
   }
 
   /**
@@ -416,6 +529,7 @@ public abstract class AbstractEntry
       if(base == null)
       {
         m_baseEntries = null;
+        touch();
         return false;
       }
 
@@ -549,11 +663,20 @@ public abstract class AbstractEntry
    */
   public Set<AbstractEntry> collectDependencies()
   {
+    // Resolve the bases level by level, with a single request per level.
     Set<AbstractEntry> entries = Sets.newHashSet();
-    for(AbstractEntry base : getBaseEntries())
+    List<AbstractEntry> level = ImmutableList.<AbstractEntry>of(this);
+    while(!level.isEmpty())
     {
-      entries.addAll(base.collectDependencies());
-      entries.add(base);
+      resolveBaseEntries(level);
+
+      List<AbstractEntry> next = new ArrayList<>();
+      for(AbstractEntry entry : level)
+        for(AbstractEntry base : entry.m_baseEntries)
+          if(entries.add(base))
+            next.add(base);
+
+      level = next;
     }
 
     /*
@@ -803,6 +926,7 @@ public abstract class AbstractEntry
    */
   public void set(Values inValues)
   {
+    touch();
     m_name = inValues.use("name", m_name, Optional.of(Values.NOT_EMPTY));
     m_base = inValues.use("base", m_base, Optional.of(Values.NOT_EMPTY));
   }
@@ -859,6 +983,8 @@ public abstract class AbstractEntry
     m_base.add(inName);
     if(entry.isPresent())
       m_baseEntries.add(entry.get());
+
+    touch();
   }
 
   //........................................................................
@@ -946,6 +1072,8 @@ public abstract class AbstractEntry
   public void changed(boolean inChanged)
   {
     m_changed = inChanged;
+    if(inChanged)
+      touch();
   }
 
   /**
@@ -959,297 +1087,119 @@ public abstract class AbstractEntry
   //........................................................................
 
   /**
-   * Save the entry if it has been changed.
-   *
-   * @return      true if saved, false if not
+   * Mark the entry as modified, invalidating all memoized combined values
+   * of this and all entries based on it.
    */
-  public boolean save()
+  protected void touch()
   {
-    if(!m_changed)
-      return false;
-
-    return DMADataFactory.get().update(this);
+    m_stamp = s_stamps.incrementAndGet();
   }
 
-  //........................................................................
-
-  //------------------------------------------------- other member functions
-
-  //--------------------------- ensureExtensions ---------------------------
-
   /**
-   * Ensure that extensions are properly initialized.
+   * Get the stamp all combined values of this entry depend on. This changes
+   * whenever the entry or any of its (resolved) base entries is modified.
+   *
+   * @return      the combined stamp
    */
-  protected void ensureExtensions()
+  protected long getCombinedStamp()
   {
-    // nothing to do here
-  }
+    long stamp = m_stamp;
+    if(m_baseEntries != null)
+      for(AbstractEntry base : m_baseEntries)
+        if(base != null && base != this)
+          stamp = stamp * 31 + base.getCombinedStamp();
 
-  //........................................................................
+    return stamp;
+  }
 
   /**
-   * Compute the expressions embedded in the given string and replace all
-   * possible variables.
+   * Get a memoized combined value, if it is still valid.
    *
-   * @param       inText       the text to replace in
-   * @param       inParameters the parameters for parametrizing expressions
+   * @param       inName the name of the combined value
+   * @param       <T>    the type of the value
    *
-   * @return      the computed string
+   * @return      the memoized value, if valid
    */
-  /*
-  public String computeExpressions(String inText,
-                                   @Nullable Parameters inParameters)
+  @SuppressWarnings("unchecked") // values are stored by the same name
+  protected <T> Optional<T> memoized(String inName)
   {
-    // TODO: make this more generic and move it to a separate class
-    String text = inText;
-    StringBuffer result = new StringBuffer();
-
-    if(inParameters != null)
-    {
-      Matcher matcher = PATTERN_VAR.matcher(text);
-      while(matcher.find())
-      {
-        Value<?> value = inParameters.getValue(matcher.group(1));
-        if(value != null && value.isDefined())
-          matcher.appendReplacement(result, value.toString().replace('$', '_'));
-        else
-          matcher.appendReplacement(result,
-                                    "\\\\color{error}{&#x24;" + matcher.group(1)
-                                    + "}");
-      }
-
-      matcher.appendTail(result);
-
-      text = result.toString();
-      result = new StringBuffer();
-    }
-
-    Matcher matcher = PATTERN_EXPR.matcher(text);
+    Map<String, Memo> memos = m_memos;
+    if(memos == null)
+      return Optional.absent();
 
-    while(matcher.find())
-      matcher.appendReplacement(result,
-                                "" + computeExpression(matcher.group(1)));
+    Memo memo = memos.get(inName);
+    if(memo == null || memo.m_stamp != getCombinedStamp())
+      return Optional.absent();
 
-    matcher.appendTail(result);
-
-    return result.toString();
+    return Optional.of((T)memo.m_value);
   }
-  */
 
   /**
-   * Evaluate the given expression.
+   * Memoize a computed combined value until this entry or any of its bases
+   * changes. The value is shared by all callers and thus must not be
+   * modified anymore.
    *
-   * @param  inExpression the expression to evaluate
+   * @param       inName  the name of the combined value
+   * @param       inValue the value computed
+   * @param       <T>     the type of the value
    *
-   * @return the evaluated expression
+   * @return      the given value
    */
-  private String computeExpression(String inExpression)
+  protected <T> T memoize(String inName, T inValue)
   {
-    String expression = inExpression.replaceAll("[ \t\n\f\r]", "");
-
-    StringTokenizer tokens =
-      new StringTokenizer(expression, "()+-*/,^", true);
+    Map<String, Memo> memos = m_memos;
+    if(memos == null)
+    {
+      memos = new ConcurrentHashMap<>();
+      m_memos = memos;
+    }
 
-    return computeExpression(expression, tokens);
+    memos.put(inName, new Memo(getCombinedStamp(), inValue));
+    return inValue;
   }
 
   /**
-   * Compute expression from the given tokens.
-   *
-   * @param  inExpression the expression to compute
-   * @param  inTokens     tokens following the expression
+   * Save the entry if it has been changed.
    *
-   * @return the evaluated expression
+   * @return      true if saved, false if not
    */
-  private String computeExpression(String inExpression,
-                                   StringTokenizer inTokens)
+  public boolean save()
   {
-    if(!inTokens.hasMoreTokens())
-    {
-      Log.warning("invalid expression, expected more: "  + inExpression);
-
-      return "* invalid expression, expected (: " + inExpression + " *";
-    }
-
-    String token = inTokens.nextToken();
-
-    if("min".equals(token))
-    {
-      if(!"(".equals(inTokens.nextToken()))
-      {
-        Log.warning("invalid expression, expected '(': " + inExpression);
-
-        return "* invalid expression, expected (: " + inExpression + " *";
-      }
-
-      String first = computeExpression(inExpression, inTokens);
-      String second = computeExpression(inExpression, inTokens);
-
-    return "" + Math.min(Integer.parseInt(first), Integer.parseInt(second));
-    }
-
-    if("max".equals(token))
-    {
-      if(!"(".equals(inTokens.nextToken()))
-      {
-        Log.warning("invalid expression, expected '(': " + inExpression);
-
-        return "* invalid expression, expect (: " + inExpression + " *";
-      }
-
-      String first = computeExpression(inExpression, inTokens);
-      String second = computeExpression(inExpression, inTokens);
-
-    return "" + Math.max(Integer.parseInt(first), Integer.parseInt(second));
-    }
-
-    if("range".equals(token))
-    {
-      if(!"(".equals(inTokens.nextToken()))
-      {
-        Log.warning("invalid expression, expected '(': " + inExpression);
-
-        return "* invalid expression, expect (: " + inExpression + " *";
-      }
-
-      int level = Integer.parseInt(computeExpression(inExpression, inTokens));
-      List<String> ranges = new ArrayList<String>();
-
-      String current = "";
-      for(String argument = inTokens.nextToken();
-          !"(".equals(argument) && inTokens.hasMoreTokens();
-          argument = inTokens.nextToken())
-      {
-        if(",".equals(argument))
-        {
-          ranges.add(current);
-          current = "";
-        }
-        else
-        {
-          current += argument;
-        }
-      }
-      ranges.add(current);
-      Collections.reverse(ranges);
-
-      for(String range : ranges)
-      {
-        String []parts = range.split(":\\s*");
-        if(parts.length != 2)
-          continue;
-
-        try
-        {
-          if(level >= Integer.parseInt(parts[0]))
-            return parts[1];
-        }
-        catch(NumberFormatException e)
-        {
-          // just ignore it
-        }
-      }
-
-      return "* invalid range *";
-    }
-
-    if("switch".equals(token))
-    {
-      if(!"(".equals(inTokens.nextToken()))
-      {
-        Log.warning("invalid expression, expected '(': " + inExpression);
-
-        return "* invalid expression, expect (: " + inExpression + " *";
-      }
-
-      String value = computeExpression(inExpression, inTokens);
-      List<String> options = new ArrayList<String>();
-
-      String current = "";
-      for(String argument = inTokens.nextToken();
-          !"(".equals(argument) && inTokens.hasMoreTokens();
-          argument = inTokens.nextToken())
-      {
-        if(",".equals(argument))
-        {
-          options.add(current);
-          current = "";
-        }
-        else
-        {
-          current += argument;
-        }
-      }
-      options.add(current);
-
-      for(String option : options)
-      {
-        String []parts = option.split(":\\s*");
-        if(parts.length != 2)
-          continue;
-
-        String []cases = parts[0].split("\\|");
-        for(String single : cases)
-          if(single.trim().equalsIgnoreCase(value))
-            return parts[1];
-          else if("default".equalsIgnoreCase(single))
-            return parts[1];
-      }
-
-      return "* invalid switch *";
-    }
-
-    try
-    {
-      String value;
-      if("(".equals(token))
-        value = computeExpression(inExpression, inTokens);
-      else if("-".equals(token))
-        value = "-" + computeExpression(inExpression, inTokens);
-      else if("+".equals(token))
-        value = "+" + computeExpression(inExpression, inTokens);
-      else
-        value = token;
-
-      if(!inTokens.hasMoreTokens())
-        return value;
-
-      String operator = inTokens.nextToken();
-
-      if(",".equals(operator) || ")".equals(operator))
-        return value;
-
-      String operand = computeExpression(inExpression, inTokens);
-
-      if("+".equals(operator))
-        return "" + (Integer.parseInt(value) + Integer.parseInt(operand));
+    if(!m_changed)
+      return false;
 
-      if("-".equals(operator))
-        return "" + (Integer.parseInt(value) - Integer.parseInt(operand));
+    return DMADataFactory.get().update(this);
+  }
 
-      if("*".equals(operator))
-        return "" + (Integer.parseInt(value) * Integer.parseInt(operand));
+  //........................................................................
 
-      if("/".equals(operator))
-        if(Integer.parseInt(value) == 0)
-          return "0";
-        else
-          return "" + (Integer.parseInt(value) / Integer.parseInt(operand));
+  //------------------------------------------------- other member functions
 
-      if("^".equals(operator))
-        return "" + (int)Math.pow(Integer.parseInt(value),
-                                  Integer.parseInt(operand));
+  //--------------------------- ensureExtensions ---------------------------
 
-      Log.warning("invalid operator " + operator + ": " + inExpression);
+  /**
+   * Ensure that extensions are properly initialized.
+   */
+  protected void ensureExtensions()
+  {
+    // nothing to do here
+  }
 
-      return value;
-    }
-    catch(NumberFormatException e)
-    {
-      Log.warning(e + ", for " + inExpression);
+  //........................................................................
 
-      return "* invalid number *";
-    }
+  /**
+   * Compute the expressions embedded in the given string and replace all
+   * possible variables. The text is compiled once and then rendered with all
+   * its expressions for the given parameters.
+   *
+   * @param       inText       the text to replace in
+   * @param       inParameters the parameters for parametrizing expressions
+   *
+   * @return      the computed string
+   */
+  public String computeExpressions(String inText, Parameters inParameters)
+  {
+    return ExpressionText.compile(inText).evaluate(inParameters);
   }
 
   /**
@@ -1293,6 +1243,7 @@ public abstract class AbstractEntry
       return;
     }
 
+    touch();
     m_name = proto.getName();
     m_type = type.get();
     m_base = proto.getBaseList();
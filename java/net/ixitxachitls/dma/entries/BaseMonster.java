@@ -590,11 +590,15 @@ public class BaseMonster extends BaseEntry
     if(m_size != Size.UNKNOWN)
       return new Annotated.Max<>(m_size, getName());
 
+    Optional<Annotated<Optional<Size>>> memo = memoized("size");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated<Optional<Size>> combined = new Annotated.Max<>();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedSize());
 
-    return combined;
+    return memoize("size", combined);
   }
 
   /**
@@ -768,11 +772,15 @@ public class BaseMonster extends BaseEntry
       return new Annotated.Arithmetic<Modifier>(m_naturalArmor.get(),
                                                    getName());
 
+    Optional<Annotated.Arithmetic<Modifier>> memo = memoized("naturalArmor");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Arithmetic<Modifier> combined = new Annotated.Arithmetic<>();
     for(BaseEntry base : getBaseEntries())
       combined.add(((BaseMonster)base).getCombinedNaturalArmor());
 
-    return combined;
+    return memoize("naturalArmor", combined);
   }
 
   /**
@@ -796,11 +804,15 @@ public class BaseMonster extends BaseEntry
     if(attack.isPresent())
       return new Annotated.Bonus(attack.get(), getName());
 
+    Optional<Annotated<Optional<Integer>>> memo = memoized("baseAttack");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Bonus combined = new Annotated.Bonus();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedBaseAttack());
 
-    return combined;
+    return memoize("baseAttack", combined);
   }
 
   /**
@@ -824,11 +836,15 @@ public class BaseMonster extends BaseEntry
     if(strength.isPresent())
       return new Annotated.Integer(strength.get(), getName());
 
+    Optional<Annotated<Optional<Integer>>> memo = memoized("strength");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated<Optional<Integer>> combined = new Annotated.Integer();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedStrength());
 
-    return combined;
+    return memoize("strength", combined);
   }
 
   /**
@@ -852,11 +868,15 @@ public class BaseMonster extends BaseEntry
     if(dexterity.isPresent())
       return new Annotated.Integer(dexterity.get(), getName());
 
+    Optional<Annotated<Optional<Integer>>> memo = memoized("dexterity");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated<Optional<Integer>> combined = new Annotated.Integer();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedDexterity());
 
-    return combined;
+    return memoize("dexterity", combined);
   }
 
   /**
@@ -880,11 +900,15 @@ public class BaseMonster extends BaseEntry
     if(constitution.isPresent())
       return new Annotated.Integer(constitution.get(), getName());
 
+    Optional<Annotated<Optional<Integer>>> memo = memoized("constitution");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated<Optional<Integer>> combined = new Annotated.Integer();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedConstitution());
 
-    return combined;
+    return memoize("constitution", combined);
   }
 
   /**
@@ -908,11 +932,15 @@ public class BaseMonster extends BaseEntry
     if(intelligence.isPresent())
       return new Annotated.Integer(intelligence.get(), getName());
 
+    Optional<Annotated<Optional<Integer>>> memo = memoized("intelligence");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated<Optional<Integer>> combined = new Annotated.Integer();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedIntelligence());
 
-    return combined;
+    return memoize("intelligence", combined);
   }
 
   /**
@@ -936,11 +964,15 @@ public class BaseMonster extends BaseEntry
     if(wisdom.isPresent())
       return new Annotated.Integer(wisdom.get(), getName());
 
+    Optional<Annotated<Optional<Integer>>> memo = memoized("wisdom");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated<Optional<Integer>> combined = new Annotated.Integer();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedWisdom());
 
-    return combined;
+    return memoize("wisdom", combined);
   }
 
   /**
@@ -964,11 +996,15 @@ public class BaseMonster extends BaseEntry
     if(charisma.isPresent())
       return new Annotated.Integer(charisma.get(), getName());
 
+    Optional<Annotated<Optional<Integer>>> memo = memoized("charisma");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated<Optional<Integer>> combined = new Annotated.Integer();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedCharisma());
 
-    return combined;
+    return memoize("charisma", combined);
   }
 
   /**
@@ -991,11 +1027,15 @@ public class BaseMonster extends BaseEntry
     if(m_fortitudeSave.isPresent())
       return new Annotated.Bonus(m_fortitudeSave.get(), getName());
 
+    Optional<Annotated.Bonus> memo = memoized("fortitudeSave");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Bonus combined = new Annotated.Bonus();
     for(BaseEntry base : getBaseEntries())
       combined.add(((BaseMonster)base).getCombinedFortitudeSave());
 
-    return combined;
+    return memoize("fortitudeSave", combined);
   }
 
   /**
@@ -1018,11 +1058,15 @@ public class BaseMonster extends BaseEntry
     if(m_willSave.isPresent())
       return new Annotated.Bonus(m_willSave.get(), getName());
 
+    Optional<Annotated.Bonus> memo = memoized("willSave");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Bonus combined = new Annotated.Bonus();
     for(BaseEntry base : getBaseEntries())
       combined.add(((BaseMonster)base).getCombinedWillSave());
 
-    return combined;
+    return memoize("willSave", combined);
   }
 
   /**
@@ -1045,11 +1089,15 @@ public class BaseMonster extends BaseEntry
     if(m_reflexSave.isPresent())
       return new Annotated.Bonus(m_reflexSave.get(), getName());
 
+    Optional<Annotated.Bonus> memo = memoized("reflexSave");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Bonus combined = new Annotated.Bonus();
     for(BaseEntry base : getBaseEntries())
       combined.add(((BaseMonster)base).getCombinedReflexSave());
 
-    return combined;
+    return memoize("reflexSave", combined);
   }
 
   /**
@@ -1479,11 +1527,15 @@ public class BaseMonster extends BaseEntry
     if(adjustment.isPresent())
       return new Annotated.Integer(adjustment.get(), getName());
 
+    Optional<Annotated<Optional<Integer>>> memo = memoized("levelAdjustment");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Integer combined = new Annotated.Integer();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedLevelAdjustment());
 
-    return combined;
+    return memoize("levelAdjustment", combined);
   }
 
   /**
@@ -34,6 +34,7 @@ import com.google.protobuf.Message;
 import net.ixitxachitls.dma.proto.Entries.BaseEntryProto;
 import net.ixitxachitls.dma.proto.Entries.BaseSpellProto;
 import net.ixitxachitls.dma.values.Distance;
+import net.ixitxachitls.dma.values.Parameters;
 import net.ixitxachitls.dma.values.Parser;
 import net.ixitxachitls.dma.values.Values;
 import net.ixitxachitls.dma.values.enums.Group;
@@ -714,6 +715,21 @@ public class BaseSpell extends BaseEntry
     return m_summary;
   }
 
+  /**
+   * Get the spell summary with all its variables and expressions computed
+   * for the given parameters, e.g. the caster level.
+   *
+   * @param inParameters the values of the variables used in the summary
+   * @return the computed summary, if any
+   */
+  public Optional<String> getSummary(Parameters inParameters)
+  {
+    if(!m_summary.isPresent())
+      return m_summary;
+
+    return Optional.of(computeExpressions(m_summary.get(), inParameters));
+  }
+
   /**
    * Get all the spell descriptors.
    *
@@ -22,6 +22,8 @@
 
 package net.ixitxachitls.dma.entries;
 
+import java.util.Map;
+
 import com.google.common.base.Optional;
 
 import net.ixitxachitls.dma.data.DMADataFactory;
@@ -68,6 +70,27 @@ public class Feat extends NestedEntry
     return m_base.get();
   }
 
+  @Override
+  public Optional<EntryKey> getUnresolvedBase()
+  {
+    if(m_base.isPresent() || !m_name.isPresent())
+      return Optional.absent();
+
+    return Optional.of(new EntryKey(m_name.get(), BaseFeat.TYPE));
+  }
+
+  @Override
+  public void resolveBase(Map<EntryKey, ? extends AbstractEntry> inEntries)
+  {
+    Optional<EntryKey> key = getUnresolvedBase();
+    if(!key.isPresent())
+      return;
+
+    AbstractEntry base = inEntries.get(key.get());
+    if(base instanceof BaseFeat)
+      m_base = Optional.of(Optional.of((BaseFeat)base));
+  }
+
   /**
    * Get the feat qualifier.
    *
@@ -193,11 +193,15 @@ public class Item extends CampaignEntry
    */
   public Annotated<Optional<Integer>> getCombinedMaxHP()
   {
+    Optional<Annotated<Optional<Integer>>> memo = memoized("maxHP");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated<Optional<Integer>> combined = new Annotated.Integer();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseItem) entry).getCombinedHP());
 
-    return combined;
+    return memoize("maxHP", combined);
   }
 
   /**
@@ -207,6 +211,10 @@ public class Item extends CampaignEntry
    */
   public Annotated.Arithmetic<Weight> getCombinedWeight()
   {
+    Optional<Annotated.Arithmetic<Weight>> memo = memoized("weight");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Arithmetic<Weight> combined = new Annotated.Arithmetic<>();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseItem) entry).getCombinedWeight());
@@ -219,7 +227,7 @@ public class Item extends CampaignEntry
       combined.multiply(m_multiple.get(),
                         getCombinedCountUnit().get().toString());
 
-    return combined;
+    return memoize("weight", combined);
   }
 
   /**
@@ -229,11 +237,15 @@ public class Item extends CampaignEntry
    */
   public Annotated<Optional<Size>> getCombinedSize()
   {
+    Optional<Annotated<Optional<Size>>> memo = memoized("size");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Max<Size> combined = new Annotated.Max<>();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseItem) entry).getCombinedSize());
 
-    return combined;
+    return memoize("size", combined);
   }
 
   /**
@@ -243,11 +255,15 @@ public class Item extends CampaignEntry
    */
   public Annotated<Optional<Integer>> getCombinedHardness()
   {
+    Optional<Annotated<Optional<Integer>>> memo = memoized("hardness");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Max<Integer> combined = new Annotated.Max<>();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseItem) entry).getCombinedHardness());
 
-    return combined;
+    return memoize("hardness", combined);
   }
 
   /**
@@ -285,6 +301,10 @@ public class Item extends CampaignEntry
     if(m_value.isPresent())
       return new Annotated.Arithmetic<Money>(m_value.get(), getName());
 
+    Optional<Annotated<Optional<Money>>> memo = memoized("value");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Arithmetic<Money> combined = new Annotated.Arithmetic<>();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseItem) entry).getCombinedValue());
@@ -301,7 +321,7 @@ public class Item extends CampaignEntry
     if(m_multiuse.isPresent())
       combined.multiply(m_multiuse.get(), "uses");
 
-    return combined;
+    return memoize("value", combined);
   }
 
   /**
@@ -331,6 +351,23 @@ public class Item extends CampaignEntry
     return items;
   }
 
+  /**
+   * Get the stamp the combined values depend on. For containers, this
+   * includes the contents, as weight and value add them up.
+   *
+   * @return      the combined stamp
+   */
+  @Override
+  protected long getCombinedStamp()
+  {
+    long stamp = super.getCombinedStamp();
+    if(m_contents.isPresent())
+      for(Item item : m_contents.get())
+        stamp = stamp * 31 + item.getCombinedStamp();
+
+    return stamp;
+  }
+
   /**
    * Get the combined hardness of the item, including values of base items.
    *
@@ -436,11 +473,15 @@ public class Item extends CampaignEntry
    */
   public Annotated<Optional<Slot>> getCombinedSlot()
   {
+    Optional<Annotated<Optional<Slot>>> memo = memoized("slot");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Max<Slot> combined = new Annotated.Max<>();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseItem) entry).getCombinedSlot());
 
-    return combined;
+    return memoize("slot", combined);
   }
 
   /**
@@ -1689,7 +1730,39 @@ public class Item extends CampaignEntry
   //---------------------------------------------------------------------------
 
   /** The test. */
-  public static class Test extends net.ixitxachitls.util.test.TestCase
+  public static class Test extends net.ixitxachitls.dma.data.DataStore.Test
   {
+    /** The memoize Test. */
+    @org.junit.Test
+    public void memoize()
+    {
+      BaseItem hard = new BaseItem("Hard");
+      hard.m_hardness = Optional.of(5);
+      BaseItem harder = new BaseItem("Harder");
+      harder.m_hardness = Optional.of(8);
+      DMADataFactory.get().update(hard);
+      DMADataFactory.get().update(harder);
+
+      Item item = new Item("item");
+      item.addBase("Hard");
+      Annotated<Optional<Integer>> hardness = item.getCombinedHardness();
+      assertEquals("hardness", Optional.of(5), hardness.get());
+      assertSame("memoized", hardness, item.getCombinedHardness());
+
+      item.touch();
+      assertNotSame("touched", hardness, item.getCombinedHardness());
+      hardness = item.getCombinedHardness();
+      assertSame("memoized again", hardness, item.getCombinedHardness());
+
+      BaseItem base = (BaseItem)item.getBaseEntries().get(0);
+      base.m_hardness = Optional.of(6);
+      base.changed(true);
+      assertEquals("base changed", Optional.of(6),
+                   item.getCombinedHardness().get());
+
+      item.addBase("Harder");
+      assertEquals("base added", Optional.of(8),
+                   item.getCombinedHardness().get());
+    }
   }
 }
@@ -23,6 +23,7 @@
 package net.ixitxachitls.dma.entries;
 
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.base.Optional;
 
@@ -80,6 +81,27 @@ public class Level extends NestedEntry
     return m_base.get();
   }
 
+  @Override
+  public Optional<EntryKey> getUnresolvedBase()
+  {
+    if(m_base.isPresent() || !m_name.isPresent())
+      return Optional.absent();
+
+    return Optional.of(new EntryKey(m_name.get(), BaseLevel.TYPE));
+  }
+
+  @Override
+  public void resolveBase(Map<EntryKey, ? extends AbstractEntry> inEntries)
+  {
+    Optional<EntryKey> key = getUnresolvedBase();
+    if(!key.isPresent())
+      return;
+
+    AbstractEntry base = inEntries.get(key.get());
+    if(base instanceof BaseLevel)
+      m_base = Optional.of(Optional.of((BaseLevel)base));
+  }
+
   /**
    * Get the abbreviated name of the level.
    *
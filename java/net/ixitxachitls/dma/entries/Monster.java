@@ -24,6 +24,8 @@ package net.ixitxachitls.dma.entries;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.google.common.base.Optional;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -1025,6 +1027,44 @@ public class Monster extends CampaignEntry
     return Collections.unmodifiableList(m_possessions);
   }
 
+  /**
+   * Get all the nested entries of the monster that reference base entries.
+   *
+   * @return the nested entries
+   */
+  protected List<NestedEntry> getNestedEntries()
+  {
+    List<NestedEntry> nested = new ArrayList<>();
+    nested.addAll(m_feats);
+    nested.addAll(m_skills);
+    nested.addAll(m_qualities);
+
+    return nested;
+  }
+
+  @Override
+  public Set<EntryKey> getUnresolvedReferences()
+  {
+    Set<EntryKey> keys = super.getUnresolvedReferences();
+    for(NestedEntry nested : getNestedEntries())
+    {
+      Optional<EntryKey> key = nested.getUnresolvedBase();
+      if(key.isPresent())
+        keys.add(key.get());
+    }
+
+    return keys;
+  }
+
+  @Override
+  public void
+    resolveReferences(Map<EntryKey, ? extends AbstractEntry> inEntries)
+  {
+    super.resolveReferences(inEntries);
+    for(NestedEntry nested : getNestedEntries())
+      nested.resolveBase(inEntries);
+  }
+
   public List<Item> getPossessions(List<String> inNames)
   {
     List<Item> matching = new ArrayList<>();
@@ -1074,13 +1114,17 @@ public class Monster extends CampaignEntry
    */
   public Annotated<Optional<Integer>> getCombinedStrength()
   {
+    Optional<Annotated<Optional<Integer>>> memo = memoized("strength");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Integer combined = new Annotated.Integer();
     if(m_strength.isPresent())
       combined.add(m_strength.get(), getName());
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedStrength());
 
-    return combined;
+    return memoize("strength", combined);
   }
 
   /**
@@ -1115,13 +1159,17 @@ public class Monster extends CampaignEntry
    */
   public Annotated<Optional<Integer>> getCombinedConstitution()
   {
+    Optional<Annotated<Optional<Integer>>> memo = memoized("constitution");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Integer combined = new Annotated.Integer();
     if(m_constitution.isPresent())
       combined.add(m_constitution.get(), getName());
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedConstitution());
 
-    return combined;
+    return memoize("constitution", combined);
   }
 
   /**
@@ -1156,13 +1204,17 @@ public class Monster extends CampaignEntry
    */
   public Annotated<Optional<Integer>> getCombinedDexterity()
   {
+    Optional<Annotated<Optional<Integer>>> memo = memoized("dexterity");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Integer combined = new Annotated.Integer();
     if(m_dexterity.isPresent())
       combined.add(m_dexterity.get(), getName());
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedDexterity());
 
-    return combined;
+    return memoize("dexterity", combined);
   }
 
   /**
@@ -1198,13 +1250,17 @@ public class Monster extends CampaignEntry
    */
   public Annotated<Optional<Integer>> getCombinedIntelligence()
   {
+    Optional<Annotated<Optional<Integer>>> memo = memoized("intelligence");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Integer combined = new Annotated.Integer();
     if(m_intelligence.isPresent())
       combined.add(m_intelligence.get(), getName());
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedIntelligence());
 
-    return combined;
+    return memoize("intelligence", combined);
   }
 
   /**
@@ -1239,13 +1295,17 @@ public class Monster extends CampaignEntry
    */
   public Annotated<Optional<Integer>> getCombinedWisdom()
   {
+    Optional<Annotated<Optional<Integer>>> memo = memoized("wisdom");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Integer combined = new Annotated.Integer();
     if(m_wisdom.isPresent())
       combined.add(m_wisdom.get(), getName());
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedWisdom());
 
-    return combined;
+    return memoize("wisdom", combined);
   }
 
   /**
@@ -1280,13 +1340,17 @@ public class Monster extends CampaignEntry
    */
   public Annotated<Optional<Integer>> getCombinedCharisma()
   {
+    Optional<Annotated<Optional<Integer>>> memo = memoized("charisma");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Integer combined = new Annotated.Integer();
     if(m_charisma.isPresent())
       combined.add(m_charisma.get(), getName());
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedCharisma());
 
-    return combined;
+    return memoize("charisma", combined);
   }
 
   /**
@@ -1311,11 +1375,15 @@ public class Monster extends CampaignEntry
    */
   public Annotated<Optional<Integer>> getCombinedLevelAdjustment()
   {
+    Optional<Annotated<Optional<Integer>>> memo = memoized("levelAdjustment");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Integer combined = new Annotated.Integer();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedLevelAdjustment());
 
-    return combined;
+    return memoize("levelAdjustment", combined);
   }
 
   /**
@@ -1325,11 +1393,15 @@ public class Monster extends CampaignEntry
    */
   public Annotated<Optional<Size>> getCombinedSize()
   {
+    Optional<Annotated<Optional<Size>>> memo = memoized("size");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated<Optional<Size>> combined = new Annotated.Max<>();
     for(BaseEntry entry : getBaseEntries())
       combined.add(((BaseMonster)entry).getCombinedSize());
 
-    return combined;
+    return memoize("size", combined);
   }
 
   /**
@@ -1584,10 +1656,14 @@ public class Monster extends CampaignEntry
    */
   public Annotated.Bonus getCombinedFortitudeSave()
   {
+    Optional<Annotated.Bonus> memo = memoized("fortitudeSave");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Bonus save = getCombinedBaseFortitudeSave();
     save.add(getConstitutionModifier(), "Constitution");
 
-    return save;
+    return memoize("fortitudeSave", save);
   }
 
   /**
@@ -1615,10 +1691,14 @@ public class Monster extends CampaignEntry
    */
   public Annotated.Bonus getCombinedReflexSave()
   {
+    Optional<Annotated.Bonus> memo = memoized("reflexSave");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Bonus save = getCombinedBaseReflexSave();
     save.add(getDexterityModifier(), "Dexterity");
 
-    return save;
+    return memoize("reflexSave", save);
   }
 
   /**
@@ -1646,10 +1726,14 @@ public class Monster extends CampaignEntry
    */
   public Annotated.Bonus getCombinedWillSave()
   {
+    Optional<Annotated.Bonus> memo = memoized("willSave");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Bonus save = getCombinedBaseWillSave();
     save.add(getWisdomModifier(), "Wisdom");
 
-    return save;
+    return memoize("willSave", save);
   }
 
   /**
@@ -1659,11 +1743,15 @@ public class Monster extends CampaignEntry
    */
   public Annotated.Arithmetic<Modifier> getCombinedNaturalArmor()
   {
+    Optional<Annotated.Arithmetic<Modifier>> memo = memoized("naturalArmor");
+    if(memo.isPresent())
+      return memo.get();
+
     Annotated.Arithmetic<Modifier> combined = new Annotated.Arithmetic<>();
     for(BaseEntry base : getBaseEntries())
       combined.add(((BaseMonster)base).getCombinedNaturalArmor());
 
-    return combined;
+    return memoize("naturalArmor", combined);
   }
 
   /**
@@ -143,6 +143,15 @@ public class NPC extends Monster
     return Collections.unmodifiableList(m_levels);
   }
 
+  @Override
+  protected List<NestedEntry> getNestedEntries()
+  {
+    List<NestedEntry> nested = super.getNestedEntries();
+    nested.addAll(m_levels);
+
+    return nested;
+  }
+
   /**
    * Get the cumulated levels.
    *
@@ -22,6 +22,8 @@
 
 package net.ixitxachitls.dma.entries;
 
+import java.util.Map;
+
 import com.google.common.base.Optional;
 
 import net.ixitxachitls.dma.values.Values;
@@ -65,6 +67,28 @@ public abstract class NestedEntry
     return "";
   }
 
+  /**
+   * Get the key of the base entry of this nested entry, if it has one that is
+   * not yet resolved.
+   *
+   * @return the key of the unresolved base entry, if any
+   */
+  public Optional<EntryKey> getUnresolvedBase()
+  {
+    return Optional.absent();
+  }
+
+  /**
+   * Resolve the base entry of this nested entry from the given entries, if it
+   * is not yet resolved and is available.
+   *
+   * @param inEntries the entries available, by key
+   */
+  public void resolveBase(Map<EntryKey, ? extends AbstractEntry> inEntries)
+  {
+    // nested entries don't have bases by default
+  }
+
   /**
    * Set the values of the nested entry.
    *
@@ -75,6 +75,27 @@ public class Quality extends NestedEntry
     return m_base.get();
   }
 
+  @Override
+  public Optional<EntryKey> getUnresolvedBase()
+  {
+    if(m_base.isPresent() || !m_name.isPresent())
+      return Optional.absent();
+
+    return Optional.of(new EntryKey(m_name.get(), BaseQuality.TYPE));
+  }
+
+  @Override
+  public void resolveBase(Map<EntryKey, ? extends AbstractEntry> inEntries)
+  {
+    Optional<EntryKey> key = getUnresolvedBase();
+    if(!key.isPresent())
+      return;
+
+    AbstractEntry base = inEntries.get(key.get());
+    if(base instanceof BaseQuality)
+      m_base = Optional.of(Optional.of((BaseQuality)base));
+  }
+
   /**
    * Get the parameters for the quality.
    *
@@ -23,6 +23,7 @@
 package net.ixitxachitls.dma.entries;
 
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.base.Optional;
 
@@ -78,11 +79,32 @@ public class Skill extends NestedEntry
   {
     if(!m_base.isPresent() && m_name.isPresent())
       m_base = Optional.of(DMADataFactory.get().<BaseSkill>getEntry
-            (new EntryKey(m_name.get(), BaseLevel.TYPE)));
+            (new EntryKey(m_name.get(), BaseSkill.TYPE)));
 
     return m_base.get();
   }
 
+  @Override
+  public Optional<EntryKey> getUnresolvedBase()
+  {
+    if(m_base.isPresent() || !m_name.isPresent())
+      return Optional.absent();
+
+    return Optional.of(new EntryKey(m_name.get(), BaseSkill.TYPE));
+  }
+
+  @Override
+  public void resolveBase(Map<EntryKey, ? extends AbstractEntry> inEntries)
+  {
+    Optional<EntryKey> key = getUnresolvedBase();
+    if(!key.isPresent())
+      return;
+
+    AbstractEntry base = inEntries.get(key.get());
+    if(base instanceof BaseSkill)
+      m_base = Optional.of(Optional.of((BaseSkill)base));
+  }
+
   public int getRanks()
   {
     return m_ranks;
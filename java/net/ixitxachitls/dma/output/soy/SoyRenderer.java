@@ -22,14 +22,17 @@
 package net.ixitxachitls.dma.output.soy;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import javax.annotation.concurrent.Immutable;
 
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.template.soy.data.SoyData;
 import com.google.template.soy.data.SoyMapData;
 
@@ -128,24 +131,6 @@ public class SoyRenderer
   protected static final char s_escape =
     Config.get("resource:writer/escape", '\\');
 
-  /** Marking character for argument starts. */
-  protected static final char s_markArgStart = '\001';
-
-  /** Marking character for argument ends. */
-  protected static final char s_markArgEnd = '\002';
-
-  /** Marking character for optional argument starts. */
-  protected static final char s_markOptArgStart = '\003';
-
-  /** Marking character for optional argument ends. */
-  protected static final char s_markOptArgEnd = '\004';
-
-  /** Marking character for escaped start. */
-  protected static final char s_markStart = '\005';
-
-  /** Marking character for escaped end. */
-  protected static final char s_markEnd = '\006';
-
   /** The characters that are allowed in 'special character only commands'. */
   private static final String s_special = "<>=!~*#$%@?+|";
 
@@ -156,6 +141,12 @@ public class SoyRenderer
   /** The prefix for commands rendered. */
   private String m_commandPrefix = "dma.commands";
 
+  /** The rendered texts with commands, by the original text. */
+  private final Cache<String, String> m_commands =
+    CacheBuilder.newBuilder()
+    .maximumSize(Config.get("web.commands.size", 1000))
+    .build();
+
   static
   {
     // fill in the default special names
@@ -259,6 +250,17 @@ public class SoyRenderer
     return m_template.renderSoy(inName, m_data, m_injected);
   }
 
+  /**
+   * Render the template named directly into the given output.
+   *
+   * @param       inName      the name of the template to render.
+   * @param       ioOutput    the output to render to
+   */
+  public void render(String inName, Appendable ioOutput)
+  {
+    m_template.renderSoy(inName, m_data, m_injected, ioOutput);
+  }
+
   /**
    * Render the template named.
    *
@@ -287,10 +289,14 @@ public class SoyRenderer
   public void recompile()
   {
     m_template.recompile();
+    m_commands.invalidateAll();
   }
 
   /**
-   * Render the commands in the given text.
+   * Render the commands in the given text. As rendering commands does not
+   * depend on any data set for rendering, the rendered texts are cached.
+   * They are not shared between instances, as rendering a text is much
+   * faster than a memcache request.
    *
    * @param    inText the text containing commands
    *
@@ -306,220 +312,372 @@ public class SoyRenderer
     if(text.indexOf(s_command) < 0)
       return text;
 
-    // mark the brackets in the text
-    final StringBuilder builder = new StringBuilder();
-    text = markBrackets(text, s_escape, s_argStart, s_argEnd,
-                        s_markArgStart, s_markArgEnd);
-    text = markBrackets(text, s_escape, s_optArgStart, s_optArgEnd,
-                        s_markOptArgStart, s_markOptArgEnd);
+    String rendered = m_commands.getIfPresent(text);
+    if(rendered != null)
+      return rendered;
 
-    for(int start = 0; start < text.length(); )
-    {
-      // search the first command (don't accept escaped commands)
-      int pos = -1;
-      for(pos = text.indexOf(s_command, start); pos >= 0;
-          pos = text.indexOf(s_command, pos + 1))
-        if((pos == 0 || text.charAt(pos - 1) != s_escape)
-           && (s_escape != s_command || text.charAt(pos + 1) != s_command)
-           && (Character.isLetterOrDigit(text.charAt(pos + 1))
-               || s_special.indexOf(text.charAt(pos + 1)) >= 0))
-          break;
-
-      if(pos < 0)
-      {
-        // no commands any more
-        builder.append(clean(text.substring(start)));
+    StringBuilder builder = new StringBuilder(text.length() * 2);
+    boolean valid = true;
+    for(Node node : parse(text))
+      valid &= node.render(this, builder);
 
-        break;
-      }
+    rendered = builder.toString();
 
-      // intermediate text
-      if(pos > 0)
-        builder.append(clean(text.substring(start, pos)));
+    // Don't cache errors, they might go away when templates are fixed.
+    if(valid)
+      m_commands.put(text, rendered);
 
-      // ok, we really have a command now
-      int end = pos + 1;
-      if(Character.isLetterOrDigit(text.charAt(end)))
-      {
-        for( ; end < text.length(); end++)
-          if(!Character.isLetterOrDigit(text.charAt(end)))
-            break;
-      }
-      else
-        for( ; end < text.length(); end++)
-          if(s_special.indexOf(text.charAt(end)) < 0)
-            break;
+    return rendered;
+  }
 
-      final String name = text.substring(pos + 1, end);
+  /**
+   * Render the given command.
+   *
+   * @param inName      the name of the command
+   * @param inOptionals the rendered optional arguments
+   * @param inArguments the rendered arguments
+   * @param outBuilder  the builder to render into
+   * @return true if the command was rendered, false if there was an error
+   */
+  private boolean renderCommand(String inName, List<String> inOptionals,
+                                List<String> inArguments,
+                                StringBuilder outBuilder)
+  {
+    // now we try to render the command (we have to use an additional
+    // template to avoid exceptions because a rendering is already in place)
+    // TODO: need to catch proper exception here
+    try
+    {
+      outBuilder.append(m_template.renderSoy
+          (m_commandPrefix + "." + inName,
+           Optional.of(new SoyMapData("opt", inOptionals, "arg", inArguments)),
+           Optional.<SoyMapData>absent()));
+      return true;
+    }
+    catch(com.google.template.soy.tofu.SoyTofuException e)
+    {
+      // we assume the template does not exist, thus let's just add an error
+      outBuilder.append("<div class=\"error\">" + inName + ": "
+                        + e.getMessage() + "</div>");
+      e.printStackTrace(System.err);
+      return false;
+    }
+  }
 
-      // extract the optional arguments
-      final List<String> optionals = new ArrayList<String>();
+  /** A part of a text with commands. */
+  private abstract static class Node
+  {
+    /**
+     * Render the node.
+     *
+     * @param inRenderer the renderer to render commands with
+     * @param outBuilder the builder to render into
+     * @return true if rendered without errors, false if not
+     */
+    abstract boolean render(SoyRenderer inRenderer, StringBuilder outBuilder);
+  }
 
-      Pattern pattern = Pattern.compile("^\\s*" + s_markOptArgStart
-                                        + "<(\\d+)>((?:[^" + s_markOptArgEnd
-                                        + "]*?" + s_markOptArgEnd
-                                        + "<\\1>\\s*" + s_markOptArgStart
-                                        + "<\\1>)*[^" + s_markOptArgEnd
-                                        + "]*?)" + s_markOptArgEnd + "<\\1>");
+  /** A plain text without commands. */
+  @Immutable
+  private static class Text extends Node
+  {
+    /**
+     * Create the text node.
+     *
+     * @param inText the text
+     */
+    Text(String inText)
+    {
+      m_text = inText;
+    }
 
-      Matcher matcher = pattern.matcher(text.substring(end));
-      if(matcher.find())
-      {
-        String []args = matcher.group(2).split(s_markOptArgEnd + "<"
-                                               + matcher.group(1) + ">\\s*"
-                                               + s_markOptArgStart + "<"
-                                               + matcher.group(1) + ">");
+    /** The text. */
+    private final String m_text;
 
-        end += matcher.end();
+    @Override
+    boolean render(SoyRenderer inRenderer, StringBuilder outBuilder)
+    {
+      outBuilder.append(m_text);
+      return true;
+    }
 
-        // now we have all the arguments, we need to parse them as well
-        for(int i = 0; i < args.length; i++)
-          optionals.add(renderCommands(args[i]));
-      }
+    @Override
+    public String toString()
+    {
+      return m_text;
+    }
+  }
+
+  /** A command with its optional and real arguments. */
+  @Immutable
+  private static class Command extends Node
+  {
+    /**
+     * Create the command node.
+     *
+     * @param inName      the name of the command
+     * @param inOptionals the parsed optional arguments
+     * @param inArguments the parsed arguments
+     */
+    Command(String inName, List<List<Node>> inOptionals,
+            List<List<Node>> inArguments)
+    {
+      m_name = inName;
+      m_optionals = inOptionals;
+      m_arguments = inArguments;
+    }
 
-      // extract the arguments (we have to copy the above because we need to
-      // update the position in the String as well as extracting the arguments;
-      // to solve that, the method would not be able to be static)
-      final List<String> arguments = new ArrayList<String>();
+    /** The name of the command. */
+    private final String m_name;
 
-      pattern = Pattern.compile("^\\s*" + s_markArgStart + "<(\\d+)>((?:[^"
-                                + s_markArgEnd + "]*?" + s_markArgEnd
-                                + "<\\1>\\s*" + s_markArgStart
-                                + "<\\1>)*[^" + s_markArgEnd + "]*?)"
-                                + s_markArgEnd + "<\\1>");
+    /** The optional arguments. */
+    private final List<List<Node>> m_optionals;
 
-      matcher = pattern.matcher(text.substring(end));
-      if(matcher.find())
-      {
-        String []args = matcher.group(2).split(s_markArgEnd + "<"
-                                               + matcher.group(1) + ">\\s*"
-                                               + s_markArgStart + "<"
-                                               + matcher.group(1) + ">");
+    /** The arguments. */
+    private final List<List<Node>> m_arguments;
 
-        end += matcher.end();
+    @Override
+    boolean render(SoyRenderer inRenderer, StringBuilder outBuilder)
+    {
+      List<String> optionals = new ArrayList<>(m_optionals.size());
+      List<String> arguments = new ArrayList<>(m_arguments.size());
+      boolean valid = render(inRenderer, m_optionals, optionals);
+      valid &= render(inRenderer, m_arguments, arguments);
 
-        // now we have all the arguments, we need to parse them as well
-        for(int i = 0; i < args.length; i++)
-          arguments.add(renderCommands(args[i]));
-      }
+      return inRenderer.renderCommand(m_name, optionals, arguments, outBuilder)
+        && valid;
+    }
 
-      // now we try to render the command (we have to use an additional
-      // template to avoid exceptions because a rendering is already in place)
-      // TODO: need to catch proper exception here
-      try
+    /**
+     * Render the given arguments.
+     *
+     * @param inRenderer  the renderer to render commands with
+     * @param inArguments the arguments to render
+     * @param outRendered the list to add the rendered arguments to
+     * @return true if all arguments were rendered without errors
+     */
+    private static boolean render(SoyRenderer inRenderer,
+                                  List<List<Node>> inArguments,
+                                  List<String> outRendered)
+    {
+      boolean valid = true;
+      for(List<Node> argument : inArguments)
       {
-        builder.append(m_template.renderSoy
-            (m_commandPrefix + "." + name,
-             Optional.of(new SoyMapData("opt", optionals, "arg", arguments)),
-             Optional.<SoyMapData>absent()));
+        StringBuilder builder = new StringBuilder();
+        for(Node node : argument)
+          valid &= node.render(inRenderer, builder);
+
+        outRendered.add(builder.toString());
       }
-      catch(com.google.template.soy.tofu.SoyTofuException e)
+
+      return valid;
+    }
+
+    @Override
+    public String toString()
+    {
+      return s_command + m_name + m_optionals + m_arguments;
+    }
+  }
+
+  /**
+   * Parse the given text into plain texts and commands. Commands have the
+   * form \\name[optional]...{argument}..., where the arguments are again
+   * parsed for commands. Escaped brackets and brackets that don't match are
+   * treated as normal text.
+   *
+   * @param    inText the text to parse
+   *
+   * @return   the nodes parsed
+   */
+  static List<Node> parse(String inText)
+  {
+    return parse(inText, 0, inText.length(),
+                 match(inText, s_argStart, s_argEnd),
+                 match(inText, s_optArgStart, s_optArgEnd));
+  }
+
+  /**
+   * Parse the given range of the text into plain texts and commands.
+   *
+   * @param    inText      the text to parse
+   * @param    inStart     the start of the range to parse
+   * @param    inEnd       the end of the range to parse (exclusive)
+   * @param    inArgs      the positions of the matching argument ends
+   * @param    inOptionals the positions of the matching optional argument
+   *                       ends
+   *
+   * @return   the nodes parsed
+   */
+  private static List<Node> parse(String inText, int inStart, int inEnd,
+                                  int []inArgs, int []inOptionals)
+  {
+    List<Node> nodes = new ArrayList<>();
+    int start = inStart;
+    for(int pos = inStart; pos < inEnd; pos++)
+    {
+      if(!isCommand(inText, pos, inStart, inEnd))
+        continue;
+
+      // intermediate text
+      if(pos > start)
+        nodes.add(new Text(inText.substring(start, pos)));
+
+      // ok, we really have a command now
+      int end = pos + 1;
+      if(Character.isLetterOrDigit(inText.charAt(end)))
       {
-        // we assume the template does not exist, thus let's just add an error
-        builder.append("<div class=\"error\">" + name + ": " + e.getMessage()
-                       + "</div>");
-        e.printStackTrace(System.err);
+        for( ; end < inEnd; end++)
+          if(!Character.isLetterOrDigit(inText.charAt(end)))
+            break;
       }
+      else
+        for( ; end < inEnd; end++)
+          if(s_special.indexOf(inText.charAt(end)) < 0)
+            break;
+
+      String name = inText.substring(pos + 1, end);
+
+      List<List<Node>> optionals = new ArrayList<>();
+      end = parseArguments(inText, end, inEnd, s_optArgStart, inOptionals,
+                           inArgs, inOptionals, optionals);
+
+      List<List<Node>> arguments = new ArrayList<>();
+      end = parseArguments(inText, end, inEnd, s_argStart, inArgs, inArgs,
+                           inOptionals, arguments);
+
+      nodes.add(new Command(name, optionals, arguments));
 
       // if no arguments were found, then skip the character directly following
       // the command (must be a white space)
-      if(arguments.size() == 0 && optionals.size() == 0
-         && text.length() > end
-         && Character.isWhitespace(text.charAt(end)))
+      if(arguments.isEmpty() && optionals.isEmpty() && end < inEnd
+         && Character.isWhitespace(inText.charAt(end)))
         end++;
 
       start = end;
+      pos = end - 1;
     }
 
-    return builder.toString();
+    if(start < inEnd)
+      nodes.add(new Text(inText.substring(start, inEnd)));
+
+    return nodes;
   }
 
   /**
-   * Mark (and remove) the brackets given as arguments in the given string.
-   * Brackets are marked with a number denoting their nesting level, i.e.
-   * with marker<0> for nesting level 0.
+   * Check whether a command starts at the given position.
    *
-   * @param       inText        the text to replace in
-   * @param       inEscape      the escape character to denote brackets to
-   *                            ignore
-   * @param       inStart       the start bracket character
-   * @param       inEnd         the end bracket character
-   * @param       inMarkerStart the character to use as marker start (will be
-   *                            followed by the nesting level in pointy
-   *                            brackets)
-   * @param       inMarkerEnd   the character to use as marker end (will be
-   *                            followed by the nesting level in pointy
-   *                            brackets)
+   * @param    inText  the text to check in
+   * @param    inPos   the position to check
+   * @param    inStart the start of the range parsed
+   * @param    inEnd   the end of the range parsed
    *
-   * @return      the text with all brackets replaced
+   * @return   true if a command starts, false if not
    */
-  public static String markBrackets(String inText, char inEscape,
-                                    char inStart, char inEnd,
-                                    char inMarkerStart, char inMarkerEnd)
+  private static boolean isCommand(String inText, int inPos, int inStart,
+                                   int inEnd)
   {
-    assert inStart != '<' : "cannot replace '<' brackets";
-    assert inEnd != '>' : "cannot replace '>' brackets";
-
-    // remove all escaped markers
-    inText = inText.replaceAll("\\" + inEscape + "\\" + inStart,
-                               "" + s_markStart);
-    inText = inText.replaceAll("\\" + inEscape + "\\" + inEnd, "" + s_markEnd);
-
-    // we mark all bracket markers for easier replacement
-    Pattern pattern = Pattern.compile("\\" + inStart + "([^\\" + inStart
-                                      + "\\" + inEnd + "]*?)\\" + inEnd,
-                                      Pattern.DOTALL);
-
-    int i = 0;
-    for(Matcher matcher = pattern.matcher(inText); matcher.find(0);
-        matcher = pattern.matcher(inText))
-      // replace the nested brackets
-      inText = matcher.replaceAll(inMarkerStart + "<#" + i + "#>$1"
-                                  + inMarkerEnd + "<#" + i++ + "#>");
-
-    // 'invert' the number to make sure that really the nesting level starts
-    // at 0 on the outside not on the inside
-    // with the above, {{}} is {<1>{<0>}<0>}<1> instead of {<0>{<1>}<1>}<0>
-    pattern = Pattern.compile(inMarkerStart + "<#(\\d+)#>(.*?)"
-                              + inMarkerEnd + "<#\\1#>", Pattern.DOTALL);
-
-    i = 0;
-    for(Matcher matcher = pattern.matcher(inText);
-        matcher.find(0);
-        matcher = pattern.matcher(inText))
-      // replace the nested brackets
-      inText = matcher.replaceAll(inMarkerStart + "<" + i + ">$2"
-                                  + inMarkerEnd + "<" + i++ + ">");
-
-    // replace all non 0 markers (we can't leave nested markers or parsing
-    // of multiple arguments may fail
-    inText = inText.replaceAll(inMarkerStart + "<[1-9]\\d*>", "" + inStart);
-    inText = inText.replaceAll(inMarkerEnd   + "<[1-9]\\d*>", "" + inEnd);
-
-    // replace removed escaped markers
-    inText = inText.replaceAll("" + s_markStart, "\\" + inEscape + inStart);
-    inText = inText.replaceAll("" + s_markEnd, "\\" + inEscape + inEnd);
-
-    return inText;
+    if(inText.charAt(inPos) != s_command || inPos + 1 >= inEnd)
+      return false;
+
+    // don't accept escaped commands
+    char next = inText.charAt(inPos + 1);
+    return (inPos == inStart || inText.charAt(inPos - 1) != s_escape)
+      && (s_escape != s_command || next != s_command)
+      && (Character.isLetterOrDigit(next) || s_special.indexOf(next) >= 0);
   }
 
   /**
-   * Remove all the markers from the text and replace the brackets back.
+   * Parse the arguments starting at the given position. Arguments can be
+   * separated by white space.
    *
-   * @param       inText the text to replace the markers
+   * @param    inText      the text to parse
+   * @param    inStart     the position where arguments may start
+   * @param    inEnd       the end of the range parsed
+   * @param    inOpen      the character opening an argument
+   * @param    inMatches   the positions of the matching ends for the
+   *                       arguments to parse
+   * @param    inArgs      the positions of the matching argument ends
+   * @param    inOptionals the positions of the matching optional argument
+   *                       ends
+   * @param    outArguments the list to add parsed arguments to
    *
-   * @return      the replaced text
+   * @return   the position after the last argument parsed
+   */
+  private static int parseArguments(String inText, int inStart, int inEnd,
+                                    char inOpen, int []inMatches,
+                                    int []inArgs, int []inOptionals,
+                                    List<List<Node>> outArguments)
+  {
+    int end = inStart;
+    for(int pos = skipWhitespace(inText, end, inEnd);
+        pos < inEnd && inText.charAt(pos) == inOpen && inMatches[pos] > pos
+          && inMatches[pos] < inEnd;
+        pos = skipWhitespace(inText, end, inEnd))
+    {
+      outArguments.add(parse(inText, pos + 1, inMatches[pos], inArgs,
+                             inOptionals));
+      end = inMatches[pos] + 1;
+    }
+
+    // multiple arguments never end with empty ones
+    if(outArguments.size() > 1)
+      while(!outArguments.isEmpty()
+            && outArguments.get(outArguments.size() - 1).isEmpty())
+        outArguments.remove(outArguments.size() - 1);
+
+    return end;
+  }
+
+  /**
+   * Skip any white space at the given position.
+   *
+   * @param    inText  the text to skip in
+   * @param    inStart the position to start skipping
+   * @param    inEnd   the position where to stop at latest
    *
+   * @return   the position of the first character not white space
    */
-  protected static String clean(String inText)
+  private static int skipWhitespace(String inText, int inStart, int inEnd)
   {
-    inText = inText.replaceAll(s_markArgStart + "<\\d+>", "" + s_argStart);
-    inText = inText.replaceAll(s_markArgEnd + "<\\d+>", "" + s_argEnd);
-    inText = inText.replaceAll(s_markOptArgStart + "<\\d+>",
-                               "" + s_optArgStart);
-    inText = inText.replaceAll(s_markOptArgEnd + "<\\d+>", "" + s_optArgEnd);
+    int pos = inStart;
+    while(pos < inEnd && Character.isWhitespace(inText.charAt(pos)))
+      pos++;
 
-    return inText;
+    return pos;
+  }
+
+  /**
+   * Match the given brackets in the text. Escaped brackets are ignored, as are
+   * brackets that don't have a matching counterpart.
+   *
+   * @param       inText  the text to match in
+   * @param       inStart the start bracket character
+   * @param       inEnd   the end bracket character
+   *
+   * @return      for each position in the text with a start bracket, the
+   *              position of the matching end bracket, or -1 if there is none
+   */
+  static int []match(String inText, char inStart, char inEnd)
+  {
+    int []matches = new int[inText.length()];
+    Arrays.fill(matches, -1);
+
+    int []open = new int[inText.length()];
+    int depth = 0;
+    for(int i = 0; i < inText.length(); i++)
+    {
+      char c = inText.charAt(i);
+      if(c == s_escape && i + 1 < inText.length()
+         && (inText.charAt(i + 1) == inStart || inText.charAt(i + 1) == inEnd))
+        i++;
+      else if(c == inStart)
+        open[depth++] = i;
+      else if(c == inEnd && depth > 0)
+        matches[open[--depth]] = i;
+    }
+
+    return matches;
   }
 
   //---------------------------------------------------------------------------
@@ -560,23 +718,47 @@ public class SoyRenderer
                                                 "second", "second injected"))));
     }
 
-    /** Testing marking of passages. */
+    /** Testing matching of brackets. */
+    @org.junit.Test
+    public void match()
+    {
+      assertEquals("simple", "[3, -1, -1, -1]",
+                   java.util.Arrays.toString
+                   (SoyRenderer.match("{ab}", '{', '}')));
+      assertEquals("nested", "[5, 4, -1, -1, -1, -1]",
+                   java.util.Arrays.toString
+                   (SoyRenderer.match("{{ab}}", '{', '}')));
+      assertEquals("escaped", "[6, -1, -1, -1, -1, -1, -1]",
+                   java.util.Arrays.toString
+                   (SoyRenderer.match("{a\\{\\}}", '{', '}')));
+      assertEquals("incomplete", "[-1, 3, -1, -1, -1]",
+                   java.util.Arrays.toString
+                   (SoyRenderer.match("{{b}{", '{', '}')));
+    }
+
+    /** Testing parsing of commands. */
     @org.junit.Test
-    public void mark()
+    public void parse()
     {
-      assertEquals("simple", "\001<0>abc\002<0>",
-                   markBrackets("{abc}", '\\', '{', '}', '\001', '\002'));
-      assertEquals("multiple", "\001<0>abc\002<0>  \001<0>\002<0>",
-                   markBrackets("{abc}  {}", '\\', '{', '}', '\001', '\002'));
-      assertEquals("nested",
-                   "\001<0>a{b{}}{{}}c\002<0>\001<0>\002<0>",
-                   markBrackets("{a{b{}}{{}}c}{}", '\\', '{', '}', '\001',
-                                '\002'));
-      assertEquals("escaped", "\001<0>a\\{b\\}c\002<0>",
-                   markBrackets("{a\\{b\\}c}", '\\', '{', '}', '\001',
-                                '\002'));
-      assertEquals("incomplete", "{a\001<0>b\002<0>{",
-                   markBrackets("{a{b}{", '\\', '{', '}', '\001', '\002'));
+      assertEquals("text", "[just a text]",
+                   SoyRenderer.parse("just a text").toString());
+      assertEquals("command", "[just a , \\bold[][[command]]]",
+                   SoyRenderer.parse("just a \\bold{command}").toString());
+      assertEquals("arguments",
+                   "[\\a[[x], [y]][[b], [c, \\d[][], e]], f]",
+                   SoyRenderer.parse("\\a[x] [y]{b} {c\\d e}f").toString());
+      assertEquals("nested", "[\\a[][[\\b[][[{x}]]]]]",
+                   SoyRenderer.parse("\\a{\\b{{x}}}").toString());
+      assertEquals("escaped", "[a \\{b\\} \\\\c]",
+                   SoyRenderer.parse("a \\{b\\} \\\\c").toString());
+      assertEquals("empty", "[\\a[][[x]], \\b[][[]], c]",
+                   SoyRenderer.parse("\\a{x}{}\\b{}c").toString());
+      assertEquals("incomplete", "[\\a[][], {b]",
+                   SoyRenderer.parse("\\a{b").toString());
+      assertEquals("special", "[\\<=[][], x]",
+                   SoyRenderer.parse("\\<= x").toString());
+      assertEquals("trailing", "[a\\]",
+                   SoyRenderer.parse("a\\").toString());
     }
   }
 }
@@ -31,6 +31,8 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.AbstractModule;
@@ -57,7 +59,9 @@ import com.google.template.soy.tofu.restricted.SoyTofuFunction;
 
 import net.ixitxachitls.dma.data.DMADataFactory;
 import net.ixitxachitls.dma.entries.AbstractEntry;
+import net.ixitxachitls.dma.entries.BaseSpell;
 import net.ixitxachitls.dma.entries.EntryKey;
+import net.ixitxachitls.dma.values.Parameters;
 import net.ixitxachitls.util.Encodings;
 import net.ixitxachitls.util.Strings;
 import net.ixitxachitls.util.configuration.Config;
@@ -324,6 +328,79 @@ public class SoyTemplate
     }
   }
 
+  /**
+   * A plugin function to compute the summary of a spell for a caster level
+   * and an optional spell DC. Without a DC, the DC is computed from the lowest
+   * level of the spell.
+   */
+  public static class SummaryFunction implements SoyTofuFunction
+  {
+    @Override
+    public String getName()
+    {
+      return "summary";
+    }
+
+    @Override
+    public Set<Integer> getValidArgsSizes()
+    {
+      return ImmutableSet.of(2, 3);
+    }
+
+    @Override
+    public SoyData computeForTofu(List<SoyData> inArgs)
+    {
+      if(!(inArgs.get(0) instanceof SoyValue)
+         || !(((SoyValue)inArgs.get(0)).getValue() instanceof BaseSpell))
+        return new SoyUndefined("summary");
+
+      BaseSpell spell = (BaseSpell)((SoyValue)inArgs.get(0)).getValue();
+      Optional<Integer> level = integer(inArgs.get(1));
+      if(!level.isPresent())
+        return new SoyUndefined("summary");
+
+      Optional<Integer> dc = inArgs.size() > 2
+        ? integer(inArgs.get(2)) : Optional.<Integer>absent();
+      if(!dc.isPresent())
+      {
+        int lowest = Integer.MAX_VALUE;
+        for(BaseSpell.Level spellLevel : spell.getLevels())
+          lowest = Math.min(lowest, spellLevel.getLevel());
+
+        dc = Optional.of(10 + (lowest == Integer.MAX_VALUE ? 0 : lowest));
+      }
+
+      Optional<String> summary =
+        spell.getSummary(new Parameters().with("level", level.get())
+                         .with("dc", dc.get()));
+      if(!summary.isPresent())
+        return new SoyUndefined("summary");
+
+      return StringData.forValue(summary.get());
+    }
+
+    /**
+     * Convert the given soy argument into an integer.
+     *
+     * @param inData the argument to convert
+     * @return the integer value, if the argument is a number
+     */
+    private static Optional<Integer> integer(@Nullable SoyData inData)
+    {
+      if(inData == null || inData instanceof SoyUndefined)
+        return Optional.absent();
+
+      try
+      {
+        return Optional.of(Integer.valueOf(inData.toString().trim()));
+      }
+      catch(NumberFormatException e)
+      {
+        return Optional.absent();
+      }
+    }
+  }
+
   /** A plugin function to format numbers or printing. */
   public static class FormatNumberFunction implements SoyTofuFunction
   {
@@ -654,6 +731,7 @@ public class SoyTemplate
       soyFunctionsSetBinder.addBinding().to(LowerFunction.class);
       soyFunctionsSetBinder.addBinding().to(MatchesFunction.class);
       soyFunctionsSetBinder.addBinding().to(CommandsFunction.class);
+      soyFunctionsSetBinder.addBinding().to(SummaryFunction.class);
 
       Multibinder<SoyPrintDirective> soyDirectivesSetBinder =
         Multibinder.newSetBinder(binder(), SoyPrintDirective.class);
@@ -729,6 +807,39 @@ public class SoyTemplate
   public String renderSoy(String inName,
                           Optional<SoyMapData> inData,
                           Optional<SoyMapData> inInjected)
+  {
+    return newRenderer(inName, inData, inInjected).render();
+  }
+
+  /**
+   * Render the template named directly into the given output, without
+   * creating the complete text first.
+   *
+   * @param       inName      the name of the template to render.
+   * @param       inData      the data for the template.
+   * @param       inInjected  the injected data for the template.
+   * @param       ioOutput    the output to render to
+   */
+  public void renderSoy(String inName,
+                        Optional<SoyMapData> inData,
+                        Optional<SoyMapData> inInjected,
+                        Appendable ioOutput)
+  {
+    newRenderer(inName, inData, inInjected).render(ioOutput);
+  }
+
+  /**
+   * Create the soy renderer for the template named.
+   *
+   * @param       inName      the name of the template to render.
+   * @param       inData      the data for the template.
+   * @param       inInjected  the injected data for the template.
+   *
+   * @return      the renderer with all data set
+   */
+  private SoyTofu.Renderer newRenderer(String inName,
+                                       Optional<SoyMapData> inData,
+                                       Optional<SoyMapData> inInjected)
   {
     compile();
 
@@ -740,7 +851,7 @@ public class SoyTemplate
     else
       renderer.setIjData(new SoyMapData());
 
-    return renderer.render();
+    return renderer;
   }
 
   /**
@@ -876,5 +987,37 @@ public class SoyTemplate
                 Optional.of(SoyTemplate.map("first", "first injected",
                                             "second", "second injected"))));
     }
+
+    /** The summary Test. */
+    @org.junit.Test
+    public void summary()
+    {
+      BaseSpell spell = new BaseSpell("spell");
+      spell.fromProto(((net.ixitxachitls.dma.proto.Entries.BaseSpellProto)
+                       spell.toProto()).toBuilder()
+                      .setSummary("[[min(5, $level / 2)]]d8 (DC $dc)")
+                      .build());
+      SummaryFunction function = new SummaryFunction();
+      SoyValue entry = new SoyValue("entry", spell);
+
+      assertEquals("level", "3d8 (DC 10)",
+                   function.computeForTofu
+                   (Arrays.<SoyData>asList(entry, StringData.forValue("7")))
+                   .toString());
+      assertEquals("dc", "5d8 (DC 14)",
+                   function.computeForTofu
+                   (Arrays.<SoyData>asList(entry, IntegerData.forValue(12),
+                                           StringData.forValue("14")))
+                   .toString());
+      assertTrue("no level",
+                 function.computeForTofu
+                 (Arrays.<SoyData>asList(entry, StringData.forValue("x")))
+                 instanceof SoyUndefined);
+      assertTrue("no spell",
+                 function.computeForTofu
+                 (Arrays.<SoyData>asList(new SoyValue("entry", "text"),
+                                         StringData.forValue("1")))
+                 instanceof SoyUndefined);
+    }
   }
 }
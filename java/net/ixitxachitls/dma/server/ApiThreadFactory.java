@@ -0,0 +1,178 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.server;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.appengine.tools.remoteapi.RemoteApiInstaller;
+import com.google.appengine.tools.remoteapi.RemoteApiOptions;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Optional;
+
+/**
+ * A factory for threads that can use the app engine apis. The remote api is
+ * only installed for the thread installing it, thus each thread created
+ * installs it again when started and uninstalls it when done. Without remote
+ * api options, the threads use the api environment of the thread creating
+ * the factory instead (e.g. a local datastore when testing).
+ *
+ * @file          ApiThreadFactory.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public class ApiThreadFactory implements ThreadFactory
+{
+  /**
+   * Create the factory.
+   *
+   * @param inName    the name of the threads created
+   * @param inOptions the options for installing the remote api, if any
+   */
+  public ApiThreadFactory(String inName, Optional<RemoteApiOptions> inOptions)
+  {
+    m_name = inName;
+    m_options = inOptions;
+    m_environment = ApiProxy.getCurrentEnvironment();
+  }
+
+  /** The name of the threads. */
+  private final String m_name;
+
+  /** The options for installing the remote api, if any. */
+  private final Optional<RemoteApiOptions> m_options;
+
+  /** The api environment to use without remote api. */
+  private final @Nullable ApiProxy.Environment m_environment;
+
+  /** The number of threads created. */
+  private final AtomicInteger m_threads = new AtomicInteger();
+
+  /** The remote api installed for the current thread, if any. */
+  private final ThreadLocal<RemoteApiInstaller> m_installer =
+    new ThreadLocal<>();
+
+  @Override
+  public Thread newThread(final Runnable inRunnable)
+  {
+    return new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          install();
+          try
+          {
+            inRunnable.run();
+          }
+          finally
+          {
+            uninstall();
+          }
+        }
+      }, m_name + "-" + m_threads.incrementAndGet());
+  }
+
+  /**
+   * Install the api for the current thread. Threads created by this factory
+   * do this automatically.
+   */
+  public void install()
+  {
+    if(!m_options.isPresent())
+    {
+      if(m_environment != null)
+        ApiProxy.setEnvironmentForCurrentThread(m_environment);
+
+      return;
+    }
+
+    RemoteApiInstaller installer = new RemoteApiInstaller();
+    try
+    {
+      installer.install(m_options.get());
+    }
+    catch(IOException e)
+    {
+      throw new IllegalStateException("cannot install remote api for "
+                                      + Thread.currentThread().getName(), e);
+    }
+
+    m_installer.set(installer);
+  }
+
+  /**
+   * Uninstall the api for the current thread.
+   */
+  public void uninstall()
+  {
+    RemoteApiInstaller installer = m_installer.get();
+    if(installer != null)
+    {
+      installer.uninstall();
+      m_installer.remove();
+    }
+    else if(!m_options.isPresent() && m_environment != null)
+      ApiProxy.clearEnvironmentForCurrentThread();
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends net.ixitxachitls.dma.data.DataStore.Test
+  {
+    /**
+     * The thread Test.
+     *
+     * @throws Exception should not happen
+     */
+    @org.junit.Test
+    public void thread() throws Exception
+    {
+      final ApiProxy.Environment []environment = new ApiProxy.Environment[1];
+      ApiThreadFactory factory =
+        new ApiThreadFactory("test", Optional.<RemoteApiOptions>absent());
+      Thread thread = factory.newThread(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            environment[0] = ApiProxy.getCurrentEnvironment();
+          }
+        });
+
+      assertEquals("name", "test-1", thread.getName());
+      thread.start();
+      thread.join();
+
+      assertNotNull("environment", environment[0]);
+      assertSame("same environment", ApiProxy.getCurrentEnvironment(),
+                 environment[0]);
+    }
+  }
+}
@@ -24,22 +24,32 @@
 package net.ixitxachitls.dma.server;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entities;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.images.ImagesService;
 import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.appengine.api.images.ServingUrlOptions;
@@ -48,14 +58,18 @@ import com.google.appengine.tools.remoteapi.RemoteApiInstaller;
 import com.google.appengine.tools.remoteapi.RemoteApiOptions;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
-import com.google.common.io.ByteSink;
-import com.google.common.io.CharSink;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import com.google.protobuf.Message;
 
 import net.ixitxachitls.dma.data.DMADatastore;
 import net.ixitxachitls.dma.entries.AbstractEntry;
+import net.ixitxachitls.dma.entries.BaseItem;
+import net.ixitxachitls.dma.proto.Entries.BaseItemProto;
 import net.ixitxachitls.util.CommandLineParser;
 import net.ixitxachitls.util.Files;
+import net.ixitxachitls.util.PackedFile;
 import net.ixitxachitls.util.logging.ANSILogger;
 import net.ixitxachitls.util.logging.Log;
 
@@ -68,7 +82,10 @@ import net.ixitxachitls.util.logging.Log;
  * -h jdmaixit.appspot.com -p 443 -u balsiger@ixitxachitls.net <dir>
  *
  * Exports base  characters from the datastore to file file.dma
- * (leave out host and port for local storage).
+ * (leave out host and port for local storage). With -c, only the entries
+ * changed since the last complete export into the directory are exported.
+ * Files whose content did not change are not rewritten. With -s, all entries
+ * are written into a single packed snapshot file that can be imported again.
  *
  * @file          Exporter.java
  * @author        balsiger@ixitxachitls.net (Peter Balsiger)
@@ -78,10 +95,26 @@ import net.ixitxachitls.util.logging.Log;
 public final class Exporter
 {
   /**
-   * Prevent instantiation.
+   * Create the exporter.
+   *
+   * @param inThreads  the number of threads to use for converting and for
+   *                   writing entries each
+   * @param inSnapshot the snapshot to write entries to, if not writing them
+   *                   into individual files
+   * @param inOptions  the options to install the remote api in the threads
+   *                   used, if any
    */
-  private Exporter()
+  private Exporter(int inThreads, Optional<PackedFile.Writer> inSnapshot,
+                   Optional<RemoteApiOptions> inOptions)
   {
+    m_snapshot = inSnapshot;
+
+    // All steps access app engine apis (datastore, images), which are only
+    // installed for the threads installing them.
+    ApiThreadFactory threads = new ApiThreadFactory("export", inOptions);
+    m_readers = pool(inThreads, threads);
+    m_converters = pool(inThreads, threads);
+    m_writers = pool(inThreads, threads);
   }
 
   /** The datastore service. */
@@ -94,6 +127,44 @@ public final class Exporter
   /** The DMA data store. */
   private DMADatastore m_dmaStore = new DMADatastore();
 
+  /** The snapshot to write all entries to, if any. */
+  private final Optional<PackedFile.Writer> m_snapshot;
+
+  /** The executor reading the entities of each kind. */
+  private final ExecutorService m_readers;
+
+  /** The executor converting entities to entries. */
+  private final ExecutorService m_converters;
+
+  /** The executor writing entries and blobs to files. */
+  private final ExecutorService m_writers;
+
+  /** The number of files written. */
+  private final AtomicInteger m_written = new AtomicInteger();
+
+  /** The number of files not written because their content did not change. */
+  private final AtomicInteger m_unchanged = new AtomicInteger();
+
+  /** The number of entities or files that could not be exported. */
+  private final AtomicInteger m_failed = new AtomicInteger();
+
+  /** The number of entities to read from the datastore in a single batch. */
+  private static final int CHUNK_SIZE = 500;
+
+  /** The number of tasks to queue for each executor before blocking. */
+  private static final int MAX_QUEUED = 1000;
+
+  /** The name of the file storing the time of the last complete export. */
+  private static final String LAST_EXPORT = ".last-export";
+
+  /**
+   * The milliseconds to export before the last change seen, for entities
+   * stored with a slightly different clock while exporting.
+   */
+  private static final long CHANGE_MARGIN = 60 * 1000;
+
+  /** The hash function to detect unchanged files. */
+  private static final HashFunction HASH = Hashing.sha1();
 
   static
   {
@@ -108,48 +179,195 @@ public final class Exporter
    *                      entries
    * @param inDir         the base directory to export into
    * @param inBlobs       whether to write blobs related to an etnry
+   * @param inChanged     whether to only export entries changed since the
+   *                      last complete export into the directory
    *
    * @throws IOException  thrown when writing fails
+   * @throws InterruptedException interrupted while waiting for the export
    */
-  public void export(String inType, String inID, String inDir, boolean inBlobs)
-    throws IOException
+  public void export(String inType, String inID, String inDir, boolean inBlobs,
+                     boolean inChanged)
+    throws IOException, InterruptedException
   {
-    Log.important("reading entities from datastore");
+    File last = new File(inDir, LAST_EXPORT);
+    Optional<Date> since = Optional.absent();
+    if(inChanged && last.exists())
+      since = Optional.of(new Date(Long.parseLong
+        (com.google.common.io.Files.toString(last, Charsets.UTF_8).trim())));
 
-    Query query;
+    List<String> kinds = new ArrayList<>();
     if(inType.isEmpty())
-      query = new Query();
+    {
+      Log.important("reading kinds from datastore");
+      for(Entity kind : m_store.prepare(new Query(Entities.KIND_METADATA_KIND)
+                                        .setKeysOnly()).asIterable())
+        kinds.add(kind.getKey().getName());
+    }
     else
-      query = new Query(inType);
+      kinds.add(inType);
 
-    if(!inID.isEmpty())
-      query.setFilter(new Query.FilterPredicate
-                      ("__key__", Query.FilterOperator.EQUAL,
-                       KeyFactory.createKey(inType, inID.toLowerCase())));
-
-    for(Entity entity : m_store.prepare(query).asIterable
-          (FetchOptions.Builder.withChunkSize(1000)))
+    // The time of the last change stored, as set by the datastore writers.
+    // The local clock cannot be compared to these times.
+    Optional<Date> latest = since;
+    for(String kind : kinds)
     {
       // ignore internal entities
-      if(entity.getKind().startsWith("__"))
+      if(kind.startsWith("__"))
         continue;
 
       // ignore blobs (written from entities)
-      if("file".equals(entity.getKind()))
+      if("file".equals(kind))
         continue;
 
-      Log.important("converting entity " + entity.getKind() + ": "
-                    + entity.getKey());
-      Optional<AbstractEntry> entry = m_dmaStore.convert(entity);
+      Optional<Date> change = lastChange(kind);
+      if(change.isPresent()
+         && (!latest.isPresent() || change.get().after(latest.get())))
+        latest = change;
+
+      Query query = new Query(kind);
+      if(!inID.isEmpty())
+        query.setFilter(new Query.FilterPredicate
+                        ("__key__", Query.FilterOperator.EQUAL,
+                         KeyFactory.createKey(kind, inID.toLowerCase())));
+      else if(since.isPresent())
+        query.setFilter(new Query.FilterPredicate
+                        ("change", Query.FilterOperator.GREATER_THAN,
+                         new Date(since.get().getTime() - CHANGE_MARGIN)));
+
+      m_readers.execute(read(query, inDir, inBlobs));
+    }
+
+    // Each executor only gets new tasks from the previous one, thus they can
+    // be shut down in order.
+    finish(m_readers);
+    finish(m_converters);
+    finish(m_writers);
+
+    if(m_snapshot.isPresent())
+      m_snapshot.get().close();
+
+    Log.important("wrote " + m_written + " files, " + m_unchanged
+                  + " unchanged, " + m_failed + " failed"
+                  + (since.isPresent() ? " (changed since " + since.get() + ")"
+                     : ""));
+
+    // Only remember complete exports of everything for incremental exports.
+    if(m_failed.get() == 0 && inType.isEmpty() && inID.isEmpty()
+       && latest.isPresent())
+      com.google.common.io.Files.write(String.valueOf(latest.get().getTime()),
+                                       last, Charsets.UTF_8);
+  }
 
-      if(!entry.isPresent())
+  /**
+   * Get the time of the last change of an entity of the given kind, as
+   * stored in the datastore.
+   *
+   * @param inKind the kind of the entities
+   * @return the time of the last change, if any entity has one
+   */
+  private Optional<Date> lastChange(String inKind)
+  {
+    List<Entity> entities =
+      m_store.prepare(new Query(inKind)
+                      .addSort("change", Query.SortDirection.DESCENDING))
+      .asList(FetchOptions.Builder.withLimit(1));
+    if(entities.isEmpty())
+      return Optional.absent();
+
+    Object change = entities.get(0).getProperty("change");
+    if(change instanceof Date)
+      return Optional.of((Date)change);
+
+    return Optional.absent();
+  }
+
+  /**
+   * Create a task reading all entities of the given query in chunks and
+   * converting them.
+   *
+   * @param inQuery the query for the entities to read
+   * @param inDir   the base directory to export into
+   * @param inBlobs whether to export blobs related to an entry
+   * @return the task reading the entities
+   */
+  private Runnable read(final Query inQuery, final String inDir,
+                        final boolean inBlobs)
+  {
+    return new Runnable()
+    {
+      @Override
+      public void run()
       {
-        Log.warning("could not convert " + entity);
-        continue;
+        Log.important("reading " + inQuery.getKind() + " from datastore");
+        FetchOptions options = FetchOptions.Builder.withLimit(CHUNK_SIZE);
+        for(Cursor cursor = null; ; )
+        {
+          if(cursor != null)
+            options.startCursor(cursor);
+
+          QueryResultList<Entity> entities;
+          try
+          {
+            entities = m_store.prepare(inQuery).asQueryResultList(options);
+          }
+          catch(RuntimeException e) // $codepro.audit.disable caughtExceptions
+          {
+            Log.error("could not read " + inQuery.getKind() + ": " + e);
+            m_failed.incrementAndGet();
+            return;
+          }
+
+          for(Entity entity : entities)
+            m_converters.execute(convert(entity, inDir, inBlobs));
+
+          if(entities.size() < CHUNK_SIZE)
+            break;
+
+          cursor = entities.getCursor();
+        }
       }
+    };
+  }
 
-      export(entry.get(), inDir, inBlobs);
-    }
+  /**
+   * Create a task converting the given entity and exporting the entry.
+   *
+   * @param inEntity the entity to convert
+   * @param inDir    the base directory to export into
+   * @param inBlobs  whether to export blobs related to an entry
+   * @return the task converting the entity
+   */
+  private Runnable convert(final Entity inEntity, final String inDir,
+                           final boolean inBlobs)
+  {
+    return new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        Log.important("converting entity " + inEntity.getKind() + ": "
+                      + inEntity.getKey());
+        Optional<AbstractEntry> entry;
+        try
+        {
+          entry = m_dmaStore.convert(inEntity);
+        }
+        catch(RuntimeException e) // $codepro.audit.disable caughtExceptions
+        {
+          Log.warning("could not convert " + inEntity.getKey() + ": " + e);
+          m_failed.incrementAndGet();
+          return;
+        }
+
+        if(!entry.isPresent())
+        {
+          Log.warning("could not convert " + inEntity);
+          return;
+        }
+
+        export(entry.get(), inDir, inBlobs);
+      }
+    };
   }
 
   /**
@@ -158,45 +376,105 @@ public final class Exporter
    * @param inEntry the entry to export
    * @param inRoot  the base direactory to export to
    * @param inBlobs whether to export blobs related to an entry
-   *
-   * @throws IOException if writing fails
    */
   private void export(AbstractEntry inEntry, String inRoot, boolean inBlobs)
-    throws IOException
   {
-    String name = Files.encodeName(inEntry.getName());
-    String dir = Files.concatenate(inRoot,
-                                   inEntry.getPath().replaceAll("/[^/]+$", ""));
-    Files.ensureDir(dir);
+    final String name = Files.encodeName(inEntry.getName());
+    final String dir =
+      Files.concatenate(inRoot, inEntry.getPath().replaceAll("/[^/]+$", ""));
+    if(!m_snapshot.isPresent() || inBlobs)
+      Files.ensureDir(dir);
     Message proto = inEntry.toProto();
 
     Log.important("Writing " + inEntry.getType() + " " + name);
-    ByteSink bytes = com.google.common.io.Files.asByteSink
-      (new File(Files.concatenate(dir, name + ".pb")));
-    try
-    {
-      bytes.write(proto.toByteArray());
-    }
-    catch(IOException e)
-    {
-      Log.warning("Cannot write binary proto " + name + ": " + e);
-    }
-
-    CharSink chars = com.google.common.io.Files.asCharSink
-      (new File(Files.concatenate(dir, name + ".ascii")), Charsets.UTF_8);
-    try
-    {
-      chars.write(proto.toString());
-    }
-    catch(IOException e)
+    if(m_snapshot.isPresent())
+      m_writers.execute(write(inEntry.getType().getName(),
+                              proto.toByteArray()));
+    else
     {
-      Log.warning("Cannot write ascii proto " + name + ": " + e);
+      m_writers.execute(write(new File(Files.concatenate(dir, name + ".pb")),
+                              proto.toByteArray()));
+      m_writers.execute(write(new File(Files.concatenate(dir,
+                                                         name + ".ascii")),
+                              proto.toString().getBytes(Charsets.UTF_8)));
     }
 
     // Export any files associated with the entry.
     if(inBlobs)
-      for(net.ixitxachitls.dma.values.File file : inEntry.getFiles())
-        export(file, name, dir);
+      for(final net.ixitxachitls.dma.values.File file : inEntry.getFiles())
+        m_writers.execute(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            export(file, name, dir);
+          }
+        });
+  }
+
+  /**
+   * Create a task to write the given contents to a file, unless the file
+   * already has the same contents.
+   *
+   * @param inFile     the file to write
+   * @param inContents the contents to write
+   * @return the task writing the file
+   */
+  private Runnable write(final File inFile, final byte []inContents)
+  {
+    return new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          if(inFile.length() == inContents.length
+             && com.google.common.io.Files.hash(inFile, HASH)
+             .equals(HASH.hashBytes(inContents)))
+          {
+            m_unchanged.incrementAndGet();
+            return;
+          }
+
+          com.google.common.io.Files.write(inContents, inFile);
+          m_written.incrementAndGet();
+        }
+        catch(IOException e)
+        {
+          Log.warning("Cannot write " + inFile + ": " + e);
+          m_failed.incrementAndGet();
+        }
+      }
+    };
+  }
+
+  /**
+   * Create a task to add the given proto to the snapshot.
+   *
+   * @param inType  the name of the type of the entry
+   * @param inProto the proto of the entry
+   * @return the task adding to the snapshot
+   */
+  private Runnable write(final String inType, final byte []inProto)
+  {
+    return new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          m_snapshot.get().add(inType, inProto);
+          m_written.incrementAndGet();
+        }
+        catch(IOException e)
+        {
+          Log.warning("Cannot add " + inType + " to snapshot: " + e);
+          m_failed.incrementAndGet();
+        }
+      }
+    };
   }
 
   /**
@@ -205,12 +483,9 @@ public final class Exporter
    * @param inFile the file structure describing the blob
    * @param inName the name of the entry this blob is for
    * @param inDir  the directory to export to
-   *
-   * @throws IOException if writing fails
    */
   private void export(net.ixitxachitls.dma.values.File inFile, String inName,
                       String inDir)
-    throws IOException
   {
     String extension = Files.mimeExtension(inFile.getType());
     String path = Files.concatenate(inDir, inName + " - " + inFile.getName()
@@ -218,50 +493,62 @@ public final class Exporter
 
     for(int i = 1; i <= 5; i++)
     {
-      FileOutputStream output = null;
-      InputStream input = null;
-
       try
       {
-        try
-        {
-          String url =
-            m_image.getServingUrl(ServingUrlOptions.Builder.withBlobKey
+        String url =
+          m_image.getServingUrl(ServingUrlOptions.Builder.withBlobKey
                                 (new BlobKey(inFile.getPath()
                                              .replaceAll("^.*/", ""))));
 
-          URLConnection connection = new URL(url).openConnection();
-
-          byte[] buffer = new byte[100 * 1024];
-
-          output = new FileOutputStream(path);
-          input = connection.getInputStream();
-
-          for(int read = input.read(buffer); read > 0;
-              read = input.read(buffer))
-            output.write(buffer, 0, read);
-
-          break;
-        }
-        catch(java.io.IOException e)
+        URLConnection connection = new URL(url).openConnection();
+        try (InputStream input = connection.getInputStream())
         {
-          Log.error("Deadline exceeded when trying to download file "
-                    + inFile + " (retrying " + i + "): " + e);
-        }
-        finally
-        {
-          if(input != null)
-            input.close();
+          byte []contents = com.google.common.io.ByteStreams.toByteArray(input);
+          write(new File(path), contents).run();
         }
+
+        Log.important("Wrote blob " + path);
+        return;
       }
-      finally
+      catch(java.io.IOException e)
       {
-        if(output != null)
-          output.close();
+        Log.error("Deadline exceeded when trying to download file "
+                  + inFile + " (retrying " + i + "): " + e);
       }
     }
 
-    Log.important("Wrote blob " + path);
+    m_failed.incrementAndGet();
+  }
+
+  /**
+   * Create a pool of threads with a bounded queue. If the queue is full, new
+   * tasks are run by the submitting thread, slowing down submission.
+   *
+   * @param inThreads the number of threads in the pool
+   * @param inFactory the factory creating the threads
+   * @return the executor for the pool
+   */
+  private static ExecutorService pool(int inThreads, ThreadFactory inFactory)
+  {
+    return new ThreadPoolExecutor(inThreads, inThreads, 0,
+                                  TimeUnit.MILLISECONDS,
+                                  new ArrayBlockingQueue<Runnable>(MAX_QUEUED),
+                                  inFactory,
+                                  new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Wait for all tasks of the given executor to be done.
+   *
+   * @param inExecutor the executor to finish
+   * @throws InterruptedException interrupted while waiting
+   */
+  private static void finish(ExecutorService inExecutor)
+    throws InterruptedException
+  {
+    inExecutor.shutdown();
+    while(!inExecutor.awaitTermination(1, TimeUnit.MINUTES))
+      Log.important("still exporting...");
   }
 
   /**
@@ -292,7 +579,17 @@ public final class Exporter
        new CommandLineParser.Flag
        ("n", "nopassword", "Connect without a password."),
        new CommandLineParser.Flag
-       ("b", "blobs", "Store the blobs associated with entries."));
+       ("b", "blobs", "Store the blobs associated with entries."),
+       new CommandLineParser.Flag
+       ("c", "changed",
+        "Only export entries changed since the last complete export."),
+       new CommandLineParser.IntegerOption
+       ("r", "threads", "The number of threads for each export step.", 4),
+       new CommandLineParser.StringOption
+       ("s", "snapshot", "Write all entries into this packed snapshot file "
+        + "(.dmap) instead of individual files.", ""),
+       new CommandLineParser.Flag
+       ("z", "compress", "Compress the entries in the snapshot."));
 
     List<String> dirs = clp.parse(inArguments);
 
@@ -319,13 +616,102 @@ public final class Exporter
     {
       SystemProperty.environment.set
           (SystemProperty.Environment.Value.Development);
-      Exporter exporter = new Exporter();
+      Optional<PackedFile.Writer> snapshot = Optional.absent();
+      if(!clp.getString("snapshot").isEmpty())
+        snapshot = Optional.of(new PackedFile.Writer
+          (new File(clp.getString("snapshot")), clp.hasValue("compress")));
+
+      Exporter exporter = new Exporter(clp.getInteger("threads"), snapshot,
+                                       Optional.of(options));
       exporter.export(clp.getString("type"), clp.getString("id"), dirs.get(0),
-                      clp.hasValue("blobs"));
+                      clp.hasValue("blobs"), clp.hasValue("changed"));
     }
     finally
     {
       installer.uninstall();
     }
   }
+
+  //----------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends net.ixitxachitls.dma.data.DataStore.Test
+  {
+    /**
+     * The export Test.
+     *
+     * @throws Exception should not happen
+     */
+    @org.junit.Test
+    public void export() throws Exception
+    {
+      // Missing snapshots are expected when starting empty.
+      m_logger.banClass(net.ixitxachitls.dma.data.DataStore.class);
+
+      String []names = { "first", "second", "third" };
+      DMADatastore store = new DMADatastore();
+      List<Entity> entities = new ArrayList<>();
+      for(String name : names)
+        entities.add(store.convert(new BaseItem(name)));
+      store.store(entities);
+
+      File dir = com.google.common.io.Files.createTempDir();
+      String kind = store.escapeType(BaseItem.TYPE.toString());
+      try
+      {
+        Exporter exporter =
+          new Exporter(2, Optional.<PackedFile.Writer>absent(),
+                       Optional.<RemoteApiOptions>absent());
+        exporter.export(kind, "", dir.getPath(), false, false);
+
+        assertEquals("written", 6, exporter.m_written.get());
+        assertEquals("failed", 0, exporter.m_failed.get());
+        for(String name : names)
+        {
+          File file = new File(dir, new BaseItem(name).getPath() + ".pb");
+          assertEquals("exported", name,
+                       BaseItemProto.parseFrom
+                       (com.google.common.io.Files.toByteArray(file))
+                       .getBase().getAbstract().getName());
+        }
+
+        exporter = new Exporter(2, Optional.<PackedFile.Writer>absent(),
+                                Optional.<RemoteApiOptions>absent());
+        exporter.export(kind, "", dir.getPath(), false, false);
+        assertEquals("rewritten", 0, exporter.m_written.get());
+        assertEquals("unchanged", 6, exporter.m_unchanged.get());
+      }
+      finally
+      {
+        for(File file : com.google.common.io.Files.fileTreeTraverser()
+              .postOrderTraversal(dir))
+          file.delete();
+      }
+    }
+
+    /** The lastChange Test. */
+    @org.junit.Test
+    public void lastChange()
+    {
+      m_logger.banClass(net.ixitxachitls.dma.data.DataStore.class);
+
+      DMADatastore store = new DMADatastore();
+      String kind = store.escapeType(BaseItem.TYPE.toString());
+      Exporter exporter = new Exporter(1, Optional.<PackedFile.Writer>absent(),
+                                       Optional.<RemoteApiOptions>absent());
+      assertFalse("empty", exporter.lastChange(kind).isPresent());
+
+      Entity first = store.convert(new BaseItem("first"));
+      first.setProperty("change", new Date(1000));
+      Entity second = store.convert(new BaseItem("second"));
+      second.setProperty("change", new Date(2000));
+      store.store(ImmutableList.of(first, second));
+
+      // The time stored is used, not the local clock.
+      assertEquals("last", new Date(2000), exporter.lastChange(kind).get());
+      exporter.m_readers.shutdown();
+      exporter.m_converters.shutdown();
+      exporter.m_writers.shutdown();
+    }
+  }
 }
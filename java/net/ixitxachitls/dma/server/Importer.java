@@ -23,37 +23,39 @@
 
 package net.ixitxachitls.dma.server;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.FileNameMap;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.appengine.tools.remoteapi.RemoteApiInstaller;
 import com.google.appengine.tools.remoteapi.RemoteApiOptions;
-import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.protobuf.Message;
 import com.google.protobuf.TextFormat;
 
+import net.ixitxachitls.dma.data.CorpusParser;
 import net.ixitxachitls.dma.data.DMADatastore;
 import net.ixitxachitls.dma.entries.AbstractEntry;
 import net.ixitxachitls.dma.entries.AbstractType;
@@ -62,9 +64,11 @@ import net.ixitxachitls.dma.entries.Entry;
 import net.ixitxachitls.dma.entries.EntryKey;
 import net.ixitxachitls.dma.entries.Product;
 import net.ixitxachitls.dma.server.servlets.DMARequest;
+import net.ixitxachitls.util.BatchWriter;
 import net.ixitxachitls.util.CommandLineParser;
-import net.ixitxachitls.util.Encodings;
+import net.ixitxachitls.util.Dependencies;
 import net.ixitxachitls.util.Files;
+import net.ixitxachitls.util.PackedFile;
 import net.ixitxachitls.util.Strings;
 import net.ixitxachitls.util.logging.ANSILogger;
 import net.ixitxachitls.util.logging.Log;
@@ -78,7 +82,9 @@ import net.ixitxachitls.util.logging.Log;
  * -h jdmaixit.appspot.com -p 443 -w 80 -u balsiger@ixitxachitls.net
  *
  * Adds base characters from the Ixitxachitls.dma file to the cloud store
- * (leave out host and port for local storage).
+ * (leave out host and port for local storage). Packed snapshot files (.dmap)
+ * written by the exporter are read as a whole, text files of the dma corpus
+ * (.dma) are parsed in parallel.
  *
  * @file          Importer.java
  * @author        balsiger@ixitxachitls.net (Peter Balsiger)
@@ -95,23 +101,23 @@ public final class Importer
    * @param   inUserName   the username to connect to the remote api
    * @param   inPassword   the password to connect to the remote api
    * @param   inMain       if true, treat all images imported as main images
-   * @param   inIndividual if true, store each entry after reading instead of
-   *                       in batch (slower and more expensive, but can
-   *                       properly find bases)
+   * @param   inIndividual if true, store each entry individually instead of
+   *                       in batch (slower and more expensive)
    * @param   inBlobs      if true, import blobs alongside entries
    * @param   inASCII      if true, import ascii protos
+   * @param   inUploads    the number of files to upload in parallel
+   * @param   inManifest   the file recording the files already uploaded
    *
-   * @throws IOException unable to install remove api
+   * @throws IOException unable to install remove api or read the manifest
    *
    */
   public Importer(String inHost, String inWebHost, int inPort, int inWebPort,
                   String inUserName, String inPassword, boolean inMain,
-                  boolean inIndividual, boolean inBlobs, boolean inASCII)
+                  boolean inIndividual, boolean inBlobs, boolean inASCII,
+                  int inUploads, String inManifest)
     throws IOException
   {
     m_host = inHost;
-    m_webHost = inWebHost;
-    m_webPort = inWebPort;
     m_mainImages = inMain;
     m_individual = inIndividual;
     m_blobs = inBlobs;
@@ -123,34 +129,43 @@ public final class Importer
 
     m_installer = new RemoteApiInstaller();
     m_installer.install(options);
+    m_api = new ApiThreadFactory("import", Optional.of(options));
+
+    m_uploader = new Uploader(inWebHost, inWebPort, inUploads,
+                              new File(inManifest));
 
     DMARequest.ensureTypes();
 }
 
-  /** The data store. */
-  private DatastoreService m_store =
-      DatastoreServiceFactory.getDatastoreService();
-
   /** THe dma data store. */
   private DMADatastore m_dmaStore = new DMADatastore();
 
   /** The remove api installer. */
   private RemoteApiInstaller m_installer;
 
+  /** The factory for threads using the remote api. */
+  private final ApiThreadFactory m_api;
+
   /** A list of all external files to import. */
   private Map<String, AbstractEntry> m_files = new HashMap<>();
 
   /** A list of proto buffer files to import. */
   private List<String> m_protoFiles = new ArrayList<>();
 
+  /** The packed snapshot files to import. */
+  private List<String> m_snapshots = new ArrayList<>();
+
+  /** The text files of the dma corpus to import. */
+  private List<String> m_textFiles = new ArrayList<>();
+
+  /** The extension of packed snapshot files, as written by the exporter. */
+  public static final String SNAPSHOT_EXTENSION = ".dmap";
+
   /** The hostname to connect to. */
   private String m_host;
 
-  /** THe host name for web connections. */
-  private String m_webHost;
-
-  /** The port of the web application. */
-  private int m_webPort;
+  /** The uploader for files of entries. */
+  private final Uploader m_uploader;
 
   /** If true, all images read as treated as main images. */
   private boolean m_mainImages;
@@ -164,11 +179,58 @@ public final class Importer
   /** IF true, import ascii proto files. */
   private boolean m_ascii;
 
-  /** The list of entities to store in batch. */
-  private List<Entity> m_entities = new ArrayList<>();
+  /** The maximal number of entities to store in a single batch. */
+  private static final int MAX_BATCH = 500;
+
+  /** The maximal number of bytes to store in a single batch. */
+  private static final long MAX_BATCH_BYTES = 4 * 1024 * 1024;
 
-  /** The list of entries with errors to store later. */
-  private List<AbstractEntry> m_errors = new ArrayList<>();
+  /** The number of converted entities to queue for storing. */
+  private static final int MAX_QUEUED = 2 * MAX_BATCH;
+
+  /**
+   * The writer storing entities in batches in the background, while the next
+   * entries are read and converted.
+   */
+  private final BatchWriter<Entity> m_writer =
+    new BatchWriter<Entity>("datastore", MAX_BATCH, MAX_BATCH_BYTES,
+                            MAX_QUEUED)
+    {
+      @Override
+      protected long size(Entity inEntity)
+      {
+        return Importer.size(inEntity);
+      }
+
+      @Override
+      protected void write(List<Entity> inBatch)
+      {
+        Log.important("storing " + inBatch.size() + " entities in datastore");
+        m_dmaStore.store(inBatch);
+      }
+
+      @Override
+      public void run()
+      {
+        // The remote api is only installed for the thread installing it.
+        m_api.install();
+        try
+        {
+          super.run();
+        }
+        finally
+        {
+          m_api.uninstall();
+        }
+      }
+    };
+
+  /** The number of threads converting entries of the same layer. */
+  private static final int THREADS =
+    Runtime.getRuntime().availableProcessors();
+
+  /** The maximal number of text files to parse at the same time. */
+  private static final int MAX_TEXT_FILES = 2 * THREADS;
 
   /** Joiner for paths. */
   public static final Joiner PATH_JOINER = Joiner.on('/').skipNulls();
@@ -192,9 +254,12 @@ public final class Importer
     if(file.isDirectory())
       for(File entry : file.listFiles())
         add(entry.getPath());
-    else
-      if(file.getName().endsWith(m_ascii ? ".ascii" : ".pb"))
-        addFile(inFile);
+    else if(file.getName().endsWith(SNAPSHOT_EXTENSION))
+      m_snapshots.add(inFile);
+    else if(file.getName().endsWith(CorpusParser.EXTENSION))
+      m_textFiles.add(inFile);
+    else if(file.getName().endsWith(m_ascii ? ".ascii" : ".pb"))
+      addFile(inFile);
   }
 
   /**
@@ -211,147 +276,269 @@ public final class Importer
   /**
    * Do the import of all the files.
    *
+   * All files are read first to build a graph of the entries and the bases
+   * and parents they depend on. Entries are then stored layer by layer, where
+   * the entries of a layer are converted in parallel and all entries of a
+   * layer are stored before the next one is started, as they might be needed
+   * as bases.
+   *
    * @throws IOException reading or writing failed
+   * @throws InterruptedException interrupted while waiting for storing
    */
-  public void read() throws IOException
+  public void read() throws IOException, InterruptedException
   {
-    Collections.sort(m_protoFiles, new Comparator<String>() {
+    Map<EntryKey, AbstractEntry> entries = new LinkedHashMap<>();
+    Dependencies<EntryKey> dependencies = new Dependencies<>();
+    final List<AbstractEntry> read =
+      Collections.synchronizedList(new ArrayList<AbstractEntry>());
+    for(String file : m_protoFiles)
+    {
+      Optional<? extends AbstractEntry> entry = read(file);
+      if(entry.isPresent())
+        read.add(entry.get());
+    }
 
-      @Override
-      public int compare(String inFirst, String inSecond)
-      {
-        // Do base products first.
-        boolean product1 = inFirst.contains("/product/");
-        boolean product2 = inSecond.contains("/product/");
-        if(product1 && !product2)
-          return -1;
-        if(!product1 && product2)
-          return +1;
-
-        if(product1 && product2)
+    for(String snapshot : m_snapshots)
+      read.addAll(readSnapshot(snapshot));
+
+    if(!m_textFiles.isEmpty())
+    {
+      int errors = new CorpusParser(THREADS, MAX_TEXT_FILES)
+        .parse(m_textFiles, new CorpusParser.Receiver()
         {
-          boolean user1 = inFirst.contains("/user/");
-          boolean user2 = inSecond.contains("/user/");
-          if (user1 && !user2)
-            return +1;
-          if (!user1 && user2)
-            return -1;
-        }
+          @Override
+          public void receive(AbstractEntry inEntry)
+          {
+            read.add(inEntry);
+          }
+        });
+
+      if(errors > 0)
+        Log.error("Found " + errors + " errors in " + m_textFiles.size()
+                  + " text files, files with errors are not imported");
+    }
 
-        // Do campaign files last.
-        boolean campaign1 = inFirst.contains("/campaign/");
-        boolean campaign2 = inSecond.contains("/campaign/");
-        if(campaign1 && !campaign2)
-          return +1;
-        if(!campaign1 && campaign2)
-          return -1;
-
-        // Do base campaigns before campaign entries.
-        boolean base1 = inFirst.matches(".*/campaign/[^/]+");
-        boolean base2 = inSecond.matches("/campaign/[^/]+");
-        if(base1 && !base2)
-          return -1;
-        if(!base1 && base2)
-          return +1;
-
-
-        // Do campaigns before other entries.
-        boolean main1 = inFirst.matches(".*/campaign/[^/]+/[^/]+");
-        boolean main2 = inSecond.matches(".*/campaign/[^/]+/[^/]+");
-        if(main1 && !main2)
-          return -1;
-        if(!main1 && main2)
-          return +1;
-
-        return inFirst.compareTo(inSecond);
+    // Entries are stored by their datastore key, thus entries only differing
+    // in case are duplicates as well.
+    Map<Key, EntryKey> keys = new HashMap<>();
+    Set<EntryKey> duplicates = new HashSet<>();
+    for(AbstractEntry entry : read)
+    {
+      EntryKey key = entry.getKey();
+      EntryKey previous = keys.put(m_dmaStore.convert(key), key);
+      if(previous != null)
+      {
+        duplicates.add(previous);
+        duplicates.add(key);
       }
-    });
 
-    AbstractType lastType = null;
-    for(String file : m_protoFiles)
+      entries.put(key, entry);
+    }
+
+    // It's not known which of the duplicates is right, thus none of them is
+    // imported.
+    for(EntryKey key : duplicates)
     {
-      Log.important("Processing file " + file);
-      String []parts = file.split("/");
-
-      Optional<? extends AbstractType<? extends AbstractEntry>> type;
-      if(parts.length >= 3 && "campaign".equals(parts[parts.length - 3]))
-        type = Optional.of(Campaign.TYPE);
-      else if (parts.length >= 5 && "campaign".equals(parts[parts.length - 5]))
-        type = AbstractType.getTyped(parts[parts.length - 2]);
-      else if (parts.length >= 4 && "product".equals(parts[parts.length - 2])
-               && "user".equals(parts[parts.length - 4]))
-        type = Optional.of(Product.TYPE);
-      else
-        type = AbstractType.getTyped("base " + parts[parts.length - 2]);
+      Log.error("Duplicate entry " + key + ", not importing it");
+      entries.remove(key);
+    }
 
-      if(!type.isPresent())
-        Log.warning("ignoring invalid type for " + file + ": "
-                    + Arrays.toString(parts));
-      else
-      {
-        if (lastType != type.get() && !m_entities.isEmpty())
-        {
-          lastType = type.get();
-          Log.important("storing " + m_entities.size()
-                        + " entities in datastore");
-          m_store.put(m_entities);
-          m_entities.clear();
-        }
+    for(AbstractEntry entry : entries.values())
+      dependencies.add(entry.getKey(), dependencies(entry));
 
-        final Optional<? extends AbstractEntry> entry =
-            type.get().create("proto import");
-        if (entry.isPresent())
-          add(entry.get(),
-              fill(entry.get().toProto().newBuilderForType(), file));
-      }
+    Set<EntryKey> missing = dependencies.getExternal();
+    if(!missing.isEmpty())
+      missing.removeAll(m_dmaStore.getEntries(missing).keySet());
+    for(EntryKey key : missing)
+      Log.error("Missing base or parent " + key);
+
+    List<List<EntryKey>> layers = dependencies.getLayers();
+    Set<EntryKey> cycles = dependencies.getCycles();
+    if(!cycles.isEmpty())
+    {
+      for(EntryKey key : cycles)
+        Log.error("Cyclic dependency for " + key + " on "
+                  + dependencies.getDependencies(key));
+
+      // Store them anyway, with the bases that can be found.
+      layers.add(new ArrayList<>(cycles));
     }
 
-    Log.important("storing entities in datastore");
-    if(!m_entities.isEmpty())
-      m_store.put(m_entities);
+    Log.important("importing " + entries.size() + " entries in "
+                  + layers.size() + " layers");
 
-    m_entities.clear();
-    int last = 0;
-    while(last != m_errors.size())
+    m_writer.start();
+    // The pool threads read bases and store entries, thus they need the
+    // remote api.
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS, m_api);
+    try
     {
-      last = m_errors.size();
-      for(Iterator<AbstractEntry> i = m_errors.iterator(); i.hasNext(); )
+      for(List<EntryKey> layer : layers)
       {
-        AbstractEntry entry = i.next();
-        if(!entry.ensureBaseEntries())
-        {
-          System.err.println("setting back " + entry.getName());
-          continue;
-        }
+        List<Future<?>> futures = new ArrayList<>();
+        for(EntryKey key : layer)
+          futures.add(executor.submit(store(entries.get(key))));
+
+        for(Future<?> future : futures)
+          try
+          {
+            future.get();
+          }
+          catch(ExecutionException e)
+          {
+            throw new IOException("could not import entry", e.getCause());
+          }
+
+        // Make sure all entries of the layer are stored, as they might be
+        // needed as bases of the next layer.
+        m_writer.flush();
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+      m_writer.finish();
+    }
 
-        if(entry instanceof Entry)
-          complete((Entry)entry);
+    // Entries not imported might depend on the ones imported, thus their
+    // snapshots have to be refreshed.
+    Log.important("refreshing dependent entries");
+    m_dmaStore.refreshDependents(entries.values());
 
-        m_entities.add(m_dmaStore.convert(entry));
-        Log.important("importing after error " + entry.getName());
+    Log.important("importing images");
 
-        i.remove();
-      }
+    for(Map.Entry<String, AbstractEntry> image : m_files.entrySet())
+      importFile(image.getKey(), image.getValue());
 
-      Log.important("storing entities in datastore");
-      m_store.put(m_entities);
-      m_entities.clear();
+    int failed = m_uploader.finish();
+    if(failed > 0)
+      Log.error("Could not upload " + failed + " files, import again to "
+                + "retry");
+  }
+
+  /**
+   * Read the entry from the given proto file.
+   *
+   * @param inFile the name of the file to read
+   * @return the entry read, if the type of the file could be determined
+   * @throws IOException reading the file failed
+   */
+  private Optional<? extends AbstractEntry> read(String inFile)
+    throws IOException
+  {
+    Log.important("Processing file " + inFile);
+    String []parts = inFile.split("/");
+
+    Optional<? extends AbstractType<? extends AbstractEntry>> type;
+    if(parts.length >= 3 && "campaign".equals(parts[parts.length - 3]))
+      type = Optional.of(Campaign.TYPE);
+    else if (parts.length >= 5 && "campaign".equals(parts[parts.length - 5]))
+      type = AbstractType.getTyped(parts[parts.length - 2]);
+    else if (parts.length >= 4 && "product".equals(parts[parts.length - 2])
+             && "user".equals(parts[parts.length - 4]))
+      type = Optional.of(Product.TYPE);
+    else
+      type = AbstractType.getTyped("base " + parts[parts.length - 2]);
+
+    if(!type.isPresent())
+    {
+      Log.warning("ignoring invalid type for " + inFile + ": "
+                  + Arrays.toString(parts));
+      return Optional.absent();
     }
 
-    if(!m_errors.isEmpty())
+    Optional<? extends AbstractEntry> entry =
+      type.get().create("proto import");
+    if(entry.isPresent())
     {
-      List<String> names = new ArrayList<String>();
+      entry.get().fromProto(fill(entry.get().toProto().newBuilderForType(),
+                                 inFile));
 
-      for(AbstractEntry entry : m_errors)
-        names.add(entry.getName() + " (" + entry.getType() + ")");
+      if(m_blobs)
+        addFiles(inFile, entry.get());
+    }
+
+    return entry;
+  }
+
+  /**
+   * Add all the blob files exported alongside the given proto file for
+   * import.
+   *
+   * @param inFile  the name of the proto file
+   * @param inEntry the entry read from the file
+   */
+  private void addFiles(String inFile, AbstractEntry inEntry)
+  {
+    File file = new File(inFile);
+    File []files = file.getAbsoluteFile().getParentFile().listFiles();
+    if(files == null)
+      return;
+
+    String prefix = file.getName().replaceAll("\\.[^.]*$", "") + " - ";
+    for(File blob : files)
+      if(blob.getName().startsWith(prefix))
+        m_files.put(blob.getPath(), inEntry);
+  }
+
+  /**
+   * Read all the entries from the given packed snapshot file.
+   *
+   * @param inFile the name of the snapshot file
+   * @return all the entries read
+   * @throws IOException reading the file failed
+   */
+  private List<AbstractEntry> readSnapshot(String inFile) throws IOException
+  {
+    Log.important("Processing snapshot " + inFile);
+    PackedFile snapshot = new PackedFile(new File(inFile));
+    List<AbstractEntry> entries = new ArrayList<>();
+    for(String group : snapshot.getGroups())
+    {
+      Optional<? extends AbstractType<? extends AbstractEntry>> type =
+        AbstractType.getTyped(group);
+      if(!type.isPresent())
+      {
+        Log.warning("ignoring " + snapshot.count(group)
+                    + " entries of invalid type " + group + " in " + inFile);
+        continue;
+      }
+
+      for(byte []proto : snapshot.read(group))
+      {
+        Optional<? extends AbstractEntry> entry =
+          type.get().create("proto import");
+        if(!entry.isPresent())
+          continue;
 
-      Log.error("Could not properly read all entries: " + names);
+        entry.get().fromProto(entry.get().toProto().newBuilderForType()
+                              .mergeFrom(proto).build());
+        entries.add(entry.get());
+      }
     }
 
-    Log.important("importing images");
+    return entries;
+  }
 
-    for(Map.Entry<String, AbstractEntry> image : m_files.entrySet())
-      importFile(image.getKey(), image.getValue());
+  /**
+   * Get the keys of all the entries the given entry depends on, i.e. its
+   * bases and its parent.
+   *
+   * @param inEntry the entry to get the dependencies for
+   * @return the keys of the entries depended on
+   */
+  private static List<EntryKey> dependencies(AbstractEntry inEntry)
+  {
+    List<EntryKey> dependencies = new ArrayList<>();
+    for(String base : inEntry.getBaseNames())
+      dependencies.add(AbstractEntry.createKey
+                       (base, inEntry.getType().getBaseType()));
+
+    Optional<EntryKey> parent = inEntry.getKey().getParent();
+    if(parent.isPresent())
+      dependencies.add(parent.get());
+
+    return dependencies;
   }
 
   /**
@@ -376,14 +563,12 @@ public final class Importer
   }
 
   /**
-   * Import the named file.
+   * Import the named file. The file is uploaded in the background.
    *
    * @param inName the name of the file to import
    * @param inEntry the entry to import to
-   * @throws IOException if reading the file fails
    */
   private void importFile(String inName, AbstractEntry inEntry)
-    throws IOException
   {
     String name = Strings.getPattern(inName, " - (.*)\\.*?$");
 
@@ -420,41 +605,8 @@ public final class Importer
     Log.important("importing image " + name + " with type " + inEntry.getType()
                   + " for " + key);
 
-    URL url =
-      new URL("http", m_webHost, m_webPort,
-              "/__import"
-                + "?type=" + Encodings.urlEncode(type)
-                + "&name=" + Encodings.urlEncode(name)
-                + "&key=" + Encodings.urlEncode(key.toString()));
-    HttpURLConnection connection = (HttpURLConnection)url.openConnection();
-    connection.setDoOutput(true);
-    connection.setRequestMethod("POST");
-    connection.connect();
-
-    try (OutputStream output = connection.getOutputStream();
-      FileInputStream input =
-        new FileInputStream(inName.replace("\\ ", " ")))
-    {
-      byte []buffer = new byte[1024 * 100];
-      for(int read = input.read(buffer); read > 0; read = input.read(buffer))
-        output.write(buffer, 0, read);
-
-      output.flush();
-
-      // Get the response
-      try (BufferedReader rd =
-        new BufferedReader(new InputStreamReader(connection.getInputStream(),
-                                                 Charsets.UTF_8)))
-      {
-        String line = rd.readLine();
-        if(line != null && !"OK".equals(line) && !line.isEmpty())
-        {
-          Log.error("Server returned an error:");
-          for(; line != null; line = rd.readLine())
-            Log.error(line);
-        }
-      }
-    }
+    m_uploader.upload(new File(inName.replace("\\ ", " ")), type, name,
+                      key.toString());
   }
 
   /**
@@ -487,29 +639,63 @@ public final class Importer
   }
 
   /**
-   * Add the entry to import.
+   * Create the task to store the given entry.
    *
-   * @param inEntry the entry to import
-   * @param inProto the proto representation of the entry
+   * @param inEntry the entry to store
+   * @return the task storing the entry when called
    */
-  private void add(AbstractEntry inEntry, Message inProto)
+  private Callable<Void> store(final AbstractEntry inEntry)
   {
-    inEntry.fromProto(inProto);
-
-    if(!inEntry.ensureBaseEntries())
-      m_errors.add(inEntry);
-    else
+    return new Callable<Void>()
     {
-      if(inEntry instanceof Entry)
-        complete((Entry)inEntry);
+      @Override
+      public Void call() throws InterruptedException
+      {
+        if(inEntry instanceof Entry)
+          complete((Entry)inEntry);
+
+        if(m_individual)
+          // Storing reads and writes back the index snapshots of the type.
+          synchronized(m_dmaStore)
+          {
+            m_dmaStore.store(Collections.singletonList
+                             (m_dmaStore.convert(inEntry)));
+          }
+        else
+          m_writer.add(m_dmaStore.convert(inEntry));
+
+        Log.important("importing " + inEntry.getType() + " "
+                      + inEntry.getName());
+        return null;
+      }
+    };
+  }
 
-      if(m_individual)
-        m_store.put(m_dmaStore.convert(inEntry));
+  /**
+   * Estimate the size of the given entity when stored.
+   *
+   * @param inEntity the entity to compute the size for
+   * @return the estimated size in bytes
+   */
+  private static long size(Entity inEntity)
+  {
+    // Some overhead for the key and property names.
+    long size = 100;
+    for(Map.Entry<String, Object> property
+          : inEntity.getProperties().entrySet())
+    {
+      size += property.getKey().length();
+      Object value = property.getValue();
+      if(value instanceof Blob)
+        size += ((Blob)value).getBytes().length;
+      else if(value instanceof Iterable)
+        for(Object element : (Iterable<?>)value)
+          size += String.valueOf(element).length();
       else
-        m_entities.add(m_dmaStore.convert(inEntry));
-
-      Log.important("importing " + inEntry.getType() + " " + inEntry.getName());
+        size += String.valueOf(value).length();
     }
+
+    return size;
   }
 
   /**
@@ -546,7 +732,12 @@ public final class Importer
        new CommandLineParser.Flag
        ("a", "ascii", "Import ascii protos (default is binary)."),
        new CommandLineParser.Flag
-       ("b", "blobs", "Import blobs associated with entries."));
+       ("b", "blobs", "Import blobs associated with entries."),
+       new CommandLineParser.IntegerOption
+       ("t", "threads", "The number of files to upload in parallel.", 4),
+       new CommandLineParser.StringOption
+       ("f", "manifest", "The file recording the files already uploaded.",
+        ".dma-uploads"));
 
     List<String> files = clp.parse(inArguments);
     String password = "";
@@ -562,7 +753,8 @@ public final class Importer
                    clp.getInteger("port"), clp.getInteger("webport"),
                    clp.getString("username"),
                    password, clp.hasValue("main"), clp.hasValue("individual"),
-                   clp.hasValue("blobs"), clp.hasValue("ascii"));
+                   clp.hasValue("blobs"), clp.hasValue("ascii"),
+                   clp.getInteger("threads"), clp.getString("manifest"));
 
     try
     {
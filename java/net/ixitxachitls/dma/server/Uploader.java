@@ -0,0 +1,451 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import net.ixitxachitls.util.Encodings;
+import net.ixitxachitls.util.logging.Log;
+
+/**
+ * Upload files to the import servlet of a dma server. Files are uploaded in
+ * parallel by a fixed number of threads, streamed directly from disk and
+ * retried with increasing delays when the server cannot be reached or fails.
+ * The hashes of all files successfully uploaded are recorded in a manifest
+ * file, such that an interrupted import can be resumed without uploading the
+ * same content again.
+ *
+ * @file          Uploader.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public class Uploader
+{
+  /**
+   * Create the uploader.
+   *
+   * @param inHost     the host to upload to
+   * @param inPort     the web port of the host
+   * @param inThreads  the number of uploads to do in parallel
+   * @param inManifest the file with the uploads already done
+   * @throws IOException if the manifest cannot be read
+   */
+  public Uploader(String inHost, int inPort, int inThreads, File inManifest)
+    throws IOException
+  {
+    this(inHost, inPort, inThreads, inManifest, BACKOFF_MILLIS);
+  }
+
+  /**
+   * Create the uploader.
+   *
+   * @param inHost     the host to upload to
+   * @param inPort     the web port of the host
+   * @param inThreads  the number of uploads to do in parallel
+   * @param inManifest the file with the uploads already done
+   * @param inBackoff  the number of milli seconds to wait before the first
+   *                   retry, doubled for every following retry
+   * @throws IOException if the manifest cannot be read
+   */
+  Uploader(String inHost, int inPort, int inThreads, File inManifest,
+           long inBackoff)
+    throws IOException
+  {
+    m_host = inHost;
+    m_port = inPort;
+    m_backoff = inBackoff;
+    m_executor = Executors.newFixedThreadPool(inThreads);
+
+    if(inManifest.exists())
+      for(String line : com.google.common.io.Files.readLines(inManifest,
+                                                             Charsets.UTF_8))
+        m_uploaded.add(line);
+
+    m_manifest = new OutputStreamWriter(new FileOutputStream(inManifest, true),
+                                        Charsets.UTF_8);
+  }
+
+  /** The maximal number of attempts to upload a file. */
+  private static final int MAX_ATTEMPTS = 5;
+
+  /** The default time to wait before retrying an upload, in milli seconds. */
+  private static final long BACKOFF_MILLIS = 1000;
+
+  /** The host to upload to. */
+  private final String m_host;
+
+  /** The web port to upload to. */
+  private final int m_port;
+
+  /** The time to wait before the first retry, in milli seconds. */
+  private final long m_backoff;
+
+  /** The executor doing the uploads. */
+  private final ExecutorService m_executor;
+
+  /** The uploads submitted. */
+  private final List<Future<Boolean>> m_uploads = new ArrayList<>();
+
+  /** The records of all uploads done, as read from and written to manifest. */
+  private final Set<String> m_uploaded = new HashSet<>();
+
+  /** The writer to append records of successful uploads. */
+  private final Writer m_manifest;
+
+  /** The number of files uploaded. */
+  private int m_done = 0;
+
+  /** The number of files skipped because they were already uploaded. */
+  private int m_skipped = 0;
+
+  /**
+   * Upload the given file in the background.
+   *
+   * @param inFile the file to upload
+   * @param inType the mime type of the file
+   * @param inName the name of the file in the entry
+   * @param inKey  the key of the entry the file is for
+   */
+  public synchronized void upload(final File inFile, final String inType,
+                                  final String inName, final String inKey)
+  {
+    m_uploads.add(m_executor.submit(new Callable<Boolean>()
+    {
+      @Override
+      public Boolean call() throws IOException, InterruptedException
+      {
+        return Uploader.this.call(inFile, inType, inName, inKey);
+      }
+    }));
+  }
+
+  /**
+   * Wait for all uploads to finish and stop the uploader.
+   *
+   * @return the number of files that could not be uploaded
+   * @throws IOException if the manifest cannot be written
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized int finish() throws IOException, InterruptedException
+  {
+    int failed = 0;
+    try
+    {
+      for(Future<Boolean> upload : m_uploads)
+        try
+        {
+          if(!upload.get())
+            failed++;
+        }
+        catch(ExecutionException e)
+        {
+          Log.error("could not upload file: " + e.getCause());
+          failed++;
+        }
+    }
+    finally
+    {
+      m_executor.shutdown();
+      m_manifest.close();
+    }
+
+    Log.important("uploaded " + m_done + " files, skipped " + m_skipped
+                  + ", failed " + failed);
+    return failed;
+  }
+
+  /**
+   * Upload the given file, if not yet done, retrying if necessary.
+   *
+   * @param inFile the file to upload
+   * @param inType the mime type of the file
+   * @param inName the name of the file in the entry
+   * @param inKey  the key of the entry the file is for
+   * @return true if the file was uploaded, false if not
+   * @throws IOException if the file cannot be read or the manifest written
+   * @throws InterruptedException if interrupted while waiting for a retry
+   */
+  private boolean call(File inFile, String inType, String inName,
+                       String inKey)
+    throws IOException, InterruptedException
+  {
+    String record = com.google.common.io.Files.hash(inFile, Hashing.sha1())
+      + "\t" + inKey + "\t" + inName;
+    synchronized(m_uploaded)
+    {
+      if(m_uploaded.contains(record))
+      {
+        Log.important("already uploaded " + inFile + " for " + inKey);
+        m_skipped++;
+        return true;
+      }
+    }
+
+    URL url = new URL("http", m_host, m_port,
+                      "/__import"
+                        + "?type=" + Encodings.urlEncode(inType)
+                        + "&name=" + Encodings.urlEncode(inName)
+                        + "&key=" + Encodings.urlEncode(inKey));
+    for(int attempt = 1; ; attempt++)
+    {
+      try
+      {
+        if(!post(url, inFile))
+          return false;
+
+        break;
+      }
+      catch(IOException e)
+      {
+        if(attempt >= MAX_ATTEMPTS)
+        {
+          Log.error("giving up uploading " + inFile + ": " + e);
+          return false;
+        }
+
+        long delay = m_backoff << (attempt - 1);
+        Log.warning("could not upload " + inFile + " (retrying in " + delay
+                    + " ms): " + e);
+        Thread.sleep(delay);
+      }
+    }
+
+    synchronized(m_uploaded)
+    {
+      m_uploaded.add(record);
+      m_manifest.write(record + "\n");
+      m_manifest.flush();
+      m_done++;
+    }
+
+    Log.important("uploaded " + inFile + " for " + inKey);
+    return true;
+  }
+
+  /**
+   * Post the contents of the given file to the given url.
+   *
+   * @param inURL  the url to post to
+   * @param inFile the file to post
+   * @return true if the server accepted the file, false if it rejected it
+   * @throws IOException if sending fails or the server had an error and the
+   *                     upload should be retried
+   */
+  private boolean post(URL inURL, File inFile) throws IOException
+  {
+    HttpURLConnection connection = (HttpURLConnection)inURL.openConnection();
+    try (FileChannel input = FileChannel.open(inFile.toPath(),
+                                              StandardOpenOption.READ))
+    {
+      long size = input.size();
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      connection.setFixedLengthStreamingMode(size);
+      connection.connect();
+
+      try (OutputStream output = connection.getOutputStream();
+        WritableByteChannel channel = Channels.newChannel(output))
+      {
+        for(long position = 0; position < size; )
+          position += input.transferTo(position, size - position, channel);
+      }
+
+      int status = connection.getResponseCode();
+      if(status >= HttpURLConnection.HTTP_INTERNAL_ERROR)
+        throw new IOException("server returned " + status);
+
+      if(status != HttpURLConnection.HTTP_OK)
+      {
+        Log.error("Server rejected " + inFile + " with " + status);
+        return false;
+      }
+
+      // Get the response
+      try (BufferedReader rd =
+        new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                                                 Charsets.UTF_8)))
+      {
+        String line = rd.readLine();
+        if(line != null && !"OK".equals(line) && !line.isEmpty())
+        {
+          Log.error("Server returned an error for " + inFile + ":");
+          for(; line != null; line = rd.readLine())
+            Log.error(line);
+
+          return false;
+        }
+      }
+
+      return true;
+    }
+    finally
+    {
+      connection.disconnect();
+    }
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The tests. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /** A local stand in for the import servlet. */
+    private static class Handler implements com.sun.net.httpserver.HttpHandler
+    {
+      /**
+       * Create the handler.
+       *
+       * @param inFailures the number of requests to fail before succeeding
+       */
+      Handler(int inFailures)
+      {
+        m_failures = inFailures;
+      }
+
+      /** The number of requests still to fail. */
+      private int m_failures;
+
+      /** The requests received successfully, with query and body size. */
+      private final List<String> m_requests = new ArrayList<>();
+
+      @Override
+      public synchronized void handle(com.sun.net.httpserver.HttpExchange
+                                      inExchange)
+        throws IOException
+      {
+        byte []body = com.google.common.io.ByteStreams.toByteArray
+          (inExchange.getRequestBody());
+        if(m_failures > 0)
+        {
+          m_failures--;
+          inExchange.sendResponseHeaders(500, -1);
+        }
+        else
+        {
+          m_requests.add(inExchange.getRequestURI().getPath() + "?"
+                         + inExchange.getRequestURI().getQuery() + " "
+                         + body.length);
+          byte []response = "OK".getBytes(Charsets.UTF_8);
+          inExchange.sendResponseHeaders(200, response.length);
+          inExchange.getResponseBody().write(response);
+        }
+
+        inExchange.close();
+      }
+
+      /**
+       * Get the sorted requests received.
+       *
+       * @return the requests
+       */
+      synchronized List<String> requests()
+      {
+        List<String> requests = new ArrayList<>(m_requests);
+        java.util.Collections.sort(requests);
+        return requests;
+      }
+    }
+
+    /**
+     * The upload Test.
+     *
+     * @throws Exception should not happen
+     */
+    @org.junit.Test
+    public void upload() throws Exception
+    {
+      Handler handler = new Handler(2);
+      com.sun.net.httpserver.HttpServer server =
+        com.sun.net.httpserver.HttpServer.create
+        (new java.net.InetSocketAddress("localhost", 0), 0);
+      server.createContext("/__import", handler);
+      server.start();
+
+      File dir = java.nio.file.Files.createTempDirectory("upload").toFile();
+      try
+      {
+        File first = new File(dir, "first.png");
+        File second = new File(dir, "second.jpg");
+        File manifest = new File(dir, "manifest");
+        com.google.common.io.Files.write("12345", first, Charsets.UTF_8);
+        com.google.common.io.Files.write("1234567890", second, Charsets.UTF_8);
+
+        int port = server.getAddress().getPort();
+        Uploader uploader = new Uploader("localhost", port, 2, manifest, 1);
+        uploader.upload(first, "image/png", "main", "/base item/a");
+        uploader.upload(second, "image/jpeg", "other", "/base item/b");
+        assertEquals("failed", 0, uploader.finish());
+        assertEquals("requests",
+                     "[/__import?type=image/jpeg&name=other&key=/base+item/b "
+                     + "10, "
+                     + "/__import?type=image/png&name=main&key=/base+item/a 5]",
+                     handler.requests().toString());
+
+        // Uploading again only uploads changed content.
+        com.google.common.io.Files.write("123", first, Charsets.UTF_8);
+        uploader = new Uploader("localhost", port, 2, manifest, 1);
+        uploader.upload(first, "image/png", "main", "/base item/a");
+        uploader.upload(second, "image/jpeg", "other", "/base item/b");
+        assertEquals("failed", 0, uploader.finish());
+        assertEquals("requests", 3, handler.requests().size());
+        assertTrue("changed", handler.requests().contains
+                   ("/__import?type=image/png&name=main&key=/base+item/a 3"));
+      }
+      finally
+      {
+        server.stop(0);
+        for(File file : dir.listFiles())
+          assertTrue("delete", file.delete());
+        assertTrue("delete", dir.delete());
+      }
+    }
+  }
+}
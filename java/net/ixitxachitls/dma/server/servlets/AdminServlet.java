@@ -34,11 +34,18 @@ import javax.annotation.concurrent.Immutable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.common.base.Optional;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Multiset;
 import com.google.template.soy.data.SoyData;
 
 import net.ixitxachitls.dma.data.DMADataFactory;
+import net.ixitxachitls.dma.data.DataStore;
+import net.ixitxachitls.dma.data.DMADatastore;
+import net.ixitxachitls.dma.data.IndexStore;
+import net.ixitxachitls.dma.data.LayeredCache;
+import net.ixitxachitls.dma.data.Rebuild;
+import net.ixitxachitls.dma.data.ValueStore;
 import net.ixitxachitls.dma.entries.AbstractEntry;
 import net.ixitxachitls.dma.entries.AbstractType;
 import net.ixitxachitls.dma.entries.BaseCharacter;
@@ -114,6 +121,29 @@ public class AdminServlet extends SoyServlet
     data.put("logs", logs);
     data.put("events", events);
 
+    List<Map<String, Object>> stats = new ArrayList<Map<String, Object>>();
+    CacheStats entries = DMADatastore.cacheStats();
+    stats.add(map("name", "entry cache hits",
+                  "value", "" + entries.hitCount()));
+    stats.add(map("name", "entry cache misses",
+                  "value", "" + entries.missCount()));
+    stats.add(map("name", "entry cache evictions",
+                  "value", "" + entries.evictionCount()));
+    for(LayeredCache cache : DataStore.getCaches())
+      stats.add(map("name", "local cache " + cache,
+                    "value", cache.localStats().hitCount() + " hits, "
+                    + cache.localStats().missCount() + " misses"));
+    for(Multiset.Entry<String> invalidation
+          : DataStore.getInvalidations().entrySet())
+      stats.add(map("name", "invalidations " + invalidation.getElement(),
+                    "value", "" + invalidation.getCount()));
+
+    for(Rebuild.Progress progress : Rebuild.get().getProgress())
+      stats.add(map("name", "rebuild " + progress.getJob(),
+                    "value", progress.toString()));
+
+    data.put("stats", stats);
+
     return data;
   }
 
@@ -157,17 +187,16 @@ public class AdminServlet extends SoyServlet
         return Optional.of(new TextError(HttpServletResponse.SC_BAD_REQUEST,
                                          "Invalid type '" + reset + "'."));
 
-      int size = DMADataFactory.get().rebuild(type.get());
+      String job = DMADataFactory.get().rebuild(type.get());
 
       try (PrintWriter writer = new PrintWriter(inResponse.getOutputStream()))
       {
-        writer.println("gui.info('The indexes for " + reset
-                       + " have been rebuilt! " + size
-                       + " entries updated.');");
+        writer.println("gui.info('Rebuilding the indexes for " + reset.get()
+                       + " in background job " + job + ".');");
       }
 
       Log.event(user.get().getName(), "admin index reset",
-                "index " + reset + " was reset for " + size + " entries");
+                "index " + reset.get() + " is reset in job " + job);
       return null;
     }
 
@@ -178,14 +207,10 @@ public class AdminServlet extends SoyServlet
       inResponse.setHeader("Content-Type", "text/html");
       inResponse.setHeader("Cache-Control", "max-age=0");
 
-      MemcacheServiceFactory.getMemcacheService("entity").clearAll();
-      MemcacheServiceFactory.getMemcacheService("byValue").clearAll();
-      MemcacheServiceFactory.getMemcacheService("listByValue").clearAll();
-      MemcacheServiceFactory.getMemcacheService("ids").clearAll();
-      MemcacheServiceFactory.getMemcacheService("idsByValue").clearAll();
-      MemcacheServiceFactory.getMemcacheService("recent").clearAll();
-      MemcacheServiceFactory.getMemcacheService("values").clearAll();
-      MemcacheServiceFactory.getMemcacheService("multiValues").clearAll();
+      DataStore.clearCaches();
+      DMADatastore.clearCache();
+      IndexStore.clearCache();
+      ValueStore.clearCache();
       Log.event(user.get().getName(), "admin clear cache",
                 "All caches have been cleared");
 
@@ -209,15 +234,16 @@ public class AdminServlet extends SoyServlet
         return Optional.of(new TextError(HttpServletResponse.SC_BAD_REQUEST,
                                          "Invalid type '" + refresh + "'."));
 
-      int size = DMADataFactory.get().refresh(type.get(), request);
+      String job = DMADataFactory.get().refresh(type.get());
 
-      Log.event(user.get().getName(), "admin refresh " + refresh,
-                size + " entries of " + refresh + " have been refreshed.");
+      Log.event(user.get().getName(), "admin refresh " + refresh.get(),
+                "entries of " + refresh.get() + " are refreshed in job "
+                + job);
 
       try (PrintWriter writer = new PrintWriter(inResponse.getOutputStream()))
       {
-        writer.println("gui.info('" + size + " entries for " + refresh
-                       + " have been refreshed');");
+        writer.println("gui.info('Refreshing the entries for " + refresh.get()
+                       + " in background job " + job + ".');");
       }
       return null;
     }
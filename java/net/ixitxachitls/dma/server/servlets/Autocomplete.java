@@ -21,21 +21,16 @@
 
 package net.ixitxachitls.dma.server.servlets;
 
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.SortedSet;
 
 import javax.annotation.concurrent.Immutable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 import org.easymock.EasyMock;
 
@@ -71,13 +66,6 @@ public class Autocomplete extends JSONServlet
   /** The maximal number of results to return. */
   private static final int s_max = 20;
 
-  /** The cache for the values. */
-  private static final Map<String, SortedSet<String>> s_cache =
-    Maps.newHashMap();
-
-  /** The joiner for keys. */
-  private static final Joiner s_keyJoiner = Joiner.on("//");
-
   @Override
   protected synchronized void writeJson(DMARequest inRequest,
                                         String inPath,
@@ -96,7 +84,6 @@ public class Autocomplete extends JSONServlet
       Optional<? extends AbstractType<? extends AbstractEntry>> type =
         AbstractType.getTyped(parts[2]);
       String field = parts[3];
-      String []keys = Arrays.copyOfRange(parts, 2, parts.length);
 
       if(type.isPresent() && field != null)
       {
@@ -105,10 +92,8 @@ public class Autocomplete extends JSONServlet
           items = Optional.of(DMADataFactory.get().getIDs(
               type.get(), Optional.<EntryKey>absent()));
         else
-        {
-          ensureCached(type.get(), field);
-          items = cached(keys);
-        }
+          items = Optional.of(DMADataFactory.get().getValues(type.get(),
+                                                             field));
 
         List<String> names = Lists.newArrayList();
         if(items.isPresent())
@@ -170,50 +155,6 @@ public class Autocomplete extends JSONServlet
     return inName.replaceAll(" +", " ");
   }
 
-  /**
-   * Ensure that the desired values are in the cache, loading them if
-   * necessary. Note that this is an expensive operation.
-   *
-   * @param       inType  the type of entries to auto complete
-   * @param       inField the field with the autocomplete values
-   *
-   */
-  public void ensureCached(AbstractType<? extends AbstractEntry> inType,
-                           String inField)
-  {
-    // Check if already cached.
-    Optional<SortedSet<String>> values = cached(inType.toString(), inField);
-    if(values.isPresent())
-      return;
-
-    SortedSet<String> newValues =
-        DMADataFactory.get().getValues(inType, inField);
-    cache(newValues, inType.toString(), inField);
-  }
-
-  /**
-   * Cache the given value with the given keys.
-   *
-   * @param       inValues the values to store
-   * @param       inKeys   the key parts to store with
-   *
-   */
-  public void cache(SortedSet<String> inValues, String ... inKeys)
-  {
-    s_cache.put(s_keyJoiner.join(inKeys), inValues);
-  }
-
-  /**
-   * Get the cached value for the given keys.
-   *
-   * @param   inKeys the key parts for the cached value
-   * @return  the cached value or null if not cached
-   */
-  private Optional<SortedSet<String>> cached(String ... inKeys)
-  {
-    return Optional.fromNullable(s_cache.get(s_keyJoiner.join(inKeys)));
-  }
-
   //----------------------------------------------------------------------------
 
   /** The test. */
@@ -23,6 +23,7 @@ package net.ixitxachitls.dma.server.servlets;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
@@ -37,6 +38,7 @@ import com.google.common.collect.Multimap;
 import org.easymock.EasyMock;
 
 import net.ixitxachitls.dma.data.DMADataFactory;
+import net.ixitxachitls.dma.data.Prefetch;
 import net.ixitxachitls.dma.entries.AbstractEntry;
 import net.ixitxachitls.dma.entries.BaseCharacter;
 import net.ixitxachitls.dma.entries.EntryKey;
@@ -88,8 +90,8 @@ public class DMARequest extends HttpServletRequestWrapper
   /** The user override for doing the request, if any. */
   private Optional<BaseCharacter> m_userOverride = Optional.absent();
 
-  /** The cached entries for the request. */
-  private Map<EntryKey, AbstractEntry> m_entries = Maps.newHashMap();
+  /** The cached entries for the request, possibly fetched concurrently. */
+  private Map<EntryKey, AbstractEntry> m_entries = Maps.newConcurrentMap();
 
   /** The default size of an index page (number of entries shown). */
   protected static final int def_pageSize =
@@ -216,6 +218,17 @@ public class DMARequest extends HttpServletRequestWrapper
     return getParam("start", 0);
   }
 
+  /**
+   * Get the cursor for pagination. If present, it is used instead of the start
+   * index.
+   *
+   * @return      the web safe cursor to the start of the page, if any
+   */
+  public Optional<String> getCursor()
+  {
+    return getParam("cursor");
+  }
+
   /**
    * Gets the page size.
    *
@@ -294,6 +307,21 @@ public class DMARequest extends HttpServletRequestWrapper
     return entry;
   }
 
+  /**
+   * Read all the entries referenced from the given entry, as given by the
+   * shape, and store them for the rest of the request.
+   *
+   * @param       inEntry the entry to prefetch the references of
+   * @param       inShape the references to follow
+   */
+  public void prefetch(AbstractEntry inEntry, Set<Prefetch.Follow> inShape)
+  {
+    for(Map.Entry<EntryKey, AbstractEntry> entry
+          : new Prefetch(inShape).fetch(inEntry).entrySet())
+      if(!m_entries.containsKey(entry.getKey()))
+        m_entries.put(entry.getKey(), entry.getValue());
+  }
+
   /**
    * Check if the time for the request is running out. There is a time limit
    * of 60s on an app engine request.
@@ -310,9 +338,10 @@ public class DMARequest extends HttpServletRequestWrapper
 
   /**
    * Get the email address from the AppEngine UserService and
-   * lookup a matching BaseCharacter in the DMAData.
+   * lookup a matching BaseCharacter in the DMAData. The user may be fetched
+   * concurrently to other data of the request.
    */
-  public void extractUser()
+  public synchronized void extractUser()
   {
     if(m_extractedUser)
       return;
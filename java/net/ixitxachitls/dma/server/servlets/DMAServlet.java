@@ -33,7 +33,6 @@ import com.google.common.base.Optional;
 
 import org.easymock.EasyMock;
 
-import net.ixitxachitls.dma.data.DMADatastore;
 import net.ixitxachitls.dma.entries.AbstractEntry;
 import net.ixitxachitls.dma.entries.EntryKey;
 import net.ixitxachitls.dma.values.enums.Group;
@@ -192,7 +191,6 @@ public abstract class DMAServlet extends BaseServlet
     {
       DMARequest request = (DMARequest)inRequest;
 
-      DMADatastore.clearCache();
       if(allows(request))
         return handle(request, inResponse);
 
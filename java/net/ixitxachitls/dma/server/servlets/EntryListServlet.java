@@ -31,8 +31,10 @@ import javax.annotation.concurrent.Immutable;
 import com.google.common.base.Optional;
 
 import net.ixitxachitls.dma.data.DMADataFactory;
+import net.ixitxachitls.dma.data.Page;
 import net.ixitxachitls.dma.entries.AbstractEntry;
 import net.ixitxachitls.dma.entries.AbstractType;
+import net.ixitxachitls.dma.entries.EntryKey;
 import net.ixitxachitls.dma.output.soy.SoyRenderer;
 import net.ixitxachitls.dma.output.soy.SoyValue;
 import net.ixitxachitls.util.Encodings;
@@ -66,19 +68,22 @@ public class EntryListServlet extends PageServlet
    * @param       inRequest the original request
    * @param       inPath    the path used to access the entries
    * @param       inType    the type of entries to get
-   * @param       inStart   the index where to start to get entries
+   * @param       inCursor  the cursor where the page starts, if any
+   * @param       inStart   the index where to start to get entries, if no
+   *                        cursor is given
    * @param       inSize    the maximal number of entries to return
    *
-   * @return      a list of all entries in range
+   * @return      the page with all entries in range
    */
   @SuppressWarnings("unchecked") // need to cast
-  public List<AbstractEntry>
+  public Page<AbstractEntry>
     getEntries(DMARequest inRequest, String inPath,
                AbstractType<? extends AbstractEntry> inType,
-               int inStart, int inSize)
+               Optional<String> inCursor, int inStart, int inSize)
   {
-    return (List<AbstractEntry>)DMADataFactory.get()
-      .getEntries(inType, null, inStart, inSize);
+    return (Page<AbstractEntry>)DMADataFactory.get()
+      .getEntries(inType, Optional.<EntryKey>absent(), inCursor, inStart,
+                  inSize);
   }
 
   /**
@@ -114,12 +119,13 @@ public class EntryListServlet extends PageServlet
     String title = Encodings.toWordUpperCase(type.get().getMultipleLink());
     Log.info("serving dynamic list " + title);
 
-    List<AbstractEntry> rawEntries = getEntries(inRequest, path, type.get(),
-                                                inRequest.getStart(),
-                                                inRequest.getPageSize() + 1);
+    Page<AbstractEntry> page = getEntries(inRequest, path, type.get(),
+                                          inRequest.getCursor(),
+                                          inRequest.getStart(),
+                                          inRequest.getPageSize());
 
     List<SoyValue> entries = new ArrayList<>();
-    for(AbstractEntry entry : rawEntries)
+    for(AbstractEntry entry : page.getValues())
       entries.add(new SoyValue(entry.getKey().toString(), entry));
 
     data.put("content",
@@ -131,7 +137,8 @@ public class EntryListServlet extends PageServlet
                   "label", title.toLowerCase(Locale.US),
                   "path", path,
                   "pagesize", inRequest.getPageSize(),
-                  "start", inRequest.getStart()))));
+                  "start", inRequest.getStart(),
+                  "next", page.getCursor().or("")))));
 
     return data;
   }
@@ -26,6 +26,7 @@ import java.io.StringWriter;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -39,6 +40,7 @@ import com.google.template.soy.data.SoyData;
 import org.easymock.EasyMock;
 
 import net.ixitxachitls.dma.data.DMADataFactory;
+import net.ixitxachitls.dma.data.Prefetch;
 import net.ixitxachitls.dma.entries.AbstractEntry;
 import net.ixitxachitls.dma.entries.AbstractType;
 import net.ixitxachitls.dma.entries.BaseCharacter;
@@ -298,6 +300,45 @@ public class EntryServlet extends PageServlet
     return data;
   }
 
+  @Override
+  protected void fetch(final DMARequest inRequest, Fetcher inFetcher)
+  {
+    super.fetch(inRequest, inFetcher);
+
+    String path = inRequest.getRequestURI();
+    if(path == null)
+      return;
+
+    // Don't wait for the user to check whether this creates a new entry.
+    final Optional<EntryKey> key = extractKey(path);
+    if(!key.isPresent() || inRequest.hasParam("create")
+       || "CREATE".equalsIgnoreCase(key.get().getID()))
+      return;
+
+    // Read everything shown on the page before rendering starts.
+    inFetcher.fetch("entry", new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        Optional<AbstractEntry> entry = getEntry(inRequest);
+        if(entry.isPresent())
+          inRequest.prefetch(entry.get(), Prefetch.PAGE);
+      }
+    });
+
+    // The ids for navigating to the neighbouring entries.
+    inFetcher.fetch("ids", new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        DMADataFactory.get().getIDs(key.get().getType(),
+                                    Optional.<EntryKey>absent());
+      }
+    });
+  }
+
   @Override
   protected Map<String, Object> collectInjectedData(DMARequest inRequest,
                                                     SoyRenderer inRenderer)
@@ -408,6 +449,9 @@ public class EntryServlet extends PageServlet
         EasyMock.expect(m_request.hasParam("create")).andStubReturn(inCreate);
       else
         EasyMock.expect(m_request.hasParam("create")).andStubReturn(false);
+      m_request.prefetch(EasyMock.anyObject(AbstractEntry.class),
+                         EasyMock.<Set<Prefetch.Follow>>anyObject());
+      EasyMock.expectLastCall().anyTimes();
       EasyMock.replay(m_request, m_response);
 
       return new EntryServlet()
@@ -0,0 +1,274 @@
+/******************************************************************************
+ * Copyright (c) 2002-2014 Peter 'Merlin' Balsiger and Fredy 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.server.servlets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+
+import net.ixitxachitls.util.Tracer;
+import net.ixitxachitls.util.configuration.Config;
+import net.ixitxachitls.util.logging.Log;
+
+/**
+ * Runs the independent data fetches of a single request concurrently. The
+ * fetches run on request threads, as background threads cannot use the app
+ * engine services for the request. If no request threads are available
+ * (e.g. when testing), the fetches run directly when added.
+ *
+ * Fetches only read data into the caches of the request and the data store;
+ * collecting the data for rendering afterwards then finds everything read.
+ * A failed fetch is only logged, as the same data is read again when
+ * collecting and any error is handled there.
+ *
+ * @file          Fetcher.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+public class Fetcher implements AutoCloseable
+{
+  /**
+   * Create the fetcher for the current request.
+   */
+  public Fetcher()
+  {
+    ThreadFactory factory = null;
+    if(THREADS > 0 && ApiProxy.getCurrentEnvironment() != null)
+      factory = ThreadManager.currentRequestThreadFactory();
+
+    if(factory == null)
+      m_executor = Optional.absent();
+    else
+      m_executor =
+        Optional.of(Executors.newFixedThreadPool(THREADS, factory));
+  }
+
+  /**
+   * Create the fetcher with the given executor.
+   *
+   * @param inExecutor the executor to run fetches, if any
+   */
+  @VisibleForTesting
+  Fetcher(Optional<ExecutorService> inExecutor)
+  {
+    m_executor = inExecutor;
+  }
+
+  /** The maximal number of threads used to fetch for a single request. */
+  public static final int THREADS = Config.get("web.fetch.threads", 4);
+
+  /** The executor running the fetches, if request threads are available. */
+  private final Optional<ExecutorService> m_executor;
+
+  /** The names of the fetches started. */
+  private final List<String> m_names = new ArrayList<>();
+
+  /** The results of the fetches started, in the same order as the names. */
+  private final List<Future<?>> m_fetches = new ArrayList<>();
+
+  /**
+   * Start a fetch.
+   *
+   * @param inName  the name of the fetch, for tracing
+   * @param inFetch the fetch to run
+   */
+  public void fetch(final String inName, final Runnable inFetch)
+  {
+    Runnable traced = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        Tracer tracer = new Tracer("fetching " + inName);
+        inFetch.run();
+        tracer.done();
+      }
+    };
+
+    if(m_executor.isPresent())
+    {
+      m_names.add(inName);
+      m_fetches.add(m_executor.get().submit(traced));
+      return;
+    }
+
+    try
+    {
+      traced.run();
+    }
+    catch(RuntimeException e) // $codepro.audit.disable caughtExceptions
+    {
+      Log.warning("fetching " + inName + " failed: " + e);
+    }
+  }
+
+  /**
+   * Wait for all started fetches to be done.
+   */
+  public void await()
+  {
+    for(int i = 0; i < m_fetches.size(); i++)
+      try
+      {
+        m_fetches.get(i).get();
+      }
+      catch(ExecutionException e)
+      {
+        Log.warning("fetching " + m_names.get(i) + " failed: " + e.getCause());
+      }
+      catch(InterruptedException e)
+      {
+        Log.warning("interrupted while fetching " + m_names.get(i));
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+    m_names.clear();
+    m_fetches.clear();
+  }
+
+  /**
+   * Stop all the threads used for fetching. Request threads must not outlive
+   * the request.
+   */
+  @Override
+  public void close()
+  {
+    if(m_executor.isPresent())
+      m_executor.get().shutdownNow();
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The tests. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /** The fetch test. */
+    @org.junit.Test
+    public void fetch()
+    {
+      final List<String> fetched = new ArrayList<>();
+      try (Fetcher fetcher = new Fetcher())
+      {
+        fetcher.fetch("first", new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            fetched.add("first");
+          }
+        });
+        fetcher.fetch("failing", new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            throw new IllegalStateException("failed");
+          }
+        });
+        fetcher.fetch("second", new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            fetched.add("second");
+          }
+        });
+        fetcher.await();
+      }
+
+      assertEquals("fetched", "[first, second]", fetched.toString());
+      m_logger.addExpected("WARNING: fetching failing failed: "
+                           + "java.lang.IllegalStateException: failed");
+    }
+
+    /**
+     * The threaded fetch test.
+     *
+     * @throws Exception should not happen
+     */
+    @org.junit.Test
+    public void threaded() throws Exception
+    {
+      final List<String> fetched =
+        Collections.synchronizedList(new ArrayList<String>());
+      final CountDownLatch started = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try (Fetcher fetcher = new Fetcher(Optional.of(executor)))
+      {
+        fetcher.fetch("waiting", new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            try
+            {
+              // Only finishes if the other fetch runs concurrently.
+              if(started.await(10, TimeUnit.SECONDS))
+                fetched.add("waiting");
+            }
+            catch(InterruptedException e)
+            {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+        fetcher.fetch("starting", new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            fetched.add("starting");
+            started.countDown();
+          }
+        });
+        fetcher.fetch("failing", new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            throw new IllegalStateException("failed");
+          }
+        });
+        fetcher.await();
+
+        assertEquals("fetched", "[starting, waiting]", fetched.toString());
+        assertFalse("running", executor.isShutdown());
+      }
+
+      assertTrue("closed", executor.isShutdown());
+      m_logger.addExpected("WARNING: fetching failing failed: "
+                           + "java.lang.IllegalStateException: failed");
+    }
+  }
+}
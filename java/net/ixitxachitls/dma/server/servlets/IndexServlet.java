@@ -43,9 +43,11 @@ import com.google.template.soy.data.SoyData;
 import org.easymock.EasyMock;
 
 import net.ixitxachitls.dma.data.DMADataFactory;
+import net.ixitxachitls.dma.data.Page;
 import net.ixitxachitls.dma.entries.AbstractEntry;
 import net.ixitxachitls.dma.entries.AbstractType;
 import net.ixitxachitls.dma.entries.BaseCharacter;
+import net.ixitxachitls.dma.entries.EntryKey;
 import net.ixitxachitls.dma.entries.indexes.Index;
 import net.ixitxachitls.dma.output.soy.SoyRenderer;
 import net.ixitxachitls.dma.output.soy.SoyValue;
@@ -138,7 +140,7 @@ public class IndexServlet extends PageServlet
       // SortedSet<String> indexes =
       //   DMADataFactory.get().getIndexNames(name, type, false);
       SortedSet<String> indexes =
-        DMADataFactory.get().getValues(type.get(), Index.PREFIX + name);
+        DMADataFactory.get().getIndexGroups(name, type.get()).getGroups();
 
       if(indexes.size() == 1)
         group = indexes.iterator().next();
@@ -159,17 +161,20 @@ public class IndexServlet extends PageServlet
 
     title += " - " + group.replace("::", " ");
 
-    List<? extends AbstractEntry> rawEntries =
-      DMADataFactory.get().getIndexEntries(name, type.get(), null, group,
+    Page<AbstractEntry> page =
+      DMADataFactory.get().getIndexEntries(name, type.get(),
+                                           Optional.<EntryKey>absent(), group,
+                                           inRequest.getCursor(),
                                            inRequest.getStart(),
-                                           inRequest.getPageSize() + 1);
+                                           inRequest.getPageSize());
 
     List<SoyValue> entries = new ArrayList<>();
-    for(AbstractEntry entry : rawEntries)
+    for(AbstractEntry entry : page.getValues())
       entries.add(new SoyValue(entry.getKey().toString(), entry));
 
     data.put("start", inRequest.getStart());
     data.put("pagesize", inRequest.getPageSize());
+    data.put("next", page.getCursor().or(""));
     data.put("entries", entries);
 
     return data;
@@ -82,14 +82,17 @@ public class PageServlet extends SoyServlet
 
     if(!bodyOnly)
     {
-      inWriter.println(inRenderer.render("dma.page.head"));
+      inRenderer.render("dma.page.head", inWriter);
+      inWriter.println();
 
       if(print)
-        inWriter.print(inRenderer.render("dma.page.printStart"));
+        inRenderer.render("dma.page.printStart", inWriter);
       else
       {
-        inWriter.println(inRenderer.render("dma.page.header"));
-        inWriter.println(inRenderer.render("dma.page.start"));
+        inRenderer.render("dma.page.header", inWriter);
+        inWriter.println();
+        inRenderer.render("dma.page.start", inWriter);
+        inWriter.println();
       }
     }
 
@@ -98,12 +101,15 @@ public class PageServlet extends SoyServlet
     if(!bodyOnly)
     {
       if(print)
-        inWriter.println(inRenderer.render("dma.page.printEnd"));
+        inRenderer.render("dma.page.printEnd", inWriter);
       else
       {
-        inWriter.println(inRenderer.render("dma.page.end"));
-        inWriter.println(inRenderer.render("dma.page.footer"));
+        inRenderer.render("dma.page.end", inWriter);
+        inWriter.println();
+        inRenderer.render("dma.page.footer", inWriter);
       }
+
+      inWriter.println();
     }
   }
 
@@ -282,6 +288,59 @@ public class PageServlet extends SoyServlet
       }
     }
 
+    /** The streamed Test.
+     *
+     * @throws Exception should not happen
+     */
+    @org.junit.Test
+    public void streamed() throws Exception
+    {
+      m_localServiceTestHelper.setEnvIsLoggedIn(false);
+      DMARequest request = EasyMock.createMock(DMARequest.class);
+      HttpServletResponse response =
+        EasyMock.createMock(HttpServletResponse.class);
+
+      try (StringWriter writer = new StringWriter();
+           StringWriter expected = new StringWriter())
+      {
+        response.setContentType("text/html");
+        response.setHeader("Cache-Control", "max-age=0");
+        response.setCharacterEncoding("UTF-8");
+        EasyMock.expect(request.isBodyOnly()).andReturn(false).anyTimes();
+        EasyMock.expect(request.hasUser()).andStubReturn(false);
+        EasyMock.expect(request.getUser()).andStubReturn(
+            Optional.<BaseCharacter>absent());
+        EasyMock.expect(request.getOriginalPath()).andStubReturn("index.html");
+        EasyMock.expect(request.getQueryString()).andReturn("").anyTimes();
+        EasyMock.expect(request.getRequestURI()).andStubReturn("/about.html");
+        EasyMock.expect(request.hasUserOverride()).andStubReturn(false);
+        EasyMock.expect(response.getWriter())
+            .andStubReturn(new PrintWriter(writer));
+        EasyMock.replay(request, response);
+
+        PageServlet servlet = new PageServlet();
+        assertFalse("handle", servlet.handle(request, response).isPresent());
+
+        // The page as it was rendered into strings before streaming.
+        SoyRenderer renderer = new SoyRenderer();
+        servlet.prepareRenderer(request, renderer);
+        PrintWriter out = new PrintWriter(expected);
+        out.println(renderer.render("dma.page.intro"));
+        out.println(renderer.render("dma.page.head"));
+        out.println(renderer.render("dma.page.header"));
+        out.println(renderer.render("dma.page.start"));
+        out.println(renderer.render("dma.page.empty"));
+        out.println(renderer.render("dma.page.end"));
+        out.println(renderer.render("dma.page.footer"));
+        out.println(renderer.render("dma.page.extro"));
+        out.flush();
+
+        assertEquals("streamed", expected.toString(), writer.toString());
+
+        EasyMock.verify(request, response);
+      }
+    }
+
     /** The navigation Test.
      *
      * @throws IOException when closing the output
@@ -124,29 +124,52 @@ public class SoyServlet extends DMAServlet
   }
 
   /**
-   * Create the renderer for the given request.
+   * Prepare the renderer for the given request by collecting all the data
+   * needed. The independent data is first fetched concurrently, such that
+   * collecting then finds everything already read.
    *
    * @param inRequest the request for the page
-   * @return the renderer
+   * @param inRenderer the renderer to prepare
    */
-  protected SoyRenderer createRenderer(DMARequest inRequest)
+  protected void prepareRenderer(DMARequest inRequest, SoyRenderer inRenderer)
   {
-    Tracer tracer = new Tracer("creating renderer");
-    SoyRenderer renderer = new SoyRenderer();
+    Tracer tracer = new Tracer("fetching data");
+    try (Fetcher fetcher = new Fetcher())
+    {
+      fetch(inRequest, fetcher);
+      fetcher.await();
+    }
     tracer.done();
+
     // we have to collect injected data before other data to have it available
     // when collecting
     tracer = new Tracer("setting injected data");
-    renderer.setInjected(collectInjectedData(inRequest, renderer));
+    inRenderer.setInjected(collectInjectedData(inRequest, inRenderer));
     tracer.done();
     tracer = new Tracer("collecting data");
-    Map<String, Object> data = collectData(inRequest, renderer);
+    Map<String, Object> data = collectData(inRequest, inRenderer);
     tracer.done();
     tracer = new Tracer("setting soy data");
-    renderer.setData(data);
+    inRenderer.setData(data);
     tracer.done();
+  }
 
-    return renderer;
+  /**
+   * Start fetching all the independent data needed for the request.
+   *
+   * @param inRequest the request for the page
+   * @param inFetcher the fetcher to start fetches with
+   */
+  protected void fetch(final DMARequest inRequest, Fetcher inFetcher)
+  {
+    inFetcher.fetch("user", new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        inRequest.getUser();
+      }
+    });
   }
 
   /**
@@ -159,8 +182,9 @@ public class SoyServlet extends DMAServlet
   protected void render(DMARequest inRequest, PrintWriter inWriter,
                         SoyRenderer inRenderer)
   {
-    inWriter.println(inRenderer.render(getTemplateName(
-        inRequest, inRenderer.getData())));
+    inRenderer.render(getTemplateName(inRequest, inRenderer.getData()),
+                      inWriter);
+    inWriter.println();
   }
 
   @Override
@@ -173,15 +197,22 @@ public class SoyServlet extends DMAServlet
     inResponse.setCharacterEncoding("UTF-8");
     inResponse.setHeader("Cache-Control", "max-age=0");
 
-    SoyRenderer renderer = createRenderer(inRequest);
-    Tracer tracer = new Tracer("rendering soy template");
+    SoyRenderer renderer = new SoyRenderer();
     try (PrintWriter writer = inResponse.getWriter())
     {
-      writer.println(renderer.render("dma.page.intro"));
+      // The intro does not depend on any data, thus we send it right away.
+      renderer.render("dma.page.intro", writer);
+      writer.println();
+      writer.flush();
+
+      prepareRenderer(inRequest, renderer);
+
+      Tracer tracer = new Tracer("rendering soy template");
       render(inRequest, writer, renderer);
-      writer.println(renderer.render("dma.page.extro"));
+      renderer.render("dma.page.extro", writer);
+      writer.println();
+      tracer.done();
     }
-    tracer.done();
 
     return Optional.absent();
   }
@@ -22,6 +22,8 @@
 
 package net.ixitxachitls.dma.values;
 
+import java.util.regex.Pattern;
+
 import com.google.common.base.Optional;
 
 import net.ixitxachitls.dma.proto.Values.CriticalProto;
@@ -37,6 +39,11 @@ import net.ixitxachitls.util.Strings;
  */
 public class Critical extends Value.Arithmetic<CriticalProto>
 {
+  /** The pattern for parsing criticals. */
+  private static final Pattern PATTERN =
+    Pattern.compile("^(?:\\s*(?:(\\d+)?\\s*-)?\\s*(\\d+)\\s*/\\s*)?"
+                    + "(?:\\s*x\\s*(\\d+))?\\s*$");
+
   /** The parser for critical vaues. */
   public static final Parser<Critical> PARSER = new Parser<Critical>(1)
   {
@@ -50,9 +57,7 @@ public class Critical extends Value.Arithmetic<CriticalProto>
         return Optional.of(new Critical(1, 20));
 
       String []parts =
-        Strings.getPatterns(inValue,
-                            "^(?:\\s*(?:(\\d+)?\\s*-)?\\s*(\\d+)\\s*/\\s*)?"
-                            + "(?:\\s*x\\s*(\\d+))?\\s*$");
+        Strings.getPatterns(inValue, PATTERN);
       if(parts == null || parts.length == 0)
         return Optional.absent();
 
@@ -24,6 +24,7 @@ package net.ixitxachitls.dma.values;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import com.google.common.base.Optional;
 
@@ -72,9 +73,7 @@ public class Damage extends Value.Arithmetic<DamageProto>
       for(String value : values)
       {
         String []parts =
-          Strings.getPatterns(value, "^([0-9\\-+\\sd]+)\\s*("
-                              + Strings.PIPE_JOINER.join(Type.names()) + ")?"
-                              + "(?:\\s+plus\\s+(.*))?$");
+          Strings.getPatterns(value, PATTERN);
         if(parts == null || parts.length != 3)
           return Optional.absent();
 
@@ -281,6 +280,12 @@ public class Damage extends Value.Arithmetic<DamageProto>
   /** Additional effects together with the damage, if any. */
   protected final Optional<String> m_effect;
 
+  /** The pattern for parsing a single damage. */
+  private static final Pattern PATTERN =
+    Pattern.compile("^([0-9\\-+\\sd]+)\\s*("
+                    + Strings.PIPE_JOINER.join(Type.names()) + ")?"
+                    + "(?:\\s+plus\\s+(.*))?$");
+
   /** The parser for parsing damages. */
   public static final Parser<Damage> PARSER = new DamageParser();
 
@@ -23,6 +23,7 @@
 package net.ixitxachitls.dma.values;
 
 import java.util.Random;
+import java.util.regex.Pattern;
 
 import com.google.common.base.Optional;
 
@@ -50,12 +51,10 @@ public class Dice extends Value<DiceProto>
     @Override
     public Optional<Dice> doParse(String inValue)
     {
-      if(inValue.matches("^\\s*\\d+\\s*$"))
+      if(NUMBER.matcher(inValue).matches())
         return Optional.of(new Dice(0, 0, Integer.parseInt(inValue)));
 
-      String []parts =
-        Strings.getPatterns(inValue,
-                            "^\\s*(?:(\\d)+d(\\d+))?\\s*([+-]\\s*\\d+)?\\s*$");
+      String []parts = Strings.getPatterns(inValue, PATTERN);
 
       if(parts.length != 3)
         return Optional.absent();
@@ -100,6 +99,13 @@ public class Dice extends Value<DiceProto>
   /** The random generator. */
   private static final Random s_random = new Random();
 
+  /** The pattern for dices that are just a number. */
+  private static final Pattern NUMBER = Pattern.compile("^\\s*\\d+\\s*$");
+
+  /** The pattern for parsing dices. */
+  private static final Pattern PATTERN =
+    Pattern.compile("^\\s*(?:(\\d)+d(\\d+))?\\s*([+-]\\s*\\d+)?\\s*$");
+
   /** The default parser for dices. */
   public static final Parser<Dice> PARSER = new DiceParser();
 
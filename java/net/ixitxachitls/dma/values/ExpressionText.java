@@ -0,0 +1,439 @@
+/******************************************************************************
+ * Copyright (c) 2002-2013 Peter 'Merlin' Balsiger and Fredy 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.values;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import net.ixitxachitls.util.configuration.Config;
+import net.ixitxachitls.util.logging.Log;
+
+/**
+ * A text with embedded variables ($name) and expressions ([[...]]), compiled
+ * once into a list of segments. All the expressions of a text are then
+ * rendered in a single pass for a given set of parameters.
+ *
+ * Besides the expressions handled by ExpressionValue, an expression can
+ * select a text by ranges, e.g. [[range($level, 0: an, 11: two)]] selects
+ * the text of the last range the value is greater or equal to.
+ *
+ * @file   ExpressionText.java
+ * @author balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+public final class ExpressionText
+{
+  /**
+   * A part of a compiled text.
+   */
+  private abstract static class Segment
+  {
+    /**
+     * Render the segment.
+     *
+     * @param ioResult     the builder to render into
+     * @param inParameters the values of variables
+     */
+    public abstract void render(StringBuilder ioResult,
+                                Parameters inParameters);
+  }
+
+  /**
+   * A segment of literal text.
+   */
+  private static class Literal extends Segment
+  {
+    /**
+     * Create the literal segment.
+     *
+     * @param inText the text of the segment
+     */
+    public Literal(String inText)
+    {
+      m_text = inText;
+    }
+
+    /** The literal text. */
+    private final String m_text;
+
+    @Override
+    public void render(StringBuilder ioResult, Parameters inParameters)
+    {
+      ioResult.append(m_text);
+    }
+  }
+
+  /**
+   * A segment for a single variable.
+   */
+  private static class Variable extends Segment
+  {
+    /**
+     * Create the variable segment.
+     *
+     * @param inName the name of the variable
+     */
+    public Variable(String inName)
+    {
+      m_name = inName;
+    }
+
+    /** The name of the variable. */
+    private final String m_name;
+
+    @Override
+    public void render(StringBuilder ioResult, Parameters inParameters)
+    {
+      if(inParameters.has(m_name))
+        ioResult.append(inParameters.get(m_name));
+      else
+        ioResult.append("\\color{error}{&#x24;").append(m_name).append('}');
+    }
+  }
+
+  /**
+   * A segment for a computed expression.
+   */
+  private static class Expression extends Segment
+  {
+    /**
+     * Create the expression segment.
+     *
+     * @param inExpression the compiled expression
+     */
+    public Expression(ExpressionValue<Object> inExpression)
+    {
+      m_expression = inExpression;
+    }
+
+    /** The compiled expression. */
+    private final ExpressionValue<Object> m_expression;
+
+    @Override
+    public void render(StringBuilder ioResult, Parameters inParameters)
+    {
+      Optional<Integer> value = m_expression.evaluate(inParameters);
+      if(value.isPresent())
+        ioResult.append(value.get().intValue());
+      else
+        ioResult.append(INVALID_NUMBER);
+    }
+  }
+
+  /**
+   * A segment selecting a text by the range of a computed value.
+   */
+  private static class Range extends Segment
+  {
+    /**
+     * Create the range segment.
+     *
+     * @param inExpression the expression computing the value to select by
+     * @param inLimits     the lower limits of the ranges, descending
+     * @param inTexts      the texts of the ranges, in the same order
+     */
+    public Range(ExpressionValue<Object> inExpression, int []inLimits,
+                 ExpressionText []inTexts)
+    {
+      m_expression = inExpression;
+      m_limits = inLimits;
+      m_texts = inTexts;
+    }
+
+    /** The expression computing the value to select by. */
+    private final ExpressionValue<Object> m_expression;
+
+    /** The lower limits of all the ranges, descending. */
+    private final int []m_limits;
+
+    /** The texts for all ranges. */
+    private final ExpressionText []m_texts;
+
+    @Override
+    public void render(StringBuilder ioResult, Parameters inParameters)
+    {
+      Optional<Integer> value = m_expression.evaluate(inParameters);
+      if(!value.isPresent())
+      {
+        ioResult.append(INVALID_NUMBER);
+        return;
+      }
+
+      for(int i = 0; i < m_limits.length; i++)
+        if(value.get() >= m_limits[i])
+        {
+          m_texts[i].render(ioResult, inParameters);
+          return;
+        }
+
+      ioResult.append(INVALID_RANGE);
+    }
+  }
+
+  /**
+   * Create the compiled text. Use compile() to get a text.
+   *
+   * @param inSegments the compiled segments of the text
+   */
+  private ExpressionText(List<Segment> inSegments)
+  {
+    m_segments = inSegments.toArray(new Segment[inSegments.size()]);
+  }
+
+  /** The segments of the text. */
+  private final Segment []m_segments;
+
+  /** The pattern for expressions and variables in a text. */
+  private static final Pattern PATTERN =
+    Pattern.compile("\\[\\[(.*?)\\]\\]|\\$(\\w+)");
+
+  /** The pattern for a range expression. */
+  private static final Pattern PATTERN_RANGE =
+    Pattern.compile("\\s*range\\s*\\((.*)\\)\\s*", Pattern.DOTALL);
+
+  /** The text rendered for an expression that cannot be parsed. */
+  private static final String INVALID_EXPRESSION = "* invalid expression *";
+
+  /** The text rendered for an expression that cannot be computed. */
+  private static final String INVALID_NUMBER = "* invalid number *";
+
+  /** The text rendered for a value not in any range. */
+  private static final String INVALID_RANGE = "* invalid range *";
+
+  /** The texts already compiled. */
+  private static final Cache<String, ExpressionText> s_compiled =
+    CacheBuilder.newBuilder()
+    .maximumSize(Config.get("expressions.texts.size", 1000))
+    .build();
+
+  /**
+   * Compile the given text. Compiled texts are cached and shared for the
+   * same text.
+   *
+   * @param inText the text to compile
+   * @return the compiled text
+   */
+  public static ExpressionText compile(String inText)
+  {
+    ExpressionText compiled = s_compiled.getIfPresent(inText);
+    if(compiled == null)
+    {
+      List<Segment> segments = new ArrayList<>();
+      Matcher matcher = PATTERN.matcher(inText);
+      int start = 0;
+      while(matcher.find())
+      {
+        if(matcher.start() > start)
+          segments.add(new Literal(inText.substring(start, matcher.start())));
+
+        if(matcher.group(1) != null)
+          segments.add(compileExpression(matcher.group(1)));
+        else
+          segments.add(new Variable(matcher.group(2)));
+
+        start = matcher.end();
+      }
+
+      if(start < inText.length())
+        segments.add(new Literal(inText.substring(start)));
+
+      compiled = new ExpressionText(segments);
+      s_compiled.put(inText, compiled);
+    }
+
+    return compiled;
+  }
+
+  /**
+   * Compile a single expression.
+   *
+   * @param inExpression the text of the expression, without brackets
+   * @return the compiled segment
+   */
+  private static Segment compileExpression(String inExpression)
+  {
+    Matcher range = PATTERN_RANGE.matcher(inExpression);
+    if(range.matches())
+      return compileRange(inExpression, range.group(1));
+
+    Optional<ExpressionValue<Object>> expression =
+      ExpressionValue.compile(inExpression);
+    if(!expression.isPresent())
+    {
+      Log.warning("invalid expression: " + inExpression);
+      return new Literal(INVALID_EXPRESSION);
+    }
+
+    return new Expression(expression.get());
+  }
+
+  /**
+   * Compile a range expression.
+   *
+   * @param inExpression the complete text of the expression
+   * @param inArguments  the arguments of the range
+   * @return the compiled segment
+   */
+  private static Segment compileRange(String inExpression, String inArguments)
+  {
+    List<String> arguments = splitArguments(inArguments);
+    Optional<ExpressionValue<Object>> expression =
+      ExpressionValue.compile(arguments.get(0));
+    if(!expression.isPresent())
+    {
+      Log.warning("invalid range expression: " + inExpression);
+      return new Literal(INVALID_EXPRESSION);
+    }
+
+    List<Integer> limits = new ArrayList<>();
+    List<ExpressionText> texts = new ArrayList<>();
+    for(int i = arguments.size() - 1; i > 0; i--)
+    {
+      String []parts = arguments.get(i).split(":", 2);
+      if(parts.length != 2)
+        continue;
+
+      try
+      {
+        limits.add(Integer.parseInt(parts[0].trim()));
+        texts.add(compile(parts[1].trim()));
+      }
+      catch(NumberFormatException e)
+      {
+        Log.warning("invalid range limit '" + parts[0] + "': " + inExpression);
+      }
+    }
+
+    int []limitArray = new int[limits.size()];
+    for(int i = 0; i < limitArray.length; i++)
+      limitArray[i] = limits.get(i);
+
+    return new Range(expression.get(), limitArray,
+                     texts.toArray(new ExpressionText[texts.size()]));
+  }
+
+  /**
+   * Split the given text into the arguments separated by top level commas.
+   *
+   * @param inText the text to split
+   * @return the arguments split
+   */
+  private static List<String> splitArguments(String inText)
+  {
+    List<String> arguments = new ArrayList<>();
+    int depth = 0;
+    int start = 0;
+    for(int i = 0; i < inText.length(); i++)
+    {
+      char c = inText.charAt(i);
+      if(c == '(')
+        depth++;
+      else if(c == ')')
+        depth--;
+      else if(c == ',' && depth == 0)
+      {
+        arguments.add(inText.substring(start, i));
+        start = i + 1;
+      }
+    }
+
+    arguments.add(inText.substring(start));
+    return arguments;
+  }
+
+  /**
+   * Render the text with all variables and expressions computed.
+   *
+   * @param inParameters the values of the variables
+   * @return the rendered text
+   */
+  public String evaluate(Parameters inParameters)
+  {
+    StringBuilder result = new StringBuilder();
+    render(result, inParameters);
+
+    return result.toString();
+  }
+
+  /**
+   * Render the text with all variables and expressions computed.
+   *
+   * @param ioResult     the builder to render into
+   * @param inParameters the values of the variables
+   */
+  public void render(StringBuilder ioResult, Parameters inParameters)
+  {
+    for(Segment segment : m_segments)
+      segment.render(ioResult, inParameters);
+  }
+
+  //---------------------------------------------------------------------------
+
+  /** The tests. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /** Evaluation test. */
+    @org.junit.Test
+    public void evaluate()
+    {
+      Parameters parameters = new Parameters().with("level", 7);
+      assertEquals("plain", "just text",
+                   compile("just text").evaluate(parameters));
+      assertEquals("variable", "level 7, ",
+                   compile("level $level, ").evaluate(parameters));
+      assertEquals("expression", "range 170 ft and 3 targets",
+                   compile("range [[100 + (10 * $level)]] ft and "
+                           + "[[min(3, $level)]] targets")
+                   .evaluate(parameters));
+      assertEquals("unbound", "\\color{error}{&#x24;guru} * invalid number *",
+                   compile("$guru [[$guru + 1]]").evaluate(parameters));
+      assertEquals("invalid", "a * invalid expression * b",
+                   compile("a [[max(1, (($level - 9) * 5)]] b")
+                   .evaluate(parameters));
+      assertTrue("cached", compile("$level") == compile("$level"));
+    }
+
+    /** Range test. */
+    @org.junit.Test
+    public void range()
+    {
+      ExpressionText text =
+        compile("[[range($times, 1: once, 2: twice, 3: $times times)]]");
+      assertEquals("once", "once",
+                   text.evaluate(new Parameters().with("times", 1)));
+      assertEquals("twice", "twice",
+                   text.evaluate(new Parameters().with("times", 2)));
+      assertEquals("times", "5 times",
+                   text.evaluate(new Parameters().with("times", 5)));
+      assertEquals("below", "* invalid range *",
+                   text.evaluate(new Parameters().with("times", 0)));
+      assertEquals("computed", "-1",
+                   compile("[[range(min(5, $level), 0: -2, 5: -1, 9:0)]]")
+                   .evaluate(new Parameters().with("level", 12)));
+    }
+  }
+}
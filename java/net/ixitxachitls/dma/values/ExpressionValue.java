@@ -24,11 +24,15 @@ package net.ixitxachitls.dma.values;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.appengine.repackaged.com.google.common.collect.ImmutableMap;
 import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.protobuf.Message;
 
 import net.ixitxachitls.dma.proto.Values.ExpressionProto;
@@ -37,6 +41,7 @@ import net.ixitxachitls.dma.values.enums.Operator;
 import net.ixitxachitls.input.ParseReader;
 import net.ixitxachitls.input.ReadException;
 import net.ixitxachitls.util.Strings;
+import net.ixitxachitls.util.configuration.Config;
 
 
 /**
@@ -60,6 +65,8 @@ public class ExpressionValue<T> extends Value
     m_variable = Optional.absent();
     m_integer = 0;
     m_operator = Operator.NONE;
+    m_integral = false;
+    m_variables = new String[0];
   }
 
   /**
@@ -73,6 +80,8 @@ public class ExpressionValue<T> extends Value
     m_variable = Optional.of(inVariable);
     m_integer = 0;
     m_operator = Operator.NONE;
+    m_integral = true;
+    m_variables = new String[] { inVariable };
   }
 
   /**
@@ -86,6 +95,8 @@ public class ExpressionValue<T> extends Value
     m_variable = Optional.absent();
     m_integer = inValue;
     m_operator = Operator.NONE;
+    m_integral = true;
+    m_variables = new String[0];
   }
 
   /**
@@ -102,6 +113,8 @@ public class ExpressionValue<T> extends Value
     m_integer = 0;
     m_operator = inOperator;
     m_operands.addAll(Arrays.asList(inValues));
+    m_integral = isIntegral(m_operator, m_operands);
+    m_variables = variables(m_operands);
   }
 
   /**
@@ -117,6 +130,8 @@ public class ExpressionValue<T> extends Value
     m_integer = 0;
     m_operator = inOperator;
     m_operands.addAll(inValues);
+    m_integral = isIntegral(m_operator, m_operands);
+    m_variables = variables(m_operands);
   }
 
   /** Create an expression with another one. This is mainly used for brackets.
@@ -130,6 +145,8 @@ public class ExpressionValue<T> extends Value
     m_integer = 0;
     m_operator = Operator.NONE;
     m_operands.add(inValue);
+    m_integral = isIntegral(m_operator, m_operands);
+    m_variables = variables(m_operands);
   }
 
   /** The terminal value, if any. */
@@ -147,6 +164,18 @@ public class ExpressionValue<T> extends Value
   /** The arguments to the operator. */
   private final List<ExpressionValue<T>> m_operands = new ArrayList<>();
 
+  /** Whether the expression can be computed with integers only. */
+  private final boolean m_integral;
+
+  /** The names of all the variables used in the expression. */
+  private final String []m_variables;
+
+  /** The expressions already compiled, by expression text. */
+  private static final Cache<String, Optional<ExpressionValue<Object>>>
+    s_compiled = CacheBuilder.newBuilder()
+    .maximumSize(Config.get("expressions.compiled.size", 1000))
+    .build();
+
   /**
    * The parser for expressions.
    *
@@ -165,25 +194,92 @@ public class ExpressionValue<T> extends Value
         if(value.isPresent())
           return Optional.of(new ExpressionValue<V>(value.get()));
 
-        ParseReader reader =
-          new ParseReader(new StringReader(inValue), "expression");
-        Optional<ExpressionValue<V>> parsed =
-          ExpressionValue.parse(reader);
-        try
-        {
-          reader.readChar();
-          return Optional.absent();
-        }
-        catch(ReadException e)
-        {
-          // just ignored
-        }
-
-        return parsed;
+        return compile(inValue);
       }
     };
   }
 
+  /**
+   * Compile the given text into an expression. Expressions are immutable and
+   * don't depend on the type of values expressed, thus compiled expressions
+   * are cached and shared for the same text.
+   *
+   * @param inText the text of the expression
+   * @param <V> the type of values expressed
+   * @return the compiled expression, if the text is a valid expression
+   */
+  @SuppressWarnings("unchecked")
+  public static <V> Optional<ExpressionValue<V>> compile(String inText)
+  {
+    Optional<ExpressionValue<Object>> compiled =
+      s_compiled.getIfPresent(inText);
+    if(compiled == null)
+    {
+      ParseReader reader =
+        new ParseReader(new StringReader(inText), "expression");
+      compiled = ExpressionValue.parse(reader);
+      try
+      {
+        reader.readChar();
+        compiled = Optional.absent();
+      }
+      catch(ReadException e)
+      {
+        // just ignored
+      }
+
+      s_compiled.put(inText, compiled);
+    }
+
+    return (Optional<ExpressionValue<V>>)(Optional<?>)compiled;
+  }
+
+  /**
+   * Check whether an expression with the given operator and operands can be
+   * computed with integers only.
+   *
+   * @param inOperator the operator of the expression
+   * @param inOperands the operands to the operator
+   * @param <V> the type of values expressed
+   * @return true if computable with integers, false if not
+   */
+  private static <V> boolean isIntegral(Operator inOperator,
+                                        List<ExpressionValue<V>> inOperands)
+  {
+    for(ExpressionValue<V> operand : inOperands)
+      if(!operand.m_integral)
+        return false;
+
+    switch(inOperator)
+    {
+      case NONE:
+        return inOperands.size() <= 1;
+
+      case MIN:
+      case MAX:
+        return !inOperands.isEmpty();
+
+      default:
+        return inOperands.size() == 2;
+    }
+  }
+
+  /**
+   * Collect the names of all variables used in the given operands.
+   *
+   * @param inOperands the operands to collect from
+   * @param <V> the type of values expressed
+   * @return the distinct variable names
+   */
+  private static <V> String []variables(List<ExpressionValue<V>> inOperands)
+  {
+    Set<String> variables = new LinkedHashSet<>();
+    for(ExpressionValue<V> operand : inOperands)
+      variables.addAll(Arrays.asList(operand.m_variables));
+
+    return variables.toArray(new String[variables.size()]);
+  }
+
   /**
    * Parse an expression.
    *
@@ -294,6 +390,92 @@ public class ExpressionValue<T> extends Value
     return (Optional<T>)value;
   }
 
+  /**
+   * Evaluate the expression with integers only, using the given bindings for
+   * variables.
+   *
+   * @param inParameters the values of the variables
+   * @return the computed value, or absent if the expression is not integral,
+   *         uses unbound variables or divides by zero
+   */
+  public Optional<Integer> evaluate(Parameters inParameters)
+  {
+    if(!m_integral)
+      return Optional.absent();
+
+    for(String variable : m_variables)
+      if(!inParameters.has(variable))
+        return Optional.absent();
+
+    try
+    {
+      return Optional.of(compute(inParameters));
+    }
+    catch(ArithmeticException e)
+    {
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Compute the integer value of the expression. The expression must be
+   * integral and all its variables bound.
+   *
+   * @param inParameters the values of the variables
+   * @return the computed value
+   */
+  private int compute(Parameters inParameters)
+  {
+    switch(m_operator)
+    {
+      case NONE:
+        if(!m_operands.isEmpty())
+          return m_operands.get(0).compute(inParameters);
+
+        if(m_variable.isPresent())
+          return inParameters.get(m_variable.get());
+
+        return m_integer;
+
+      case ADD:
+        return m_operands.get(0).compute(inParameters)
+          + m_operands.get(1).compute(inParameters);
+
+      case SUBTRACT:
+        return m_operands.get(0).compute(inParameters)
+          - m_operands.get(1).compute(inParameters);
+
+      case MULTIPLY:
+        return m_operands.get(0).compute(inParameters)
+          * m_operands.get(1).compute(inParameters);
+
+      case DIVIDE:
+        return m_operands.get(0).compute(inParameters)
+          / m_operands.get(1).compute(inParameters);
+
+      case MODULO:
+        return m_operands.get(0).compute(inParameters)
+          % m_operands.get(1).compute(inParameters);
+
+      case MIN:
+        int min = m_operands.get(0).compute(inParameters);
+        for(int i = 1; i < m_operands.size(); i++)
+          min = Math.min(min, m_operands.get(i).compute(inParameters));
+
+        return min;
+
+      case MAX:
+        int max = m_operands.get(0).compute(inParameters);
+        for(int i = 1; i < m_operands.size(); i++)
+          max = Math.max(max, m_operands.get(i).compute(inParameters));
+
+        return max;
+
+      default:
+        throw new ArithmeticException("cannot compute " + m_operator);
+    }
+  }
+
   /**
    * Check whether the given value represents an integer.
    *
@@ -598,6 +780,34 @@ public class ExpressionValue<T> extends Value
                      .get().toString());
     }
 
+    /** Integer evaluation test. */
+    @org.junit.Test
+    public void compiled()
+    {
+      Parameters parameters = new Parameters().with("level", 7);
+      assertEquals("variable", Optional.of(7),
+                   compile("$level").get().evaluate(parameters));
+      assertEquals("arithmetic", Optional.of(2),
+                   compile("($level - 1) / 3").get().evaluate(parameters));
+      assertEquals("min", Optional.of(5),
+                   compile("min(5, $level)").get().evaluate(parameters));
+      assertEquals("max", Optional.of(20),
+                   compile("max(2 * $level, 20)").get().evaluate(parameters));
+      assertEquals("modulo", Optional.of(1),
+                   compile("$level % 2").get().evaluate(parameters));
+      assertEquals("unbound", Optional.absent(),
+                   compile("$level + $guru").get().evaluate(parameters));
+      assertEquals("zero", Optional.absent(),
+                   compile("$level / 0").get().evaluate(parameters));
+      assertEquals("value", Optional.absent(),
+                   parser(Speed.PARSER).parse("10 ft").get()
+                   .evaluate(parameters));
+      assertEquals("invalid", Optional.absent(), compile("$level +"));
+      assertEquals("trailing", Optional.absent(), compile("42 guru"));
+      assertTrue("cached", compile("$level").get()
+                 == compile("$level").get());
+    }
+
     /**
      * Create a map out of string pairs.
      *
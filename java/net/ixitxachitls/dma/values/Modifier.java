@@ -25,6 +25,7 @@ package net.ixitxachitls.dma.values;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import com.google.common.base.Optional;
 
@@ -226,9 +227,7 @@ public class Modifier extends Value.Arithmetic<ModifierProto>
       for(String value : values)
       {
         String []parts =
-          Strings.getPatterns(value,
-                              "^\\s*([+-]\\d+)\\s*(" + TYPES + ")?\\s*"
-                              + "(?: if\\s+(.*))?$");
+          Strings.getPatterns(value, PATTERN);
         if(parts == null || parts.length == 0)
           return Optional.absent();
 
@@ -283,6 +282,11 @@ public class Modifier extends Value.Arithmetic<ModifierProto>
   /** The types of modifiers available. */
   private static final String TYPES = Strings.PIPE_JOINER.join(Type.names());
 
+  /** The pattern for parsing a single modifier. */
+  private static final Pattern PATTERN =
+    Pattern.compile("^\\s*([+-]\\d+)\\s*(" + TYPES + ")?\\s*"
+                    + "(?: if\\s+(.*))?$");
+
   /** The modifier value itself. */
   private final int m_modifier;
 
@@ -0,0 +1,161 @@
+/******************************************************************************
+ * Copyright (c) 2002-2013 Peter 'Merlin' Balsiger and Fredy 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.dma.values;
+
+import java.util.Arrays;
+
+/**
+ * The binding of variable names to integer values used to evaluate compiled
+ * expressions. Names and values are stored in parallel arrays, as a binding
+ * usually only has a handful of entries and is looked up many times.
+ *
+ * @file   Parameters.java
+ * @author balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+public class Parameters
+{
+  /**
+   * Create an empty set of parameters.
+   */
+  public Parameters()
+  {
+  }
+
+  /** The names of the bound variables. */
+  private String []m_names = new String[4];
+
+  /** The values of the bound variables, in the same order as the names. */
+  private int []m_values = new int[4];
+
+  /** The number of variables bound. */
+  private int m_size = 0;
+
+  /**
+   * Bind a variable to a value. A previous binding of the same variable is
+   * replaced.
+   *
+   * @param inName  the name of the variable
+   * @param inValue the value of the variable
+   * @return this parameters object for chaining
+   */
+  public Parameters with(String inName, int inValue)
+  {
+    int index = indexOf(inName);
+    if(index >= 0)
+    {
+      m_values[index] = inValue;
+      return this;
+    }
+
+    if(m_size == m_names.length)
+    {
+      m_names = Arrays.copyOf(m_names, m_size * 2);
+      m_values = Arrays.copyOf(m_values, m_size * 2);
+    }
+
+    m_names[m_size] = inName;
+    m_values[m_size] = inValue;
+    m_size++;
+
+    return this;
+  }
+
+  /**
+   * Check whether the given variable is bound.
+   *
+   * @param inName the name of the variable
+   * @return true if the variable has a value, false if not
+   */
+  public boolean has(String inName)
+  {
+    return indexOf(inName) >= 0;
+  }
+
+  /**
+   * Get the value of a variable.
+   *
+   * @param inName the name of the variable
+   * @return the value bound to the variable
+   * @throws IllegalArgumentException if the variable is not bound
+   */
+  public int get(String inName)
+  {
+    int index = indexOf(inName);
+    if(index < 0)
+      throw new IllegalArgumentException("variable " + inName
+                                         + " is not bound");
+
+    return m_values[index];
+  }
+
+  /**
+   * Find the index of the given variable.
+   *
+   * @param inName the name of the variable
+   * @return the index of the variable or -1 if not bound
+   */
+  private int indexOf(String inName)
+  {
+    for(int i = 0; i < m_size; i++)
+      if(m_names[i].equals(inName))
+        return i;
+
+    return -1;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder result = new StringBuilder();
+    for(int i = 0; i < m_size; i++)
+    {
+      if(i > 0)
+        result.append(", ");
+
+      result.append(m_names[i]).append('=').append(m_values[i]);
+    }
+
+    return result.toString();
+  }
+
+  //---------------------------------------------------------------------------
+
+  /** The tests. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /** Binding test. */
+    @org.junit.Test
+    public void bind()
+    {
+      Parameters parameters = new Parameters().with("a", 1).with("b", 2);
+      assertTrue("has", parameters.has("a"));
+      assertFalse("has", parameters.has("c"));
+      assertEquals("get", 2, parameters.get("b"));
+      assertEquals("string", "a=1, b=2", parameters.toString());
+
+      parameters.with("a", 3).with("c", 4).with("d", 5).with("e", 6);
+      assertEquals("replaced", 3, parameters.get("a"));
+      assertEquals("grown", 6, parameters.get("e"));
+      assertEquals("string", "a=3, b=2, c=4, d=5, e=6", parameters.toString());
+    }
+  }
+}
@@ -21,6 +21,8 @@
 
 package net.ixitxachitls.dma.values;
 
+import java.util.regex.Pattern;
+
 import javax.annotation.concurrent.Immutable;
 
 import com.google.common.base.Optional;
@@ -78,6 +80,10 @@ public class Price extends Value<PriceProto>
   /** The precision of the number. */
   private int m_precision = 100;
 
+  /** The pattern for parsing prices. */
+  private static final Pattern PATTERN =
+    Pattern.compile("^\\s*(\\D.*?\\s?)\\s*(\\d+)(?:\\.(\\d+))?$");
+
   /** THe parser for prices. */
   public static final PriceParser PARSER = new PriceParser();
 
@@ -142,8 +148,7 @@ public class Price extends Value<PriceProto>
    */
   public static Optional<Price> parse(String inText)
   {
-    String []parts = Strings.getPatterns(
-        inText, "^\\s*(\\D.*?\\s?)\\s*(\\d+)(?:\\.(\\d+))?$");
+    String []parts = Strings.getPatterns(inText, PATTERN);
     if(parts.length != 3)
       return Optional.absent();
 
@@ -23,6 +23,7 @@
 package net.ixitxachitls.dma.values;
 
 import java.math.BigInteger;
+import java.util.regex.Pattern;
 
 import com.google.common.base.Optional;
 
@@ -50,8 +51,7 @@ public class Rational extends Value.Arithmetic<RationalProto>
     public Optional<Rational> doParse(String inValue)
     {
       String [] parts =
-        Strings.getPatterns(inValue,
-                            "^\\s*(\\d+)?\\s*(?:(\\d+)\\s*/\\s*(\\d+))?$");
+        Strings.getPatterns(inValue, PATTERN);
 
       if(parts.length != 3)
         return Optional.absent();
@@ -87,6 +87,10 @@ public class Rational extends Value.Arithmetic<RationalProto>
     m_denominator = inDenominator;
   }
 
+  /** The pattern for parsing rationals. */
+  private static final Pattern PATTERN =
+    Pattern.compile("^\\s*(\\d+)?\\s*(?:(\\d+)\\s*/\\s*(\\d+))?$");
+
   /** The parser. */
   public static final Parser<Rational> PARSER = new RationalParser();
 
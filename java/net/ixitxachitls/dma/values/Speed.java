@@ -21,6 +21,8 @@
 
 package net.ixitxachitls.dma.values;
 
+import java.util.regex.Pattern;
+
 import com.google.common.base.Optional;
 
 import net.ixitxachitls.dma.proto.Values.SpeedProto;
@@ -63,6 +65,11 @@ public class Speed extends Value.Arithmetic<SpeedProto>
   /** The menouverability class when flying. */
   private Optional<Maneuverability> m_maneuverability;
 
+  /** The pattern to split speeds into mode, speed and maneuverability. */
+  private static final Pattern PATTERN =
+    Pattern.compile("^\\s*([a-zA-Z]\\w+)?\\s*(\\d.*?)\\s*"
+                    + "(?:\\((.*)\\))?\\s*$");
+
   /** The parser for armor types. */
   public static final Parser<Speed> PARSER = new Parser<Speed>(3)
     {
@@ -89,9 +96,7 @@ public class Speed extends Value.Arithmetic<SpeedProto>
         if(inValues.length != 1)
           return super.split(inValues);
 
-        return Strings.getPatterns(inValues[0],
-                                   "^\\s*([a-zA-Z]\\w+)?\\s*(\\d.*?)\\s*"
-                                   + "(?:\\((.*)\\))?\\s*$");
+        return Strings.getPatterns(inValues[0], PATTERN);
       }
     };
 
@@ -21,13 +21,14 @@
 
 package net.ixitxachitls.input;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.NotThreadSafe;
@@ -72,6 +73,29 @@ public class ParseReader implements AutoCloseable
       m_position = inPosition;
       m_line     = inLine;
       m_buffer   = inBuffer;
+      m_peeked   = 0;
+      m_chars    = null;
+    }
+
+    /**
+     * Create a position that refers to the document text instead of copying
+     * the peeked characters of the back buffer.
+     *
+     * @param       inPosition the character position
+     * @param       inLine     the line number
+     * @param       inBuffer   the characters put back that are not from the
+     *                         document
+     * @param       inPeeked   the number of document characters before the
+     *                         position that are in the back buffer
+     * @param       inChars    the document text
+     */
+    private Position(long inPosition, long inLine, String inBuffer,
+                     int inPeeked, char []inChars)
+    {
+      this(inPosition, inLine, inBuffer);
+
+      m_peeked = inPeeked;
+      m_chars  = inChars;
     }
 
     /** The number of characters read so far. */
@@ -80,9 +104,15 @@ public class ParseReader implements AutoCloseable
     /** The number of the line currently reading. */
     private long m_line;
 
-    /** The text in the back buffer at the current position. */
+    /** The text put back at the current position, not from the document. */
     private String m_buffer;
 
+    /** The number of peeked document characters in the back buffer. */
+    private int m_peeked;
+
+    /** The document text, to obtain the peeked characters from. */
+    private char []m_chars;
+
     /**
      * Get the character position of the position.
      *
@@ -113,14 +143,18 @@ public class ParseReader implements AutoCloseable
      */
     private String getBuffer()
     {
-      return m_buffer;
+      if(m_peeked == 0)
+        return m_buffer;
+
+      return m_buffer
+        + new String(m_chars, (int)m_position - 1 - m_peeked, m_peeked);
     }
 
     @Override
     public String toString()
     {
       return "(pos = " + m_position + ", line = " + m_line + ", back = '"
-        + m_buffer + "')";
+        + getBuffer() + "')";
     }
   }
 
@@ -143,8 +177,8 @@ public class ParseReader implements AutoCloseable
    * Create the parse reader from a given reader and a name of the document
    * thus opened (either the name of the file or some other id).
    *
-   * @param       inReader the reader to read from (use a BufferedReader
-   *                       for faster input, if required)
+   * @param       inReader the reader to read from (the document is read
+   *                       completely on first access)
    * @param       inName   the name of the document to parse
    */
   public ParseReader(Reader inReader, String inName)
@@ -152,7 +186,8 @@ public class ParseReader implements AutoCloseable
     open(inReader, inName);
   }
 
-  /** The current position in the stream. */
+  /** The current position in the stream (the index of the next document
+   * character plus one). */
   protected long m_position = 0;
 
   /** The current line number in the stream. */
@@ -176,8 +211,25 @@ public class ParseReader implements AutoCloseable
   /** All the errors encountered but not yet fetched. */
   private List<BaseError> m_errors = new ArrayList<BaseError>();
 
-  /** The put back buffer to store characters that were put back. */
-  protected StringBuilder m_back = new StringBuilder();
+  /** The complete text of the document, read on first access. */
+  private char []m_chars = null;
+
+  /** The number of characters of the document in m_chars. */
+  private int m_length = 0;
+
+  /** The initial capacity to read the document into. */
+  private int m_capacity = 0;
+
+  /** The characters put back that are not from the document, the next
+   * character to read last. */
+  private char []m_back = new char[16];
+
+  /** The number of characters in m_back. */
+  private int m_backSize = 0;
+
+  /** The number of document characters before the current position that
+   * were peeked or put back and thus have to be read again. */
+  private int m_peeked = 0;
 
   /** All the white spaces. */
   protected static final String s_whites =
@@ -188,6 +240,22 @@ public class ParseReader implements AutoCloseable
     Config.get("resource:parser/word.boundaries.extension",
                " \t\r\n\f.,;:'\"/?=+-()*&^%$#@!~{}][<>");
 
+  /** The lookup table for white spaces (for ASCII characters). */
+  private static final boolean []s_whiteTable = table(s_whites);
+
+  /** The lookup table for word boundaries (for ASCII characters). */
+  private static final boolean []s_boundaryTable = table(s_boundaries);
+
+  /** An empty lookup table, checking all characters in the given string. */
+  private static final boolean []s_noTable = new boolean[0];
+
+  /** The pattern to split expected text into words. */
+  private static final Pattern s_whitePattern =
+    Pattern.compile("[" + s_whites + "]+");
+
+  /** The default initial capacity for reading a document. */
+  private static final int s_defaultCapacity = 8 * 1024;
+
   /** Text to print for infinite high or low values. */
   private static final String s_infinity = "Infinity";
 
@@ -273,7 +341,7 @@ public class ParseReader implements AutoCloseable
    */
   public String readWord() throws ReadException
   {
-    return readWord(s_boundaries);
+    return readWord(s_boundaryTable, s_boundaries);
   }
 
   /**
@@ -288,6 +356,23 @@ public class ParseReader implements AutoCloseable
    */
   public String readWord(String inBoundaries)
     throws ReadException
+  {
+    return readWord(s_noTable, inBoundaries);
+  }
+
+  /**
+   * Read a word from the reader. A word is some characters followed by a
+   * boundary character. The boundary character is not returned with the word.
+   *
+   * @param       inTable      the lookup table for the boundaries
+   * @param       inBoundaries the word boundaries to use
+   *
+   * @return      the next word in the stream
+   *
+   * @throws      ReadException a word could not be read
+   */
+  private String readWord(boolean []inTable, String inBoundaries)
+    throws ReadException
   {
     // do preprocessing, i.e. white space over reading
     preprocess();
@@ -299,7 +384,7 @@ public class ParseReader implements AutoCloseable
     if(!isAtEnd())
     {
       for(int c = peek(); c > 0; c = peek())
-        if(inBoundaries.indexOf((char)c) >= 0)
+        if(contains(inTable, inBoundaries, c))
         {
           // always read at least one character
           if(result.length() == 0)
@@ -598,7 +683,7 @@ public class ParseReader implements AutoCloseable
    */
   public Position getPosition()
   {
-    return new Position(m_position, m_newlines, m_back.toString());
+    return new Position(m_position, m_newlines, back(), m_peeked, m_chars);
   }
 
   /**
@@ -610,11 +695,14 @@ public class ParseReader implements AutoCloseable
   public int read()
   {
     // try to read from the back buffer
-    if(m_back.length() > 0)
-    {
-      int result = m_back.charAt(0);
+    if(m_backSize > 0)
+      return m_back[--m_backSize];
 
-      m_back.deleteCharAt(0);
+    // reread characters peeked before
+    if(m_peeked > 0)
+    {
+      int result = m_chars[(int)m_position - 1 - m_peeked];
+      m_peeked--;
 
       return result;
     }
@@ -623,25 +711,18 @@ public class ParseReader implements AutoCloseable
     if(!m_buffer.isPresent())
       return -1;
 
-    // try to read normally
-    int result = -1;
-    try
-    {
-      result = m_buffer.get().read();
-    }
-    catch(java.io.IOException e)
-    {
-      Log.error("could not read from '" + m_name + "': " + e);
-    }
+    load();
+
+    int index = (int)m_position - 1;
+    if(index >= m_length)
+      return -1;
 
     // adjust position and newlines
-    if(result != -1)
-    {
-      m_position++;
+    char result = m_chars[index];
+    m_position++;
 
-      if((char)result == '\n')
-        m_newlines++;
-    }
+    if(result == '\n')
+      m_newlines++;
 
     return result;
   }
@@ -785,18 +866,21 @@ public class ParseReader implements AutoCloseable
   public int peek()
   {
     // check if the back buffer has some data
-    if(m_back.length() > 0)
-      return m_back.charAt(0);
+    if(m_backSize > 0)
+      return m_back[m_backSize - 1];
+
+    if(m_peeked > 0)
+      return m_chars[(int)m_position - 1 - m_peeked];
 
     // if we don't have a buffer at all, then we are at its end
     if(m_buffer == null)
       return -1;
 
-    // read a normal character
+    // read a normal character and treat it as put back
     int result = read();
 
     if(result != -1)
-      put((char)result);
+      m_peeked++;
 
     return result;
   }
@@ -942,7 +1026,7 @@ public class ParseReader implements AutoCloseable
     }
 
     // reduce white spaces in the text to look for
-    String []expected = text.split("[" + s_whites + "]+");
+    String []expected = s_whitePattern.split(text);
 
     for(int i = 0; i < expected.length; i++)
     {
@@ -1101,7 +1185,7 @@ public class ParseReader implements AutoCloseable
         return true;
       }
 
-      if(s_whites.indexOf((char)c) == -1)
+      if(!isWhite(c))
         return false;
     }
 
@@ -1229,22 +1313,34 @@ public class ParseReader implements AutoCloseable
    */
   public void open(String inName) throws java.io.FileNotFoundException
   {
-    // determine the input buffer size (add 1 in case the buffer is empty)
+    // determine the initial capacity (add 1 in case the file is empty)
     int size = Math.min((int)(new File(inName)).length(), s_maxBufferSize) + 1;
 
     // $codepro.audit.disable closeWhereCreated
-    open(new BufferedReader(new FileReader(inName), size), inName);
+    open(new FileReader(inName), inName, size);
     // $codepro.audit.enable
   }
 
   /**
-   * The reader must be marked at the beginning for some classes
-   * (e.g. BufferedReader)
+   * Open the reader on the given reader. The complete document is read into
+   * memory on first access, thus the reader does not need to be buffered.
    *
-   * @param       inReader the reader to read from (buffered is possible)
+   * @param       inReader the reader to read from
    * @param       inName   the name of the buffer read
    */
   public void open(Reader inReader, String inName)
+  {
+    open(inReader, inName, s_defaultCapacity);
+  }
+
+  /**
+   * Open the reader on the given reader.
+   *
+   * @param       inReader   the reader to read from
+   * @param       inName     the name of the buffer read
+   * @param       inCapacity the initial capacity to read the document into
+   */
+  private void open(Reader inReader, String inName, int inCapacity)
   {
     // check if already open
     if(isOpen())
@@ -1253,21 +1349,42 @@ public class ParseReader implements AutoCloseable
     // store the given values
     m_buffer = Optional.of(inReader);
     m_name = Optional.of(inName);
+    m_capacity = inCapacity;
 
     // reset the position
     m_position = 1;
     m_newlines = 1;
+    m_backSize = 0;
+    m_peeked = 0;
+  }
 
-    // mark the stream
+  /**
+   * Read the complete document into memory, if not yet done.
+   */
+  private void load()
+  {
+    if(m_chars != null || m_buffer == null || !m_buffer.isPresent())
+      return;
+
+    char []chars = new char[Math.max(m_capacity, 1)];
+    int length = 0;
     try
     {
-      m_buffer.get().mark(s_maxBufferSize);
+      for(int read = 0; read >= 0;
+          read = m_buffer.get().read(chars, length, chars.length - length))
+      {
+        length += read;
+        if(length == chars.length)
+          chars = Arrays.copyOf(chars, chars.length * 2);
+      }
     }
     catch(java.io.IOException e)
     {
-      Log.error("could not mark input buffer: " + e
-                + ", not all input operations may be available");
+      Log.error("could not read from '" + m_name + "': " + e);
     }
+
+    m_chars = chars;
+    m_length = length;
   }
 
   @Override
@@ -1285,6 +1402,9 @@ public class ParseReader implements AutoCloseable
 
     m_buffer = Optional.absent();
     m_name = Optional.absent();
+    m_chars = null;
+    m_length = 0;
+    m_peeked = 0;
   }
 
   /**
@@ -1294,7 +1414,18 @@ public class ParseReader implements AutoCloseable
    */
   public void put(char inChar)
   {
-    m_back.insert(0, inChar);
+    // a character from the document just read can simply be read again
+    if(m_backSize == 0 && m_chars != null && m_peeked < m_position - 1
+       && m_chars[(int)m_position - 2 - m_peeked] == inChar)
+    {
+      m_peeked++;
+      return;
+    }
+
+    if(m_backSize == m_back.length)
+      m_back = Arrays.copyOf(m_back, m_back.length * 2);
+
+    m_back[m_backSize++] = inChar;
   }
 
   /**
@@ -1304,10 +1435,8 @@ public class ParseReader implements AutoCloseable
    */
   public void put(String inString)
   {
-    if(inString.length() == 0)
-      return;
-
-    m_back.insert(0, inString);
+    for(int i = inString.length() - 1; i >= 0; i--)
+      put(inString.charAt(i));
   }
 
   /**
@@ -1317,7 +1446,7 @@ public class ParseReader implements AutoCloseable
    */
   public void put(int inInteger)
   {
-    m_back.insert(0, inInteger);
+    put(String.valueOf(inInteger));
   }
 
   /**
@@ -1327,7 +1456,7 @@ public class ParseReader implements AutoCloseable
    */
   public void put(long inLong)
   {
-    m_back.insert(0, inLong);
+    put(String.valueOf(inLong));
   }
 
   /**
@@ -1337,7 +1466,7 @@ public class ParseReader implements AutoCloseable
    */
   public void put(float inFloat)
   {
-    m_back.insert(0, inFloat);
+    put(String.valueOf(inFloat));
   }
 
   /**
@@ -1347,7 +1476,7 @@ public class ParseReader implements AutoCloseable
    */
   public void put(double inDouble)
   {
-    m_back.insert(0, inDouble);
+    put(String.valueOf(inDouble));
   }
 
   /**
@@ -1357,7 +1486,7 @@ public class ParseReader implements AutoCloseable
    */
   public void put(boolean inBoolean)
   {
-    m_back.insert(0, inBoolean);
+    put(String.valueOf(inBoolean));
   }
 
   /**
@@ -1367,13 +1496,81 @@ public class ParseReader implements AutoCloseable
    */
   protected String skipWhites()
   {
+    if(!isWhite(peek()))
+      return "";
+
     StringBuilder result = new StringBuilder();
 
-    for(int c = peek(); c != -1; c = peek())
-      if(s_whites.indexOf((char)c) < 0)
-        break;
-      else
-        result.append((char)read());
+    for(int c = peek(); isWhite(c); c = peek())
+      result.append((char)read());
+
+    return result.toString();
+  }
+
+  /**
+   * Check if the given character is a white space.
+   *
+   * @param       inChar the character to check, -1 for the end of the stream
+   *
+   * @return      true if the character is white, false if not
+   */
+  protected static boolean isWhite(int inChar)
+  {
+    return contains(s_whiteTable, s_whites, inChar);
+  }
+
+  /**
+   * Check if the given character is one of the given characters.
+   *
+   * @param       inTable the lookup table for the characters
+   * @param       inChars the characters, for all characters not in the table
+   * @param       inChar  the character to check, -1 for the end of the stream
+   *
+   * @return      true if the character is one of the given, false if not
+   */
+  private static boolean contains(boolean []inTable, String inChars,
+                                  int inChar)
+  {
+    if(inChar < 0)
+      return false;
+
+    if(inChar < inTable.length)
+      return inTable[inChar];
+
+    return inChars.indexOf((char)inChar) >= 0;
+  }
+
+  /**
+   * Create a lookup table for the ASCII characters in the given string.
+   *
+   * @param       inChars the characters to mark in the table
+   *
+   * @return      the lookup table, true for all characters in inChars
+   */
+  private static boolean []table(String inChars)
+  {
+    boolean []table = new boolean[128];
+    for(int i = 0; i < inChars.length(); i++)
+      if(inChars.charAt(i) < table.length)
+        table[inChars.charAt(i)] = true;
+
+    return table;
+  }
+
+  /**
+   * Get the characters put back that are not from the document, in the
+   * order they will be read.
+   *
+   * @return      the characters put back
+   */
+  private String back()
+  {
+    if(m_backSize == 0)
+      return "";
+
+    StringBuilder result = new StringBuilder(m_backSize);
+    for(int i = m_backSize - 1; i >= 0; i--)
+      result.append(m_back[i]);
 
     return result.toString();
   }
@@ -1386,24 +1583,30 @@ public class ParseReader implements AutoCloseable
    */
   public void seek(Position inPosition)
   {
+    load();
+
     // set the internal values
     m_position = inPosition.getPosition();
     m_newlines = inPosition.getLine();
-    m_back     = new StringBuilder(inPosition.getBuffer());
+    m_peeked   = inPosition.m_peeked;
+    m_backSize = 0;
 
-    // go to the buffer position
-    try
+    if(m_chars == null)
+      m_peeked = 0;
+    else if(m_position - 1 > m_length)
     {
-      if(m_buffer.isPresent())
-      {
-        m_buffer.get().reset();
-        if(m_buffer.get().skip(m_position - 1) != m_position - 1)
-          Log.warning("could not skip the correct amount of characters");
-      }
+      Log.warning("could not skip the correct amount of characters");
+      m_position = m_length + 1;
+      m_peeked = Math.min(m_peeked, m_length);
     }
-    catch(java.io.IOException e)
+
+    String back = inPosition.m_buffer;
+    for(int i = back.length() - 1; i >= 0; i--)
     {
-      Log.error("could not rewind buffer " + m_name + ": " + e);
+      if(m_backSize == m_back.length)
+        m_back = Arrays.copyOf(m_back, m_back.length * 2);
+
+      m_back[m_backSize++] = back.charAt(i);
     }
   }
 
@@ -1423,7 +1626,7 @@ public class ParseReader implements AutoCloseable
 
     return (m_name.isPresent() ? m_name.get() : "(no name)")
         + " is on line " + m_newlines + ":\n" + current + '\n'
-        + "back: '" + m_back + "'\n";
+        + "back: '" + pos.getBuffer() + "'\n";
   }
 
   /**
@@ -1751,6 +1954,39 @@ public class ParseReader implements AutoCloseable
       }
     }
 
+    /** Test for going back to positions with put back characters. */
+    @org.junit.Test
+    public void backtrack()
+    {
+      String text = "first second\nthird";
+
+      try (ParseReader reader =
+       new ParseReader(new java.io.StringReader(text), "test"))
+      {
+        assertEquals("first", reader.readWord());
+        assertEquals(' ', reader.peek());
+        reader.put('#');
+        Position pos = reader.getPosition();
+        assertEquals("(pos = 7, line = 1, back = '# ')", pos.toString());
+
+        assertEquals('#', reader.read());
+        assertEquals("second", reader.readWord());
+        reader.put('d');
+        assertEquals("(pos = 14, line = 2, back = 'd\n')",
+                     reader.getPosition().toString());
+        assertEquals("d\nthird", reader.read(s_maxRead));
+
+        reader.seek(pos);
+        assertEquals(1, reader.getLineNumber());
+        assertEquals("# second\nthird", reader.read(s_maxRead));
+        assertEquals(2, reader.getLineNumber());
+      }
+      catch(ReadException e)
+      {
+        fail("backtrack test should not have failed: " + e);
+      }
+    }
+
     /** Miscellaneous test. */
     @org.junit.Test
     public void misc()
@@ -0,0 +1,336 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+package net.ixitxachitls.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.ixitxachitls.util.logging.Log;
+
+/**
+ * Write values in batches in a separate thread. Values are added to a bounded
+ * queue, blocking the producer while the queue is full, and are written in
+ * batches that are limited by the number of values and their size. A batch is
+ * written as soon as it is full or no more values are queued.
+ *
+ * @file          BatchWriter.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ * @param         <T> the type of values written
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public abstract class BatchWriter<T> extends Thread
+{
+  /**
+   * Create the batch writer. The thread has to be started before adding
+   * values.
+   *
+   * @param inName      the name of the writer
+   * @param inMaxCount  the maximal number of values in a batch
+   * @param inMaxBytes  the maximal size of all values in a batch (a single
+   *                    bigger value is written alone)
+   * @param inQueueSize the number of values to queue before blocking
+   */
+  protected BatchWriter(String inName, int inMaxCount, long inMaxBytes,
+                        int inQueueSize)
+  {
+    super(inName);
+    setDaemon(true);
+
+    m_maxCount = inMaxCount;
+    m_maxBytes = inMaxBytes;
+    m_queue = new ArrayBlockingQueue<>(inQueueSize);
+  }
+
+  /** The maximal number of values per batch. */
+  private final int m_maxCount;
+
+  /** The maximal number of bytes per batch. */
+  private final long m_maxBytes;
+
+  /** The queue of values to write. */
+  private final BlockingQueue<Sized<T>> m_queue;
+
+  /** The number of values added. */
+  private long m_added = 0;
+
+  /** The number of values written (or failed). */
+  private long m_written = 0;
+
+  /** The number of bytes written. */
+  private long m_bytes = 0;
+
+  /** The number of batches written. */
+  private long m_batches = 0;
+
+  /** The time writing started. */
+  private long m_start = System.currentTimeMillis();
+
+  /** The first failure while writing, if any. */
+  private @Nullable RuntimeException m_failure = null;
+
+  /** The marker for the end of values. */
+  private final Sized<T> m_end = new Sized<T>(null, 0);
+
+  /**
+   * A value together with its size.
+   *
+   * @param <T> the type of the value
+   */
+  private static class Sized<T>
+  {
+    /**
+     * Create the sized value.
+     *
+     * @param inValue the value
+     * @param inSize  the size of the value
+     */
+    public Sized(@Nullable T inValue, long inSize)
+    {
+      m_value = inValue;
+      m_size = inSize;
+    }
+
+    /** The value. */
+    private final @Nullable T m_value;
+
+    /** The size of the value. */
+    private final long m_size;
+  }
+
+  /**
+   * Compute the size of the given value, in bytes.
+   *
+   * @param inValue the value to compute the size for
+   * @return the size in bytes
+   */
+  protected abstract long size(T inValue);
+
+  /**
+   * Write the given batch of values.
+   *
+   * @param inBatch the values to write
+   */
+  protected abstract void write(List<T> inBatch);
+
+  /**
+   * Add a value to be written, blocking while the queue is full.
+   *
+   * @param inValue the value to add
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void add(T inValue) throws InterruptedException
+  {
+    checkFailure();
+
+    // Compute the size in the producing thread to not slow down writing.
+    Sized<T> sized = new Sized<>(inValue, size(inValue));
+    synchronized(this)
+    {
+      m_added++;
+    }
+
+    m_queue.put(sized);
+  }
+
+  /**
+   * Wait until all values added so far have been written.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized void flush() throws InterruptedException
+  {
+    while(m_written < m_added && isAlive())
+      wait(1000);
+
+    checkFailure();
+  }
+
+  /**
+   * Write all remaining values and stop the writer.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void finish() throws InterruptedException
+  {
+    m_queue.put(m_end);
+    join();
+
+    Log.important("wrote " + this);
+    checkFailure();
+  }
+
+  @Override
+  public void run()
+  {
+    try
+    {
+      for(Sized<T> first = m_queue.take(); first != m_end;
+          first = m_queue.take())
+      {
+        List<T> batch = new ArrayList<>();
+        long bytes = first.m_size;
+        batch.add(first.m_value);
+
+        // Add all values immediately available that fit into the batch.
+        for(Sized<T> next = m_queue.peek();
+            next != null && next != m_end && batch.size() < m_maxCount
+              && bytes + next.m_size <= m_maxBytes;
+            next = m_queue.peek())
+        {
+          m_queue.remove();
+          batch.add(next.m_value);
+          bytes += next.m_size;
+        }
+
+        try
+        {
+          write(batch);
+        }
+        catch(RuntimeException e)
+        {
+          Log.error("could not write batch of " + batch.size() + " values: "
+                    + e);
+          synchronized(this)
+          {
+            if(m_failure == null)
+              m_failure = e;
+          }
+        }
+
+        synchronized(this)
+        {
+          m_written += batch.size();
+          m_bytes += bytes;
+          m_batches++;
+          notifyAll();
+        }
+      }
+    }
+    catch(InterruptedException e)
+    {
+      Log.warning("batch writer interrupted, shutting down");
+    }
+  }
+
+  /**
+   * Get the number of values written per second.
+   *
+   * @return the values per second
+   */
+  public synchronized long getValuesPerSecond()
+  {
+    return m_written * 1000 / Math.max(1, System.currentTimeMillis() - m_start);
+  }
+
+  /**
+   * Get the number of bytes written per second.
+   *
+   * @return the bytes per second
+   */
+  public synchronized long getBytesPerSecond()
+  {
+    return m_bytes * 1000 / Math.max(1, System.currentTimeMillis() - m_start);
+  }
+
+  /**
+   * Throw the first failure that happened while writing, if any.
+   */
+  private synchronized void checkFailure()
+  {
+    if(m_failure != null)
+      throw new IllegalStateException("writing failed", m_failure);
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return getName() + ": " + m_written + " values, " + m_bytes + " bytes in "
+      + m_batches + " batches (" + getValuesPerSecond() + " values/s, "
+      + getBytesPerSecond() + " bytes/s)";
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The test. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /** A writer for testing, storing all batches written. */
+    private static class TestWriter extends BatchWriter<String>
+    {
+      /** Create the writer. */
+      TestWriter()
+      {
+        super("test", 3, 10, 100);
+      }
+
+      /** All the batches written. */
+      private final List<List<String>> m_written = new ArrayList<>();
+
+      @Override
+      protected long size(String inValue)
+      {
+        return inValue.length();
+      }
+
+      @Override
+      protected synchronized void write(List<String> inBatch)
+      {
+        m_written.add(inBatch);
+      }
+    }
+
+    /**
+     * The batches Test.
+     *
+     * @throws Exception should not happen
+     */
+    @org.junit.Test
+    public void batches() throws Exception
+    {
+      TestWriter writer = new TestWriter();
+
+      // Add values before starting to get deterministic batches.
+      writer.add("a");
+      writer.add("b");
+      writer.add("c");
+      writer.add("d");
+      writer.add("123456789");
+      writer.add("12345678901");
+      writer.add("e");
+      writer.start();
+      writer.flush();
+      writer.finish();
+
+      assertEquals("batches",
+                   "[[a, b, c], [d, 123456789], [12345678901], [e]]",
+                   writer.m_written.toString());
+      assertPattern("stats", "test: 7 values, 25 bytes in 4 batches .*",
+                    writer.toString());
+    }
+  }
+}
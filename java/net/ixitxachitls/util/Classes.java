@@ -23,10 +23,13 @@ package net.ixitxachitls.util;
 
 import java.lang.reflect.Method;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 
 import net.ixitxachitls.util.logging.Log;
@@ -53,6 +56,19 @@ public final class Classes
   private static final List<String> METHOD_PREFIXES =
     ImmutableList.of("get", "is", "has", "to");
 
+  /** The accessor tables per class, by name and argument types. Methods not
+   * found are stored as absent, to not search for them again. */
+  private static final ClassValue<ConcurrentMap<String, Optional<Method>>>
+    s_accessors = new ClassValue<ConcurrentMap<String, Optional<Method>>>()
+    {
+      @Override
+      protected ConcurrentMap<String, Optional<Method>>
+        computeValue(Class<?> inClass)
+      {
+        return new ConcurrentHashMap<>();
+      }
+    };
+
   /**
     * Convert the given name into a possible class name.
     *
@@ -175,28 +191,102 @@ public final class Classes
     for(int i = 0; i < inArguments.length; i++)
       arguments[i] = inArguments[i].getClass();
 
-    String name = Encodings.toCamelCase(inName);
-
-    Class objectClass;
+    Class<?> objectClass;
     if(inObject instanceof Class)
-      objectClass = (Class)inObject;
+      objectClass = (Class<?>)inObject;
     else
       objectClass = inObject.getClass();
 
-    Method method = getMethod(objectClass, name, arguments);
+    Optional<Method> method = getAccessor(objectClass, inName, arguments);
+    if(!method.isPresent())
+      return null;
+
+    try
+    {
+      return method.get().invoke(inObject, inArguments);
+    }
+    catch(IllegalAccessException e)
+    {
+      Log.warning("cannot access method: " + e);
+      e.printStackTrace(System.err);
+    }
+    catch(java.lang.reflect.InvocationTargetException e)
+    {
+      Log.warning("cannot invoke method: " + e);
+      e.printStackTrace(System.err);
+    }
+
+    return null;
+  }
+
+  /**
+   * Get the accessor method to call for the given property name. The lookup
+   * is done once per class and name (and argument types), both for found and
+   * for missing methods; all subsequent calls are served from the class'
+   * accessor table.
+   *
+   * @param       inClass     the class to get the accessor of
+   * @param       inName      the name of the property or method
+   * @param       inArguments the argument types for the method
+   *
+   * @return      the accessible method, if there is one
+   */
+  public static Optional<Method> getAccessor(Class<?> inClass, String inName,
+                                             Class<?> ... inArguments)
+  {
+    String key = inName;
+    if(inArguments.length > 0)
+    {
+      StringBuilder builder = new StringBuilder(inName);
+      for(Class<?> argument : inArguments)
+        builder.append(':').append(argument.getName());
+
+      key = builder.toString();
+    }
+
+    ConcurrentMap<String, Optional<Method>> accessors =
+      s_accessors.get(inClass);
+    Optional<Method> method = accessors.get(key);
+    if(method == null)
+    {
+      method = findAccessor(inClass, inName, inArguments);
+      accessors.putIfAbsent(key, method);
+    }
+
+    return method;
+  }
+
+  /**
+   * Find the accessor method for the given name, trying the name itself
+   * and all the known method prefixes.
+   *
+   * @param       inClass     the class to get the accessor of
+   * @param       inName      the name of the property or method
+   * @param       inArguments the argument types for the method
+   *
+   * @return      the accessible method, if found
+   */
+  private static Optional<Method> findAccessor(Class<?> inClass,
+                                               String inName,
+                                               Class<?> ... inArguments)
+  {
+    String name = Encodings.toCamelCase(inName);
+    if(name.isEmpty())
+      return Optional.absent();
+
+    Method method = getMethod(inClass, name, inArguments);
     if(method == null)
     {
-      String stem = Character.toUpperCase(name.charAt(0)) + name.substring(1);;
+      String stem = Character.toUpperCase(name.charAt(0)) + name.substring(1);
       for(String prefix : METHOD_PREFIXES)
       {
-        name = prefix + stem;
-        method = getMethod(objectClass, name, arguments);
+        method = getMethod(inClass, prefix + stem, inArguments);
         if(method != null)
           break;
       }
 
       if(method == null)
-        return null;
+        return Optional.absent();
     }
 
     try
@@ -204,20 +294,13 @@ public final class Classes
       // Make this accessible in case it's used in a non-public inner
       // class.
       method.setAccessible(true);
-      return method.invoke(inObject, inArguments);
     }
-    catch(IllegalAccessException e)
+    catch(SecurityException e)
     {
-      Log.warning("cannot access method: " + e);
-      e.printStackTrace(System.err);
-    }
-    catch(java.lang.reflect.InvocationTargetException e)
-    {
-      Log.warning("cannot invoke method: " + e);
-      e.printStackTrace(System.err);
+      Log.warning("cannot make method accessible: " + e);
     }
 
-    return null;
+    return Optional.of(method);
   }
 
   //........................................................................
@@ -269,6 +352,27 @@ public final class Classes
                    Classes.getPackage(Classes.class));
     }
 
+    /** Test calling methods through the cached accessors. */
+    @org.junit.Test
+    public void callMethod()
+    {
+      assertEquals("name", 4, Classes.callMethod("length", "text"));
+      assertEquals("prefix", false, Classes.callMethod("empty", "text"));
+      assertEquals("camel case", "TEXT",
+                   Classes.callMethod("to upper case", "text"));
+      assertEquals("argument", true,
+                   Classes.callMethod("starts with", "text", "te"));
+      assertNull("missing", Classes.callMethod("guru", "text"));
+
+      // served from the accessor table
+      assertSame("cached", Classes.getAccessor(String.class, "length").get(),
+                 Classes.getAccessor(String.class, "length").get());
+      assertFalse("missing", Classes.getAccessor(String.class, "guru")
+                  .isPresent());
+      assertFalse("missing", Classes.getAccessor(String.class, "guru")
+                  .isPresent());
+    }
+
     /** Tests to make coverage happy. */
     @org.junit.Test
     public void coverage()
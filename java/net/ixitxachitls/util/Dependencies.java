@@ -0,0 +1,240 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A directed acyclic graph of values and the values they depend on. The graph
+ * is sorted topologically into layers, where all the values in a layer only
+ * depend on values in previous layers (or values not in the graph) and can
+ * thus be handled independently of each other.
+ *
+ * @file          Dependencies.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ * @param         <T> the type of values in the graph
+ */
+@NotThreadSafe
+@ParametersAreNonnullByDefault
+public class Dependencies<T>
+{
+  /** The values with the values they depend on, in the order added. */
+  private final Map<T, Set<T>> m_dependencies = new LinkedHashMap<>();
+
+  /**
+   * Add a value with its dependencies to the graph. Dependencies on the value
+   * itself are ignored.
+   *
+   * @param inValue        the value to add
+   * @param inDependencies the values the added value depends on
+   */
+  public void add(T inValue, Collection<T> inDependencies)
+  {
+    Set<T> dependencies = m_dependencies.get(inValue);
+    if(dependencies == null)
+    {
+      dependencies = new LinkedHashSet<>();
+      m_dependencies.put(inValue, dependencies);
+    }
+
+    for(T dependency : inDependencies)
+      if(!inValue.equals(dependency))
+        dependencies.add(dependency);
+  }
+
+  /**
+   * Get the number of values in the graph.
+   *
+   * @return the number of values
+   */
+  public int size()
+  {
+    return m_dependencies.size();
+  }
+
+  /**
+   * Get all the values depended on that are not part of the graph themselves.
+   *
+   * @return the external dependencies
+   */
+  public Set<T> getExternal()
+  {
+    Set<T> external = new LinkedHashSet<>();
+    for(Set<T> dependencies : m_dependencies.values())
+      for(T dependency : dependencies)
+        if(!m_dependencies.containsKey(dependency))
+          external.add(dependency);
+
+    return external;
+  }
+
+  /**
+   * Sort the values topologically into layers. The first layer contains all
+   * the values without dependencies in the graph, each following layer the
+   * values only depending on values of the layers before. Values within a
+   * layer retain the order they were added in.
+   *
+   * @return the layers of values, not containing values that are part of or
+   *         depend on a cycle
+   */
+  public List<List<T>> getLayers()
+  {
+    // Count the pending dependencies of each value and remember the reverse
+    // dependencies to update them.
+    Map<T, Integer> pending = new HashMap<>();
+    Map<T, List<T>> dependents = new HashMap<>();
+    for(Map.Entry<T, Set<T>> entry : m_dependencies.entrySet())
+    {
+      int count = 0;
+      for(T dependency : entry.getValue())
+        if(m_dependencies.containsKey(dependency))
+        {
+          count++;
+          List<T> values = dependents.get(dependency);
+          if(values == null)
+          {
+            values = new ArrayList<>();
+            dependents.put(dependency, values);
+          }
+          values.add(entry.getKey());
+        }
+
+      pending.put(entry.getKey(), count);
+    }
+
+    List<T> layer = new ArrayList<>();
+    for(T value : m_dependencies.keySet())
+      if(pending.get(value) == 0)
+        layer.add(value);
+
+    List<List<T>> layers = new ArrayList<>();
+    while(!layer.isEmpty())
+    {
+      layers.add(layer);
+
+      Set<T> next = new LinkedHashSet<>();
+      for(T value : layer)
+      {
+        List<T> values = dependents.get(value);
+        if(values != null)
+          for(T dependent : values)
+          {
+            int count = pending.get(dependent) - 1;
+            pending.put(dependent, count);
+            if(count == 0)
+              next.add(dependent);
+          }
+      }
+
+      // Keep the order the values were added in.
+      layer = new ArrayList<>();
+      for(T value : m_dependencies.keySet())
+        if(next.contains(value))
+          layer.add(value);
+    }
+
+    return layers;
+  }
+
+  /**
+   * Get all the values that cannot be sorted, because they are part of a
+   * cycle or depend on a value in a cycle.
+   *
+   * @return the values in or depending on cycles
+   */
+  public Set<T> getCycles()
+  {
+    Set<T> cycles = new LinkedHashSet<>(m_dependencies.keySet());
+    for(List<T> layer : getLayers())
+      cycles.removeAll(layer);
+
+    return cycles;
+  }
+
+  /**
+   * Get the values the given value directly depends on.
+   *
+   * @param inValue the value to get the dependencies for
+   * @return the dependencies, empty if the value is not in the graph
+   */
+  public Set<T> getDependencies(T inValue)
+  {
+    Set<T> dependencies = m_dependencies.get(inValue);
+    if(dependencies == null)
+      return new LinkedHashSet<>();
+
+    return new LinkedHashSet<>(dependencies);
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The tests. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /** The layers Test. */
+    @org.junit.Test
+    public void layers()
+    {
+      Dependencies<String> dependencies = new Dependencies<>();
+      dependencies.add("d", java.util.Arrays.asList("b", "c"));
+      dependencies.add("b", java.util.Arrays.asList("a"));
+      dependencies.add("c", java.util.Arrays.asList("a", "x"));
+      dependencies.add("a", java.util.Arrays.asList("a"));
+      dependencies.add("e", new ArrayList<String>());
+
+      assertEquals("size", 5, dependencies.size());
+      assertEquals("layers", "[[a, e], [b, c], [d]]",
+                   dependencies.getLayers().toString());
+      assertEquals("external", "[x]", dependencies.getExternal().toString());
+      assertEquals("cycles", "[]", dependencies.getCycles().toString());
+      assertEquals("dependencies", "[a, x]",
+                   dependencies.getDependencies("c").toString());
+    }
+
+    /** The cycles Test. */
+    @org.junit.Test
+    public void cycles()
+    {
+      Dependencies<String> dependencies = new Dependencies<>();
+      dependencies.add("a", java.util.Arrays.asList("c"));
+      dependencies.add("b", java.util.Arrays.asList("a"));
+      dependencies.add("c", java.util.Arrays.asList("b"));
+      dependencies.add("d", java.util.Arrays.asList("c"));
+      dependencies.add("e", java.util.Arrays.asList("f"));
+
+      assertEquals("layers", "[[e]]", dependencies.getLayers().toString());
+      assertEquals("external", "[f]", dependencies.getExternal().toString());
+      assertEquals("cycles", "[a, b, c, d]",
+                   dependencies.getCycles().toString());
+    }
+  }
+}
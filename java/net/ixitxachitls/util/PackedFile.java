@@ -0,0 +1,468 @@
+/******************************************************************************
+ * Copyright (c) 2002-2012 Peter 'Merlin' Balsiger and Fred 'Mythos' Dobler
+ * All rights reserved
+ *
+ * This file is part of Dungeon Master Assistant.
+ *
+ * Dungeon Master Assistant is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Master Assistant is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Master Assistant; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *****************************************************************************/
+
+package net.ixitxachitls.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A file containing records of bytes, grouped by name. The records of each
+ * group are stored sequentially as length delimited values, optionally
+ * compressed, and an index at the end of the file gives the position of each
+ * group. Files are read by mapping them into memory, thus reading a group is
+ * a single sequential read.
+ *
+ * The format of the file is:
+ *
+ * <pre>
+ * magic (int), version (int), compressed (byte)
+ * for each group: (length (int), record (bytes))* (optionally deflated)
+ * index: groups (int),
+ *        for each group: name (utf), offset (long), length (long),
+ *                        records (int)
+ * offset of index (long)
+ * </pre>
+ *
+ * @file          PackedFile.java
+ * @author        balsiger@ixitxachitls.net (Peter Balsiger)
+ */
+@Immutable
+@ParametersAreNonnullByDefault
+public class PackedFile
+{
+  /**
+   * Open the given packed file for reading.
+   *
+   * @param inFile the file to read
+   * @throws IOException if the file cannot be read or is not a packed file
+   */
+  public PackedFile(File inFile) throws IOException
+  {
+    try (RandomAccessFile file = new RandomAccessFile(inFile, "r");
+      FileChannel channel = file.getChannel())
+    {
+      m_buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    if(m_buffer.limit() < HEADER + 8 || m_buffer.getInt(0) != MAGIC)
+      throw new IOException(inFile + " is not a packed file");
+
+    if(m_buffer.getInt(4) != VERSION)
+      throw new IOException("unsupported version " + m_buffer.getInt(4)
+                            + " of " + inFile);
+
+    m_compressed = m_buffer.get(8) != 0;
+
+    ByteBuffer index = m_buffer.duplicate();
+    index.position((int)m_buffer.getLong(m_buffer.limit() - 8));
+    Map<String, Group> groups = new LinkedHashMap<>();
+    for(int i = index.getInt(); i > 0; i--)
+    {
+      byte []name = new byte[index.getShort()];
+      index.get(name);
+      groups.put(new String(name, Charsets.UTF_8),
+                 new Group(index.getLong(), index.getLong(), index.getInt()));
+    }
+
+    m_groups = Collections.unmodifiableMap(groups);
+  }
+
+  /** The position and size of a group of records. */
+  @Immutable
+  private static class Group
+  {
+    /**
+     * Create the group.
+     *
+     * @param inOffset  the offset of the first record in the file
+     * @param inLength  the number of bytes of all records, as stored
+     * @param inRecords the number of records
+     */
+    Group(long inOffset, long inLength, int inRecords)
+    {
+      m_offset = inOffset;
+      m_length = inLength;
+      m_records = inRecords;
+    }
+
+    /** The offset of the group in the file. */
+    private final long m_offset;
+
+    /** The number of bytes of the group. */
+    private final long m_length;
+
+    /** The number of records in the group. */
+    private final int m_records;
+  }
+
+  /** The magic number starting each packed file ('DMAP'). */
+  private static final int MAGIC = 0x444d4150;
+
+  /** The current version of the file format. */
+  private static final int VERSION = 1;
+
+  /** The size of the header (magic, version and compression). */
+  private static final int HEADER = 9;
+
+  /** The mapped contents of the file. */
+  private final MappedByteBuffer m_buffer;
+
+  /** Whether the records are compressed. */
+  private final boolean m_compressed;
+
+  /** The groups in the file, in the order written. */
+  private final Map<String, Group> m_groups;
+
+  /**
+   * Get the names of all groups in the file.
+   *
+   * @return the names, in the order the groups were written
+   */
+  public Set<String> getGroups()
+  {
+    return m_groups.keySet();
+  }
+
+  /**
+   * Get the number of records in the given group.
+   *
+   * @param inGroup the name of the group
+   * @return the number of records, 0 if there is no such group
+   */
+  public int count(String inGroup)
+  {
+    Group group = m_groups.get(inGroup);
+    if(group == null)
+      return 0;
+
+    return group.m_records;
+  }
+
+  /**
+   * Read all the records of the given group.
+   *
+   * @param inGroup the name of the group to read
+   * @return the records read, in the order written
+   * @throws IOException if the records cannot be read
+   */
+  public List<byte []> read(String inGroup) throws IOException
+  {
+    Group group = m_groups.get(inGroup);
+    if(group == null)
+      return new ArrayList<>();
+
+    ByteBuffer buffer = m_buffer.duplicate();
+    buffer.position((int)group.m_offset);
+    buffer.limit((int)(group.m_offset + group.m_length));
+
+    List<byte []> records = new ArrayList<>(group.m_records);
+    if(m_compressed)
+    {
+      try (DataInputStream input = new DataInputStream
+        (new InflaterInputStream(new BufferInputStream(buffer))))
+      {
+        for(int i = 0; i < group.m_records; i++)
+        {
+          byte []record = new byte[input.readInt()];
+          input.readFully(record);
+          records.add(record);
+        }
+      }
+    }
+    else
+      for(int i = 0; i < group.m_records; i++)
+      {
+        byte []record = new byte[buffer.getInt()];
+        buffer.get(record);
+        records.add(record);
+      }
+
+    return records;
+  }
+
+  /** An input stream reading from a byte buffer. */
+  private static class BufferInputStream extends InputStream
+  {
+    /**
+     * Create the stream.
+     *
+     * @param inBuffer the buffer to read from, up to its limit
+     */
+    BufferInputStream(ByteBuffer inBuffer)
+    {
+      m_buffer = inBuffer;
+    }
+
+    /** The buffer read. */
+    private final ByteBuffer m_buffer;
+
+    @Override
+    public int read()
+    {
+      if(!m_buffer.hasRemaining())
+        return -1;
+
+      return m_buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte []outBytes, int inOffset, int inLength)
+    {
+      if(!m_buffer.hasRemaining())
+        return -1;
+
+      int length = Math.min(inLength, m_buffer.remaining());
+      m_buffer.get(outBytes, inOffset, length);
+      return length;
+    }
+  }
+
+  /**
+   * A writer for packed files. Records are collected in memory per group and
+   * written when the writer is closed.
+   */
+  @ThreadSafe
+  public static class Writer implements AutoCloseable
+  {
+    /**
+     * Create the writer.
+     *
+     * @param inFile       the file to write to
+     * @param inCompressed whether to compress records
+     */
+    public Writer(File inFile, boolean inCompressed)
+    {
+      m_file = inFile;
+      m_compressed = inCompressed;
+    }
+
+    /** The file to write to. */
+    private final File m_file;
+
+    /** Whether to compress records. */
+    private final boolean m_compressed;
+
+    /** The records per group, as they will be written. */
+    private final Map<String, ByteArrayOutputStream> m_bytes =
+      new LinkedHashMap<>();
+
+    /** The streams to add records to a group. */
+    private final Map<String, DataOutputStream> m_outputs =
+      new LinkedHashMap<>();
+
+    /** The number of records per group. */
+    private final Map<String, Integer> m_records = new LinkedHashMap<>();
+
+    /**
+     * Add a record to the given group.
+     *
+     * @param inGroup  the name of the group to add to
+     * @param inRecord the record to add
+     * @throws IOException if the record cannot be added
+     */
+    public synchronized void add(String inGroup, byte []inRecord)
+      throws IOException
+    {
+      DataOutputStream output = m_outputs.get(inGroup);
+      if(output == null)
+      {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        m_bytes.put(inGroup, bytes);
+        m_records.put(inGroup, 0);
+        output = new DataOutputStream(m_compressed
+                                      ? new DeflaterOutputStream(bytes)
+                                      : bytes);
+        m_outputs.put(inGroup, output);
+      }
+
+      output.writeInt(inRecord.length);
+      output.write(inRecord);
+      m_records.put(inGroup, m_records.get(inGroup) + 1);
+    }
+
+    /**
+     * Write all the records added to the file.
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+      try (DataOutputStream output =
+        new DataOutputStream(new java.io.BufferedOutputStream
+                             (new FileOutputStream(m_file))))
+      {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeByte(m_compressed ? 1 : 0);
+
+        long offset = HEADER;
+        Map<String, long []> positions = new LinkedHashMap<>();
+        for(Map.Entry<String, ByteArrayOutputStream> entry
+              : m_bytes.entrySet())
+        {
+          OutputStream group = m_outputs.get(entry.getKey());
+          group.close();
+          entry.getValue().writeTo(output);
+          positions.put(entry.getKey(),
+                        new long [] { offset, entry.getValue().size() });
+          offset += entry.getValue().size();
+        }
+
+        output.writeInt(positions.size());
+        for(Map.Entry<String, long []> entry : positions.entrySet())
+        {
+          byte []name = entry.getKey().getBytes(Charsets.UTF_8);
+          output.writeShort(name.length);
+          output.write(name);
+          output.writeLong(entry.getValue()[0]);
+          output.writeLong(entry.getValue()[1]);
+          output.writeInt(m_records.get(entry.getKey()));
+        }
+
+        output.writeLong(offset);
+      }
+    }
+  }
+
+  //----------------------------------------------------------------------------
+
+  /** The tests. */
+  public static class Test extends net.ixitxachitls.util.test.TestCase
+  {
+    /**
+     * Write and read a packed file.
+     *
+     * @param inCompressed whether to compress the file
+     * @throws IOException should not happen
+     */
+    private void check(boolean inCompressed) throws IOException
+    {
+      File file = File.createTempFile("packed", ".dmap");
+      try
+      {
+        try (Writer writer = new Writer(file, inCompressed))
+        {
+          writer.add("first", "a".getBytes(Charsets.UTF_8));
+          writer.add("second", "bb".getBytes(Charsets.UTF_8));
+          writer.add("first", "".getBytes(Charsets.UTF_8));
+          writer.add("first", "ccc".getBytes(Charsets.UTF_8));
+        }
+
+        PackedFile packed = new PackedFile(file);
+        assertEquals("groups", "[first, second]",
+                     packed.getGroups().toString());
+        assertEquals("count", 3, packed.count("first"));
+        assertEquals("count", 1, packed.count("second"));
+        assertEquals("count", 0, packed.count("third"));
+
+        List<String> records = new ArrayList<>();
+        for(byte []record : packed.read("first"))
+          records.add(new String(record, Charsets.UTF_8));
+        assertEquals("first", "[a, , ccc]", records.toString());
+        assertEquals("second", "bb",
+                     new String(packed.read("second").get(0),
+                                Charsets.UTF_8));
+        assertTrue("third", packed.read("third").isEmpty());
+      }
+      finally
+      {
+        assertTrue("delete", file.delete());
+      }
+    }
+
+    /**
+     * The uncompressed Test.
+     *
+     * @throws IOException should not happen
+     */
+    @org.junit.Test
+    public void uncompressed() throws IOException
+    {
+      check(false);
+    }
+
+    /**
+     * The compressed Test.
+     *
+     * @throws IOException should not happen
+     */
+    @org.junit.Test
+    public void compressed() throws IOException
+    {
+      check(true);
+    }
+
+    /**
+     * The invalid Test.
+     *
+     * @throws IOException should not happen
+     */
+    @org.junit.Test
+    public void invalid() throws IOException
+    {
+      File file = File.createTempFile("packed", ".dmap");
+      try
+      {
+        com.google.common.io.Files.write("not a packed file", file,
+                                         Charsets.UTF_8);
+        try
+        {
+          new PackedFile(file);
+          fail("expected exception");
+        }
+        catch(IOException e)
+        {
+          assertTrue("message", e.getMessage().contains("not a packed file"));
+        }
+      }
+      finally
+      {
+        assertTrue("delete", file.delete());
+      }
+    }
+  }
+}
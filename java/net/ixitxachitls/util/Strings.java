@@ -41,6 +41,8 @@ import javax.annotation.concurrent.ThreadSafe;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import net.ixitxachitls.util.configuration.Config;
 import net.ixitxachitls.util.logging.Log;
@@ -115,6 +117,15 @@ public final class Strings
     NumberFormat.getInstance(new Locale(Config.get("number.language", "de"),
                                         Config.get("number.country", "ch")));
 
+  /** The compiled patterns used, by their regular expression. */
+  private static final Cache<String, Pattern> s_patterns =
+    CacheBuilder.newBuilder()
+    .maximumSize(Config.get("strings.patterns.size", 1000))
+    .build();
+
+  /** The pattern for numbers to make sortable. */
+  private static final Pattern s_sortable = Pattern.compile("(\\d+)");
+
   /** The pattern for teplates. */
   private static final Pattern s_template = Pattern.compile("\\$(\\w+)");
 
@@ -269,7 +280,7 @@ public final class Strings
       pattern = "(" + pattern + ")";
 
     // check if we have a name
-    Matcher matcher = Pattern.compile(pattern).matcher(inText);
+    Matcher matcher = compile(pattern).matcher(inText);
 
     if(matcher.find())
       return matcher.group(1);
@@ -277,6 +288,27 @@ public final class Strings
       return null;
   }
 
+  /**
+   * Get the compiled pattern for the given regular expression. Patterns are
+   * compiled only once and then reused, as long as they are used often enough
+   * to stay in the cache.
+   *
+   * @param       inPattern the regular expression to compile
+   *
+   * @return      the compiled pattern
+   */
+  public static Pattern compile(String inPattern)
+  {
+    Pattern pattern = s_patterns.getIfPresent(inPattern);
+    if(pattern == null)
+    {
+      pattern = Pattern.compile(inPattern);
+      s_patterns.put(inPattern, pattern);
+    }
+
+    return pattern;
+  }
+
   /**
    * Get the texts that matches the given pattern.
    *
@@ -300,8 +332,20 @@ public final class Strings
       return new String [] { result };
     }
 
-    // check if we have a name
-    Matcher matcher = Pattern.compile(inPattern).matcher(inText);
+    return getPatterns(inText, compile(inPattern));
+  }
+
+  /**
+   * Get the texts that matches the groups of the given pattern.
+   *
+   * @param       inText the text to match in
+   * @param       inPattern the pattern to match, with a group for each text
+   *
+   * @return      the texts that matched
+   */
+  public static String []getPatterns(String inText, Pattern inPattern)
+  {
+    Matcher matcher = inPattern.matcher(inText);
 
     if(matcher.find())
     {
@@ -329,7 +373,7 @@ public final class Strings
     List<String []> results = new ArrayList<>();
 
     // check if we have a name
-    Matcher matcher = Pattern.compile(inPattern).matcher(inText);
+    Matcher matcher = compile(inPattern).matcher(inText);
 
     while(matcher.find())
     {
@@ -681,7 +725,7 @@ public final class Strings
   public static String sortable(String inText)
   {
     // check if we have a number
-    Matcher matcher = Pattern.compile("(\\d+)").matcher(inText);
+    Matcher matcher = s_sortable.matcher(inText);
 
     StringBuffer result = new StringBuffer();
 
@@ -930,8 +974,21 @@ public final class Strings
       assertEquals("empty text", "[]",
                    java.util.Arrays.toString(Strings.getPatterns("", "")));
       assertEquals("null pattern", "[test]",
-                   java.util.Arrays.toString(Strings.getPatterns("test",
-                                                                 null)));
+                   java.util.Arrays.toString
+                   (Strings.getPatterns("test", (String)null)));
+      assertEquals("compiled", "[a, 42]",
+                   java.util.Arrays.toString
+                   (Strings.getPatterns("a b 42",
+                                        Pattern.compile("(\\w) \\w (\\d+)"))));
+    }
+
+    /** Testing the compile method. */
+    @org.junit.Test
+    public void compile()
+    {
+      Pattern pattern = Strings.compile("a+b");
+      assertEquals("pattern", "a+b", pattern.pattern());
+      assertSame("cached", pattern, Strings.compile("a+b"));
     }
 
     //......................................................................